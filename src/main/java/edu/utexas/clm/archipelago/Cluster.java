@@ -19,11 +19,13 @@
 package edu.utexas.clm.archipelago;
 
 
+import edu.utexas.clm.archipelago.compute.ClusterCompletionService;
 import edu.utexas.clm.archipelago.compute.ProcessManager;
 import edu.utexas.clm.archipelago.compute.QuickCallable;
 import edu.utexas.clm.archipelago.compute.QuickRunnable;
 import edu.utexas.clm.archipelago.compute.Scheduler;
 import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.exception.UndecodableMessageException;
 import edu.utexas.clm.archipelago.listen.ClusterStateListener;
 import edu.utexas.clm.archipelago.listen.MessageType;
 import edu.utexas.clm.archipelago.network.MessageXC;
@@ -37,6 +39,9 @@ import edu.utexas.clm.archipelago.network.shell.SocketNodeShell;
 import edu.utexas.clm.archipelago.network.translation.Bottler;
 import edu.utexas.clm.archipelago.network.translation.FileBottler;
 import edu.utexas.clm.archipelago.ui.ArchipelagoUI;
+import edu.utexas.clm.archipelago.util.CompletionLatch;
+import edu.utexas.clm.archipelago.util.EventBus;
+import edu.utexas.clm.archipelago.util.TimerWheel;
 import edu.utexas.clm.archipelago.util.XCErrorAdapter;
 import ij.Prefs;
 
@@ -51,17 +56,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -87,17 +96,20 @@ public class Cluster
 
         private final boolean isFractional;
         private final float numCores;
+        private final int ramMB;
 
-        public ClusterExecutorService(final float ft)
+        public ClusterExecutorService(final float ft, final int ram)
         {
             isFractional = true;
             numCores = ft;
+            ramMB = ram;
         }
 
-        public ClusterExecutorService(final int nc)
+        public ClusterExecutorService(final int nc, final int ram)
         {
             isFractional = false;
             numCores = nc;
+            ramMB = ram;
         }
 
         public synchronized void shutdown()
@@ -120,36 +132,17 @@ public class Cluster
 
         public boolean awaitTermination(long l, TimeUnit timeUnit) throws InterruptedException
         {
-            final Thread t = Thread.currentThread();
-            waitThreads.add(t);
-            try
-            {
-                Thread.sleep(timeUnit.convert(l, TimeUnit.MILLISECONDS));
-                waitThreads.remove(t);
-                return isTerminated();
-            }
-            catch (InterruptedException ie)
-            {
-                waitThreads.remove(t);
-                if (isTerminated())
-                {
-                    return true;
-                }
-                else
-                {
-                    throw ie;
-                }
-            }
+            return terminated.await(l, timeUnit) || isTerminated();
         }
 
         public <T> Future<T> submit(Callable<T> tCallable)
         {
-            return scheduler.queueNormal(tCallable, numCores, isFractional);
+            return scheduler.queueNormal(tCallable, numCores, isFractional, ramMB);
         }
 
         public <T> Future<T> submit(final Runnable runnable, T t) {
-            Callable<T> tCallable = new QuickCallable<T>(runnable);
-            return scheduler.queueNormal(tCallable, numCores, isFractional);
+            Callable<T> tCallable = new QuickCallable<T>(runnable, t);
+            return scheduler.queueNormal(tCallable, numCores, isFractional, ramMB);
         }
 
         public Future<?> submit(Runnable runnable) {
@@ -159,24 +152,7 @@ public class Cluster
         public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callables)
                 throws InterruptedException
         {
-            /*ArrayList<Future<T>> waitFutures = new ArrayList<Future<T>>(callables.size());
-            for (Callable<T> c : callables)
-            {
-                waitFutures.add(submit(c));
-            }
-
-            for (Future<T> f : waitFutures)
-            {
-                try
-                {
-                    f.get();
-                }
-                catch (ExecutionException e)
-                {*//**//*}
-            }
-
-            return waitFutures;*/
-            return invokeAll(callables, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            return invokeAll(callables, -1);
         }
 
         public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> callables,
@@ -184,80 +160,61 @@ public class Cluster
                                              final TimeUnit timeUnit)
                 throws InterruptedException
         {
-            final ArrayList<Future<T>> waitFutures = new ArrayList<Future<T>>();
-            final ArrayList<Future<T>> remainingFutures = new ArrayList<Future<T>>();
-            final AtomicBoolean timeOut = new AtomicBoolean(false);
-            final AtomicBoolean done = new AtomicBoolean(false);
-            final Thread t = Thread.currentThread();
-            final Thread timeOutThread = new Thread()
-            {
-                public void run()
-                {
-                    try
-                    {
-                        FijiArchipelago.debug("Invoke All: Waiting for at most " +
-                                timeUnit.convert(l, TimeUnit.MILLISECONDS) + "ms ");
-
-                        Thread.sleep(timeUnit.convert(l, TimeUnit.MILLISECONDS));
-                        FijiArchipelago.debug("Invoke All: Timed Out after " +
-                                timeUnit.convert(l, TimeUnit.MILLISECONDS) + "ms");
-                        timeOut.set(true);
-                        t.interrupt();
-                    }
-                    catch (InterruptedException ie)
-                    {
-                        if (!done.get())
-                        {
-                            t.interrupt();
-                        }
-                    }
-                }
-            };
+            return invokeAll(callables, Math.max(0, timeUnit.toNanos(l)));
+        }
 
-            timeOutThread.start();
+        /**
+         * Runs the given Callables, and waits until they are all done, or the timeout runs
+         * out, in which case the ones that aren't done are cancelled.
+         * @param callables the Callables to run
+         * @param nanos the timeout in nanoseconds, or -1 to wait for as long as it takes
+         * @return a Future for each Callable, in the order they were given
+         * @throws InterruptedException if we're interrupted while waiting. The jobs that
+         * aren't done are cancelled.
+         */
+        private <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> callables,
+                                              final long nanos)
+                throws InterruptedException
+        {
+            final LinkedBlockingQueue<Object> done = new LinkedBlockingQueue<Object>();
+            final ArrayList<Future<T>> futures = new ArrayList<Future<T>>(callables.size());
+            final TimerWheel.Timeout timeout = nanos < 0 ? null : timeOutTo(done, nanos);
+            int nDone = 0;
+            boolean timedOut = false;
 
             try
             {
-                for (Callable<T> c : callables)
+                for (final Callable<T> c : callables)
                 {
-                    waitFutures.add(submit(c));
+                    futures.add(scheduler.queueNormal(c, numCores, isFractional, ramMB, done));
                 }
 
-                remainingFutures.addAll(waitFutures);
-
-                for (Future<T> f : waitFutures)
+                while (nDone < futures.size() && !timedOut)
                 {
-                    try
+                    if (done.take() == TIMED_OUT)
                     {
-                        f.get();
+                        FijiArchipelago.debug("Invoke All: Timed out with " +
+                                (futures.size() - nDone) + " jobs not done");
+                        timedOut = true;
+                    }
+                    else
+                    {
+                        ++nDone;
                     }
-                    catch (ExecutionException e)
-                    {/**/}
-                    remainingFutures.remove(f);
                 }
 
-                done.set(true);
-                timeOutThread.interrupt();
-
-                return waitFutures;
+                return futures;
             }
-            catch (InterruptedException ie)
+            finally
             {
-                if (timeOut.get())
+                if (timeout != null)
                 {
-                    FijiArchipelago.debug("Invoke All: Cancelling remaining " +
-                            remainingFutures.size() + " futures");
-                    for (Future<T> future : remainingFutures)
-                    {
-                        future.cancel(true);
-                    }
-                    return waitFutures;
+                    timeout.cancel();
                 }
-                else
+
+                if (nDone < futures.size())
                 {
-                    done.set(true);
-                    timeOutThread.interrupt();
-                    throw ie;
+                    cancelAll(futures);
                 }
             }
         }
@@ -267,7 +224,7 @@ public class Cluster
         {
             try
             {
-                return invokeAny(callables, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                return invokeAny(callables, -1);
             }
             catch (TimeoutException te)
             {
@@ -280,93 +237,107 @@ public class Cluster
                                final TimeUnit timeUnit)
                 throws InterruptedException, ExecutionException, TimeoutException
         {
-            final ArrayList<Future<T>> waitFutures = new ArrayList<Future<T>>(callables.size());
-            final ArrayList<Future<T>> remainingFutures =
-                    new ArrayList<Future<T>>(callables.size());
-            final AtomicBoolean timeOut = new AtomicBoolean(false);
-            final AtomicBoolean done = new AtomicBoolean(false);
-            final Thread t = Thread.currentThread();
-            final Thread timeOutThread = new Thread()
-            {
-                public void run()
-                {
-                    try
-                    {
-                        Thread.sleep(timeUnit.convert(l, TimeUnit.MILLISECONDS));
-                        timeOut.set(true);
-                        t.interrupt();
-                    }
-                    catch (InterruptedException ie)
-                    {
-                        if (!done.get())
-                        {
-                            t.interrupt();
-                        }
-                    }
-                }
-            };
-            ExecutionException lastException = null;
-            // Because java doesn't have pointer primitives
+            return invokeAny(callables, Math.max(0, timeUnit.toNanos(l)));
+        }
 
-            timeOutThread.start();
+        /**
+         * Runs the given Callables, and returns the result of whichever finishes first without
+         * an Exception. The others are cancelled as soon as it does.
+         * @param callables the Callables to run
+         * @param nanos the timeout in nanoseconds, or -1 to wait for as long as it takes
+         * @return the result of the first Callable to finish successfully
+         * @throws InterruptedException if we're interrupted while waiting
+         * @throws ExecutionException if every Callable failed
+         * @throws TimeoutException if none finished successfully before the timeout ran out
+         */
+        private <T> T invokeAny(final Collection<? extends Callable<T>> callables,
+                                final long nanos)
+                throws InterruptedException, ExecutionException, TimeoutException
+        {
+            final LinkedBlockingQueue<Object> done = new LinkedBlockingQueue<Object>();
+            final ArrayList<Future<T>> futures = new ArrayList<Future<T>>(callables.size());
+            // Each Future, by the Object that comes off of the done queue
+            final IdentityHashMap<Object, Future<T>> doneFutures =
+                    new IdentityHashMap<Object, Future<T>>(callables.size());
+            final TimerWheel.Timeout timeout = nanos < 0 ? null : timeOutTo(done, nanos);
+            ExecutionException lastException = null;
 
             try
             {
-                boolean stillGoing = true;
-                Future<T> okFuture = null;
-
-                for (Callable<T> c : callables)
+                for (final Callable<T> c : callables)
                 {
-                    waitFutures.add(submit(c));
+                    final Future<T> future =
+                            scheduler.queueNormal(c, numCores, isFractional, ramMB, done);
+                    futures.add(future);
+                    doneFutures.put(future, future);
                 }
 
-                remainingFutures.addAll(waitFutures);
-
-
-                for (int i = 0; stillGoing && i < waitFutures.size(); ++i)
+                // Futures come off the queue in the order that their jobs finish
+                for (int nDone = 0; nDone < futures.size(); ++nDone)
                 {
-                    okFuture = waitFutures.get(i);
-                    try
+                    final Object o = done.take();
+
+                    if (o == TIMED_OUT)
                     {
-                        okFuture.get();
-                        stillGoing = false;
+                        throw new TimeoutException();
                     }
-                    catch (ExecutionException e)
+                    else
                     {
-                        lastException = e;
-                    }
-                    remainingFutures.remove(okFuture);
-                }
+                        final Future<T> future = doneFutures.get(o);
 
-                for (Future<T> future : remainingFutures)
-                {
-                    future.cancel(true);
+                        if (!future.isCancelled())
+                        {
+                            try
+                            {
+                                return future.get();
+                            }
+                            catch (ExecutionException e)
+                            {
+                                lastException = e;
+                            }
+                        }
+                    }
                 }
 
-                if (stillGoing)
+                throw lastException == null ?
+                        new ExecutionException(new Exception("No completed callables")) :
+                        lastException;
+            }
+            finally
+            {
+                if (timeout != null)
                 {
-                    throw lastException == null ?
-                            new ExecutionException(new Exception("No completed callables")) :
-                            lastException;
+                    timeout.cancel();
                 }
 
-                done.set(true);
-                timeOutThread.interrupt();
-
-                return okFuture.get();
+                // Cancelling a job that is done does nothing
+                cancelAll(futures);
             }
-            catch (InterruptedException ie)
+        }
+
+        /**
+         * Schedules the TIMED_OUT marker to be put on the given queue once the given time has
+         * passed.
+         * @param queue the queue that the caller is waiting on
+         * @param nanos the timeout in nanoseconds
+         * @return a handle to cancel the timeout with
+         */
+        private TimerWheel.Timeout timeOutTo(final BlockingQueue<Object> queue, final long nanos)
+        {
+            return timerWheel.schedule(new Runnable()
             {
-                if (timeOut.get())
-                {
-                    throw new TimeoutException();
-                }
-                else
+                public void run()
                 {
-                    done.set(true);
-                    timeOutThread.interrupt();
-                    throw(ie);
+                    queue.offer(TIMED_OUT);
                 }
+            }, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private <T> void cancelAll(final List<Future<T>> futures)
+        {
+            for (final Future<T> future : futures)
+            {
+                future.cancel(true);
             }
         }
 
@@ -377,6 +348,12 @@ public class Cluster
     
     /* Static Members and Methods */
 
+    // Put on a queue by a timeout, to wake the thread waiting on it
+    private static final Object TIMED_OUT = new Object();
+
+    // The default shortest time between two calls to the same ClusterStateListener
+    public static final long DEFAULT_LISTENER_INTERVAL_MS = 100;
+
     private static final HashMap<String, NodeShell> shellMap = new HashMap<String, NodeShell>();
     private static Cluster cluster = null;
     
@@ -562,7 +539,12 @@ public class Cluster
     
     //private final AtomicInteger jobCount;
 
-    private final Vector<Thread> waitThreads;
+    // Opened when the Cluster stops
+    private final CompletionLatch terminated;
+    // Opened, and replaced with a fresh latch, whenever the state or the set of nodes changes
+    private final AtomicReference<CompletionLatch> stateChanged;
+    // Drives invokeAll() and invokeAny() timeouts, and any others scheduled with scheduleTimeout()
+    private final TimerWheel timerWheel;
     private final Vector<ArchipelagoUI> registeredUIs;
     private final Scheduler scheduler;
     
@@ -572,7 +554,8 @@ public class Cluster
 
     private String localHostName;
     
-    private final Vector<ClusterStateListener> listeners;
+    // Calls the ClusterStateListeners, off of the threads that trigger them
+    private final EventBus<ClusterStateListener> listeners;
 
     private final XCErrorAdapter xcEListener;
     
@@ -585,7 +568,18 @@ public class Cluster
     private Cluster()
     {
         state = new AtomicInteger(0);
-        waitThreads = new Vector<Thread>();
+        terminated = new CompletionLatch();
+        stateChanged = new AtomicReference<CompletionLatch>(new CompletionLatch());
+        timerWheel = new TimerWheel("Archipelago timer");
+        listeners = new EventBus<ClusterStateListener>("Archipelago listener", timerWheel,
+                DEFAULT_LISTENER_INTERVAL_MS, TimeUnit.MILLISECONDS,
+                new EventBus.Delivery<ClusterStateListener>()
+                {
+                    public void deliver(final ClusterStateListener listener)
+                    {
+                        listener.stateChanged(self);
+                    }
+                });
         registeredUIs = new Vector<ArchipelagoUI>();
         
 //        jobCount = new AtomicInteger(0);
@@ -595,12 +589,22 @@ public class Cluster
             public boolean handleCustom(final Throwable t, final MessageXC mxc,
                                         final ClusterMessage message)
             {
-                if (message.type == MessageType.PROCESS)
+                if (t instanceof UndecodableMessageException)
+                {
+                    // A message couldn't be decoded, here or on the remote side. Only the job
+                    // that it belongs to, if any, has to fail. The node carries on.
+                    final long id = ((UndecodableMessageException)t).getJobID();
+                    if (id >= 0)
+                    {
+                        failJob(mxc, id, t);
+                    }
+                }
+                else if (message != null && message.type == MessageType.PROCESS)
                 {
                     final ProcessManager<?> pm = (ProcessManager<?>)message.o;
                     pm.setException(t);
                     //finishFuture(pm);
-                    scheduler.error(pm.getID(), t);
+                    failJob(mxc, pm.getID(), t);
                 }
 
                 if (t instanceof StreamCorruptedException ||
@@ -613,11 +617,14 @@ public class Cluster
                 return true;
             }
             
-            public boolean handleCustomRX(final Throwable t, final MessageXC xc,
+            public boolean handleCustomRX(final Throwable throwable, final MessageXC xc,
                                           final ClusterMessage message)
             {
                 final long lastID = xc.getLastProcessID();
-                if (message.type == MessageType.ERROR)
+                final Throwable t = throwable instanceof UndecodableMessageException ?
+                        throwable.getCause() : throwable;
+
+                if (message != null && message.type == MessageType.ERROR)
                 {
                     errorFuture(lastID, (Throwable)message.o);
                 }
@@ -644,9 +651,14 @@ public class Cluster
                 return true;
             }
 
-            public boolean handleCustomTX(final Throwable t, MessageXC xc,
+            public boolean handleCustomTX(final Throwable throwable, MessageXC xc,
                                           final ClusterMessage message)
             {
+                // A message that couldn't be encoded has already failed its job, in
+                // handleCustom. Only a failure to write to the stream means the node is lost.
+                final boolean undecodable = throwable instanceof UndecodableMessageException;
+                final Throwable t = undecodable ? throwable.getCause() : throwable;
+
                 if (t instanceof NotSerializableException)
                 {
                     FijiArchipelago.debug("NSE trace.", t);
@@ -660,6 +672,11 @@ public class Cluster
                             " as your Callable is being Serialized: " + t, xc);
                     return false;
                 }
+                else if (undecodable)
+                {
+                    reportTX(t, "Could not send a message: " + t, xc);
+                    return false;
+                }
                 else if (t instanceof IOException)
                 {
                     reportTX(t, "Stream closed, closing node. ", xc);
@@ -673,8 +690,6 @@ public class Cluster
 
         scheduler = new Scheduler(this);
         
-        listeners = new Vector<ClusterStateListener>();
-        
         hash = new Long(System.currentTimeMillis()).hashCode();
 
         parametersFactory = new NodeParametersFactory();
@@ -716,7 +731,17 @@ public class Cluster
             scheduler.start();
         }
 
-        triggerListeners();
+        signalStateChanged();
+        listeners.postNow();
+    }
+
+    /**
+     * Wakes any thread waiting in waitUntilReady() or waitForAllNodes(), so that it can check
+     * again.
+     */
+    private void signalStateChanged()
+    {
+        stateChanged.getAndSet(new CompletionLatch()).open();
     }
 
     public ClusterState getState()
@@ -773,24 +798,33 @@ public class Cluster
 
     public void addStateListener(ClusterStateListener listener)
     {
-        if (!listeners.contains(listener))
-        {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
     }
     
-    public synchronized void removeStateListener(ClusterStateListener listener)
+    public void removeStateListener(ClusterStateListener listener)
     {
         listeners.remove(listener);
     }
-    
+
+    /**
+     * Lets the ClusterStateListeners know that something has changed. This returns right
+     * away. The listeners are called later, on another thread, and a burst of calls to this
+     * method is coalesced into at most one call to each listener per listener interval.
+     */
     public void triggerListeners()
     {
-        Vector<ClusterStateListener> listenersLocal = new Vector<ClusterStateListener>(listeners);
-        for (ClusterStateListener listener : listenersLocal)
-        {
-            listener.stateChanged(this);
-        }
+        listeners.post();
+    }
+
+    /**
+     * Sets the shortest time between two calls to the same ClusterStateListener. Changes to
+     * the Cluster's own state are passed on without waiting this out.
+     * @param interval the interval
+     * @param unit the unit of interval
+     */
+    public void setListenerInterval(final long interval, final TimeUnit unit)
+    {
+        listeners.setInterval(interval, unit);
     }
     
     public boolean acceptingNodes()
@@ -811,24 +845,28 @@ public class Cluster
             return;
         }
 
-        boolean wait = true;        
         final long sTime = System.currentTimeMillis();
-        
-        while (wait)
+
+        while (true)
         {
-            long wTime = System.currentTimeMillis() - sTime;
-            if (nodesWaiting())
+            // Take the latch before checking, so that a change in between isn't missed
+            final CompletionLatch latch = stateChanged.get();
+            final long wTime = System.currentTimeMillis() - sTime;
+
+            if (!nodesWaiting())
             {
-                if (wTime > timeout)
-                {
-                    throw new TimeoutException();
-                }
-                Thread.sleep(1000);
+                return;
             }
-            else
+            else if (wTime > timeout)
             {
-                wait = false;
+                throw new TimeoutException();
             }
+
+            /*
+             Nodes leave the waiting list without necessarily changing our state, so check
+             again at least once a second.
+             */
+            latch.await(Math.min(1000, timeout - wTime), TimeUnit.MILLISECONDS);
         }
     }
     
@@ -840,39 +878,45 @@ public class Cluster
     
     public void waitUntilReady(final long timeout)
     {
-        boolean wait = !isReady();
-
         final long sTime = System.currentTimeMillis();
-        
+        boolean wait = true;
+
         FijiArchipelago.debug("Cluster: Waiting for ready nodes");
 
         // Wait synchronously
         while (wait)
         {
-            try
-            {
-                Thread.sleep(1000); //sleep for a second
+            final CompletionLatch latch = stateChanged.get();
+            final long wTime = System.currentTimeMillis() - sTime;
 
-                if ((System.currentTimeMillis() - sTime) > timeout)
-                {
-                    if (getState() != ClusterState.RUNNING)
-                    {
-                        FijiArchipelago.err("Cluster timed out while waiting for nodes to be ready");
-                    }
-                    wait = false;
-                }
-                else
-                {                    
-                    wait = getState() != ClusterState.RUNNING; 
-                }
+            if (isReady())
+            {
+                wait = false;
             }
-            catch (InterruptedException ie)
+            else if (wTime >= timeout)
             {
+                FijiArchipelago.err("Cluster timed out while waiting for nodes to be ready");
                 wait = false;
             }
+            else
+            {
+                try
+                {
+                    latch.await(timeout - wTime, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException ie)
+                {
+                    // Give up, but leave the interrupt for our caller to see
+                    Thread.currentThread().interrupt();
+                    wait = false;
+                }
+            }
+        }
+
+        if (isReady())
+        {
+            FijiArchipelago.log("Cluster is ready");
         }
-        
-        FijiArchipelago.log("Cluster is ready");
     }
 
     public int countReadyNodes()
@@ -903,6 +947,18 @@ public class Cluster
         scheduler.error(id, e);
     }
 
+    /**
+     * Fails a job, releasing its cores on the node that it was running on, if there is one.
+     */
+    private void failJob(final MessageXC xc, final long id, final Throwable e)
+    {
+        final ClusterNode node = getNode(xc.getId());
+        if (node == null || !node.jobFailed(id, e))
+        {
+            scheduler.error(id, e);
+        }
+    }
+
     public Set<ClusterNode> getNodes()
     {
         return nodeCoordinator.getNodes();
@@ -931,13 +987,13 @@ public class Cluster
         return parametersFactory;
     }
 
-    public void addBottler(final Bottler bottler)
+    public void addBottler(final Bottler<?> bottler)
     {
         FijiArchipelago.debug("Registered bottler " + bottler.getClass().getName());
         nodeCoordinator.addBottler(bottler);
     }
 
-    public List<Bottler> getBottlers()
+    public List<Bottler<?>> getBottlers()
     {
         return nodeCoordinator.getBottlers();
     }
@@ -972,25 +1028,70 @@ public class Cluster
     {
         return scheduler.numQueuedJobs();
     }
+
+    /**
+     * Sets how long a job may wait for a node that recently handled the same DataChunks before
+     * it is sent elsewhere. See Scheduler.setLocalityDelay().
+     * @param ms the longest time to wait, in milliseconds
+     */
+    public void setLocalityDelay(final long ms)
+    {
+        scheduler.setLocalityDelay(ms);
+    }
+
+    /**
+     * Turns speculative execution on or off. See Scheduler.setSpeculativeExecution(). Off by
+     * default, since it runs some jobs twice.
+     * @param on true to run spare copies of straggling jobs, false not to
+     */
+    public void setSpeculativeExecution(final boolean on)
+    {
+        scheduler.setSpeculativeExecution(on);
+    }
+
+    /**
+     * Sets the Executor that the CompletionStage callbacks of jobs submitted from now on run
+     * on. See Scheduler.setCallbackExecutor().
+     * @param executor the Executor to run callbacks on, or null for the default
+     */
+    public void setCallbackExecutor(final Executor executor)
+    {
+        scheduler.setCallbackExecutor(executor);
+    }
+
+    /**
+     * Runs a task once the given delay has passed, on the Cluster's timer thread, which is
+     * shared by every timeout. The task should return quickly, for instance by cancelling a
+     * Future or waking another thread.
+     * @param task the task to run
+     * @param delay the time to wait before running it
+     * @param unit the unit of delay
+     * @return a handle that may be used to cancel the task
+     */
+    public TimerWheel.Timeout scheduleTimeout(final Runnable task, final long delay,
+                                              final TimeUnit unit)
+    {
+        return timerWheel.schedule(task, delay, unit);
+    }
     
     protected synchronized void haltFinished()
     {
         nodeCoordinator.reset();
-        triggerListeners();
+        listeners.postNow();
+        // This Cluster is done for. getCluster() will make a new one, with its own threads.
+        listeners.shutdown();
+        timerWheel.stop();
         FijiArchipelago.debug("Cluster: Halt has finished");
     }
     
     protected synchronized void terminateFinished()
     {
-        ArrayList<Thread> waitThreadsCP = new ArrayList<Thread>(waitThreads);
-        
         setState(ClusterState.STOPPED);
         scheduler.close();
-
-        for (Thread t : waitThreadsCP)
-        {
-            t.interrupt();
-        }
+        // shutdownNow() gets here without passing through haltFinished()
+        listeners.shutdown();
+        timerWheel.stop();
+        terminated.open();
     }
             
     public ArrayList<Callable<?>> remainingCallables()
@@ -1018,6 +1119,8 @@ public class Cluster
 
     public void nodeStopped(final ClusterNode node, final int nRunningNodes)
     {
+        scheduler.nodeChanged(node);
+
         for (ProcessManager<?> pm : node.getRunningProcesses())
         {
             if (isShutdown())
@@ -1051,15 +1154,20 @@ public class Cluster
             }
         }
 
+        signalStateChanged();
         FijiArchipelago.debug("There are now " + nRunningNodes + " running nodes");
     }
 
-    public void nodeStarted()
+    public void nodeStarted(final ClusterNode node)
     {
         if (getState() == ClusterState.STARTED)
         {
             setState(ClusterState.RUNNING);
         }
+
+        // The new node may be able to take queued jobs right away
+        scheduler.nodeChanged(node);
+        signalStateChanged();
     }
 
     public boolean isShutdown()
@@ -1132,16 +1240,25 @@ public class Cluster
 
     public int getMaxThreads()
     {
-        int maxThreads = -1;
-        for (ClusterNode node : nodeCoordinator.getNodes())
-        {
-            int ncpu = node.getThreadLimit();
-            maxThreads = maxThreads < node.getThreadLimit() ? ncpu : maxThreads;
-        }
+        final int maxThreads = nodeCoordinator.getMaxThreadLimit();
         return maxThreads < 1 ? 1 : maxThreads;
     }
     
     public ExecutorService getService(final int nThreads)
+    {
+        return getService(nThreads, 0);
+    }
+
+    /**
+     * Returns an ExecutorService whose jobs each use the given number of threads, and are
+     * expected to need the given amount of memory. A job is only sent to a node that has that
+     * much of its heap left, counting the other jobs already sent there. The Scheduler raises
+     * the estimate for a Callable class if jobs of that class are seen to use more.
+     * @param nThreads the number of threads that each job uses
+     * @param ramMB the memory that each job is expected to need, in MB, or 0 if unknown
+     * @return an ExecutorService that runs jobs on the Cluster
+     */
+    public ExecutorService getService(final int nThreads, final int ramMB)
     {
         int maxThreads = getMaxThreads(), nt;
 
@@ -1156,12 +1273,60 @@ public class Cluster
             nt = nThreads;
         }
 
-        return new ClusterExecutorService(nt);
+        return new ClusterExecutorService(nt, ramMB);
     }
     
     public ExecutorService getService(final float fractionThreads)
     {
-        return new ClusterExecutorService(fractionThreads);
+        return getService(fractionThreads, 0);
+    }
+
+    /**
+     * Like getService(int, int), for jobs that each use the given fraction of a node's
+     * threads.
+     * @param fractionThreads the fraction of each node's thread limit that each job uses
+     * @param ramMB the memory that each job is expected to need, in MB, or 0 if unknown
+     * @return an ExecutorService that runs jobs on the Cluster
+     */
+    public ExecutorService getService(final float fractionThreads, final int ramMB)
+    {
+        return new ClusterExecutorService(fractionThreads, ramMB);
+    }
+
+    /**
+     * Returns a CompletionService that runs jobs on the Cluster, each using the given number of
+     * threads, and hands back their Futures in the order that the jobs finish.
+     * @param nThreads the number of threads that each job uses
+     * @return a ClusterCompletionService
+     */
+    public <T> ClusterCompletionService<T> getCompletionService(final int nThreads)
+    {
+        return getCompletionService(nThreads, 0);
+    }
+
+    /**
+     * Like getCompletionService(int), for jobs that are expected to need the given amount of
+     * memory. See getService(int, int).
+     * @param nThreads the number of threads that each job uses
+     * @param ramMB the memory that each job is expected to need, in MB, or 0 if unknown
+     * @return a ClusterCompletionService
+     */
+    public <T> ClusterCompletionService<T> getCompletionService(final int nThreads,
+                                                                final int ramMB)
+    {
+        return new ClusterCompletionService<T>(scheduler, Math.min(nThreads, getMaxThreads()),
+                false, ramMB);
+    }
+
+    /**
+     * Like getCompletionService(int), for jobs that each use the given fraction of a node's
+     * threads.
+     * @param fractionThreads the fraction of each node's thread limit that each job uses
+     * @return a ClusterCompletionService
+     */
+    public <T> ClusterCompletionService<T> getCompletionService(final float fractionThreads)
+    {
+        return new ClusterCompletionService<T>(scheduler, fractionThreads, true, 0);
     }
     
     public String getLocalHostName()
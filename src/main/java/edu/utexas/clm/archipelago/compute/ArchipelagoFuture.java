@@ -38,26 +38,60 @@ package edu.utexas.clm.archipelago.compute;
 
 import edu.utexas.clm.archipelago.FijiArchipelago;
 import edu.utexas.clm.archipelago.network.node.ClusterNode;
+import edu.utexas.clm.archipelago.util.CompletionLatch;
 
-import java.util.Vector;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-
-public class ArchipelagoFuture<T> implements Future<T>
+/**
+ * The Future for a job run on the Cluster. As well as blocking in get(), callers may chain
+ * further work onto it through the CompletionStage methods. Those run on the callback Executor
+ * once the job is done, so that no thread has to wait on the job, and so that nothing chained
+ * onto a job runs on the threads that talk to the nodes. Dependent stages that aren't async
+ * run on the same thread as the stage before them, and async ones without an Executor given
+ * run on the callback Executor.
+ *
+ * A job that fails completes the stage exceptionally with the remote exception, and a job that
+ * is cancelled completes it with a CancellationException.
+ */
+public class ArchipelagoFuture<T> implements Future<T>, CompletionStage<T>
 {
+    private static final ExecutorService defaultCallbackPool = newCallbackPool();
+
     private T t;
     private final long id;
     private final Scheduler scheduler;
-    private final AtomicBoolean wasCancelled, done, finished;
-    private final Vector<Thread> waitingThreads;
+    private final AtomicBoolean wasCancelled, done, finished, reported;
+    // Opened once the job is done. get() waits on this.
+    private final CompletionLatch latch;
     private final ReentrantLock threadLock;
     private Throwable e;
     private ClusterNode ranOnNode = null;
+    // Where to put this Future when it's done, for a ClusterCompletionService, or null
+    private volatile BlockingQueue<? super ArchipelagoFuture<T>> completionQueue = null;
+    // Completed on callbackExecutor once this Future is done. Backs the CompletionStage methods.
+    private final CompletableFuture<T> stage;
+    private final Executor callbackExecutor;
+    // The thread that is in cancel(), if any
+    private volatile Thread cancellingThread = null;
    
     
     public ArchipelagoFuture(Scheduler scheduler)
@@ -70,11 +104,14 @@ public class ArchipelagoFuture<T> implements Future<T>
         id = FijiArchipelago.getUniqueID();
         t = inData;
         scheduler = s;
-        waitingThreads = new Vector<Thread>();
+        latch = new CompletionLatch();
         wasCancelled = new AtomicBoolean(false);
         done = new AtomicBoolean(false);
         finished = new AtomicBoolean(false);
+        reported = new AtomicBoolean(false);
         threadLock = new ReentrantLock();
+        stage = new CompletableFuture<T>();
+        callbackExecutor = s == null ? defaultCallbackPool : s.getCallbackExecutor();
     }
 
     // FijiArchipelago-specific methods
@@ -84,6 +121,67 @@ public class ArchipelagoFuture<T> implements Future<T>
         return id;
     }
 
+    /**
+     * Sets a queue that this Future adds itself to when it is done, whether it finished,
+     * failed or was cancelled. This must be set before the job is queued.
+     * @param queue the queue to add this Future to
+     */
+    void setCompletionQueue(final BlockingQueue<? super ArchipelagoFuture<T>> queue)
+    {
+        completionQueue = queue;
+    }
+
+    /**
+     * Called once this Future is done. Hands it to the completion queue, if there is one, and
+     * completes the CompletionStage on the callback Executor.
+     */
+    private void completed()
+    {
+        final BlockingQueue<? super ArchipelagoFuture<T>> queue = completionQueue;
+        final Runnable completer;
+
+        // A forced cancel finishes the Future from inside cancel(), which calls this again once
+        // it knows that the job was cancelled
+        if (Thread.currentThread() == cancellingThread || reported.getAndSet(true))
+        {
+            return;
+        }
+
+        if (queue != null)
+        {
+            queue.offer(this);
+        }
+
+        completer = new Runnable()
+        {
+            public void run()
+            {
+                if (wasCancelled.get())
+                {
+                    stage.cancel(false);
+                }
+                else if (e != null)
+                {
+                    stage.completeExceptionally(e);
+                }
+                else
+                {
+                    stage.complete(t);
+                }
+            }
+        };
+
+        try
+        {
+            callbackExecutor.execute(completer);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            // The Executor has been shut down. Better to run the callbacks here than never.
+            completer.run();
+        }
+    }
+
     public boolean finish(final Throwable exception)
     {
         threadLock.lock();
@@ -91,8 +189,9 @@ public class ArchipelagoFuture<T> implements Future<T>
         {
             e = exception;
             done.set(true);
-            smoochThreads();
+            latch.open();
             threadLock.unlock();
+            completed();
             return true;
         }
         else
@@ -122,10 +221,8 @@ public class ArchipelagoFuture<T> implements Future<T>
                 ranOnNode = scheduler.getNode(pm);
                 e = pm.getRemoteException();
                 done.set(true);
-                // MUST set done to true before interrupting threads, or we'll get a bunch of
-                // InterruptedExceptions on get()
-                FijiArchipelago.debug("Future " + id + ": finished ok. smooching threads");
-                smoochThreads();
+                FijiArchipelago.debug("Future " + id + ": finished ok. waking threads");
+                latch.open();
             }
             else
             {
@@ -133,6 +230,10 @@ public class ArchipelagoFuture<T> implements Future<T>
                 t = null;
             }
             threadLock.unlock();
+            if (done.get())
+            {
+                completed();
+            }
             return true;
         }
         else
@@ -143,24 +244,12 @@ public class ArchipelagoFuture<T> implements Future<T>
         }
     }
 
-    private synchronized void smoochThreads()
-    {
-        /*
-        This function assumes that threadLock is locked when it is called.
-         */
-        assert threadLock.isLocked();
-        for (Thread t: waitingThreads)
-        {
-            t.interrupt();
-        }
-    }
-
     // Future-only methods.
 
     /**
      * Cancels execution of this thread, optionally continuing execution if the associated
      * Callable is already running. In the case that a running Callable is cancelled, any
-     * waiting get() methods will throw an InterruptedException
+     * threads waiting in get() are woken and return.
      * @param b if true, the job associated with this Future will be cancelled even if it is
      *          currently executing, if false, this call to cancel() will be ignored.
      * @return true if the job was cancelled, false otherwise.
@@ -177,13 +266,15 @@ public class ArchipelagoFuture<T> implements Future<T>
         else
         {
             FijiArchipelago.debug("Job " + getID() + ": Cancel called.");
+            cancellingThread = Thread.currentThread();
             boolean cancelled = scheduler.cancelJob(id, b);
+            cancellingThread = null;
             done.set(cancelled);
             if (cancelled)
             {
                 FijiArchipelago.debug("Job " + getID() + " cancel SUCCESS");
                 finished.set(true);
-                smoochThreads();
+                latch.open();
             }
             else
             {
@@ -191,6 +282,10 @@ public class ArchipelagoFuture<T> implements Future<T>
             }
             wasCancelled.set(cancelled);
             threadLock.unlock();
+            if (cancelled)
+            {
+                completed();
+            }
             return cancelled;
         }
     }
@@ -205,67 +300,331 @@ public class ArchipelagoFuture<T> implements Future<T>
 
     public T get() throws InterruptedException, ExecutionException
     {
-        try
+        latch.await();
+        return result();
+    }
+
+    public T get(final long l, final TimeUnit timeUnit) throws InterruptedException,
+            ExecutionException, TimeoutException
+    {
+        if (!latch.await(l, timeUnit))
         {
-            return get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            throw new TimeoutException();
         }
-        catch (TimeoutException te)
+        return result();
+    }
+
+    /**
+     * Call only once the latch is open.
+     * @return the result of the job
+     * @throws ExecutionException if the job failed
+     */
+    private T result() throws ExecutionException
+    {
+        if (e != null)
         {
-            throw new ExecutionException(te);
+            throw new ExecutionException("On host " +
+                    (ranOnNode == null ? "null" : ranOnNode.getHost()), e);
         }
+
+        return t;
     }
-    
-    private void removeWaitingThread(final Thread t)
+
+    // CompletionStage methods
+
+    public <U> CompletionStage<U> thenApply(final Function<? super T, ? extends U> fn)
     {
-        threadLock.lock();
-        waitingThreads.remove(t);
-        threadLock.unlock();
+        return stage.thenApply(fn);
     }
 
-    public T get(final long l, final TimeUnit timeUnit) throws InterruptedException,
-            ExecutionException, TimeoutException
+    public <U> CompletionStage<U> thenApplyAsync(final Function<? super T, ? extends U> fn)
     {
-        FijiArchipelago.debug("Future: " + getID() + " get() called, acquiring lock...");
-        threadLock.lock();
+        return stage.thenApplyAsync(fn, callbackExecutor);
+    }
 
-        if (!done.get())
-        {
-            final Thread currThread = Thread.currentThread();
+    public <U> CompletionStage<U> thenApplyAsync(final Function<? super T, ? extends U> fn,
+                                                 final Executor executor)
+    {
+        return stage.thenApplyAsync(fn, executor);
+    }
 
-            FijiArchipelago.debug("Future: " + getID() + " not done, adding Thread to queue");
+    public CompletionStage<Void> thenAccept(final Consumer<? super T> action)
+    {
+        return stage.thenAccept(action);
+    }
 
-            waitingThreads.add(currThread);
-            threadLock.unlock();
-            try
-            {
-                FijiArchipelago.debug("Future: " + getID() + " sleeping...");
-                Thread.sleep(timeUnit.convert(l, TimeUnit.MILLISECONDS));
-                FijiArchipelago.debug("Future: " + getID() + " timed out");
-                removeWaitingThread(currThread);                
-                throw new TimeoutException();
-            }
-            catch (InterruptedException ie)
-            {
-                FijiArchipelago.debug("Future: " + getID() + " woken up");
-                removeWaitingThread(currThread);
-                if (!done.get())
-                {
-                    throw ie;
-                }
-            }
-        }
-        else
+    public CompletionStage<Void> thenAcceptAsync(final Consumer<? super T> action)
+    {
+        return stage.thenAcceptAsync(action, callbackExecutor);
+    }
+
+    public CompletionStage<Void> thenAcceptAsync(final Consumer<? super T> action,
+                                                 final Executor executor)
+    {
+        return stage.thenAcceptAsync(action, executor);
+    }
+
+    public CompletionStage<Void> thenRun(final Runnable action)
+    {
+        return stage.thenRun(action);
+    }
+
+    public CompletionStage<Void> thenRunAsync(final Runnable action)
+    {
+        return stage.thenRunAsync(action, callbackExecutor);
+    }
+
+    public CompletionStage<Void> thenRunAsync(final Runnable action, final Executor executor)
+    {
+        return stage.thenRunAsync(action, executor);
+    }
+
+    public <U, V> CompletionStage<V> thenCombine(
+            final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return stage.thenCombine(other, fn);
+    }
+
+    public <U, V> CompletionStage<V> thenCombineAsync(
+            final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return stage.thenCombineAsync(other, fn, callbackExecutor);
+    }
+
+    public <U, V> CompletionStage<V> thenCombineAsync(
+            final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn, final Executor executor)
+    {
+        return stage.thenCombineAsync(other, fn, executor);
+    }
+
+    public <U> CompletionStage<Void> thenAcceptBoth(
+            final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action)
+    {
+        return stage.thenAcceptBoth(other, action);
+    }
+
+    public <U> CompletionStage<Void> thenAcceptBothAsync(
+            final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action)
+    {
+        return stage.thenAcceptBothAsync(other, action, callbackExecutor);
+    }
+
+    public <U> CompletionStage<Void> thenAcceptBothAsync(
+            final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action, final Executor executor)
+    {
+        return stage.thenAcceptBothAsync(other, action, executor);
+    }
+
+    public CompletionStage<Void> runAfterBoth(final CompletionStage<?> other,
+                                              final Runnable action)
+    {
+        return stage.runAfterBoth(other, action);
+    }
+
+    public CompletionStage<Void> runAfterBothAsync(final CompletionStage<?> other,
+                                                   final Runnable action)
+    {
+        return stage.runAfterBothAsync(other, action, callbackExecutor);
+    }
+
+    public CompletionStage<Void> runAfterBothAsync(final CompletionStage<?> other,
+                                                   final Runnable action,
+                                                   final Executor executor)
+    {
+        return stage.runAfterBothAsync(other, action, executor);
+    }
+
+    public <U> CompletionStage<U> applyToEither(final CompletionStage<? extends T> other,
+                                                final Function<? super T, U> fn)
+    {
+        return stage.applyToEither(other, fn);
+    }
+
+    public <U> CompletionStage<U> applyToEitherAsync(final CompletionStage<? extends T> other,
+                                                     final Function<? super T, U> fn)
+    {
+        return stage.applyToEitherAsync(other, fn, callbackExecutor);
+    }
+
+    public <U> CompletionStage<U> applyToEitherAsync(final CompletionStage<? extends T> other,
+                                                     final Function<? super T, U> fn,
+                                                     final Executor executor)
+    {
+        return stage.applyToEitherAsync(other, fn, executor);
+    }
+
+    public CompletionStage<Void> acceptEither(final CompletionStage<? extends T> other,
+                                              final Consumer<? super T> action)
+    {
+        return stage.acceptEither(other, action);
+    }
+
+    public CompletionStage<Void> acceptEitherAsync(final CompletionStage<? extends T> other,
+                                                   final Consumer<? super T> action)
+    {
+        return stage.acceptEitherAsync(other, action, callbackExecutor);
+    }
+
+    public CompletionStage<Void> acceptEitherAsync(final CompletionStage<? extends T> other,
+                                                   final Consumer<? super T> action,
+                                                   final Executor executor)
+    {
+        return stage.acceptEitherAsync(other, action, executor);
+    }
+
+    public CompletionStage<Void> runAfterEither(final CompletionStage<?> other,
+                                                final Runnable action)
+    {
+        return stage.runAfterEither(other, action);
+    }
+
+    public CompletionStage<Void> runAfterEitherAsync(final CompletionStage<?> other,
+                                                     final Runnable action)
+    {
+        return stage.runAfterEitherAsync(other, action, callbackExecutor);
+    }
+
+    public CompletionStage<Void> runAfterEitherAsync(final CompletionStage<?> other,
+                                                     final Runnable action,
+                                                     final Executor executor)
+    {
+        return stage.runAfterEitherAsync(other, action, executor);
+    }
+
+    public <U> CompletionStage<U> thenCompose(
+            final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return stage.thenCompose(fn);
+    }
+
+    public <U> CompletionStage<U> thenComposeAsync(
+            final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return stage.thenComposeAsync(fn, callbackExecutor);
+    }
+
+    public <U> CompletionStage<U> thenComposeAsync(
+            final Function<? super T, ? extends CompletionStage<U>> fn, final Executor executor)
+    {
+        return stage.thenComposeAsync(fn, executor);
+    }
+
+    public CompletionStage<T> exceptionally(final Function<Throwable, ? extends T> fn)
+    {
+        return stage.exceptionally(fn);
+    }
+
+    public CompletionStage<T> whenComplete(final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return stage.whenComplete(action);
+    }
+
+    public CompletionStage<T> whenCompleteAsync(
+            final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return stage.whenCompleteAsync(action, callbackExecutor);
+    }
+
+    public CompletionStage<T> whenCompleteAsync(
+            final BiConsumer<? super T, ? super Throwable> action, final Executor executor)
+    {
+        return stage.whenCompleteAsync(action, executor);
+    }
+
+    public <U> CompletionStage<U> handle(final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return stage.handle(fn);
+    }
+
+    public <U> CompletionStage<U> handleAsync(
+            final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return stage.handleAsync(fn, callbackExecutor);
+    }
+
+    public <U> CompletionStage<U> handleAsync(
+            final BiFunction<? super T, Throwable, ? extends U> fn, final Executor executor)
+    {
+        return stage.handleAsync(fn, executor);
+    }
+
+    /**
+     * @return a CompletableFuture that completes when this Future does. Completing or
+     * cancelling it has no effect on the job.
+     */
+    public CompletableFuture<T> toCompletableFuture()
+    {
+        return stage.thenApply(Function.<T>identity());
+    }
+
+    // Composition across many jobs
+
+    /**
+     * @param stages some CompletionStages, such as ArchipelagoFutures
+     * @return a CompletableFuture that completes when all of the given stages have, or
+     * exceptionally if any of them did
+     */
+    public static CompletableFuture<Void> allOf(
+            final Collection<? extends CompletionStage<?>> stages)
+    {
+        return CompletableFuture.allOf(toArray(stages));
+    }
+
+    /**
+     * @param stages some CompletionStages, such as ArchipelagoFutures
+     * @return a CompletableFuture that completes the same way as the first of the given stages
+     * to complete
+     */
+    public static CompletableFuture<Object> anyOf(
+            final Collection<? extends CompletionStage<?>> stages)
+    {
+        return CompletableFuture.anyOf(toArray(stages));
+    }
+
+    private static CompletableFuture<?>[] toArray(
+            final Collection<? extends CompletionStage<?>> stages)
+    {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[stages.size()];
+        int i = 0;
+
+        for (final CompletionStage<?> s : stages)
         {
-            threadLock.unlock();
+            futures[i++] = s.toCompletableFuture();
         }
 
-        if (e != null)
+        return futures;
+    }
+
+    /**
+     * @return the Executor that CompletionStage callbacks run on for Schedulers that haven't
+     * been given one
+     */
+    public static Executor getDefaultCallbackExecutor()
+    {
+        return defaultCallbackPool;
+    }
+
+    private static ExecutorService newCallbackPool()
+    {
+        final int nThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        return Executors.newFixedThreadPool(nThreads, new ThreadFactory()
         {
-            throw new ExecutionException("On host " +
-                    (ranOnNode == null ? "null" : ranOnNode.getHost()), e);
-        }
+            private final AtomicInteger count = new AtomicInteger(0);
 
-        return t;
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, "ArchipelagoFuture callback " +
+                        count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 }
-
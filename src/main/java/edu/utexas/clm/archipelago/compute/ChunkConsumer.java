@@ -0,0 +1,39 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import edu.utexas.clm.archipelago.data.DataChunk;
+
+import java.util.Collection;
+
+/**
+ * Implemented by Callables that read DataChunks, like FileChunks, so that the Scheduler can
+ * try to run them on nodes that recently handled the same data and may still have it cached.
+ *
+ * @author Larry Lindsey
+ */
+public interface ChunkConsumer
+{
+    /**
+     * This method is called on the root node when the Callable is being scheduled, before it
+     * is sent anywhere.
+     * @return the DataChunks that this Callable will read
+     */
+    public Collection<? extends DataChunk<?>> getChunks();
+}
@@ -0,0 +1,87 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CompletionService that runs jobs on the Cluster, and hands back their Futures in the order
+ * that the jobs finish, rather than the order they were submitted in. Each ArchipelagoFuture
+ * puts itself on this service's queue as soon as the Scheduler finishes it, so no thread is
+ * spent waiting on any one job.
+ *
+ * Futures for jobs that fail, or that are cancelled, are handed back as well, as with
+ * ExecutorCompletionService.
+ *
+ * Get one from Cluster.getCompletionService().
+ */
+public class ClusterCompletionService<V> implements CompletionService<V>
+{
+    private final Scheduler scheduler;
+    private final float numCores;
+    private final boolean isFractional;
+    private final int ramMB;
+    private final LinkedBlockingQueue<Future<V>> completed;
+
+    /**
+     * @param scheduler the Scheduler to queue jobs on
+     * @param nc the number of cores for each job, or the fraction of each node's cores if f
+     *           is set
+     * @param f true if nc is a fraction of each node's thread limit
+     * @param ram the memory that each job is expected to need, in MB, or 0 if unknown
+     */
+    public ClusterCompletionService(final Scheduler scheduler, final float nc, final boolean f,
+                                    final int ram)
+    {
+        this.scheduler = scheduler;
+        numCores = nc;
+        isFractional = f;
+        ramMB = ram;
+        completed = new LinkedBlockingQueue<Future<V>>();
+    }
+
+    public Future<V> submit(final Callable<V> callable)
+    {
+        return scheduler.queueNormal(callable, numCores, isFractional, ramMB, completed);
+    }
+
+    public Future<V> submit(final Runnable runnable, final V v)
+    {
+        return submit(new QuickCallable<V>(runnable, v));
+    }
+
+    public Future<V> take() throws InterruptedException
+    {
+        return completed.take();
+    }
+
+    public Future<V> poll()
+    {
+        return completed.poll();
+    }
+
+    public Future<V> poll(final long l, final TimeUnit timeUnit) throws InterruptedException
+    {
+        return completed.poll(l, timeUnit);
+    }
+}
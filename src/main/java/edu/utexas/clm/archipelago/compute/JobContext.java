@@ -0,0 +1,190 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import edu.utexas.clm.archipelago.data.HeartBeat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * What a job has been given to run with on the node it is running on: the number of cores that
+ * were set aside for it, the memory it may use, and an ExecutorService with exactly that many
+ * threads. A Callable that does its own multithreading should size itself from this, rather
+ * than from Runtime.availableProcessors(), which would count cores that belong to other jobs.
+ *
+ * Inside a Callable, get the context with JobContext.current(). This works on the threads of
+ * the context's own ExecutorService, too. Outside of a job, for instance when a Callable is
+ * called directly, current() describes the whole JVM.
+ */
+public final class JobContext
+{
+    private static final ThreadLocal<JobContext> currentContext = new ThreadLocal<JobContext>();
+
+    private static final JobContext localContext = new JobContext(-1,
+            Runtime.getRuntime().availableProcessors(),
+            (int)(Runtime.getRuntime().maxMemory() / HeartBeat.MB), ForkJoinPool.commonPool());
+
+    /**
+     * @return the context of the job running on this thread, or one that describes the whole
+     * JVM if no job is
+     */
+    public static JobContext current()
+    {
+        final JobContext context = currentContext.get();
+        return context == null ? localContext : context;
+    }
+
+    private final long jobID;
+    private final int cores;
+    private final int ramMB;
+    // Created when first asked for. Guarded by this.
+    private ForkJoinPool pool;
+    private boolean closed;
+
+    /**
+     * @param jobID the ID of the job
+     * @param cores the number of cores the job was given
+     * @param ramMB the memory the job may use, in MB
+     */
+    public JobContext(final long jobID, final int cores, final int ramMB)
+    {
+        this(jobID, cores, ramMB, null);
+    }
+
+    private JobContext(final long jobID, final int cores, final int ramMB,
+                       final ForkJoinPool pool)
+    {
+        this.jobID = jobID;
+        this.cores = cores > 0 ? cores : 1;
+        this.ramMB = ramMB > 0 ? ramMB : 0;
+        this.pool = pool;
+        closed = false;
+    }
+
+    /**
+     * @return the ID of the job, or -1 if this context describes the whole JVM
+     */
+    public long getJobID()
+    {
+        return jobID;
+    }
+
+    /**
+     * @return the number of cores the job was given. This is at least 1.
+     */
+    public int getCores()
+    {
+        return cores;
+    }
+
+    /**
+     * @return the memory that the job may use, in MB. This is what the job was submitted as
+     * needing, or, if it didn't say, its cores' share of the node's heap.
+     */
+    public int getRamMB()
+    {
+        return ramMB;
+    }
+
+    /**
+     * @return an ExecutorService with one thread for each of the job's cores. Tasks run on it
+     * see this context as JobContext.current(). It is shut down once the job returns, so it
+     * should not be kept.
+     */
+    public synchronized ExecutorService getExecutor()
+    {
+        if (pool == null)
+        {
+            pool = new ForkJoinPool(cores, new ForkJoinPool.ForkJoinWorkerThreadFactory()
+            {
+                public ForkJoinWorkerThread newThread(final ForkJoinPool forkJoinPool)
+                {
+                    final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(forkJoinPool)
+                    {
+                        protected void onStart()
+                        {
+                            super.onStart();
+                            // The pool index isn't known until the thread has started
+                            setName("Job " + jobID + " worker " + getPoolIndex());
+                            currentContext.set(JobContext.this);
+                        }
+                    };
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, null, false);
+
+            if (closed)
+            {
+                pool.shutdown();
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Makes this the context of the calling thread, until uninstall() is called.
+     * @return the context that the thread had before, to be passed to uninstall()
+     */
+    JobContext install()
+    {
+        final JobContext previous = currentContext.get();
+        currentContext.set(this);
+        return previous;
+    }
+
+    /**
+     * Restores the calling thread's previous context, and shuts down this context's executor,
+     * cancelling anything the job left running on it.
+     * @param previous the value returned by install()
+     */
+    void uninstall(final JobContext previous)
+    {
+        final ForkJoinPool p;
+
+        if (previous == null)
+        {
+            currentContext.remove();
+        }
+        else
+        {
+            currentContext.set(previous);
+        }
+
+        synchronized (this)
+        {
+            closed = true;
+            p = pool;
+        }
+
+        if (p != null)
+        {
+            p.shutdownNow();
+        }
+    }
+
+    public String toString()
+    {
+        return "Job " + jobID + ": " + cores + " cores, " + ramMB + "MB";
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import edu.utexas.clm.archipelago.network.node.ClusterNode;
+import edu.utexas.clm.archipelago.network.node.ClusterNodeState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The ClusterNodes that the Scheduler may place jobs on, filed by how many cores each one has
+ * free, so that a node for a job can be found without looking at every node in the Cluster.
+ * Nodes with the same number of free cores are taken in turn. The pool also keeps track of
+ * which nodes have room to queue jobs ahead, and which have jobs queued that could be taken
+ * back.
+ *
+ * A NodePool is not thread safe. It belongs to the scheduling loop, which must call update()
+ * for a node whenever that node's free cores might have changed.
+ */
+class NodePool
+{
+    // Free cores -> the nodes with that many cores free, in the order they'll be offered
+    private final TreeMap<Integer, LinkedHashSet<ClusterNode>> buckets;
+    // The bucket that each node in the pool is filed under
+    private final HashMap<ClusterNode, Integer> filedUnder;
+    // Every active node that we know about, by ID, whether or not it has cores free
+    private final HashMap<Long, ClusterNode> activeNodes;
+    // Nodes that may be sent jobs to queue, in the order they'll be offered
+    private final LinkedHashSet<ClusterNode> stageable;
+    // Nodes that have queued jobs that we could ask for back
+    private final LinkedHashSet<ClusterNode> reclaimable;
+    // The number of cores free on all the nodes in the pool
+    private int freeCores;
+
+    public NodePool()
+    {
+        buckets = new TreeMap<Integer, LinkedHashSet<ClusterNode>>();
+        filedUnder = new HashMap<ClusterNode, Integer>();
+        activeNodes = new HashMap<Long, ClusterNode>();
+        stageable = new LinkedHashSet<ClusterNode>();
+        reclaimable = new LinkedHashSet<ClusterNode>();
+        freeCores = 0;
+    }
+
+    /**
+     * Files the given node under the number of cores it has free right now, behind any other
+     * nodes with the same number free, and notes whether it has room to queue jobs and whether
+     * it has queued jobs that could be taken back. A node that is no longer active is dropped
+     * from the pool.
+     * @param node the node to update
+     */
+    public void update(final ClusterNode node)
+    {
+        remove(node);
+
+        if (node.getState() == ClusterNodeState.ACTIVE)
+        {
+            final int free = node.numAvailableThreads();
+
+            activeNodes.put(node.getID(), node);
+
+            if (free > 0)
+            {
+                LinkedHashSet<ClusterNode> bucket = buckets.get(free);
+
+                if (bucket == null)
+                {
+                    bucket = new LinkedHashSet<ClusterNode>();
+                    buckets.put(free, bucket);
+                }
+
+                bucket.add(node);
+                filedUnder.put(node, free);
+                freeCores += free;
+            }
+
+            if (node.numStagingSlots() > 0)
+            {
+                stageable.add(node);
+            }
+
+            if (node.numReclaimable() > 0)
+            {
+                reclaimable.add(node);
+            }
+        }
+        else
+        {
+            activeNodes.remove(node.getID());
+        }
+    }
+
+    /**
+     * Like update(ClusterNode), for a node that we already know about.
+     * @param id the ID of the node to update. Nothing happens if we don't know about it.
+     */
+    public void update(final long id)
+    {
+        final ClusterNode node = activeNodes.get(id);
+
+        if (node != null)
+        {
+            update(node);
+        }
+    }
+
+    /**
+     * Updates every node in the given set, and forgets any node that isn't in it. This catches
+     * changes that nobody told us about, like a node's thread limit being changed by hand.
+     * @param runningNodes every node that is currently running
+     */
+    public void sync(final Set<ClusterNode> runningNodes)
+    {
+        for (final ClusterNode node : new ArrayList<ClusterNode>(activeNodes.values()))
+        {
+            if (!runningNodes.contains(node))
+            {
+                remove(node);
+                activeNodes.remove(node.getID());
+            }
+        }
+
+        for (final ClusterNode node : runningNodes)
+        {
+            update(node);
+        }
+    }
+
+    /**
+     * Takes the given node out of the pool until update() is next called for it.
+     * @param node the node to remove
+     */
+    public void remove(final ClusterNode node)
+    {
+        final Integer free = filedUnder.remove(node);
+
+        stageable.remove(node);
+        reclaimable.remove(node);
+
+        if (free != null)
+        {
+            final LinkedHashSet<ClusterNode> bucket = buckets.get(free);
+
+            freeCores -= free;
+            bucket.remove(node);
+
+            if (bucket.isEmpty())
+            {
+                buckets.remove(free);
+            }
+        }
+    }
+
+    /**
+     * Finds a node that has enough cores free to run the given job, preferring the nodes with
+     * the most cores free. For a job that asks for a fixed number of cores and has no memory
+     * estimate, this only looks at one node. For a fractional job, the number of cores needed
+     * depends on the node, and a job with a memory estimate only fits on nodes with enough heap
+     * left, so we may have to look further. If no node can run the job now, we look for one
+     * that can queue it instead.
+     * @param pm the job to place
+     * @return a node that can run or queue the job, or null if there is none in the pool
+     */
+    public ClusterNode find(final ProcessManager<?> pm)
+    {
+        final ClusterNode node = findFree(pm);
+
+        if (node != null)
+        {
+            return node;
+        }
+
+        for (final ClusterNode stager : stageable)
+        {
+            if (stager.canStage(pm))
+            {
+                return stager;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Like find(), but only looks at the nodes with the given IDs, in the order given. A node
+     * that can run the job now is preferred over one that can only queue it, and a node is only
+     * asked to queue the job if no node in the pool at all could run it now. Otherwise the job
+     * would sit behind another on a busy node while a free one idles.
+     * @param pm the job to place
+     * @param ids the IDs of the nodes to look at
+     * @return one of the given nodes that can run or queue the job, or null if none can
+     */
+    public ClusterNode findAmong(final ProcessManager<?> pm, final List<Long> ids)
+    {
+        for (final Long id : ids)
+        {
+            final ClusterNode node = activeNodes.get(id);
+            final Integer free = node == null ? null : filedUnder.get(node);
+
+            if (free != null && pm.requestedCores(node) <= free && node.hasRamFor(pm))
+            {
+                return node;
+            }
+        }
+
+        if (findFree(pm) == null)
+        {
+            for (final Long id : ids)
+            {
+                final ClusterNode node = activeNodes.get(id);
+
+                if (node != null && stageable.contains(node) && node.canStage(pm))
+                {
+                    return node;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param pm the job to place
+     * @return the node with the most cores free that can run the given job now, and has the
+     * memory for it, or null if there is none in the pool
+     */
+    private ClusterNode findFree(final ProcessManager<?> pm)
+    {
+        if (!pm.isFractional() && pm.getRamEstimateMB() <= 0)
+        {
+            // The first node in the top bucket has as many cores free as any node does
+            if (!buckets.isEmpty() && pm.requestedCores(0) <= buckets.lastKey())
+            {
+                return buckets.lastEntry().getValue().iterator().next();
+            }
+        }
+        else
+        {
+            for (final Map.Entry<Integer, LinkedHashSet<ClusterNode>> entry :
+                    buckets.descendingMap().entrySet())
+            {
+                for (final ClusterNode node : entry.getValue())
+                {
+                    if (pm.requestedCores(node) <= entry.getKey() && node.hasRamFor(pm))
+                    {
+                        return node;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds a node other than the given one that can run the given job now. Nodes that could
+     * only queue it are not considered.
+     * @param pm the job to place
+     * @param excludeID the ID of a node not to return
+     * @return a node with the cores and memory free for the job, or null if there is none
+     */
+    public ClusterNode findFreeExcept(final ProcessManager<?> pm, final long excludeID)
+    {
+        for (final Map.Entry<Integer, LinkedHashSet<ClusterNode>> entry :
+                buckets.descendingMap().entrySet())
+        {
+            for (final ClusterNode node : entry.getValue())
+            {
+                if (node.getID() != excludeID && pm.requestedCores(node) <= entry.getKey() &&
+                        node.hasRamFor(pm))
+                {
+                    return node;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param ids some node IDs
+     * @return true if any of the given nodes is active, whether or not it's in the pool now
+     */
+    public boolean anyActive(final List<Long> ids)
+    {
+        for (final Long id : ids)
+        {
+            if (activeNodes.containsKey(id))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the node with the most queued jobs that we could ask for back, or null if no
+     * node has any
+     */
+    public ClusterNode findReclaimable()
+    {
+        ClusterNode most = null;
+        int mostJobs = 0;
+
+        for (final ClusterNode node : reclaimable)
+        {
+            final int jobs = node.numReclaimable();
+
+            if (jobs > mostJobs)
+            {
+                most = node;
+                mostJobs = jobs;
+            }
+        }
+
+        return most;
+    }
+
+    /**
+     * @return the number of jobs that have been asked for back but not yet given back or
+     * started, over all nodes with queued jobs
+     */
+    public int numReclaiming()
+    {
+        int n = 0;
+
+        for (final ClusterNode node : reclaimable)
+        {
+            n += node.numStagedJobs() - node.numReclaimable();
+        }
+
+        return n;
+    }
+
+    /**
+     * @return true if no node in the pool has any cores free or room to queue a job
+     */
+    public boolean isEmpty()
+    {
+        return buckets.isEmpty() && stageable.isEmpty();
+    }
+
+    /**
+     * @return the number of cores free over all nodes in the pool
+     */
+    public int freeCores()
+    {
+        return freeCores;
+    }
+
+    /**
+     * @return the most cores free on any one node in the pool
+     */
+    public int maxFreeCores()
+    {
+        return buckets.isEmpty() ? 0 : buckets.lastKey();
+    }
+
+    /**
+     * @return the number of nodes in the pool that have cores free
+     */
+    public int size()
+    {
+        return filedUnder.size();
+    }
+}
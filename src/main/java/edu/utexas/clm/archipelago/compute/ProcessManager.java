@@ -18,8 +18,14 @@
 
 package edu.utexas.clm.archipelago.compute;
 
+import edu.utexas.clm.archipelago.data.HeartBeat;
+import edu.utexas.clm.archipelago.network.codec.CompactCodec;
+import edu.utexas.clm.archipelago.network.codec.ObjectEncoder;
 import edu.utexas.clm.archipelago.network.node.ClusterNode;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.concurrent.Callable;
 
@@ -38,11 +44,30 @@ public class ProcessManager<T> implements Runnable, Serializable
     private long runningOn;
     private final float numCores;
     private final boolean isFractional;
+    // The memory the job was submitted as needing, in MB, or 0 if nobody said
+    private final int ramMB;
+    // The memory the Scheduler expects the job to need, in MB. Only meaningful on the root node.
+    private transient volatile int ramEstimateMB;
+    // The most memory the job was seen to use while it ran, in MB, or 0 if it hasn't run
+    private int peakRamMB;
      
     
     //public <S extends Callable<T> & Serializable> ProcessManager(final S c, final ProcessListener pl, long idArg)
     
     public ProcessManager(final Callable<T> c, final long idArg, final float nc, final boolean f)
+    {
+        this(c, idArg, nc, f, 0);
+    }
+
+    /**
+     * @param c the Callable to run
+     * @param idArg the job ID
+     * @param nc the number of cores requested, or the fraction of each node's cores if f is set
+     * @param f true if nc is a fraction of each node's thread limit
+     * @param ram the memory that the job is expected to need, in MB, or 0 if unknown
+     */
+    public ProcessManager(final Callable<T> c, final long idArg, final float nc, final boolean f,
+                          final int ram)
     {
         callable = c;
         output = null;
@@ -51,13 +76,45 @@ public class ProcessManager<T> implements Runnable, Serializable
         runningOn = -1;
         numCores = nc;
         isFractional = f;
+        ramMB = ram > 0 ? ram : 0;
+        ramEstimateMB = ramMB;
+        peakRamMB = 0;
     }
 
     /**
-     * Runs this ProcessManager. This will typically be called on a remote node.
+     * Runs this ProcessManager. This will typically be called on a remote node. The job is
+     * given all of the processors in this JVM, and its share of the heap.
      */
     public void run()
     {
+        run(createContext(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param threadLimit the number of cores that the node runs jobs on
+     * @return a context for this job on a node with the given thread limit: the cores that the
+     * job takes there, but no more than the limit, and the memory that it was submitted as
+     * needing, or its cores' share of the heap if it didn't say
+     */
+    public JobContext createContext(final int threadLimit)
+    {
+        final int limit = threadLimit > 0 ? threadLimit :
+                Runtime.getRuntime().availableProcessors();
+        final int cores = Math.min(requestedCores(limit), limit);
+        final long heapMB = Runtime.getRuntime().maxMemory() / HeartBeat.MB;
+
+        return new JobContext(id, cores, ramMB > 0 ? ramMB : (int)(heapMB * cores / limit));
+    }
+
+    /**
+     * Runs this ProcessManager with the given context, which the Callable can get from
+     * JobContext.current() for as long as it runs.
+     * @param context what the job has been given to run with
+     */
+    public void run(final JobContext context)
+    {
+        final JobContext previous = context.install();
+
         try
         {
             output = callable.call();
@@ -67,6 +124,10 @@ public class ProcessManager<T> implements Runnable, Serializable
             e.printStackTrace();
             remoteException = e;
         }
+        finally
+        {
+            context.uninstall(previous);
+        }
         // Nullify the callable so we don't have to transfer extra data back home.
         callable = null;
     }
@@ -129,9 +190,114 @@ public class ProcessManager<T> implements Runnable, Serializable
         return requestedCores(node.getThreadLimit());
     }
 
+    /**
+     * @return true if the number of cores requested is a fraction of each node's thread limit,
+     * false if it is a fixed number of cores
+     */
+    public boolean isFractional()
+    {
+        return isFractional;
+    }
+
+    /**
+     * @return a copy of this job, with the same ID, Callable and requirements, that hasn't been
+     * sent anywhere. This is for running a job in two places at once.
+     */
+    ProcessManager<T> duplicate()
+    {
+        final ProcessManager<T> copy = new ProcessManager<T>(callable, id, numCores,
+                isFractional, ramMB);
+        copy.ramEstimateMB = ramEstimateMB;
+        return copy;
+    }
+
+    /**
+     * @return the memory that this job was submitted as needing, in MB, or 0 if unknown
+     */
+    public int getRamMB()
+    {
+        return ramMB;
+    }
+
+    /**
+     * @return the memory that the Scheduler expects this job to need, in MB, or 0 if unknown.
+     * This is what is counted against a node's heap when the job is placed there.
+     */
+    public int getRamEstimateMB()
+    {
+        return ramEstimateMB;
+    }
+
+    public void setRamEstimateMB(final int mb)
+    {
+        ramEstimateMB = mb > 0 ? mb : 0;
+    }
+
+    /**
+     * @return the most memory this job was seen to use while it ran, in MB, or 0 if it hasn't
+     * run or the node didn't measure it
+     */
+    public int getPeakRamMB()
+    {
+        return peakRamMB;
+    }
+
+    public synchronized void setPeakRamMB(final int mb)
+    {
+        peakRamMB = mb;
+    }
+
     public boolean equals(Object o)
     {
         return (o instanceof ProcessManager) && ((ProcessManager)o).getID() == getID();
     }
-    
+
+    /*
+    Under the compact codec, the callable and its output are encoded on their own, so that an
+    output like a float[] or an ArrayList doesn't have to go through Java serialization.
+     */
+    static
+    {
+        CompactCodec.registerEncoder(processManagerClass(), new ObjectEncoder<ProcessManager<?>>()
+        {
+            public void encode(final ProcessManager<?> pm, final ObjectOutput out)
+                    throws IOException
+            {
+                out.writeLong(pm.id);
+                out.writeLong(pm.runningOn);
+                out.writeFloat(pm.numCores);
+                out.writeBoolean(pm.isFractional);
+                out.writeInt(pm.ramMB);
+                out.writeInt(pm.peakRamMB);
+                out.writeObject(pm.callable);
+                out.writeObject(pm.output);
+                out.writeObject(pm.remoteException);
+            }
+
+            @SuppressWarnings("unchecked")
+            public ProcessManager<?> decode(final ObjectInput in)
+                    throws IOException, ClassNotFoundException
+            {
+                final long id = in.readLong();
+                final long runningOn = in.readLong();
+                final float numCores = in.readFloat();
+                final boolean isFractional = in.readBoolean();
+                final int ramMB = in.readInt();
+                final int peakRamMB = in.readInt();
+                final ProcessManager<Object> pm = new ProcessManager<Object>(
+                        (Callable<Object>)in.readObject(), id, numCores, isFractional, ramMB);
+                pm.runningOn = runningOn;
+                pm.peakRamMB = peakRamMB;
+                pm.output = in.readObject();
+                pm.remoteException = (Throwable)in.readObject();
+                return pm;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<ProcessManager<?>> processManagerClass()
+    {
+        return (Class<ProcessManager<?>>)(Class<?>)ProcessManager.class;
+    }
 }
@@ -23,15 +23,27 @@ public class QuickCallable<T> implements SerializableCallable<T>
     private static final long serialVersionUID = 8311164115029763772L;
 
     private final Runnable r;
+    private final T result;
     
     public QuickCallable(Runnable r)
+    {
+        this(r, null);
+    }
+
+    /**
+     * @param r the Runnable to run
+     * @param result the value to return once r has run. It is sent along with r, so it must
+     *               be Serializable if it isn't null.
+     */
+    public QuickCallable(final Runnable r, final T result)
     {
         this.r = r;
+        this.result = result;
     }
     
     public T call() throws Exception
     {
         r.run();
-        return null;
+        return result;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import java.util.Arrays;
+
+/**
+ * The run times of the most recent jobs of one kind, so that the Scheduler can tell when a job
+ * is taking much longer than its peers.
+ *
+ * A RunTimes is not thread safe.
+ */
+class RunTimes
+{
+    private final long[] times;
+    private int next, count;
+
+    /**
+     * @param capacity the number of run times to remember
+     */
+    public RunTimes(final int capacity)
+    {
+        times = new long[capacity];
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Remembers a run time, forgetting the oldest one if we're full.
+     * @param ms the time a job took, in milliseconds
+     */
+    public void add(final long ms)
+    {
+        times[next] = ms;
+        next = (next + 1) % times.length;
+        if (count < times.length)
+        {
+            ++count;
+        }
+    }
+
+    /**
+     * @return the number of run times remembered
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @param p a fraction between 0 and 1
+     * @return the run time that the given fraction of the remembered run times are no longer
+     * than, or -1 if there are none
+     */
+    public long percentile(final float p)
+    {
+        final long[] sorted;
+
+        if (count == 0)
+        {
+            return -1;
+        }
+
+        sorted = Arrays.copyOf(times, count);
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(count - 1, Math.max(0, (int)Math.ceil(p * count) - 1))];
+    }
+}
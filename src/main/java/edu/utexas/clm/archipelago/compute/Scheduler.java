@@ -2,19 +2,32 @@ package edu.utexas.clm.archipelago.compute;
 
 import edu.utexas.clm.archipelago.Cluster;
 import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.data.DataChunk;
 import edu.utexas.clm.archipelago.listen.ProcessListener;
 import edu.utexas.clm.archipelago.network.node.ClusterNode;
+import edu.utexas.clm.archipelago.network.node.NodeCoordinator;
 import edu.utexas.clm.archipelago.util.ProcessManagerCoreComparator;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -23,18 +36,79 @@ import java.util.concurrent.locks.ReentrantLock;
 public class Scheduler extends Thread implements ProcessListener
 {
     private static final boolean ENABLE_VERBOSE_DEBUGGING = false;
+    // How long the scheduling loop waits without being woken before it looks again anyway
     private static final int DEFAULT_PAUSE_MS = 1000;
+    // How soon to look again when a node was passed over only because its connection was
+    // backed up. Nothing tells us when that clears.
+    private static final int SATURATED_RETRY_MS = 5;
+    // How long a job may wait for a node that has handled its chunks before, before it is sent
+    // to any node that has room
+    public static final long DEFAULT_LOCALITY_DELAY_MS = 3000;
+    // How many chunks we remember the last node for
+    private static final int CHUNK_HISTORY_SIZE = 65536;
+    // How much of the previous memory estimate for a Callable class is kept when a job of that
+    // class is seen to use less, or more. The estimate rises faster than it falls, but a single
+    // outlier can't drag it all the way up.
+    private static final float RAM_ESTIMATE_DECAY = 0.75f;
+    private static final float RAM_ESTIMATE_RISE = 0.5f;
+    // A running job is a straggler once it has taken SPECULATION_SLACK times as long as
+    // SPECULATION_PERCENTILE of recent jobs of the same Callable class
+    private static final float SPECULATION_PERCENTILE = 0.9f;
+    private static final float SPECULATION_SLACK = 1.5f;
+    // How many jobs of a class must have finished before we judge any of them a straggler
+    private static final int SPECULATION_MIN_SAMPLES = 5;
+    // How many run times we remember per Callable class
+    private static final int RUN_TIME_HISTORY = 100;
 
     private final Cluster cluster;
-    private final Map<Long, ProcessManager> runningProcesses;
-    private final Map<Long, ProcessManager> allProcesses;
+    private final Map<Long, ProcessManager<?>> runningProcesses;
+    private final Map<Long, ProcessManager<?>> allProcesses;
     private final Map<Long, ArchipelagoFuture<?>> futures;
     private final LinkedList<ProcessManager<?>> normalQueue, priorityQueue,
             internalPriorityQueue, internalNormalQueue;
 
-    private final AtomicBoolean running, okToSleep, ateAnApple;
+    private final AtomicBoolean running;
     private final AtomicInteger pauseTime, nRunningJobs, nQueuedJobs;
 
+    // Set by wake() whenever something happens that might let a job be placed, and cleared by
+    // the scheduling loop before each pass. Guarded by wakeLock, which is never held while
+    // taking any other lock.
+    private boolean wakePending;
+    private final ReentrantLock wakeLock;
+    private final Condition wakeCondition;
+    // Nodes that have started or stopped, and nodes that may have had cores freed, since the
+    // scheduling loop last updated its NodePool
+    private final ConcurrentLinkedQueue<ClusterNode> changedNodes;
+    private final ConcurrentLinkedQueue<Long> freedNodeIDs;
+    // Nodes taken out of the pool for the rest of a pass, because their connection was backed
+    // up or they refused a job. Only touched by the scheduling loop.
+    private final ArrayList<ClusterNode> setAside;
+
+    private final AtomicLong localityDelay;
+    // Chunk locality ID -> the ID of the last node that a job reading that chunk was sent to,
+    // least recently used first. Guarded by schedulerLock.
+    private final LinkedHashMap<Long, Long> chunkHistory;
+    // Job ID -> when we first held the job back to wait for a node that has handled its chunks.
+    // Guarded by schedulerLock.
+    private final HashMap<Long, Long> localityWaits;
+    // The soonest that a job being held back will stop waiting. Only touched by the scheduling
+    // loop.
+    private long localityDeadline;
+    // Callable class name -> the memory that jobs of that class have been seen to use, in MB
+    private final ConcurrentHashMap<String, Integer> ramEstimates;
+
+    // Where ArchipelagoFutures run their CompletionStage callbacks
+    private volatile Executor callbackExecutor;
+
+    private final AtomicBoolean speculate;
+    // The following are guarded by synchronizing on runningProcesses.
+    // Job ID -> when the job was last sent to a node
+    private final HashMap<Long, Long> startTimes;
+    // Job ID -> the spare copy of a straggler, running on another node
+    private final HashMap<Long, ProcessManager<?>> speculated;
+    // Callable class name -> how long recent jobs of that class took
+    private final HashMap<String, RunTimes> runTimes;
+
     // Lock rules:
     // If you must lock multiple locks at the same time:
     // Lock futureLock first, then schedulerLock, then queueLock.
@@ -57,15 +131,35 @@ public class Scheduler extends Thread implements ProcessListener
     {
         this.cluster = cluster;
 
-        runningProcesses = Collections.synchronizedMap(new HashMap<Long, ProcessManager>());
-        allProcesses = new HashMap<Long, ProcessManager>();
+        runningProcesses = Collections.synchronizedMap(new HashMap<Long, ProcessManager<?>>());
+        allProcesses = new HashMap<Long, ProcessManager<?>>();
         normalQueue = new LinkedList<ProcessManager<?>>();
         priorityQueue = new LinkedList<ProcessManager<?>>();
         internalNormalQueue = new LinkedList<ProcessManager<?>>();
         internalPriorityQueue = new LinkedList<ProcessManager<?>>();
         running = new AtomicBoolean(false);
-        okToSleep = new AtomicBoolean(false);
-        ateAnApple = new AtomicBoolean(false);
+        wakePending = false;
+        wakeLock = new ReentrantLock();
+        wakeCondition = wakeLock.newCondition();
+        changedNodes = new ConcurrentLinkedQueue<ClusterNode>();
+        freedNodeIDs = new ConcurrentLinkedQueue<Long>();
+        setAside = new ArrayList<ClusterNode>();
+        localityDelay = new AtomicLong(DEFAULT_LOCALITY_DELAY_MS);
+        chunkHistory = new LinkedHashMap<Long, Long>(1024, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest)
+            {
+                return size() > CHUNK_HISTORY_SIZE;
+            }
+        };
+        localityWaits = new HashMap<Long, Long>();
+        localityDeadline = Long.MAX_VALUE;
+        ramEstimates = new ConcurrentHashMap<String, Integer>();
+        callbackExecutor = ArchipelagoFuture.getDefaultCallbackExecutor();
+        speculate = new AtomicBoolean(false);
+        startTimes = new HashMap<Long, Long>();
+        speculated = new HashMap<Long, ProcessManager<?>>();
+        runTimes = new HashMap<String, RunTimes>();
         pauseTime = new AtomicInteger(DEFAULT_PAUSE_MS);
         nRunningJobs = new AtomicInteger(0);
         nQueuedJobs = new AtomicInteger(0);
@@ -78,74 +172,492 @@ public class Scheduler extends Thread implements ProcessListener
     }
 
     /**
-     * Rotate the LinkedList of ClusterNodes, ie, by removing the first ClusterNode and placing
-     * it on the end.
-     * @param nodeList the list to be rotated
+     * Attempts to submit the ProcessManager pm on a node from nodePool. This function
+     * runs on the same thread as run().
+     * @param pm a queued ProcessManager that is to be run to the Cluster
+     * @param nodePool the ClusterNodes with available Threads
+     * @param now the time of this pass of the scheduling loop
+     * @return true if pm was scheduled, false otherwise.
      */
-    private void rotate(LinkedList<ClusterNode> nodeList)
+    private boolean trySubmit(final ProcessManager<?> pm, final NodePool nodePool,
+                              final long now)
     {
-        if (nodeList.size() > 1)
+        final List<Long> preferred = preferredNodes(pm);
+        ClusterNode node;
+
+        pm.setRamEstimateMB(estimateRam(pm));
+
+        while ((node = chooseNode(pm, preferred, nodePool, now)) != null)
         {
-            final ClusterNode front = nodeList.remove(0);
-            nodeList.addLast(front);
+            // Don't pile more jobs onto a node whose connection is already backed up
+            if (node.isSendSaturated())
+            {
+                nodePool.remove(node);
+                setAside.add(node);
+                continue;
+            }
+
+            // Mark the job as running, and note where its data is going, before submitting
+            // it, since its result may come back before submit returns.
+            synchronized (runningProcesses)
+            {
+                runningProcesses.put(pm.getID(), pm);
+                startTimes.put(pm.getID(), System.currentTimeMillis());
+            }
+            recordChunks(pm, node);
+
+            if (node.submit(pm, this))
+            {
+                FijiArchipelago.debug("Scheduler: submitting job " + pm.getID() +
+                        " to node " + node.getHost());
+                nRunningJobs.set(runningProcesses.size());
+                nQueuedJobs.decrementAndGet();
+                localityWaits.remove(pm.getID());
+
+                // Refile the node by its remaining cores, behind its peers
+                nodePool.update(node);
+                return true;
+            }
+
+            synchronized (runningProcesses)
+            {
+                runningProcesses.remove(pm.getID());
+                startTimes.remove(pm.getID());
+            }
+            nodePool.remove(node);
+            setAside.add(node);
         }
+
+        FijiArchipelago.debug("Scheduler: could not schedule job " + pm.getID() +
+                ": no nodes with enough available cores or memory" +
+                (localityWaits.containsKey(pm.getID()) ? " where its data was last used" : ""));
+
+        return false;
     }
 
     /**
-     * Attempts to submit the ProcessManager pm on each node in nodeList. This function
-     * runs on the same thread as run() and assumes that queueLock is held.
-     * @param pm a queued ProcessManager that is to be run to the Cluster
-     * @param nodeList a List of ClusterNodes with available Threads
-     * @return true if pm was scheduled, false otherwise.
+     * Picks a node for a job. If the job reads chunks that were recently sent to particular
+     * nodes, one of those is chosen if it has room. If none of them has room, the job is held
+     * back for up to the locality delay, in case one of them frees up, before we settle for
+     * any node. This is delay scheduling: a short wait is cheaper than reading a large file
+     * again somewhere else.
+     * @param pm the job to place
+     * @param preferred the IDs of the nodes that the job would rather run on
+     * @param nodePool the ClusterNodes with available Threads
+     * @param now the time of this pass of the scheduling loop
+     * @return a node for the job, or null if there isn't one, or if the job should wait
      */
-    private boolean trySubmit(final ProcessManager<?> pm,
-                              final LinkedList<ClusterNode> nodeList)
+    private ClusterNode chooseNode(final ProcessManager<?> pm, final List<Long> preferred,
+                                   final NodePool nodePool, final long now)
     {
-        if (nodeList.isEmpty())
+        final long delay = localityDelay.get();
+
+        if (!preferred.isEmpty())
         {
-            FijiArchipelago.debug("Scheduler: could not schedule job " + pm.getID() +
-                    ": no available nodes");
-            return false;
+            final ClusterNode local = nodePool.findAmong(pm, preferred);
+
+            if (local != null)
+            {
+                return local;
+            }
+            else if (delay > 0 && nodePool.anyActive(preferred))
+            {
+                Long since = localityWaits.get(pm.getID());
+
+                if (since == null)
+                {
+                    since = now;
+                    localityWaits.put(pm.getID(), since);
+                }
+
+                if (now - since < delay)
+                {
+                    localityDeadline = Math.min(localityDeadline, since + delay);
+                    return null;
+                }
+            }
         }
-        else
+
+        return nodePool.find(pm);
+    }
+
+    /**
+     * Jobs that were submitted without saying how much memory they need are placed by cores
+     * alone, so they get no estimate, whatever jobs of their class have been seen to use. A
+     * learned estimate only ever raises what a job asked for.
+     * @param pm a job
+     * @return the memory that the given job is expected to need, in MB: the larger of what it
+     * was submitted as needing, and what jobs with the same Callable class have been seen to
+     * use, or 0 if it was submitted without a requirement
+     */
+    private int estimateRam(final ProcessManager<?> pm)
+    {
+        final Callable<?> callable = pm.getCallable();
+        final Integer observed;
+
+        if (pm.getRamMB() <= 0 || callable == null)
         {
-                /*
-                 Run through the available ClusterNodes, attempting to submit the job to each one.
-                 When a node rejects the PM, rotate the list. Assuming that our job list is rather
-                 uniform, this should reduce our overhead.
-                 */
-            for (int i = 0; i < nodeList.size(); ++i)
+            return pm.getRamMB();
+        }
+
+        observed = ramEstimates.get(callable.getClass().getName());
+        return observed == null ? pm.getRamMB() : Math.max(pm.getRamMB(), observed);
+    }
+
+    /**
+     * Feeds the memory that a finished job was seen to use into the estimate for its Callable
+     * class.
+     * @param sent our copy of the job, which still has its Callable
+     * @param result the copy that came back from the node, which has the peak usage
+     */
+    private void learnRam(final ProcessManager<?> sent, final ProcessManager<?> result)
+    {
+        final Callable<?> callable = sent.getCallable();
+        final int peak = result.getPeakRamMB();
+
+        if (callable != null && peak > 0)
+        {
+            final String key = callable.getClass().getName();
+            Integer old;
+            boolean updated;
+
+            do
             {
-                final ClusterNode node = nodeList.getFirst();
+                old = ramEstimates.get(key);
 
-                if (node.numAvailableThreads() >= pm.requestedCores(node) &&
-                        node.submit(pm, this))
+                if (old == null)
+                {
+                    updated = ramEstimates.putIfAbsent(key, peak) == null;
+                }
+                else
                 {
-                    FijiArchipelago.debug("Scheduler: submitting job " + pm.getID() +
-                            " to node " + node.getHost());
-                    runningProcesses.put(pm.getID(), pm);
-                    nRunningJobs.set(runningProcesses.size());
-                    nQueuedJobs.decrementAndGet();
+                    final float keep = peak >= old ? RAM_ESTIMATE_RISE : RAM_ESTIMATE_DECAY;
+                    final int next = Math.round(old * keep + peak * (1 - keep));
+                    updated = ramEstimates.replace(key, old, next);
+                }
+            }
+            while (!updated);
+        }
+    }
+
+    /**
+     * @param pm a job
+     * @return the chunks that the given job will read, or an empty list if it doesn't say
+     */
+    private Collection<? extends DataChunk<?>> getChunks(final ProcessManager<?> pm)
+    {
+        final Callable<?> callable = pm.getCallable();
 
-                    if (node.numAvailableThreads() <= 0)
+        if (callable instanceof ChunkConsumer)
+        {
+            try
+            {
+                final Collection<? extends DataChunk<?>> chunks =
+                        ((ChunkConsumer)callable).getChunks();
+
+                if (chunks != null)
+                {
+                    return chunks;
+                }
+            }
+            catch (RuntimeException re)
+            {
+                FijiArchipelago.debug("Scheduler: could not get chunks for job " +
+                        pm.getID() + ": " + re);
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param pm a job
+     * @return the IDs of the nodes that the chunks read by the given job were last sent to,
+     * those that have the most of them first
+     */
+    private List<Long> preferredNodes(final ProcessManager<?> pm)
+    {
+        final Collection<? extends DataChunk<?>> chunks = getChunks(pm);
+        final HashMap<Long, Integer> counts;
+        final ArrayList<Long> ids;
+
+        if (chunks.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        counts = new HashMap<Long, Integer>();
+
+        for (final DataChunk<?> chunk : chunks)
+        {
+            Long nodeID = chunkHistory.get(chunk.getLocalityID());
+
+            if (nodeID == null && chunk.lastProcessedOn() >= 0)
+            {
+                nodeID = chunk.lastProcessedOn();
+            }
+
+            if (nodeID != null)
+            {
+                final Integer count = counts.get(nodeID);
+                counts.put(nodeID, count == null ? 1 : count + 1);
+            }
+        }
+
+        ids = new ArrayList<Long>(counts.keySet());
+
+        if (ids.size() > 1)
+        {
+            Collections.sort(ids, new Comparator<Long>()
+            {
+                public int compare(final Long id1, final Long id2)
+                {
+                    return counts.get(id2) - counts.get(id1);
+                }
+            });
+        }
+
+        return ids;
+    }
+
+    /**
+     * Remembers that the chunks read by the given job are being sent to the given node.
+     * @param pm a job that is about to be submitted
+     * @param node the node it is being submitted to
+     */
+    private void recordChunks(final ProcessManager<?> pm, final ClusterNode node)
+    {
+        for (final DataChunk<?> chunk : getChunks(pm))
+        {
+            chunkHistory.put(chunk.getLocalityID(), node.getID());
+            chunk.setProcessingOn(node);
+        }
+    }
+
+    /**
+     * Asks nodes that have jobs queued ahead to give some back, when other nodes have cores
+     * free and there is nothing left in the queues to give them. Jobs that are given back are
+     * rescheduled through processReclaimed(). This function runs on the same thread as run().
+     * @param nodePool the ClusterNodes that the Scheduler knows about
+     */
+    private void reclaimForIdleNodes(final NodePool nodePool)
+    {
+        // Count the jobs we've already asked for, so we don't ask for more than we can place
+        int wanted = nodePool.freeCores() - nodePool.numReclaiming();
+        ClusterNode node;
+
+        while (wanted > 0 && (node = nodePool.findReclaimable()) != null)
+        {
+            if (node.reclaimStaged(nodePool.maxFreeCores()))
+            {
+                --wanted;
+                nodePool.update(node);
+            }
+            else
+            {
+                // Nothing there that fits anywhere right now
+                nodePool.remove(node);
+                setAside.add(node);
+            }
+        }
+    }
+
+    /**
+     * Starts spare copies of straggling jobs on nodes that have cores free, when there is
+     * nothing left in the queues to give them. Whichever copy finishes first completes the
+     * job, and the other is cancelled. Jobs that are queued on a node but haven't started are
+     * left to reclaimForIdleNodes(). This function runs on the same thread as run().
+     * @param nodePool the ClusterNodes that the Scheduler knows about
+     * @param now the time of this pass of the scheduling loop
+     */
+    private void speculateForIdleNodes(final NodePool nodePool, final long now)
+    {
+        final ArrayList<ProcessManager<?>> stragglers = new ArrayList<ProcessManager<?>>();
+
+        if (nodePool.size() == 0)
+        {
+            return;
+        }
+
+        synchronized (runningProcesses)
+        {
+            for (final ProcessManager<?> pm : runningProcesses.values())
+            {
+                final Long start = startTimes.get(pm.getID());
+
+                if (start != null && !speculated.containsKey(pm.getID()))
+                {
+                    final long threshold = stragglerThreshold(pm);
+
+                    if (threshold >= 0 && now - start > threshold)
                     {
-                        nodeList.remove(node);
+                        stragglers.add(pm);
                     }
-                    return true;
                 }
-                rotate(nodeList);
             }
+        }
 
-            FijiArchipelago.debug("Scheduler: could not schedule job " + pm.getID() +
-                    ": no nodes with enough available cores");
+        for (final ProcessManager<?> pm : stragglers)
+        {
+            final ClusterNode origin = cluster.getNode(pm.getRunningOn());
+            final ClusterNode node;
+            final ProcessManager<?> copy;
 
-            return false;
+            if (nodePool.size() == 0)
+            {
+                return;
+            }
+            else if (origin != null && origin.isStaged(pm.getID()))
+            {
+                continue;
+            }
+
+            node = nodePool.findFreeExcept(pm, pm.getRunningOn());
+
+            if (node == null)
+            {
+                continue;
+            }
+
+            copy = pm.duplicate();
+
+            synchronized (runningProcesses)
+            {
+                // It may have finished in the meantime
+                if (runningProcesses.get(pm.getID()) != pm)
+                {
+                    continue;
+                }
+
+                speculated.put(pm.getID(), copy);
+            }
+
+            if (node.submit(copy, this))
+            {
+                final ProcessManager<?> current = runningProcesses.get(pm.getID());
+
+                FijiArchipelago.debug("Scheduler: job " + pm.getID() + " is straggling on node "
+                        + pm.getRunningOn() + ", running a copy on node " + node.getHost());
+
+                // If the job finished while the copy was being sent, don't let the copy run.
+                // If the job's node was lost instead, the copy has already taken its place.
+                if (current != pm && current != copy)
+                {
+                    node.cancelJob(pm.getID());
+                }
+
+                nodePool.update(node);
+            }
+            else
+            {
+                synchronized (runningProcesses)
+                {
+                    if (speculated.get(pm.getID()) == copy)
+                    {
+                        speculated.remove(pm.getID());
+                    }
+                }
+
+                // The job's node was lost while we tried to send the copy, which went nowhere
+                if (runningProcesses.get(pm.getID()) == copy)
+                {
+                    reschedule(copy);
+                }
+
+                nodePool.remove(node);
+                setAside.add(node);
+            }
         }
     }
 
-    private void spawnPoke()
+    /**
+     * Must be called while synchronized on runningProcesses.
+     * @param pm a running job
+     * @return how long the job may run before it counts as a straggler, in milliseconds, or -1
+     * if we haven't seen enough jobs like it to tell
+     */
+    private long stragglerThreshold(final ProcessManager<?> pm)
     {
-        wake();
+        final Callable<?> callable = pm.getCallable();
+        final RunTimes times = callable == null ? null :
+                runTimes.get(callable.getClass().getName());
+
+        if (times == null || times.size() < SPECULATION_MIN_SAMPLES)
+        {
+            return -1;
+        }
+        else
+        {
+            return (long)(times.percentile(SPECULATION_PERCENTILE) * SPECULATION_SLACK);
+        }
+    }
+
+    /**
+     * Forgets a job's start time and spare copy, now that it has finished, failed or been
+     * cancelled. The run time of a job that finished without a spare copy is remembered for
+     * its Callable class.
+     * @param running our copy of the job, as it is in runningProcesses
+     * @param result the job that came back from a node, or null if none did
+     * @return the copy of the job that is still running somewhere and should be cancelled, or
+     * null if there is none
+     */
+    private ProcessManager<?> endSpeculation(final ProcessManager<?> running,
+                                             final ProcessManager<?> result)
+    {
+        synchronized (runningProcesses)
+        {
+            final Long start = startTimes.remove(running.getID());
+            final ProcessManager<?> copy = speculated.remove(running.getID());
+
+            if (copy == null)
+            {
+                if (start != null && result != null && running.getCallable() != null)
+                {
+                    final String key = running.getCallable().getClass().getName();
+                    RunTimes times = runTimes.get(key);
+
+                    if (times == null)
+                    {
+                        times = new RunTimes(RUN_TIME_HISTORY);
+                        runTimes.put(key, times);
+                    }
+
+                    times.add(System.currentTimeMillis() - start);
+                }
+
+                return null;
+            }
+            else
+            {
+                freedNodeIDs.add(copy.getRunningOn());
+
+                if (result != null && result.getRunningOn() == copy.getRunningOn())
+                {
+                    FijiArchipelago.debug("Scheduler: the copy of job " + running.getID() +
+                            " on node " + copy.getRunningOn() + " finished first");
+                    return running;
+                }
+                else
+                {
+                    return copy;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels a copy of a job on the node it was sent to.
+     * @param pm the copy to cancel
+     */
+    private void cancelCopy(final ProcessManager<?> pm)
+    {
+        final ClusterNode node = cluster.getNode(pm.getRunningOn());
+
+        if (node != null)
+        {
+            node.cancelJob(pm.getID());
+            changedNodes.add(node);
+        }
     }
 
     private void updateQueueSize()
@@ -155,21 +667,19 @@ public class Scheduler extends Thread implements ProcessListener
         nQueuedJobs.set(n);
     }
 
-    private void doSubmit(final LinkedList<ProcessManager<?>> queue,
-                          final LinkedList<ClusterNode> nodeList)
+    private void doSubmit(final LinkedList<ProcessManager<?>> queue, final NodePool nodePool,
+                          final long now)
     {
-        final ArrayList<ProcessManager<?>> submittedPMs =
-                new ArrayList<ProcessManager<?>>(queue.size());
-        for (final ProcessManager pm : queue)
+        final Iterator<ProcessManager<?>> it = queue.iterator();
+
+        // Once every node is full, there's no point in looking at the rest of the queue
+        while (it.hasNext() && !nodePool.isEmpty())
         {
-            if (trySubmit(pm, nodeList))
+            if (trySubmit(it.next(), nodePool, now))
             {
-                submittedPMs.add(pm);
+                it.remove();
             }
-            rotate(nodeList);
         }
-
-        queue.removeAll(submittedPMs);
     }
 
     private boolean queue(final ProcessManager<?> pm, final LinkedList<ProcessManager<?>> queue)
@@ -180,12 +690,11 @@ public class Scheduler extends Thread implements ProcessListener
 
             pm.setRunningOn(null);
             queue.add(pm);
-            okToSleep.set(true);
             allProcesses.put(pm.getID(), pm);
 
             queueLock.unlock();
 
-            spawnPoke();
+            wake();
 
             return true;
         }
@@ -195,17 +704,24 @@ public class Scheduler extends Thread implements ProcessListener
         }
     }
 
-    private <T> ArchipelagoFuture<T> queue(final Callable<T> callable, float np, boolean f,
-                                           final LinkedList<ProcessManager<?>> queue)
+    private <T> ArchipelagoFuture<T> queue(
+            final Callable<T> callable, float np, boolean f, int ramMB,
+            final LinkedList<ProcessManager<?>> queue,
+            final BlockingQueue<? super ArchipelagoFuture<T>> done)
     {
         final ArchipelagoFuture<T> future = new ArchipelagoFuture<T>(this);
         final long id = future.getID();
 
+        if (done != null)
+        {
+            future.setCompletionQueue(done);
+        }
+
         futureLock.lock();
         futures.put(id, future);
         futureLock.unlock();
 
-        if (!queue(new ProcessManager<T>(callable, id, np, f), queue))
+        if (!queue(new ProcessManager<T>(callable, id, np, f, ramMB), queue))
         {
             futureLock.lock();
             futures.remove(id);
@@ -217,15 +733,121 @@ public class Scheduler extends Thread implements ProcessListener
         return future;
     }
 
+    /**
+     * Tells the scheduling loop that something has changed that might let a job be placed: a
+     * job was queued or finished, or a node arrived or has cores to spare. If the loop is in
+     * the middle of a pass, it makes another as soon as it's done, so a wakeup is never lost.
+     */
     private void wake()
     {
-        okToSleep.set(false);
-        if (ateAnApple.get())
+        wakeLock.lock();
+        try
+        {
+            wakePending = true;
+            wakeCondition.signal();
+        }
+        finally
+        {
+            wakeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until wake() is called, unless it already has been since the last time we
+     * waited, or until the timeout runs out.
+     * @param timeout the longest time to wait, in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitWake(final long timeout) throws InterruptedException
+    {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        wakeLock.lock();
+        try
+        {
+            while (!wakePending && nanos > 0 && running.get())
+            {
+                nanos = wakeCondition.awaitNanos(nanos);
+            }
+            wakePending = false;
+        }
+        finally
         {
-            super.interrupt();
+            wakeLock.unlock();
         }
     }
 
+    /**
+     * @return how long the scheduling loop should wait for a wakeup, which is the pause time,
+     * unless a job that is waiting for a particular node will stop waiting sooner than that
+     */
+    private long nextWait()
+    {
+        final long pause = pauseTime.get();
+
+        if (localityDeadline == Long.MAX_VALUE)
+        {
+            return pause;
+        }
+        else
+        {
+            return Math.max(1, Math.min(pause, localityDeadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Sets how long a job that reads DataChunks may wait for a node that recently handled
+     * those chunks, before it is sent to whichever node has room. Only jobs whose Callables
+     * implement ChunkConsumer are affected.
+     * @param ms the longest time to wait, in milliseconds. Zero or less never waits, but
+     *           still prefers such a node when one has room.
+     */
+    public void setLocalityDelay(final long ms)
+    {
+        localityDelay.set(ms);
+        wake();
+    }
+
+    public long getLocalityDelay()
+    {
+        return localityDelay.get();
+    }
+
+    /**
+     * Sets the Executor that ArchipelagoFutures created from now on run their CompletionStage
+     * callbacks on. By default this is a small pool of daemon threads shared by all Futures.
+     * @param executor the Executor to run callbacks on, or null for the default
+     */
+    public void setCallbackExecutor(final Executor executor)
+    {
+        callbackExecutor = executor == null ?
+                ArchipelagoFuture.getDefaultCallbackExecutor() : executor;
+    }
+
+    public Executor getCallbackExecutor()
+    {
+        return callbackExecutor;
+    }
+
+    /**
+     * Turns speculative execution on or off. When it's on, and there are no queued jobs to give
+     * to nodes with free cores, a job that has been running much longer than is usual for its
+     * Callable class is started again on one of those nodes. Whichever copy finishes first
+     * gives the result, and the other is cancelled. Only turn this on for jobs that are safe
+     * to run twice.
+     * @param on true to run spare copies of straggling jobs, false not to
+     */
+    public void setSpeculativeExecution(final boolean on)
+    {
+        speculate.set(on);
+        wake();
+    }
+
+    public boolean isSpeculativeExecution()
+    {
+        return speculate.get();
+    }
+
     public boolean processFinished(ProcessManager<?> process)
     {
         boolean ok = false;
@@ -234,12 +856,21 @@ public class Scheduler extends Thread implements ProcessListener
         queueLock.lock();
         FijiArchipelago.debug("Scheduler: process finished: got locks");
 
-        if (runningProcesses.remove(process.getID()) != null)
+        final ProcessManager<?> running = runningProcesses.remove(process.getID());
+        ProcessManager<?> loser = null;
+
+        if (running != null)
         {
             final ArchipelagoFuture<?> future = futures.remove(process.getID());
 
+            freedNodeIDs.add(running.getRunningOn());
+
             nRunningJobs.set(runningProcesses.size());
 
+            learnRam(running, process);
+
+            loser = endSpeculation(running, process);
+
             FijiArchipelago.debug("Scheduler: process finished: found process in map");
 
             if (future != null)
@@ -263,19 +894,36 @@ public class Scheduler extends Thread implements ProcessListener
         queueLock.unlock();
         futureLock.unlock();
 
+        if (loser != null)
+        {
+            cancelCopy(loser);
+        }
+
+        // The node has already let go of the cores that the process was using.
+        wake();
+
         return ok;
     }
 
     public void error(long id, final Throwable t)
     {
+        ProcessManager<?> copy = null;
+
         futureLock.lock();
         ArchipelagoFuture<?> future = futures.remove(id);
 
         if (future != null)
         {
+            final ProcessManager<?> running;
+
             queueLock.lock();
 
-            runningProcesses.remove(id);
+            running = runningProcesses.remove(id);
+            if (running != null)
+            {
+                freedNodeIDs.add(running.getRunningOn());
+                copy = endSpeculation(running, null);
+            }
             nRunningJobs.set(runningProcesses.size());
             allProcesses.remove(id);
 
@@ -284,6 +932,13 @@ public class Scheduler extends Thread implements ProcessListener
             future.finish(t);
         }
         futureLock.unlock();
+
+        if (copy != null)
+        {
+            cancelCopy(copy);
+        }
+
+        wake();
     }
 
     public int numRunningJobs()
@@ -298,15 +953,53 @@ public class Scheduler extends Thread implements ProcessListener
 
     public <T> ArchipelagoFuture<T> queueNormal(final Callable<T> callable, float np, boolean f)
     {
-        return queue(callable, np, f, normalQueue);
+        return queue(callable, np, f, 0, normalQueue, null);
+    }
+
+    /**
+     * Queues a job that is expected to need the given amount of memory. It will only be placed
+     * on a node with that much of its heap left, counting the other jobs sent there.
+     * @param callable the job to run
+     * @param np the number of cores to use, or the fraction of each node's cores if f is set
+     * @param f true if np is a fraction of each node's thread limit
+     * @param ramMB the memory that the job is expected to need, in MB, or 0 if unknown
+     * @return a Future for the job's result
+     */
+    public <T> ArchipelagoFuture<T> queueNormal(final Callable<T> callable, float np, boolean f,
+                                                int ramMB)
+    {
+        return queue(callable, np, f, ramMB, normalQueue, null);
+    }
+
+    /**
+     * Like queueNormal(Callable, float, boolean, int), but the returned Future also adds itself
+     * to the given queue when it is done, whether it finished, failed or was cancelled.
+     * @param callable the job to run
+     * @param np the number of cores to use, or the fraction of each node's cores if f is set
+     * @param f true if np is a fraction of each node's thread limit
+     * @param ramMB the memory that the job is expected to need, in MB, or 0 if unknown
+     * @param done the queue to add the Future to when it is done
+     * @return a Future for the job's result
+     */
+    public <T> ArchipelagoFuture<T> queueNormal(
+            final Callable<T> callable, float np, boolean f, int ramMB,
+            final BlockingQueue<? super ArchipelagoFuture<T>> done)
+    {
+        return queue(callable, np, f, ramMB, normalQueue, done);
     }
 
     public <T> ArchipelagoFuture<T> queuePriority(final Callable<T> callable, float np, boolean f)
     {
-       return queue(callable, np, f, priorityQueue);
+       return queue(callable, np, f, 0, priorityQueue, null);
+    }
+
+    public <T> ArchipelagoFuture<T> queuePriority(final Callable<T> callable, float np, boolean f,
+                                                  int ramMB)
+    {
+       return queue(callable, np, f, ramMB, priorityQueue, null);
     }
 
-    public boolean reschedule(final ProcessManager pm)
+    public boolean reschedule(final ProcessManager<?> pm)
     {
         boolean ok = false;
 
@@ -322,12 +1015,34 @@ public class Scheduler extends Thread implements ProcessListener
 
         queueLock.lock();
 
-        if (runningProcesses.get(pm.getID()).equals(pm))
+        synchronized (runningProcesses)
         {
-            runningProcesses.remove(pm.getID());
-            nRunningJobs.set(runningProcesses.size());
-            allProcesses.remove(pm.getID());
-            ok = true;
+            final ProcessManager<?> running = runningProcesses.get(pm.getID());
+            final ProcessManager<?> copy = speculated.get(pm.getID());
+
+            if (copy == pm)
+            {
+                // A spare copy was lost. The job is still running where it started.
+                speculated.remove(pm.getID());
+                queueLock.unlock();
+                return true;
+            }
+            else if (copy != null && running == pm)
+            {
+                // The job was lost, but a spare copy is running. Let that take its place.
+                speculated.remove(pm.getID());
+                runningProcesses.put(pm.getID(), copy);
+                queueLock.unlock();
+                return true;
+            }
+            else if (running != null && running.equals(pm))
+            {
+                runningProcesses.remove(pm.getID());
+                startTimes.remove(pm.getID());
+                nRunningJobs.set(runningProcesses.size());
+                allProcesses.remove(pm.getID());
+                ok = true;
+            }
         }
 
         queueLock.unlock();
@@ -340,7 +1055,26 @@ public class Scheduler extends Thread implements ProcessListener
         return ok;
     }
 
-    public ClusterNode getNode(final ProcessManager pm)
+    public void processReclaimed(final ProcessManager<?> process)
+    {
+        final ProcessManager<?> running = runningProcesses.get(process.getID());
+
+        // It may have been cancelled in the meantime
+        if (running != null)
+        {
+            FijiArchipelago.debug("Scheduler: job " + process.getID() + " was given back by " +
+                    "node " + running.getRunningOn());
+
+            freedNodeIDs.add(running.getRunningOn());
+
+            if (!reschedule(running))
+            {
+                error(running.getID(), new Exception("Could not reschedule job"));
+            }
+        }
+    }
+
+    public ClusterNode getNode(final ProcessManager<?> pm)
     {
         return cluster.getNode(pm.getRunningOn());
     }
@@ -355,7 +1089,7 @@ public class Scheduler extends Thread implements ProcessListener
      */
     public synchronized boolean cancelJob(long id, boolean force)
     {
-        final ProcessManager pm;
+        final ProcessManager<?> pm;
 
         futureLock.lock();
         schedulerLock.lock();
@@ -384,6 +1118,7 @@ public class Scheduler extends Thread implements ProcessListener
             updateQueueSize();
 
             allProcesses.remove(id);
+            localityWaits.remove(id);
             queueLock.unlock();
             schedulerLock.unlock();
             futureLock.unlock();
@@ -398,10 +1133,13 @@ public class Scheduler extends Thread implements ProcessListener
         // If not, then probably we've caught it in some intermediate state between being removed
         // from the queue and scheduling. This shouldn't ever happen, but we check for this case
         // for robustness.
-        if (force && runningProcesses.remove(id) != null)
+        final ProcessManager<?> running = force ? runningProcesses.remove(id) : null;
+
+        if (running != null)
         {
-            ClusterNode runningOn = cluster.getNode(pm.getRunningOn());
-            ArchipelagoFuture future = futures.remove(id);
+            final ProcessManager<?> copy = endSpeculation(running, null);
+            ClusterNode runningOn = cluster.getNode(running.getRunningOn());
+            final ArchipelagoFuture<?> future = futures.remove(id);
             future.finish(new Exception("Cancelled"));
             // Done with futures, so unlock the future lock.
             futureLock.unlock();
@@ -413,8 +1151,16 @@ public class Scheduler extends Thread implements ProcessListener
             if (runningOn != null)
             {
                 runningOn.cancelJob(id);
+                changedNodes.add(runningOn);
+            }
+
+            if (copy != null)
+            {
+                cancelCopy(copy);
             }
 
+            wake();
+
             return true;
         }
         else
@@ -430,44 +1176,47 @@ public class Scheduler extends Thread implements ProcessListener
 
         final ProcessManagerCoreComparator comparator = new ProcessManagerCoreComparator();
 
-        final LinkedList<ClusterNode> nodeList = new LinkedList<ClusterNode>();
+        final NodePool nodePool = new NodePool();
+
+        long lastSync = 0;
+        long lastSyncVersion = -1;
 
 
         while (running.get())
         {
-            final Set<ClusterNode> currentNodes;
-            final ArrayList<ClusterNode> removeList = new ArrayList<ClusterNode>();
+            final long now = System.currentTimeMillis();
+            final NodeCoordinator.Snapshot nodes = cluster.getNodeCoordinator().getSnapshot();
+            final boolean retrySoon;
+            ClusterNode changedNode;
+            Long freedNodeID;
 
             verboseDebug("Scheduler: run acquiring scheduler lock");
             schedulerLock.lock();
             verboseDebug("Scheduler: run got it");
 
-            // First, update the node list
-            currentNodes = cluster.getNodeCoordinator().getAvailableNodes();
-
-            // Remove any nodes in nodeList that aren't in currentNodes
-            for (final ClusterNode node : nodeList)
+            // First, bring the node pool up to date. Whenever a node has come or gone, and
+            // every so often besides, we check it against the running nodes, in case something
+            // changed that we weren't told about.
+            if (nodes.getVersion() != lastSyncVersion || now - lastSync >= pauseTime.get())
             {
-                if (!currentNodes.contains(node))
-                {
-                    removeList.add(node);
-                }
+                nodePool.sync(nodes.getRunningNodes());
+                lastSync = now;
+                lastSyncVersion = nodes.getVersion();
             }
 
-            nodeList.removeAll(removeList);
+            while ((changedNode = changedNodes.poll()) != null)
+            {
+                nodePool.update(changedNode);
+            }
 
-            // Add any nodes in currentNodes that aren't in nodeList
-            for (final ClusterNode node : currentNodes)
+            while ((freedNodeID = freedNodeIDs.poll()) != null)
             {
-                if (!nodeList.contains(node))
-                {
-                    nodeList.addFirst(node);
-                }
+                nodePool.update(freedNodeID);
             }
 
-            verboseDebug("Scheduler: " + nodeList.size() + " nodes available");
+            verboseDebug("Scheduler: " + nodePool.size() + " nodes available");
 
-            comparator.setThreadCount(cluster.getMaxThreads());
+            comparator.setThreadCount(Math.max(1, nodes.getMaxThreadLimit()));
 
             // Lock the queues, drain  them to internal queues here.
 
@@ -475,8 +1224,6 @@ public class Scheduler extends Thread implements ProcessListener
             queueLock.lock();
             verboseDebug("Scheduler: run got it");
 
-            okToSleep.set(false);
-
             if (!priorityQueue.isEmpty())
             {
                 internalPriorityQueue.addAll(priorityQueue);
@@ -498,40 +1245,59 @@ public class Scheduler extends Thread implements ProcessListener
             verboseDebug("Scheduler: internal queues have " +
                     (internalNormalQueue.size() + internalPriorityQueue.size()) + " jobs");
 
-            if (!nodeList.isEmpty())
-            {
-                doSubmit(internalPriorityQueue, nodeList);
+            localityDeadline = Long.MAX_VALUE;
 
-                doSubmit(internalNormalQueue, nodeList);
-            }
+            doSubmit(internalPriorityQueue, nodePool, now);
 
-            verboseDebug("Scheduler: run releasing scheduler lock");
-            schedulerLock.unlock();
+            doSubmit(internalNormalQueue, nodePool, now);
+
+            retrySoon = !setAside.isEmpty() && !(internalPriorityQueue.isEmpty() &&
+                    internalNormalQueue.isEmpty());
 
-            // if okToSleep is true, new jobs may have been added since we checked last.
-            if (!okToSleep.getAndSet(false))
+            // Nodes set aside during this pass get another chance next time
+            for (final ClusterNode node : setAside)
             {
-                try
+                nodePool.update(node);
+            }
+            setAside.clear();
+
+            if (internalPriorityQueue.isEmpty() && internalNormalQueue.isEmpty())
+            {
+                reclaimForIdleNodes(nodePool);
+
+                if (speculate.get())
                 {
-                    // In practice, sleep for only a second or so. This prevents a deadlock that can
-                    // occur in rare occasions when we are poke()'d between schedulerLock.unlock() and here.
-                    verboseDebug("Scheduler: run going to sleep");
-                    ateAnApple.set(true);
-                    Thread.sleep(pauseTime.get());
-                    ateAnApple.set(false);
-                    verboseDebug("Scheduler: run awoke");
+                    speculateForIdleNodes(nodePool, now);
                 }
-                catch (InterruptedException ie)
+
+                for (final ClusterNode node : setAside)
                 {
-                    verboseDebug("Scheduler: run poked");
-                    ateAnApple.set(false);
-                    if (!running.get())
-                    {
-                        FijiArchipelago.log("Scheduler: finished. Ending");
-                        FijiArchipelago.debug("Scheduler: finished. Ending");
-                        return;
-                    }
+                    nodePool.update(node);
                 }
+                setAside.clear();
+            }
+
+            verboseDebug("Scheduler: run releasing scheduler lock");
+            schedulerLock.unlock();
+
+            // Anything that happened during this pass has already set wakePending, so we go
+            // straight round again rather than missing it.
+            try
+            {
+                verboseDebug("Scheduler: run waiting");
+                awaitWake(retrySoon ? SATURATED_RETRY_MS : nextWait());
+                verboseDebug("Scheduler: run awoke");
+            }
+            catch (InterruptedException ie)
+            {
+                verboseDebug("Scheduler: run interrupted");
+            }
+
+            if (!running.get())
+            {
+                FijiArchipelago.log("Scheduler: finished. Ending");
+                FijiArchipelago.debug("Scheduler: finished. Ending");
+                return;
             }
 
             verboseDebug("Scheduler: end of run loop");
@@ -577,6 +1343,17 @@ public class Scheduler extends Thread implements ProcessListener
         wake();
     }
 
+    /**
+     * Tells the Scheduler that a node has started or stopped, or that the number of cores it
+     * has free has changed in some way that the Scheduler wouldn't otherwise know about.
+     * @param node the node that changed
+     */
+    public void nodeChanged(final ClusterNode node)
+    {
+        changedNodes.add(node);
+        wake();
+    }
+
     public synchronized ArrayList<ProcessManager<?>> getRemainingJobs()
     {
         return new ArrayList<ProcessManager<?>>(remainingProcessManagers);
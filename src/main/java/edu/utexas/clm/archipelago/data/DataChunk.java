@@ -58,6 +58,17 @@ public abstract class DataChunk<T> implements Serializable
     {
         return id;
     }
+
+    /**
+     * Returns an identifier for the data behind this chunk. The Scheduler uses this to find
+     * nodes that have recently handled the same data. By default, this is the chunk ID, which
+     * is shared by chunks made with the DataChunk(DataChunk) constructor.
+     * @return an identifier for the data behind this chunk
+     */
+    public long getLocalityID()
+    {
+        return id;
+    }
     
     public void setProcessingOn(ClusterNode node)
     {
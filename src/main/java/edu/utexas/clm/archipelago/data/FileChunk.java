@@ -56,6 +56,23 @@ public class FileChunk extends DataChunk<String>
         return doAppend ? FijiArchipelago.getFileRoot() + fileName : fileName;
     }
 
+    /**
+     * FileChunks for the same file share a locality ID, no matter how they were made.
+     * @return a 64-bit FNV-1a hash of the file name
+     */
+    public long getLocalityID()
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < fileName.length(); ++i)
+        {
+            hash ^= fileName.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
     public Iterator<DataChunk<String>> iterator()
     {
         // Return a correctly-typed iterator with nothing in it.
@@ -32,11 +32,23 @@ public class HeartBeat implements Serializable
     public final int ramMBAvailable;
     public final int ramMBTotal;
     public final int ramMBMax;
+    // The number of jobs waiting on the node for cores to free up
+    public final int queuedJobs;
+    // The number of cores taken by the jobs running on the node
+    public final int busyCores;
     
     public HeartBeat(final long availableBytes, final long totalBytes, final long maxBytes)
+    {
+        this(availableBytes, totalBytes, maxBytes, 0, 0);
+    }
+
+    public HeartBeat(final long availableBytes, final long totalBytes, final long maxBytes,
+                     final int queued, final int busy)
     {
         ramMBAvailable = (int)(availableBytes/ MB);
         ramMBTotal = (int)(totalBytes/ MB);
         ramMBMax = (int)(maxBytes/ MB);
+        queuedJobs = queued;
+        busyCores = busy;
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.data;
+
+import java.io.Serializable;
+
+/**
+ * Everything the root node needs to know about a client to start sending it jobs, sent by the
+ * client in a single HELLO message in answer to the root's GETID, in place of the USER,
+ * GETEXECROOT, GETFSTRANSLATION and NUMTHREADS round trips. The root answers with a Welcome.
+ */
+public class Hello implements Serializable
+{
+    private static final long serialVersionUID = 2946112736505581862L;
+
+    // The ID the client has been given, or a negative number if it has none yet
+    public final long id;
+    public final String user;
+    public final String host;
+    // The client's exec root and file root, or "" if it doesn't know them
+    public final String execRoot;
+    public final String fileRoot;
+    public final int cores;
+    public final int ramMBMax;
+    // The names of the MessageTypes that the client understands
+    public final String[] capabilities;
+
+    public Hello(final long id, final String user, final String host, final String execRoot,
+                 final String fileRoot, final int cores, final int ramMBMax,
+                 final String[] capabilities)
+    {
+        this.id = id;
+        this.user = user;
+        this.host = host;
+        this.execRoot = execRoot;
+        this.fileRoot = fileRoot;
+        this.cores = cores;
+        this.ramMBMax = ramMBMax;
+        this.capabilities = capabilities;
+    }
+
+    public String toString()
+    {
+        return "Hello from " + user + "@" + host + " (" + id + "): " + cores + " cores, " +
+                ramMBMax + "MB";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.data;
+
+import edu.utexas.clm.archipelago.network.translation.Bottler;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The root node's answer to a Hello, sent in a single WELCOME message in place of the SETID,
+ * SETEXECROOT, SETFSTRANSLATION, PREFETCH, BOTTLER and BEAT messages. Once a client has
+ * applied it, the client is ready to run jobs, so the root doesn't wait for a reply.
+ */
+public class Welcome implements Serializable
+{
+    private static final long serialVersionUID = -3861960151230264275L;
+
+    // The ID the client is to use from now on
+    public final long id;
+    // The exec root the client is to use, or "" to keep its own
+    public final String execRoot;
+    // The client's file root, and the root node's, for translating file paths
+    public final Duplex<String, String> fsTranslation;
+    // The number of cores the client may use at once, and how many jobs to queue ahead
+    public final int threadLimit;
+    public final int prefetchDepth;
+    public final ArrayList<Bottler<?>> bottlers;
+
+    public Welcome(final long id, final String execRoot,
+                   final Duplex<String, String> fsTranslation, final int threadLimit,
+                   final int prefetchDepth, final ArrayList<Bottler<?>> bottlers)
+    {
+        this.id = id;
+        this.execRoot = execRoot;
+        this.fsTranslation = fsTranslation;
+        this.threadLimit = threadLimit;
+        this.prefetchDepth = prefetchDepth;
+        this.bottlers = bottlers;
+    }
+}
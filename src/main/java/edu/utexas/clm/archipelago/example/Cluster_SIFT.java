@@ -20,7 +20,10 @@ package edu.utexas.clm.archipelago.example;
 
 import edu.utexas.clm.archipelago.Cluster;
 import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.compute.ChunkConsumer;
+import edu.utexas.clm.archipelago.compute.ClusterCompletionService;
 import edu.utexas.clm.archipelago.compute.SerializableCallable;
+import edu.utexas.clm.archipelago.data.DataChunk;
 import edu.utexas.clm.archipelago.data.FileChunk;
 import ij.IJ;
 import ij.ImagePlus;
@@ -31,8 +34,9 @@ import ij.process.ImageProcessor;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import mpicbg.ij.SIFT;
@@ -49,7 +53,8 @@ public class Cluster_SIFT implements PlugIn
 
 
     
-    public static class SIFTCall implements SerializableCallable<ArrayList<Feature>>
+    public static class SIFTCall implements SerializableCallable<ArrayList<Feature>>,
+            ChunkConsumer
     {
         private final FloatArray2DSIFT.Param param;
         private final FileChunk fileChunk;
@@ -59,6 +64,12 @@ public class Cluster_SIFT implements PlugIn
             param = p;
             fileChunk = new FileChunk(filename);
         }
+
+        public Collection<? extends DataChunk<?>> getChunks()
+        {
+            // Lets the Scheduler send this to a node that has read the same image before
+            return Collections.singletonList(fileChunk);
+        }
         
         public ArrayList<Feature> call() throws Exception {
             ImagePlus im = IJ.openImage(fileChunk.getData());
@@ -87,48 +98,65 @@ public class Cluster_SIFT implements PlugIn
     {
         if (Cluster.activeCluster())
         {
-            ExecutorService pool = Cluster.getCluster().getService(1);
+            final ClusterCompletionService<ArrayList<Feature>> pool =
+                    Cluster.getCluster().getCompletionService(1);
             boolean executionErrorOccurred = false;
 
             // The return list
             ArrayList<ArrayList<Feature>> featuresList = new ArrayList<ArrayList<Feature>>();
-            // A List of Futures, used a little later.
-            ArrayList<Future<ArrayList<Feature>>> futures =
-                    new ArrayList<Future<ArrayList<Feature>>>();
+            // The results, in the same order as fileNames, filled in as they come back
+            final ArrayList<ArrayList<Feature>> results = new ArrayList<ArrayList<Feature>>();
+            // Each Future, mapped to the index of its file name, used a little later.
+            final HashMap<Future<ArrayList<Feature>>, Integer> indices =
+                    new HashMap<Future<ArrayList<Feature>>, Integer>();
             
             FijiArchipelago.debug("Submitting futures");
             
-            // For each file name, create a SIFTCall, submit it, and collect the Future returned by
-            // the Cluster
+            // For each file name, create a SIFTCall, submit it, and remember where its result
+            // belongs
             for (String fileName : fileNames)
-            {                
-                futures.add(pool.submit(new SIFTCall(param.clone(), fileName)));
+            {
+                indices.put(pool.submit(new SIFTCall(param.clone(), fileName)), results.size());
+                results.add(null);
             }
 
 
             FijiArchipelago.debug("Waiting on futures");
-            // Get the result from each Future. this will block until the results return from the
-            // ClusterNode that the computation is actually running on.
-            for (Future<ArrayList<Feature>> future: futures)
+            // Take each Future as its job finishes, rather than in the order they were submitted,
+            // so that one slow image doesn't hold up the rest.
+            for (int i = 0; i < indices.size(); ++i)
             {
                 try
                 {
-                    featuresList.add(future.get());
+                    final Future<ArrayList<Feature>> future = pool.take();
+                    try
+                    {
+                        results.set(indices.get(future), future.get());
+                    }
+                    catch (ExecutionException ee)
+                    {
+                        // If the Callable throws an error on the remote node, it will propagate
+                        // back over the network and end up here.
+                        // This would be called as a .err, but it when it rains, it pours.
+                        FijiArchipelago.log("Remote exception: " + ee);
+                        executionErrorOccurred = true;
+                    }
                 }
                 catch (InterruptedException ie)
                 {
-                    // This happens if we're interrupted while blocking in Future.get
+                    // This happens if we're interrupted while blocking in take or Future.get
                     FijiArchipelago.err(
                             "Cluster SIFT Extraction: Interrupted while waiting for results.");
-                    return featuresList;
+                    break;
                 }
-                catch (ExecutionException ee)
+            }
+
+            // As before, jobs that failed are left out
+            for (final ArrayList<Feature> features : results)
+            {
+                if (features != null)
                 {
-                    // If the Callable throws an error on the remote node, it will propagate back
-                    // over the network and end up here.
-                    // This would be called as a .err, but it when it rains, it pours.
-                    FijiArchipelago.log("Remote exception: " + ee);
-                    executionErrorOccurred = true;
+                    featuresList.add(features);
                 }
             }
             
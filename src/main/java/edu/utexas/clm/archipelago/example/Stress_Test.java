@@ -2,15 +2,14 @@ package edu.utexas.clm.archipelago.example;
 
 import edu.utexas.clm.archipelago.Cluster;
 import edu.utexas.clm.archipelago.compute.ArchipelagoFuture;
+import edu.utexas.clm.archipelago.compute.ClusterCompletionService;
 import ij.IJ;
 import ij.plugin.PlugIn;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 
@@ -57,32 +56,35 @@ public class Stress_Test implements PlugIn
         }
         else
         {
-            ExecutorService service = cluster.getService(1);
-            ArrayList<Future<Double>> futures = new ArrayList<Future<Double>>(startNum);
+            ClusterCompletionService<Double> service = cluster.getCompletionService(1);
+            int nRunning = 0;
 
             for (int i = 0; i < startNum; ++i)
             {
-                futures.add(service.submit(new Stressor()));
+                service.submit(new Stressor());
+                ++nRunning;
             }
 
-            while (!futures.isEmpty())
+            // Take futures in the order their jobs finish, so a slow job doesn't hold up the rest
+            while (nRunning > 0)
             {
                 try
                 {
-                    Future<Double> future = futures.get(0);
+                    IJ.log("Waiting for the next future...");
+                    Future<Double> future = service.take();
+                    --nRunning;
                     if (future instanceof ArchipelagoFuture)
                     {
                         ArchipelagoFuture archf = (ArchipelagoFuture)future;
-                        IJ.log("Waiting for future " + archf.getID() + "...");
+                        IJ.log("Future " + archf.getID() + " came!");
                     }
                     else
                     {
-                        IJ.log("Waiting for the future...");
+                        IJ.log("The future came!");
                     }
+                    service.submit(new Stressor());
+                    ++nRunning;
                     Double d = future.get();
-                    IJ.log("The future came!");
-                    futures.remove(0);
-                    futures.add(service.submit(new Stressor()));
                 }
                 catch (ExecutionException ee)
                 {
@@ -0,0 +1,322 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.example;
+
+import edu.utexas.clm.archipelago.compute.ProcessManager;
+import edu.utexas.clm.archipelago.compute.SerializableCallable;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.codec.CompactCodec;
+import edu.utexas.clm.archipelago.network.codec.JavaCodec;
+import edu.utexas.clm.archipelago.util.EasyLogger;
+import edu.utexas.clm.archipelago.util.IJLogger;
+import edu.utexas.clm.archipelago.util.PrintStreamLogger;
+import edu.utexas.clm.archipelago.util.XCErrorAdapter;
+import ij.plugin.PlugIn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures MessageXC throughput over a loopback socket, without a Cluster. A burst of small
+ * PROCESS messages is sent from one MessageXC to another, and the number of bytes per message
+ * and messages per second are reported for each transceiver setting.
+ *
+ * Run as a plugin, or from the command line with the number of messages as the only argument.
+ */
+public class Transceiver_Benchmark implements PlugIn
+{
+    public static class SmallCall implements SerializableCallable<float[]>
+    {
+        private static final long serialVersionUID = 4537822951067336128L;
+
+        private final int index;
+        private final float[] data;
+
+        public SmallCall(final int index)
+        {
+            this.index = index;
+            data = new float[16];
+        }
+
+        public float[] call() throws Exception
+        {
+            data[0] = index;
+            return data;
+        }
+    }
+
+    /**
+     * A transceiver setting to benchmark.
+     */
+    public static abstract class Setting
+    {
+        private final String name;
+        private final String codec;
+        private final boolean selector;
+
+        public Setting(final String name)
+        {
+            this(name, JavaCodec.NAME);
+        }
+
+        public Setting(final String name, final String codec)
+        {
+            this(name, codec, false);
+        }
+
+        /**
+         * @param name the name of this setting
+         * @param codec the codec to negotiate
+         * @param selector true to connect over SocketChannels with the selector transport
+         */
+        public Setting(final String name, final String codec, final boolean selector)
+        {
+            this.name = name;
+            this.codec = codec;
+            this.selector = selector;
+        }
+
+        public abstract void configure(final MessageXC xc);
+
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    private static class CountingListener implements TransceiverListener
+    {
+        private final CountDownLatch latch;
+
+        public CountingListener(final int n)
+        {
+            latch = new CountDownLatch(n);
+        }
+
+        public void streamClosed() {}
+
+        public void handleMessage(final ClusterMessage cm)
+        {
+            if (cm.type == MessageType.PROCESS)
+            {
+                latch.countDown();
+            }
+        }
+    }
+
+    private static final TransceiverListener nullListener = new TransceiverListener()
+    {
+        public void streamClosed() {}
+
+        public void handleMessage(final ClusterMessage cm) {}
+    };
+
+    public static final Setting[] SETTINGS = {
+            new Setting("Reset every message (previous behavior)")
+            {
+                public void configure(final MessageXC xc)
+                {
+                    xc.setResetInterval(1, 0);
+                    xc.setBatchLimits(1, 0, 0, TimeUnit.MILLISECONDS);
+                }
+            },
+            new Setting("Persistent stream, default reset interval")
+            {
+                public void configure(final MessageXC xc)
+                {
+                    xc.setResetInterval(MessageXC.DEFAULT_RESET_MESSAGES,
+                            MessageXC.DEFAULT_RESET_BYTES);
+                }
+            },
+            new Setting("Compact codec, flush every message", CompactCodec.NAME)
+            {
+                public void configure(final MessageXC xc)
+                {
+                    xc.setResetInterval(MessageXC.DEFAULT_RESET_MESSAGES,
+                            MessageXC.DEFAULT_RESET_BYTES);
+                    xc.setBatchLimits(1, 0, 0, TimeUnit.MILLISECONDS);
+                }
+            },
+            new Setting("Compact codec, default reset interval", CompactCodec.NAME)
+            {
+                public void configure(final MessageXC xc)
+                {
+                    xc.setResetInterval(MessageXC.DEFAULT_RESET_MESSAGES,
+                            MessageXC.DEFAULT_RESET_BYTES);
+                }
+            },
+            new Setting("Compact codec, selector transport", CompactCodec.NAME, true)
+            {
+                public void configure(final MessageXC xc)
+                {
+                    xc.setResetInterval(MessageXC.DEFAULT_RESET_MESSAGES,
+                            MessageXC.DEFAULT_RESET_BYTES);
+                }
+            }
+    };
+
+    public void run(final String arg)
+    {
+        final int n = arg == null || arg.equals("") ? 10000 : Integer.parseInt(arg);
+        benchmark(n, new IJLogger());
+    }
+
+    public static void benchmark(final int n, final EasyLogger logger)
+    {
+        // Once to warm up, once to measure.
+        for (final Setting setting : SETTINGS)
+        {
+            try
+            {
+                benchmark(setting, n, new EasyLogger()
+                {
+                    public void log(String msg) {}
+                });
+            }
+            catch (Exception e)
+            {
+                logger.log("Warm up failed for " + setting + ": " + e);
+            }
+        }
+
+        for (final Setting setting : SETTINGS)
+        {
+            try
+            {
+                benchmark(setting, n, logger);
+            }
+            catch (Exception e)
+            {
+                logger.log("Benchmark failed for " + setting + ": " + e);
+            }
+        }
+    }
+
+    public static void benchmark(final Setting setting, final int n, final EasyLogger logger)
+            throws IOException, InterruptedException
+    {
+        final XCErrorAdapter errorAdapter = new XCErrorAdapter();
+        final CountingListener listener = new CountingListener(n);
+        final String[] preferredCodecs = MessageXC.getPreferredCodecs();
+        final Closeable txEnd, rxEnd;
+        final MessageXC tx, rx;
+        final long start, elapsed;
+        long bytesBefore, batchesBefore;
+
+        errorAdapter.silence();
+
+        MessageXC.setPreferredCodecs(setting.codec);
+        try
+        {
+            if (setting.selector)
+            {
+                final ServerSocketChannel server = ServerSocketChannel.open();
+                final SocketChannel txChannel, rxChannel;
+
+                server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                        1);
+                txChannel = SocketChannel.open(server.socket().getLocalSocketAddress());
+                rxChannel = server.accept();
+                server.close();
+
+                tx = new MessageXC(txChannel, nullListener, errorAdapter);
+                rx = new MessageXC(rxChannel, listener, errorAdapter);
+                txEnd = txChannel;
+                rxEnd = rxChannel;
+            }
+            else
+            {
+                final ServerSocket server = new ServerSocket(0, 1,
+                        InetAddress.getLoopbackAddress());
+                final Socket txSocket = new Socket(InetAddress.getLoopbackAddress(),
+                        server.getLocalPort());
+                final Socket rxSocket = server.accept();
+                server.close();
+
+                tx = new MessageXC(txSocket.getInputStream(), txSocket.getOutputStream(),
+                        nullListener, errorAdapter);
+                rx = new MessageXC(rxSocket.getInputStream(), rxSocket.getOutputStream(),
+                        listener, errorAdapter);
+                txEnd = txSocket;
+                rxEnd = rxSocket;
+            }
+        }
+        finally
+        {
+            MessageXC.setPreferredCodecs(preferredCodecs);
+        }
+
+        setting.configure(tx);
+        setting.configure(rx);
+
+        // Wait for codec negotiation to settle before we start counting
+        while (!setting.codec.equals(tx.getEncoderName()) ||
+                !setting.codec.equals(rx.getDecoderName()))
+        {
+            Thread.sleep(10);
+        }
+
+        bytesBefore = tx.getBytesSent();
+        batchesBefore = tx.getBatchesSent();
+        start = System.nanoTime();
+
+        for (int i = 0; i < n; ++i)
+        {
+            tx.queueMessage(MessageType.PROCESS,
+                    new ProcessManager<float[]>(new SmallCall(i), i, 1, false));
+        }
+
+        if (!listener.latch.await(5, TimeUnit.MINUTES))
+        {
+            logger.log(setting + ": timed out with " + listener.latch.getCount() +
+                    " messages outstanding");
+        }
+
+        elapsed = System.nanoTime() - start;
+
+        logger.log(setting + ": " + n + " messages, " +
+                ((tx.getBytesSent() - bytesBefore) / n) + " bytes/message, " +
+                String.format("%.1f",
+                        (double)n / Math.max(1, tx.getBatchesSent() - batchesBefore)) +
+                " messages/flush, " +
+                (long)(n / (elapsed / 1e9)) + " messages/s");
+
+        tx.close();
+        rx.close();
+        txEnd.close();
+        rxEnd.close();
+    }
+
+    public static void main(final String[] args)
+    {
+        benchmark(args.length > 0 ? Integer.parseInt(args[0]) : 10000, new PrintStreamLogger());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.example;
+
+import edu.utexas.clm.archipelago.compute.ArchipelagoFuture;
+import edu.utexas.clm.archipelago.util.EasyLogger;
+import edu.utexas.clm.archipelago.util.IJLogger;
+import edu.utexas.clm.archipelago.util.PrintStreamLogger;
+import ij.plugin.PlugIn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long it takes a thread waiting in ArchipelagoFuture.get() to wake up once the
+ * Future is finished, without a Cluster, and compares it with waking a sleeping thread by
+ * interrupting it. Also measures get() on a Future that is already done.
+ *
+ * Run as a plugin, or from the command line with the number of rounds as the only argument.
+ */
+public class Wait_Benchmark implements PlugIn
+{
+    /**
+     * One way for a thread to wait to be woken.
+     */
+    public static abstract class Waiter implements Runnable
+    {
+        private final String name;
+        private final AtomicLong wokenAt;
+        private Thread thread;
+
+        public Waiter(final String name)
+        {
+            this.name = name;
+            wokenAt = new AtomicLong(0);
+        }
+
+        /**
+         * Waits until wake() is called.
+         * @throws Exception if the wait fails
+         */
+        public abstract void await() throws Exception;
+
+        /**
+         * Wakes the thread that is in await().
+         */
+        public abstract void wake();
+
+        public void run()
+        {
+            try
+            {
+                await();
+            }
+            catch (Exception e)
+            {
+                // The sleeping waiter ends up here, which is the point
+            }
+            wokenAt.set(System.nanoTime());
+        }
+
+        public Thread getThread()
+        {
+            return thread;
+        }
+
+        /**
+         * Starts a thread in await(), and returns once it is blocked there.
+         */
+        public void start()
+        {
+            thread = new Thread(this, name);
+            thread.start();
+
+            while (thread.getState() != Thread.State.WAITING &&
+                    thread.getState() != Thread.State.TIMED_WAITING)
+            {
+                Thread.yield();
+            }
+        }
+
+        /**
+         * @return the time in ns between calling wake() and the waiting thread running again
+         */
+        public long measure() throws InterruptedException
+        {
+            final long wakeAt;
+
+            start();
+            wakeAt = System.nanoTime();
+            wake();
+            thread.join();
+
+            return wokenAt.get() - wakeAt;
+        }
+
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    public void run(final String arg)
+    {
+        final int n = arg == null || arg.equals("") ? 2000 : Integer.parseInt(arg);
+        benchmark(n, new IJLogger());
+    }
+
+    public static void benchmark(final int n, final EasyLogger logger)
+    {
+        benchmarkDoneGet(n * 1000, logger);
+
+        try
+        {
+            benchmarkWakeUp(new Waiter("Sleep, interrupt")
+            {
+                public void await() throws Exception
+                {
+                    Thread.sleep(Long.MAX_VALUE);
+                }
+
+                public void wake()
+                {
+                    getThread().interrupt();
+                }
+            }, n, logger);
+
+            benchmarkWakeUp(new Waiter("ArchipelagoFuture.get(), finish()")
+            {
+                private ArchipelagoFuture<Object> future;
+
+                public void start()
+                {
+                    future = new ArchipelagoFuture<Object>(null);
+                    super.start();
+                }
+
+                public void await() throws Exception
+                {
+                    future.get();
+                }
+
+                public void wake()
+                {
+                    future.finish((Throwable)null);
+                }
+            }, n, logger);
+        }
+        catch (InterruptedException ie)
+        {
+            logger.log("Interrupted");
+        }
+    }
+
+    /**
+     * Times get() on a Future that is already done, which should neither block nor allocate.
+     * @param n the number of calls to make
+     * @param logger where to report
+     */
+    public static void benchmarkDoneGet(final int n, final EasyLogger logger)
+    {
+        final ArchipelagoFuture<Object> future = new ArchipelagoFuture<Object>(null, "done");
+        long start = 0, elapsed;
+        int count = 0;
+
+        future.finish((Throwable)null);
+
+        // Once to warm up, once to measure.
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            count = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < n; ++i)
+            {
+                try
+                {
+                    count += future.get() == null ? 0 : 1;
+                }
+                catch (Exception e)
+                {
+                    logger.log("get() failed: " + e);
+                    return;
+                }
+            }
+        }
+
+        elapsed = System.nanoTime() - start;
+
+        logger.log("get() on a done Future: " + String.format("%.1f", (double)elapsed / n) +
+                " ns/call over " + count + " calls");
+    }
+
+    /**
+     * Wakes a waiting thread n times, after as many rounds to warm up, and reports the median
+     * and 99th percentile time for it to run again.
+     * @param waiter the way to wait
+     * @param n the number of rounds
+     * @param logger where to report
+     * @throws InterruptedException if we're interrupted
+     */
+    public static void benchmarkWakeUp(final Waiter waiter, final int n, final EasyLogger logger)
+            throws InterruptedException
+    {
+        final long[] latencies = new long[n];
+
+        for (int i = 0; i < n; ++i)
+        {
+            waiter.measure();
+        }
+
+        for (int i = 0; i < n; ++i)
+        {
+            latencies[i] = waiter.measure();
+        }
+
+        Arrays.sort(latencies);
+
+        logger.log(waiter + ": wake-up latency median " +
+                String.format("%.1f", latencies[n / 2] / 1e3) + "us, p99 " +
+                String.format("%.1f", latencies[Math.min(n - 1, (int)(n * 0.99))] / 1e3) +
+                "us over " + n + " rounds");
+    }
+
+    public static void main(final String[] args)
+    {
+        benchmark(args.length > 0 ? Integer.parseInt(args[0]) : 2000, new PrintStreamLogger());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.exception;
+
+import edu.utexas.clm.archipelago.listen.MessageType;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message frame arrives intact but can't be decoded, for instance because it
+ * refers to a class that isn't available locally, or when a message can't be encoded to be
+ * sent. Either way, only that message is lost: the frame is skipped, or never written, and the
+ * connection stays up. The cause is the original exception.
+ */
+public class UndecodableMessageException extends IOException
+{
+    private static final long serialVersionUID = 6290416432537148817L;
+
+    private final MessageType type;
+    private final long jobID;
+    private final boolean outgoing;
+
+    /**
+     * @param type the type of the message, or null if it is unknown
+     * @param jobID the id of the job that the message belongs to, or -1 if none
+     * @param cause the exception that prevented decoding
+     */
+    public UndecodableMessageException(final MessageType type, final long jobID,
+                                       final Throwable cause)
+    {
+        this(type, jobID, cause, false);
+    }
+
+    /**
+     * @param type the type of the message, or null if it is unknown
+     * @param jobID the id of the job that the message belongs to, or -1 if none
+     * @param cause the exception that prevented encoding or decoding
+     * @param outgoing true if the message was being encoded to be sent, false if it was
+     *                 being decoded
+     */
+    public UndecodableMessageException(final MessageType type, final long jobID,
+                                       final Throwable cause, final boolean outgoing)
+    {
+        super("Could not " + (outgoing ? "encode " : "decode ") + type + " message" +
+                (jobID >= 0 ? " for job " + jobID : "") + ": " + cause, cause);
+        this.type = type;
+        this.jobID = jobID;
+        this.outgoing = outgoing;
+    }
+
+    public MessageType getMessageType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the id of the job that the message belongs to, or -1 if none
+     */
+    public long getJobID()
+    {
+        return jobID;
+    }
+
+    /**
+     * @return true if the message could not be encoded to be sent, false if it could not be
+     * decoded once received
+     */
+    public boolean isOutgoing()
+    {
+        return outgoing;
+    }
+}
@@ -45,5 +45,19 @@ public enum MessageType
     HOSTNAME,
     SETFSTRANSLATION,
     BOTTLER,
-    LOG
+    LOG,
+    // Handled inside MessageXC, never passed to a TransceiverListener
+    CODEC,
+    RESET,
+    CREDIT,
+    // Sent by the root to ask a client to queue jobs beyond its thread limit, and echoed by a
+    // client that will. Carries an int[]{thread limit, prefetch depth}.
+    PREFETCH,
+    // Sent by the root with a job id to take back a job that is queued on a client but hasn't
+    // started. The client answers with a Duplex of the id and whether it gave the job up.
+    RECLAIM,
+    // Sent by a client in answer to a GETID. Carries a Hello.
+    HELLO,
+    // Sent by the root in answer to a HELLO. Carries a Welcome.
+    WELCOME
 }
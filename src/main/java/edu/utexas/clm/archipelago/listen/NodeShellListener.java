@@ -20,6 +20,7 @@ package edu.utexas.clm.archipelago.listen;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 
 /**
  *
@@ -30,4 +31,11 @@ public interface NodeShellListener
     public void execFinished(final long nodeID, final Exception e, final int status);
 
     public void ioStreamsReady(final InputStream is, final OutputStream os);
+
+    /**
+     * Called when a remote node has connected on a SocketChannel, to be used with the selector
+     * transport.
+     * @param channel the connected SocketChannel
+     */
+    public void channelReady(final SocketChannel channel);
 }
@@ -23,5 +23,12 @@ import edu.utexas.clm.archipelago.network.node.ClusterNodeState;
 
 public interface NodeStateListener
 {
+    /**
+     * Called when a ClusterNode changes state. When stateNow is the same as lastState, the
+     * state hasn't changed, but something else about the node has, such as its thread limit.
+     * @param node the node
+     * @param stateNow the node's state now
+     * @param lastState the node's state before
+     */
     public void stateChanged(ClusterNode node, ClusterNodeState stateNow, ClusterNodeState lastState);
 }
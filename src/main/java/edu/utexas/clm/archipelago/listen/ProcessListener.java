@@ -34,5 +34,12 @@ public interface ProcessListener
      * @return true or not. This method may be a void return in the future.
      */
     public boolean processFinished(ProcessManager<?> process);
+
+    /**
+     * This method will be called when a ProcessManager that was queued on a node, but had not
+     * started there yet, has been given back so that it can be run somewhere else.
+     * @param process the ProcessManager that was given back
+     */
+    public void processReclaimed(ProcessManager<?> process);
     
 }
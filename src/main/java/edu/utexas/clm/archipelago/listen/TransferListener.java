@@ -0,0 +1,40 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.listen;
+
+import edu.utexas.clm.archipelago.network.MessageXC;
+
+/**
+ * TransferListener interface, used to follow large messages that MessageXC sends or receives
+ * in chunks.
+ */
+public interface TransferListener
+{
+    /**
+     * Called each time a chunk of a large message is sent or received.
+     * @param xc the MessageXC carrying the message
+     * @param type the type of the message
+     * @param jobID the id of the job, for PROCESS messages, or -1
+     * @param outgoing true if the message is being sent, false if it is being received
+     * @param bytesDone the number of bytes transferred so far
+     * @param bytesTotal the total size of the message, in bytes
+     */
+    public void transferProgress(MessageXC xc, MessageType type, long jobID, boolean outgoing,
+                                 long bytesDone, long bytesTotal);
+}
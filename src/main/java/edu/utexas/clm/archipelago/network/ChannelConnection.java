@@ -0,0 +1,363 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.network.codec.FrameBuffer;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Carries a MessageXC's frames over a non-blocking SocketChannel, serviced by a SelectorLoop.
+ * Frames are cut out of the stream on the loop, and checked and decoded by the Dispatcher.
+ */
+class ChannelConnection implements SelectorLoop.ChannelHandler
+{
+    // Bytes that may wait to be written before the Sender holds off
+    private static final int OUTPUT_LIMIT = 1024 * 1024;
+    // Arrays kept for the Sender to build batches in, and the size of a new one
+    private static final int SPARE_ARRAYS = 4;
+    private static final int SPARE_ARRAY_SIZE = 64 * 1024;
+
+    private final MessageXC xc;
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private volatile SelectionKey key;
+    // Only touched by the loop
+    private final ByteBuffer header;
+    private final CRC32 loopChecksum;
+    private Frame frame;
+    private int fill;
+    // Batches waiting to be written, and arrays that the loop is done with. Guarded by outQ.
+    private final ArrayDeque<ByteBuffer> outQ;
+    private final ArrayDeque<byte[]> spareArrays;
+    private final AtomicLong pendingBytes;
+    private final AtomicBoolean senderWaiting;
+    private final CountDownLatch closed;
+
+    public ChannelConnection(final MessageXC xc, final SocketChannel channel)
+            throws IOException
+    {
+        this.xc = xc;
+        this.channel = channel;
+        channel.configureBlocking(false);
+        loop = SelectorLoop.next();
+        key = null;
+        header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+        loopChecksum = new CRC32();
+        frame = null;
+        fill = 0;
+        outQ = new ArrayDeque<ByteBuffer>();
+        spareArrays = new ArrayDeque<byte[]>();
+        pendingBytes = new AtomicLong(0);
+        senderWaiting = new AtomicBoolean(false);
+        closed = new CountDownLatch(1);
+    }
+
+    public void start()
+    {
+        loop.register(channel, this);
+    }
+
+    public void registered(final SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    public void readable(final ByteBuffer buffer) throws IOException
+    {
+        final int n = channel.read(buffer);
+
+        if (n < 0)
+        {
+            throw new EOFException();
+        }
+
+        xc.bytesReceived.addAndGet(n);
+        buffer.flip();
+
+        while (true)
+        {
+            if (frame == null)
+            {
+                while (header.hasRemaining() && buffer.hasRemaining())
+                {
+                    header.put(buffer.get());
+                }
+
+                if (header.hasRemaining())
+                {
+                    return;
+                }
+
+                header.flip();
+                frame = Frame.readHeader(header, loopChecksum);
+                frame.data = new byte[frame.length];
+                header.clear();
+                fill = 0;
+            }
+
+            final int m = Math.min(buffer.remaining(), frame.length - fill);
+            buffer.get(frame.data, fill, m);
+            fill += m;
+
+            if (fill < frame.length)
+            {
+                return;
+            }
+
+            try
+            {
+                if (!handleControlFrame(frame))
+                {
+                    xc.dispatcher.put(new Received(frame));
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                // Can't happen, the queue is unbounded.
+            }
+            frame = null;
+
+            if (!buffer.hasRemaining())
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles an intact control frame right here on the loop, so that credit gets through
+     * even while the Dispatcher is busy. A codec switch is still queued for the Dispatcher.
+     * @param frame a frame that has just been read
+     * @return true if the frame was handled, false if it should go to the Dispatcher
+     * @throws IOException if we've lost track of the stream
+     * @throws InterruptedException never, since the Dispatcher's queue is unbounded
+     */
+    private boolean handleControlFrame(final Frame frame)
+            throws IOException, InterruptedException
+    {
+        final MessageCodec codec;
+
+        if ((frame.flags & Frame.FLAG_CONTROL) == 0)
+        {
+            return false;
+        }
+
+        loopChecksum.reset();
+        loopChecksum.update(frame.data, 0, frame.length);
+        if ((int)loopChecksum.getValue() != frame.checksum)
+        {
+            // Let the Dispatcher report it, and ask for a reset
+            return false;
+        }
+
+        try
+        {
+            codec = xc.receiver.handleControlFrame(frame.type, frame.data, frame.length);
+        }
+        catch (StreamCorruptedException sce)
+        {
+            // We can't follow the rest of the stream.
+            throw sce;
+        }
+        catch (IOException ioe)
+        {
+            xc.receiver.reportUndecodable(frame.type, -1, ioe);
+            return true;
+        }
+
+        if (codec != null)
+        {
+            xc.dispatcher.put(new Received(codec));
+        }
+
+        return true;
+    }
+
+    public void writable(final ByteBuffer buffer) throws IOException
+    {
+        while (true)
+        {
+            final int n;
+
+            buffer.clear();
+            synchronized (outQ)
+            {
+                for (final ByteBuffer b : outQ)
+                {
+                    final int m = Math.min(b.remaining(), buffer.remaining());
+                    buffer.put(b.array(), b.arrayOffset() + b.position(), m);
+                    if (!buffer.hasRemaining())
+                    {
+                        break;
+                    }
+                }
+
+                if (buffer.position() == 0)
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                    break;
+                }
+            }
+
+            buffer.flip();
+            n = channel.write(buffer);
+            xc.bytesSent.addAndGet(n);
+            consume(n);
+
+            if (buffer.hasRemaining())
+            {
+                // The socket is full. We'll be back when it has room.
+                break;
+            }
+        }
+
+        if (pendingBytes.get() <= OUTPUT_LIMIT / 2 && senderWaiting.compareAndSet(true, false))
+        {
+            xc.sender.schedule();
+        }
+    }
+
+    public void failed(final Throwable t)
+    {
+        xc.streamLost(t);
+    }
+
+    /**
+     * Drops n bytes from the front of outQ, now that they've been written.
+     */
+    private void consume(int n)
+    {
+        pendingBytes.addAndGet(-n);
+
+        synchronized (outQ)
+        {
+            while (n > 0)
+            {
+                final ByteBuffer b = outQ.peek();
+                final int m = Math.min(b.remaining(), n);
+                b.position(b.position() + m);
+                n -= m;
+                if (!b.hasRemaining())
+                {
+                    outQ.poll();
+                    if (spareArrays.size() < SPARE_ARRAYS &&
+                            b.capacity() <= FrameBuffer.RETAIN_LIMIT)
+                    {
+                        spareArrays.add(b.array());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a batch to be written by the loop, which owns its array from here on.
+     * @param batch the bytes to write
+     */
+    public void send(final ByteBuffer batch)
+    {
+        final boolean wasEmpty;
+
+        pendingBytes.addAndGet(batch.remaining());
+
+        synchronized (outQ)
+        {
+            wasEmpty = outQ.isEmpty();
+            outQ.add(batch);
+        }
+
+        if (wasEmpty)
+        {
+            loop.execute(new Runnable()
+            {
+                public void run()
+                {
+                    if (key != null && key.isValid())
+                    {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return an array to build the next batch in
+     */
+    public byte[] spareArray()
+    {
+        synchronized (outQ)
+        {
+            final byte[] spare = spareArrays.poll();
+            return spare == null ? new byte[SPARE_ARRAY_SIZE] : spare;
+        }
+    }
+
+    /**
+     * @return true if another batch may be sent. If not, the Sender is scheduled again once
+     * the loop has caught up.
+     */
+    public boolean canSend()
+    {
+        if (pendingBytes.get() < OUTPUT_LIMIT)
+        {
+            return true;
+        }
+
+        senderWaiting.set(true);
+
+        // The loop may have caught up while we weren't looking.
+        return pendingBytes.get() < OUTPUT_LIMIT && senderWaiting.compareAndSet(true, false);
+    }
+
+    public void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe) {/**/}
+        closed.countDown();
+    }
+
+    public boolean join()
+    {
+        try
+        {
+            closed.await();
+            return true;
+        }
+        catch (InterruptedException ie)
+        {
+            return false;
+        }
+    }
+}
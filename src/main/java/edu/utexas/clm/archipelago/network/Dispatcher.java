@@ -0,0 +1,149 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.compute.ProcessManager;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.listen.MessageType;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers a MessageXC's received messages on the shared dispatch pool, one at a time and in
+ * order, so that a slow listener doesn't hold up reading. Data frames read from a channel are
+ * decoded here too.
+ */
+class Dispatcher implements Runnable
+{
+    // Messages delivered per turn, before letting other MessageXCs have the thread
+    private static final int TURN = 64;
+
+    private static final ExecutorService dispatchPool =
+            MessageXC.newPool("MessageXC dispatch ");
+
+    private final MessageXC xc;
+    private final BlockingQueue<Received> pending;
+    private final AtomicBoolean scheduled;
+    // The thread delivering our messages right now, if any
+    private volatile Thread dispatchThread;
+
+    public Dispatcher(final MessageXC xc, final BlockingQueue<Received> pending)
+    {
+        this.xc = xc;
+        this.pending = pending;
+        scheduled = new AtomicBoolean(false);
+        dispatchThread = null;
+    }
+
+    public void put(final Received received) throws InterruptedException
+    {
+        pending.put(received);
+        schedule();
+    }
+
+    /**
+     * @return true if the calling thread is delivering our messages
+     */
+    public boolean isDispatching()
+    {
+        return Thread.currentThread() == dispatchThread;
+    }
+
+    private void schedule()
+    {
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true))
+        {
+            dispatchPool.execute(this);
+        }
+    }
+
+    public void run()
+    {
+        dispatchThread = Thread.currentThread();
+        try
+        {
+            Received received;
+            int n = 0;
+
+            while (n++ < TURN && (received = pending.poll()) != null)
+            {
+                if (received.frame != null)
+                {
+                    if (xc.active.get())
+                    {
+                        try
+                        {
+                            xc.receiver.handleFrame(received.frame);
+                        }
+                        catch (RuntimeException re)
+                        {
+                            xc.streamLost(re);
+                        }
+                    }
+                }
+                else if (received.codec != null)
+                {
+                    xc.receiver.switchDecoder(received.codec);
+                }
+                else if (received.message == null)
+                {
+                    // The stream was lost, and this is the last of what came before.
+                    xc.close();
+                }
+                else if (xc.active.get())
+                {
+                    deliver(received.message);
+                    xc.returnCredit(received.bytes);
+                }
+            }
+        }
+        finally
+        {
+            dispatchThread = null;
+            scheduled.set(false);
+            schedule();
+        }
+    }
+
+    public void deliver(final ClusterMessage message)
+    {
+        try
+        {
+            // Don't debug beats, or they'll fill your log
+            if (message.type != MessageType.BEAT)
+            {
+                FijiArchipelago.debug("RX: " + xc.getId() + " got message " +
+                        ClusterMessage.messageToString(message));
+                if (message.type == MessageType.PROCESS)
+                {
+                    final ProcessManager<?> pm = (ProcessManager<?>)message.o;
+                    FijiArchipelago.debug("RX: Got message for job " + pm.getID());
+                }
+            }
+            xc.handleMessage(message);
+        }
+        catch (Throwable e)
+        {
+            xc.xcExceptionListener.handleRXThrowable(e, xc, message);
+        }
+    }
+}
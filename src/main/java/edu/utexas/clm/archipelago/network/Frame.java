@@ -0,0 +1,109 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.listen.MessageType;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A frame read from a connection, waiting to be handled.
+ */
+class Frame
+{
+    // Header: marker, flags, message type, job id, payload length, payload checksum, and a
+    // checksum of the header before it
+    static final int MAGIC = 0x41524348;
+    static final int HEADER_SIZE = 4 + 1 + 1 + 8 + 4 + 4 + 4;
+    // Larger messages are always sent in chunks, so a bigger frame means a broken stream
+    static final int MAX_SIZE = 16 * 1024 * 1024;
+    // The payload was written by the encoder with its state freshly reset
+    static final int FLAG_RESET = 1;
+    // The payload was written by MessageXC itself, not by a codec
+    static final int FLAG_CONTROL = 2;
+    // One piece of a large message. The payload starts with the transfer id, the total size of
+    // the message and the offset of this piece, and the first piece adds the codec name.
+    static final int FLAG_CHUNK = 4;
+    static final int CHUNK_HEADER_SIZE = 4 + 4 + 4;
+
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    final int flags;
+    final MessageType type;
+    final long jobID;
+    final int length, checksum;
+    // The payload, once it has been read
+    byte[] data;
+
+    public Frame(final int flags, final MessageType type, final long jobID,
+                 final int length, final int checksum)
+    {
+        this.flags = flags;
+        this.type = type;
+        this.jobID = jobID;
+        this.length = length;
+        this.checksum = checksum;
+        data = null;
+    }
+
+    /**
+     * Reads a frame header, checking it before believing the payload length that it gives.
+     * @param header a buffer holding the header
+     * @param crc a CRC32 to check the header with
+     * @return a Frame with no payload yet
+     * @throws StreamCorruptedException if this isn't an intact frame header
+     */
+    public static Frame readHeader(final ByteBuffer header, final CRC32 crc)
+            throws StreamCorruptedException
+    {
+        final int start = header.position();
+        final int magic = header.getInt();
+        final int flags, typeIndex, length, checksum;
+        final long jobID;
+
+        if (magic != MAGIC)
+        {
+            throw new StreamCorruptedException("Bad frame marker " +
+                    Integer.toHexString(magic));
+        }
+
+        crc.reset();
+        crc.update(header.array(), header.arrayOffset() + start, HEADER_SIZE - 4);
+        if ((int)crc.getValue() != header.getInt(start + HEADER_SIZE - 4))
+        {
+            throw new StreamCorruptedException("Frame header checksum mismatch");
+        }
+
+        flags = header.get();
+        typeIndex = header.get() & 0xff;
+        jobID = header.getLong();
+        length = header.getInt();
+        checksum = header.getInt();
+
+        if (length < 0 || length > MAX_SIZE)
+        {
+            throw new StreamCorruptedException("Bad frame length " + length);
+        }
+
+        return new Frame(flags, typeIndex < MESSAGE_TYPES.length ? MESSAGE_TYPES[typeIndex] :
+                null, jobID, length, checksum);
+    }
+}
@@ -24,25 +24,44 @@ import edu.utexas.clm.archipelago.data.ClusterMessage;
 import edu.utexas.clm.archipelago.listen.MessageType;
 import edu.utexas.clm.archipelago.listen.TransceiverExceptionListener;
 import edu.utexas.clm.archipelago.listen.TransceiverListener;
-import edu.utexas.clm.archipelago.network.translation.Bottle;
+import edu.utexas.clm.archipelago.listen.TransferListener;
+import edu.utexas.clm.archipelago.network.codec.CompactCodec;
+import edu.utexas.clm.archipelago.network.codec.JavaCodec;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
 import edu.utexas.clm.archipelago.network.translation.Bottler;
+import edu.utexas.clm.archipelago.network.translation.ClassBottler;
 import edu.utexas.clm.archipelago.network.translation.FileTranslator;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.SocketChannel;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -65,53 +84,153 @@ public class MessageXC
     }
 
 
-    private class BottlingInputStream extends ObjectInputStream
+    /**
+     * An immutable snapshot of the registered Bottlers, along with a cache of which Bottlers
+     * may accept Objects of a given class. A new table is built whenever a Bottler is added.
+     */
+    private static class BottlerTable
     {
-        public BottlingInputStream(final InputStream is) throws IOException
+        private final List<Bottler<?>> bottlerList;
+        private final ConcurrentHashMap<Class<?>, Bottler<?>[]> classMap;
+
+        public BottlerTable(final List<Bottler<?>> bottlers)
         {
-            super(is);
-            enableResolveObject(true);
+            bottlerList = Collections.unmodifiableList(new ArrayList<Bottler<?>>(bottlers));
+            classMap = new ConcurrentHashMap<Class<?>, Bottler<?>[]>();
         }
 
-        protected final Object resolveObject(final Object object) throws IOException
+        /**
+         * Returns the Bottlers that should be asked about an Object of the given class, in the
+         * order in which they were added. Both hits and misses are cached, so an Object of a
+         * class that no Bottler handles costs one map lookup.
+         * @param c the runtime class of an Object being serialized
+         * @return the candidate Bottlers, possibly empty
+         */
+        public Bottler<?>[] candidates(final Class<?> c)
         {
-            if (object instanceof Bottle)
+            Bottler<?>[] candidates = classMap.get(c);
+
+            if (candidates == null)
             {
-                Bottle bottle = (Bottle)object;
-                return bottle.unBottle(xc);
+                final ArrayList<Bottler<?>> list = new ArrayList<Bottler<?>>();
+                for (final Bottler<?> bottler : bottlerList)
+                {
+                    if (!(bottler instanceof ClassBottler<?>) ||
+                            handles((ClassBottler<?>)bottler, c))
+                    {
+                        list.add(bottler);
+                    }
+                }
+                candidates = list.isEmpty() ? NO_BOTTLERS :
+                        list.toArray(new Bottler<?>[list.size()]);
+                classMap.put(c, candidates);
             }
-            else
+
+            return candidates;
+        }
+
+        private static boolean handles(final ClassBottler<?> bottler, final Class<?> c)
+        {
+            for (final Class<?> bc : bottler.bottledClasses())
             {
-                return object;
+                if (bc == c)
+                {
+                    return true;
+                }
             }
+            return false;
         }
     }
 
-    private class BottlingOutputStream extends ObjectOutputStream
+    /**
+     * The live list of registered Bottlers. Every change to it builds a new BottlerTable.
+     */
+    private class BottlerList extends AbstractList<Bottler<?>>
     {
+        public Bottler<?> get(final int index)
+        {
+            return bottlerTable.bottlerList.get(index);
+        }
 
-        public BottlingOutputStream(final OutputStream os) throws IOException
+        public int size()
+        {
+            return bottlerTable.bottlerList.size();
+        }
+
+        public Bottler<?> set(final int index, final Bottler<?> bottler)
+        {
+            final ArrayList<Bottler<?>> list = new ArrayList<Bottler<?>>(bottlerTable.bottlerList);
+            final Bottler<?> old = list.set(index, bottler);
+            bottlerTable = new BottlerTable(list);
+            return old;
+        }
+
+        public void add(final int index, final Bottler<?> bottler)
+        {
+            final ArrayList<Bottler<?>> list = new ArrayList<Bottler<?>>(bottlerTable.bottlerList);
+            list.add(index, bottler);
+            bottlerTable = new BottlerTable(list);
+            ++modCount;
+        }
+
+        public Bottler<?> remove(final int index)
+        {
+            final ArrayList<Bottler<?>> list = new ArrayList<Bottler<?>>(bottlerTable.bottlerList);
+            final Bottler<?> old = list.remove(index);
+            bottlerTable = new BottlerTable(list);
+            ++modCount;
+            return old;
+        }
+    }
+
+    /**
+     * Counts the bytes that pass through to the underlying stream.
+     */
+    private class CountingOutputStream extends FilterOutputStream
+    {
+        public CountingOutputStream(final OutputStream os)
         {
             super(os);
-            enableReplaceObject(true);
         }
 
-        protected final Object replaceObject(final Object object) throws IOException
+        public void write(final int b) throws IOException
         {
-            /*
-            This seems like it could get costly as the number of bottles increases.
-            If this is the case, explore lower cost options, like look up tables or hashmaps on
-            the class name.
-             */
-            List<Bottler> bottlerList = new ArrayList<Bottler>(bottlers);
-            for (final Bottler bottler : bottlerList)
+            out.write(b);
+            bytesSent.incrementAndGet();
+        }
+
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream
+    {
+        public CountingInputStream(final InputStream is)
+        {
+            super(is);
+        }
+
+        public int read() throws IOException
+        {
+            final int b = in.read();
+            if (b >= 0)
             {
-                if (bottler.accepts(object))
-                {
-                    return bottler.bottle(object, xc);
-                }
+                bytesReceived.incrementAndGet();
             }
-            return object;
+            return b;
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            final int n = in.read(b, off, len);
+            if (n > 0)
+            {
+                bytesReceived.addAndGet(n);
+            }
+            return n;
         }
     }
 
@@ -123,53 +242,18 @@ public class MessageXC
             {
                 try
                 {
-                    ClusterMessage message = (ClusterMessage)objectInputStream.readObject();
-                    // Don't debug beats, or they'll fill your log
-                    if (message.type != MessageType.BEAT)
-                    {
-                        FijiArchipelago.debug("RX: " + id + " got message " +
-                                ClusterMessage.messageToString(message));
-                        if (message.type == MessageType.PROCESS)
-                        {
-                            ProcessManager pm = (ProcessManager)message.o;
-                            FijiArchipelago.debug("RX: Got message for job " + pm.getID());
-                        }
-                    }
-                    listenerLock.lock();
-                    xcListener.handleMessage(message);
-                    listenerLock.unlock();
-                }
-                /*catch (ClassCastException cce)
-                {
-                    xcExceptionListener.handleRXThrowable(cce, xc);
-                }
-                catch (IOException ioe)
-                {
-                    xcExceptionListener.handleRXThrowable(ioe, xc);
+                    receiver.handleFrame(receiver.readFrame(inStream));
                 }
-                catch (ClassNotFoundException cnfe)
-                {
-                    xcExceptionListener.handleRXThrowable(cnfe, xc);
-                }*/
                 catch (Throwable e)
                 {
-                    xcExceptionListener.handleRXThrowable(e, xc, null);
-                }
-                finally
-                {
-                    try
-                    {
-                        objectInputStream = new BottlingInputStream(inStream);
-                    }
-                    catch (IOException ioe)
-                    {
-                        close();
-                    }
+                    // We've lost our place in the stream, and there's no getting it back.
+                    streamLost(e);
+                    return;
                 }
             }
         }
     }
-    
+
     private class TXThread extends Thread
     {
         public void run()
@@ -179,85 +263,77 @@ public class MessageXC
                 ClusterMessage nextMessage = null;
                 try
                 {
-                    nextMessage = messageQ.poll(waitTime, tUnit);
-/*                    if (nextMessage.type == MessageType.PROCESS)
-                    {
-                        lastSentID.set(((ProcessManager) nextMessage.o).getID());
-                    }*/
+                    nextMessage = pollMessage(waitTime, tUnit);
                 }
                 catch (InterruptedException ie)
                 {
                     active.set(false);
                 }
 
-                if (nextMessage != null)
+                if (nextMessage != null || (sender.hasTransfers() && hasCredit()))
                 {
-                    try
-                    {
-                        if (nextMessage.type != MessageType.BEAT)
-                        {
-                            FijiArchipelago.debug("TX: " + id + " writing message " +
-                                    ClusterMessage.messageToString(nextMessage));
-                        }
-                        objectOutputStream.writeObject(nextMessage);
-                        objectOutputStream.flush();
-                    }
-                    /*catch (NotSerializableException nse)
-                    {
-                        xcExceptionListener.handleTXThrowable(nse, xc);
-                    }
-                    catch (IOException ioe)
-                    {
-                        xcExceptionListener.handleTXThrowable(ioe, xc);
-                    }
-                    catch (ConcurrentModificationException ccme)
-                    {
-                        xcExceptionListener.handleTXThrowable(ccme, xc);
-                    }
-                    catch (RuntimeException re)
-                    {
-                        xcExceptionListener.handleTXThrowable(re, xc);
-                    }*/
-                    catch (Throwable e)
-                    {
-                        xcExceptionListener.handleTXThrowable(e, xc, nextMessage);
-                    }
-                    finally
-                    {
-                        try
-                        {
-                            objectOutputStream = new BottlingOutputStream(outStream);
-                        }
-                        catch (IOException ioe)
-                        {
-                            close();
-                        }
-                    }
+                    sender.writeBatch(nextMessage);
                 }
             }
         }
     }
-    
+
     public static final long DEFAULT_WAIT = 10000;
     public static final TimeUnit DEFAULT_UNIT = TimeUnit.MILLISECONDS;
+    public static final int DEFAULT_RESET_MESSAGES = 1024;
+    public static final long DEFAULT_RESET_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_BATCH_MESSAGES = 256;
+    public static final long DEFAULT_BATCH_BYTES = 256 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_QUEUE_LIMIT = 1024;
+    public static final long DEFAULT_RECEIVE_WINDOW = 16 * 1024 * 1024;
+    public static final int DEFAULT_DISPATCH_QUEUE = 256;
+    private static final Bottler<?>[] NO_BOTTLERS = new Bottler<?>[0];
+
+    // Small, time-sensitive messages that should not wait behind large jobs or results
+    private static final EnumSet<MessageType> CONTROL_TYPES = EnumSet.of(MessageType.BEAT,
+            MessageType.PING, MessageType.CANCELJOB, MessageType.HALT, MessageType.ERROR,
+            MessageType.CODEC, MessageType.RESET, MessageType.CREDIT, MessageType.RECLAIM);
 
-    private final List<Bottler> bottlers;
-    private final LinkedBlockingQueue<ClusterMessage> messageQ;
-    private BottlingOutputStream objectOutputStream;
-    private BottlingInputStream objectInputStream;
+    private static final Map<String, MessageCodec> codecMap =
+            new ConcurrentHashMap<String, MessageCodec>();
+
+    private static volatile String[] preferredCodecs = {CompactCodec.NAME, JavaCodec.NAME};
+
+    private volatile BottlerTable bottlerTable;
+    private final List<Bottler<?>> bottlers;
+    // Messages of CONTROL_TYPES are always sent before any waiting in the bulk queue. Both
+    // queues are guarded by queueLock.
+    private final ArrayDeque<ClusterMessage> controlQ, bulkQ;
+    private final ReentrantLock queueLock;
+    private final Condition sendable, notFull;
+    private final AtomicInteger maxControlDepth, maxBulkDepth, queueLimit;
+    // Flow control. The remote side may have up to sendWindow bytes of our data frames that it
+    // hasn't finished with yet, and vice versa.
+    private volatile long sendWindow;
+    private final AtomicLong dataBytesSent, remoteConsumed, receiveWindow;
+    private final AtomicLong bytesConsumed, bytesAcked;
     private FileTranslator fileTranslator;
     private String host;
+    // For a stream connection, the threads that read and write it. For a channel, the
+    // connection, and neither thread.
     private final Thread txThread, rxThread;
-    private final AtomicBoolean active;
+    final ChannelConnection connection;
+    final Receiver receiver;
+    final Sender sender;
+    final Dispatcher dispatcher;
+    final AtomicBoolean active;
     private final AtomicLong lastSentID;
     private final long waitTime;
     private final TimeUnit tUnit;
     private TransceiverListener xcListener;
-    private final TransceiverExceptionListener xcExceptionListener;
+    final TransceiverExceptionListener xcExceptionListener;
     private final OutputStream outStream;
     private final InputStream inStream;
     private long id;
     private final ReentrantLock listenerLock;
+    final AtomicLong bytesSent, bytesReceived;
+    private final Vector<TransferListener> transferListeners;
 
     private final MessageXC xc = this;
 
@@ -275,16 +351,69 @@ public class MessageXC
                      final TransceiverExceptionListener listenerE,
                      final long wait,
                      TimeUnit unit) throws IOException
+    {
+        this(inStream, outStream, null, listener, listenerE, wait, unit);
+    }
+
+    /**
+     * Creates a MessageXC on a SocketChannel, serviced by a shared SelectorLoop.
+     * @param channel a connected SocketChannel
+     * @param listener the TransceiverListener to receive messages
+     * @param listenerE the TransceiverExceptionListener to receive errors
+     * @throws IOException if the channel could not be set up
+     */
+    public MessageXC(final SocketChannel channel,
+                     final TransceiverListener listener,
+                     final TransceiverExceptionListener listenerE) throws IOException
+    {
+        this(null, null, channel, listener, listenerE, DEFAULT_WAIT, DEFAULT_UNIT);
+    }
+
+    private MessageXC(final InputStream inStream,
+                      final OutputStream outStream,
+                      final SocketChannel channel,
+                      final TransceiverListener listener,
+                      final TransceiverExceptionListener listenerE,
+                      final long wait,
+                      final TimeUnit unit) throws IOException
     {
         FijiArchipelago.debug("Creating Message Transciever");
         fileTranslator = new NullFileTranslator();
-        bottlers = Collections.synchronizedList(new Vector<Bottler>());
-        messageQ = new LinkedBlockingQueue<ClusterMessage>();
-        objectOutputStream = new BottlingOutputStream(outStream);
-        objectInputStream =  new BottlingInputStream(inStream);
+        bottlerTable = new BottlerTable(Collections.<Bottler<?>>emptyList());
+        bottlers = Collections.synchronizedList(new BottlerList());
+        controlQ = new ArrayDeque<ClusterMessage>();
+        bulkQ = new ArrayDeque<ClusterMessage>();
+        queueLock = new ReentrantLock();
+        sendable = queueLock.newCondition();
+        notFull = queueLock.newCondition();
+        maxControlDepth = new AtomicInteger(0);
+        maxBulkDepth = new AtomicInteger(0);
+        queueLimit = new AtomicInteger(DEFAULT_QUEUE_LIMIT);
+        // Until the remote side tells us its window, assume it is unlimited. A peer that never
+        // sends CREDIT, such as one running an older version, leaves it that way for good.
+        sendWindow = Long.MAX_VALUE;
+        dataBytesSent = new AtomicLong(0);
+        remoteConsumed = new AtomicLong(0);
+        receiveWindow = new AtomicLong(DEFAULT_RECEIVE_WINDOW);
+        bytesConsumed = new AtomicLong(0);
+        bytesAcked = new AtomicLong(0);
+        bytesSent = new AtomicLong(0);
+        bytesReceived = new AtomicLong(0);
+        transferListeners = new Vector<TransferListener>();
+        if (channel == null)
+        {
+            this.inStream = new BufferedInputStream(new CountingInputStream(inStream),
+                    64 * 1024);
+            this.outStream = new CountingOutputStream(outStream);
+            connection = null;
+        }
+        else
+        {
+            this.inStream = null;
+            this.outStream = null;
+            connection = new ChannelConnection(this, channel);
+        }
         FijiArchipelago.debug("XC: streams are set");
-        this.inStream = inStream;
-        this.outStream = outStream;
         active = new AtomicBoolean(true);
         lastSentID = new AtomicLong(-1);
         waitTime = wait;
@@ -296,13 +425,99 @@ public class MessageXC
 
         host = "Unknown host";
 
-        txThread = new TXThread();
-        rxThread = new RXThread();
+        receiver = new Receiver(this);
+        sender = new Sender(this, this.outStream);
 
         id = -1;
 
-        rxThread.start();
-        txThread.start();
+        if (connection == null)
+        {
+            txThread = new TXThread();
+            rxThread = new RXThread();
+            dispatcher = new Dispatcher(this,
+                    new ArrayBlockingQueue<Received>(DEFAULT_DISPATCH_QUEUE));
+            rxThread.start();
+            txThread.start();
+        }
+        else
+        {
+            txThread = rxThread = null;
+            dispatcher = new Dispatcher(this, new LinkedBlockingQueue<Received>());
+            connection.start();
+        }
+
+        queueMessage(MessageType.CREDIT, new long[]{receiveWindow.get(), 0});
+        offerCodecs(preferredCodecs);
+    }
+
+    /**
+     * Registers a MessageCodec, making it available for negotiation on new connections.
+     * @param codec the codec to register
+     */
+    public static void registerCodec(final MessageCodec codec)
+    {
+        codecMap.put(codec.getName(), codec);
+    }
+
+    public static MessageCodec getCodec(final String name)
+    {
+        return codecMap.get(name);
+    }
+
+    public static Collection<MessageCodec> registeredCodecs()
+    {
+        return Collections.unmodifiableCollection(codecMap.values());
+    }
+
+    /**
+     * Sets the codecs that new MessageXCs offer to their remote peers, in order of preference.
+     * @param names the names of registered codecs
+     */
+    public static void setPreferredCodecs(final String... names)
+    {
+        preferredCodecs = names.clone();
+    }
+
+    public static String[] getPreferredCodecs()
+    {
+        return preferredCodecs.clone();
+    }
+
+    /**
+     * Offers the remote MessageXC the codecs that we can decode, in order of preference.
+     * @param names the names of codecs to offer
+     * @return true if the offer was queued
+     */
+    public boolean offerCodecs(final String... names)
+    {
+        final ArrayList<String> offer = new ArrayList<String>();
+
+        for (final String name : names)
+        {
+            if (getCodec(name) != null)
+            {
+                offer.add(name);
+            }
+        }
+
+        return !offer.isEmpty() &&
+                queueMessage(MessageType.CODEC, offer.toArray(new String[offer.size()]));
+    }
+
+    /**
+     * @return the name of the codec used for messages that we send
+     */
+    public String getEncoderName()
+    {
+        return sender.getEncoderName();
+    }
+
+    /**
+     * @return the name of the codec used for messages that we receive
+     */
+    public String getDecoderName()
+    {
+        return receiver.getDecoderName();
     }
 
     public long getLastProcessID()
@@ -310,6 +525,90 @@ public class MessageXC
         return lastSentID.get();
     }
 
+    /**
+     * Sets how often the outgoing encoder is reset, after whichever limit is reached first.
+     * @param messages the number of messages between resets, or 0 to ignore message count
+     * @param bytes the number of bytes written between resets, or 0 to ignore byte count
+     */
+    public void setResetInterval(final int messages, final long bytes)
+    {
+        sender.setResetInterval(messages, bytes);
+    }
+
+    /**
+     * Sets how many queued messages may be written together before the output is flushed.
+     * @param messages the maximum number of messages in a batch, or 0 for no limit
+     * @param bytes the number of bytes after which a batch is flushed, or 0 for no limit
+     * @param lingerTime how long to wait for more messages before flushing a batch
+     * @param unit the TimeUnit for lingerTime
+     */
+    public void setBatchLimits(final int messages, final long bytes, final long lingerTime,
+                               final TimeUnit unit)
+    {
+        sender.setBatchLimits(messages, bytes, unit.toNanos(lingerTime));
+    }
+
+    /**
+     * Sets the size above which messages are sent in chunks, interleaved with other messages.
+     * @param bytes the chunk size in bytes, or 0 to send messages whole up to 16MB
+     */
+    public void setChunkSize(final int bytes)
+    {
+        sender.setChunkSize(bytes);
+    }
+
+    /**
+     * Adds a TransferListener, to be notified as large messages are sent and received.
+     * @param listener the TransferListener to add
+     */
+    public void addTransferListener(final TransferListener listener)
+    {
+        if (!transferListeners.contains(listener))
+        {
+            transferListeners.add(listener);
+        }
+    }
+
+    public void removeTransferListener(final TransferListener listener)
+    {
+        transferListeners.remove(listener);
+    }
+
+    void fireTransferProgress(final Transfer transfer, final boolean outgoing)
+    {
+        for (final TransferListener listener :
+                new ArrayList<TransferListener>(transferListeners))
+        {
+            try
+            {
+                listener.transferProgress(this, transfer.type, transfer.jobID, outgoing,
+                        transfer.done, transfer.length);
+            }
+            catch (RuntimeException re)
+            {
+                FijiArchipelago.err("TransferListener threw " + re);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times that the output stream has been flushed
+     */
+    public long getBatchesSent()
+    {
+        return sender.getBatchesSent();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
     /**
      * Shutdown this MessageXC, closing the I/O streams as well.
      */
@@ -322,6 +621,14 @@ public class MessageXC
             listenerLock.lock();
             xcListener.streamClosed();
             listenerLock.unlock();
+            queueLock.lock();
+            notFull.signalAll();
+            queueLock.unlock();
+            if (connection != null)
+            {
+                connection.close();
+                return;
+            }
             txThread.interrupt();
             rxThread.interrupt();
             try
@@ -346,7 +653,11 @@ public class MessageXC
 
     public boolean join()
     {
-        if (txThread.isAlive() || rxThread.isAlive())
+        if (connection != null)
+        {
+            return connection.join();
+        }
+        else if (txThread.isAlive() || rxThread.isAlive())
         {
             try
             {
@@ -365,17 +676,73 @@ public class MessageXC
         }
     }
 
-    public synchronized boolean queueMessage(ClusterMessage message)
+    /**
+     * Queues a message to be sent to the remote side, waiting if the bulk queue is full.
+     * @param message the message to send
+     * @return true if the message was queued, false if we were interrupted or closed first
+     */
+    public boolean queueMessage(final ClusterMessage message)
     {
+        return queueMessage(message, true);
+    }
+
+    /**
+     * Queues a message to be sent to the remote side, unless the bulk queue is full.
+     * @param message the message to send
+     * @return true if the message was queued, false if the queue was full or we're closed
+     */
+    public boolean offerMessage(final ClusterMessage message)
+    {
+        return queueMessage(message, false);
+    }
+
+    public boolean offerMessage(final MessageType type, final Serializable o)
+    {
+        final ClusterMessage cm = new ClusterMessage(type);
+        cm.o = o;
+        return offerMessage(cm);
+    }
+
+    private boolean queueMessage(final ClusterMessage message, final boolean wait)
+    {
+        FijiArchipelago.debug("TX: queuing message " + message.type);
+        if (message.type == MessageType.ERROR)
+        {
+            Throwable t = (Throwable)message.o;
+            t.printStackTrace();
+        }
+
+        queueLock.lock();
         try
         {
-            FijiArchipelago.debug("TX: queuing message " + message.type);
-            if (message.type == MessageType.ERROR)
+            if (CONTROL_TYPES.contains(message.type))
             {
-                Throwable t = (Throwable)message.o;
-                t.printStackTrace();
+                if (message.type == MessageType.CANCELJOB && message.o instanceof Long)
+                {
+                    dropQueuedJob((Long)message.o);
+                }
+                controlQ.add(message);
+                updateMax(maxControlDepth, controlQ.size());
             }
-            messageQ.put(message);
+            else
+            {
+                if (!wait && (isQueueFull() || !active.get()))
+                {
+                    FijiArchipelago.debug("TX: queue full, not queuing " + message.type);
+                    return false;
+                }
+                else if (Thread.currentThread() != rxThread && !dispatcher.isDispatching())
+                {
+                    // The threads that read and deliver messages never wait on the remote side
+                    while (isQueueFull() && active.get())
+                    {
+                        notFull.await();
+                    }
+                }
+                bulkQ.add(message);
+                updateMax(maxBulkDepth, bulkQ.size());
+            }
+            signalSendable();
             FijiArchipelago.debug("TX: queued successfully");
             return true;
         }
@@ -384,6 +751,343 @@ public class MessageXC
             FijiArchipelago.debug("TX: message rejected: " + ie.getCause());
             return false;
         }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Lets the sender know that there may be something new to send. Assumes that queueLock is
+     * held.
+     */
+    private void signalSendable()
+    {
+        sendable.signal();
+        if (connection != null)
+        {
+            sender.schedule();
+        }
+    }
+
+    /**
+     * Closes this MessageXC once everything received before the stream was lost is handled.
+     * @param e the cause
+     */
+    void streamLost(final Throwable e)
+    {
+        if (active.get())
+        {
+            xcExceptionListener.handleRXThrowable(e, xc, null);
+            try
+            {
+                dispatcher.put(new Received(null, 0));
+            }
+            catch (InterruptedException ie)
+            {
+                close();
+            }
+        }
+    }
+
+    static ExecutorService newPool(final String name)
+    {
+        final int nThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        return Executors.newFixedThreadPool(nThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r, name + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private boolean isQueueFull()
+    {
+        final int limit = queueLimit.get();
+        return limit > 0 && bulkQ.size() >= limit;
+    }
+
+    /**
+     * Drops a cancelled job that is still waiting to be sent. Assumes that queueLock is held.
+     * @param id the id of the cancelled job
+     */
+    private void dropQueuedJob(final long id)
+    {
+        final Iterator<ClusterMessage> it = bulkQ.iterator();
+
+        while (it.hasNext())
+        {
+            final ClusterMessage cm = it.next();
+            if (cm.type == MessageType.PROCESS && cm.o instanceof ProcessManager &&
+                    ((ProcessManager)cm.o).getID() == id)
+            {
+                it.remove();
+                notFull.signal();
+                FijiArchipelago.debug("TX: dropped queued job " + id + " on cancel");
+            }
+        }
+    }
+
+    /**
+     * @return the id of the job that a message carries, or -1 if it doesn't carry one
+     */
+    static long jobIDOf(final ClusterMessage message)
+    {
+        return message.type == MessageType.PROCESS && message.o instanceof ProcessManager ?
+                ((ProcessManager)message.o).getID() : -1;
+    }
+
+    private static void updateMax(final AtomicInteger max, final int value)
+    {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {}
+    }
+
+    /**
+     * @return true if the remote side has room for more of our data frames
+     */
+    boolean hasCredit()
+    {
+        return dataBytesSent.get() - remoteConsumed.get() < sendWindow;
+    }
+
+    /**
+     * Counts a data frame that the Sender has written.
+     */
+    void dataSent(final int n)
+    {
+        dataBytesSent.addAndGet(n);
+    }
+
+    /**
+     * Takes in a CREDIT frame from the remote side.
+     * @param window the remote side's receive window
+     * @param consumed the number of our bytes that the remote side has finished with
+     */
+    void creditReceived(final long window, final long consumed)
+    {
+        queueLock.lock();
+        try
+        {
+            sendWindow = window;
+            if (consumed > remoteConsumed.get())
+            {
+                remoteConsumed.set(consumed);
+            }
+            signalSendable();
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the Sender has something that could go on the channel right now
+     */
+    boolean hasSendable()
+    {
+        if (!active.get() || !connection.canSend())
+        {
+            return false;
+        }
+
+        queueLock.lock();
+        try
+        {
+            return !controlQ.isEmpty() ||
+                    (hasCredit() && (!bulkQ.isEmpty() || sender.hasTransfers()));
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Hands a received message to the TransceiverListener.
+     */
+    void handleMessage(final ClusterMessage message)
+    {
+        listenerLock.lock();
+        try
+        {
+            xcListener.handleMessage(message);
+        }
+        finally
+        {
+            listenerLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a control message, or a bulk message if the remote side has room for it.
+     * Returns null early if there are only chunks of large messages to send.
+     */
+    ClusterMessage pollMessage(final long wait, final TimeUnit unit)
+            throws InterruptedException
+    {
+        long nanos = unit.toNanos(wait);
+
+        queueLock.lock();
+        try
+        {
+            while (true)
+            {
+                final boolean credit = hasCredit();
+
+                if (!controlQ.isEmpty())
+                {
+                    return controlQ.poll();
+                }
+                else if (credit && !bulkQ.isEmpty())
+                {
+                    notFull.signal();
+                    return bulkQ.poll();
+                }
+                else if ((credit && sender.hasTransfers()) || nanos <= 0)
+                {
+                    return null;
+                }
+
+                nanos = sendable.awaitNanos(nanos);
+            }
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    ClusterMessage pollMessage() throws InterruptedException
+    {
+        return pollMessage(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of control messages (heartbeats, pings, cancellations, halts and
+     * errors) waiting to be sent
+     */
+    public int getControlQueueDepth()
+    {
+        queueLock.lock();
+        try
+        {
+            return controlQ.size();
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bulk messages (jobs, results, Bottlers, logs, and everything else)
+     * waiting to be sent
+     */
+    public int getBulkQueueDepth()
+    {
+        queueLock.lock();
+        try
+        {
+            return bulkQ.size();
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * @return the greatest number of control messages that have been waiting at once
+     */
+    public int getMaxControlQueueDepth()
+    {
+        return maxControlDepth.get();
+    }
+
+    /**
+     * @return the greatest number of bulk messages that have been waiting at once
+     */
+    public int getMaxBulkQueueDepth()
+    {
+        return maxBulkDepth.get();
+    }
+
+    /**
+     * Sets the number of bulk messages that may wait to be sent before queueMessage blocks.
+     * @param messages the queue limit, or 0 for no limit
+     */
+    public void setQueueLimit(final int messages)
+    {
+        queueLimit.set(messages);
+        queueLock.lock();
+        notFull.signalAll();
+        queueLock.unlock();
+    }
+
+    public int getQueueLimit()
+    {
+        return queueLimit.get();
+    }
+
+    /**
+     * Sets how many bytes of data the remote side may send before waiting for us.
+     * @param bytes the size of the receive window in bytes
+     */
+    public void setReceiveWindow(final long bytes)
+    {
+        receiveWindow.set(bytes);
+        queueMessage(MessageType.CREDIT, new long[]{bytes, bytesAcked.get()});
+    }
+
+    /**
+     * Counts received data as consumed, and returns credit once a quarter of the window is used.
+     * @param n the number of bytes consumed, including frame headers
+     */
+    void returnCredit(final int n)
+    {
+        final long consumed = bytesConsumed.addAndGet(n);
+        final long acked = bytesAcked.get();
+
+        if (consumed - acked >= receiveWindow.get() / 4 &&
+                bytesAcked.compareAndSet(acked, consumed))
+        {
+            queueMessage(MessageType.CREDIT, new long[]{receiveWindow.get(), consumed});
+        }
+    }
+
+    /**
+     * @return the number of bytes that we've sent, that the remote side hasn't finished with
+     */
+    public long getBytesInFlight()
+    {
+        return dataBytesSent.get() - remoteConsumed.get();
+    }
+
+    /**
+     * @return the remote side's receive window, or Long.MAX_VALUE if we haven't heard it yet
+     */
+    public long getSendWindow()
+    {
+        return sendWindow;
+    }
+
+    /**
+     * @return the send occupancy, where 1 or more means that new bulk messages will wait
+     */
+    public float getSendOccupancy()
+    {
+        final int limit = queueLimit.get();
+        final float queueOccupancy = limit > 0 ? (float)getBulkQueueDepth() / limit : 0;
+        final float windowOccupancy = (float)getBytesInFlight() / sendWindow;
+        return Math.max(queueOccupancy, windowOccupancy);
     }
 
     public boolean queueMessage(final MessageType type)
@@ -452,13 +1156,48 @@ public class MessageXC
         }
     }
 
-    public void addBottler(final Bottler bottler)
+    /**
+     * Called by the codecs for every Object they write.
+     * @param object an Object to be sent
+     * @return the Bottle to send in its place, or the Object itself if no Bottler accepts it
+     */
+    public Object bottle(final Object object)
+    {
+        for (final Bottler<?> bottler : bottlerTable.candidates(object.getClass()))
+        {
+            if (bottler.accepts(object))
+            {
+                return bottler.bottle(object, xc);
+            }
+        }
+        return object;
+    }
+
+    public void addBottler(final Bottler<?> bottler)
     {
         bottlers.add(bottler);
     }
 
-    public List<Bottler> getBottlers()
+    /**
+     * Returns the live, synchronized list of Bottlers registered with this MessageXC.
+     * @return the registered Bottlers
+     */
+    public List<Bottler<?>> getBottlers()
     {
         return bottlers;
     }
+
+    /**
+     * @return an unmodifiable snapshot of the Bottlers registered with this MessageXC
+     */
+    public List<Bottler<?>> getBottlerSnapshot()
+    {
+        return bottlerTable.bottlerList;
+    }
+
+    static
+    {
+        registerCodec(new JavaCodec());
+        registerCodec(new CompactCodec());
+    }
 }
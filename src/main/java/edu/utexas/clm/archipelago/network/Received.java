@@ -0,0 +1,59 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
+
+/**
+ * Something for the Dispatcher: a received message, a frame from a channel, the remote side's
+ * switch to a new codec, or, with none of these, the end of the stream.
+ */
+class Received
+{
+    final ClusterMessage message;
+    // The size of the frame that carried the message
+    final int bytes;
+    final Frame frame;
+    final MessageCodec codec;
+
+    public Received(final ClusterMessage message, final int bytes)
+    {
+        this.message = message;
+        this.bytes = bytes;
+        frame = null;
+        codec = null;
+    }
+
+    public Received(final Frame frame)
+    {
+        message = null;
+        bytes = 0;
+        this.frame = frame;
+        codec = null;
+    }
+
+    public Received(final MessageCodec codec)
+    {
+        message = null;
+        bytes = 0;
+        frame = null;
+        this.codec = codec;
+    }
+}
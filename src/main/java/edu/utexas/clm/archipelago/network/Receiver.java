@@ -0,0 +1,472 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.exception.UndecodableMessageException;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.network.codec.FrameBuffer;
+import edu.utexas.clm.archipelago.network.codec.JavaCodec;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
+import edu.utexas.clm.archipelago.network.codec.MessageDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * Handles the frames that a MessageXC reads, in order. For a stream connection this runs on
+ * the RX thread, and for a channel on the Dispatcher.
+ */
+class Receiver
+{
+    private final MessageXC xc;
+    private MessageDecoder decoder;
+    private volatile String decoderName;
+    // The last codec chosen for the remote side's messages
+    private String chosenCodec;
+    private final byte[] rxHeader;
+    private byte[] rxBuffer;
+    private final CRC32 rxChecksum;
+    private int rxFlags, rxLength;
+    private MessageType rxType;
+    private long rxJobID;
+    private boolean awaitingReset, rxDispatched;
+    private final HashMap<Integer, Transfer> incoming;
+
+    public Receiver(final MessageXC xc)
+    {
+        this.xc = xc;
+        decoder = MessageXC.getCodec(JavaCodec.NAME).createDecoder(xc);
+        decoderName = chosenCodec = JavaCodec.NAME;
+        rxHeader = new byte[Frame.HEADER_SIZE];
+        rxBuffer = new byte[1024];
+        rxChecksum = new CRC32();
+        awaitingReset = false;
+        rxDispatched = false;
+        incoming = new HashMap<Integer, Transfer>();
+    }
+
+    public String getDecoderName()
+    {
+        return decoderName;
+    }
+
+    /**
+     * Reads the next frame from a stream into rxBuffer, and its header into the rx fields.
+     * @param in the stream to read
+     * @return true if the payload matches its checksum
+     * @throws IOException if the frame could not be read, in which case the stream is lost
+     */
+    public boolean readFrame(final InputStream in) throws IOException
+    {
+        final Frame frame;
+
+        readFully(in, rxHeader, Frame.HEADER_SIZE);
+
+        frame = Frame.readHeader(ByteBuffer.wrap(rxHeader), rxChecksum);
+        rxFlags = frame.flags;
+        rxType = frame.type;
+        rxJobID = frame.jobID;
+        rxLength = frame.length;
+
+        if (rxLength > rxBuffer.length || rxBuffer.length > FrameBuffer.RETAIN_LIMIT)
+        {
+            rxBuffer = new byte[Math.max(rxLength, 1024)];
+        }
+        readFully(in, rxBuffer, rxLength);
+
+        rxChecksum.reset();
+        rxChecksum.update(rxBuffer, 0, rxLength);
+        return (int)rxChecksum.getValue() == frame.checksum;
+    }
+
+    private static void readFully(final InputStream in, final byte[] b, final int length)
+            throws IOException
+    {
+        int n = 0;
+        while (n < length)
+        {
+            final int r = in.read(b, n, length - n);
+            if (r < 0)
+            {
+                throw new EOFException();
+            }
+            n += r;
+        }
+    }
+
+    /**
+     * Handles a frame read by a ChannelConnection, checking it first.
+     * @param frame the frame to handle
+     */
+    public void handleFrame(final Frame frame)
+    {
+        rxFlags = frame.flags;
+        rxType = frame.type;
+        rxJobID = frame.jobID;
+        rxLength = frame.length;
+        rxBuffer = frame.data;
+
+        rxChecksum.reset();
+        rxChecksum.update(rxBuffer, 0, rxLength);
+        handleFrame((int)rxChecksum.getValue() == frame.checksum);
+    }
+
+    /**
+     * Handles the frame in rxBuffer, whose header is in the rx fields.
+     * @param intact true if the payload matched its checksum
+     */
+    public void handleFrame(final boolean intact)
+    {
+        if (!intact)
+        {
+            reportUndecodable(new StreamCorruptedException("Frame checksum mismatch"));
+            if ((rxFlags & Frame.FLAG_CHUNK) != 0)
+            {
+                dropIncoming(rxType, rxJobID);
+            }
+            else
+            {
+                requestReset();
+            }
+        }
+        else if ((rxFlags & Frame.FLAG_CHUNK) != 0)
+        {
+            handleChunk();
+        }
+        else if ((rxFlags & Frame.FLAG_CONTROL) != 0)
+        {
+            try
+            {
+                final MessageCodec codec = handleControlFrame(rxType, rxBuffer, rxLength);
+                if (codec != null)
+                {
+                    switchDecoder(codec);
+                }
+            }
+            catch (StreamCorruptedException sce)
+            {
+                // We can't follow the rest of the stream.
+                FijiArchipelago.err(sce.getMessage());
+                xc.close();
+            }
+            catch (IOException ioe)
+            {
+                reportUndecodable(ioe);
+            }
+        }
+        else
+        {
+            if ((rxFlags & Frame.FLAG_RESET) != 0)
+            {
+                awaitingReset = false;
+            }
+
+            if (awaitingReset)
+            {
+                reportUndecodable(new StreamCorruptedException(
+                        "Skipped while waiting for the remote side to reset"));
+            }
+            else
+            {
+                decodeFrame();
+            }
+        }
+
+        // A frame that carried a message is credited once the message is delivered.
+        if ((rxFlags & Frame.FLAG_CONTROL) == 0 && !rxDispatched)
+        {
+            xc.returnCredit(Frame.HEADER_SIZE + rxLength);
+        }
+        rxDispatched = false;
+    }
+
+    private void decodeFrame()
+    {
+        final ClusterMessage message;
+
+        try
+        {
+            message = decoder.decode(rxBuffer, 0, rxLength, (rxFlags & Frame.FLAG_RESET) != 0);
+        }
+        catch (Throwable e)
+        {
+            reportUndecodable(e);
+            if (!decoder.isSynchronized())
+            {
+                requestReset();
+            }
+            return;
+        }
+
+        dispatch(message);
+    }
+
+    /**
+     * Adds a chunk to its large message, and decodes the message once it is complete. The
+     * first chunk names the codec that the message was encoded with on its own.
+     */
+    private void handleChunk()
+    {
+        final ByteBuffer header = ByteBuffer.wrap(rxBuffer, 0, rxLength);
+        final int transferID, total, offset;
+        final ClusterMessage message;
+        int start = Frame.CHUNK_HEADER_SIZE;
+        Transfer transfer;
+
+        if (rxLength < Frame.CHUNK_HEADER_SIZE)
+        {
+            reportUndecodable(new StreamCorruptedException("Short chunk"));
+            return;
+        }
+
+        transferID = header.getInt();
+        total = header.getInt();
+        offset = header.getInt();
+        transfer = incoming.get(transferID);
+
+        if (total < 0 || total > Transfer.MAX_SIZE)
+        {
+            if (transfer != null)
+            {
+                incoming.remove(transferID);
+            }
+            reportUndecodable(new StreamCorruptedException("Bad message size " + total));
+            return;
+        }
+
+        if (transfer == null)
+        {
+            final int nameLength;
+            final String name;
+            final MessageCodec codec;
+
+            if (offset != 0)
+            {
+                // The rest of a message that has already been reported as undecodable.
+                return;
+            }
+
+            nameLength = header.remaining() >= 2 ? header.getShort() & 0xffff : -1;
+            if (nameLength < 0 || nameLength > header.remaining())
+            {
+                reportUndecodable(rxType, rxJobID,
+                        new StreamCorruptedException("Short chunk"));
+                return;
+            }
+
+            name = new String(rxBuffer, start + 2, nameLength, StandardCharsets.UTF_8);
+            start += 2 + nameLength;
+            codec = MessageXC.getCodec(name);
+            if (codec == null)
+            {
+                reportUndecodable(rxType, rxJobID,
+                        new StreamCorruptedException("Unknown codec " + name));
+                return;
+            }
+
+            transfer = new Transfer(transferID, rxType, rxJobID, new byte[total], 0, total,
+                    codec);
+            incoming.put(transferID, transfer);
+        }
+
+        if (offset != transfer.done || total != transfer.length ||
+                rxLength - start > transfer.length - offset)
+        {
+            incoming.remove(transferID);
+            reportUndecodable(transfer.type, transfer.jobID,
+                    new StreamCorruptedException("Chunk out of sequence"));
+            return;
+        }
+
+        System.arraycopy(rxBuffer, start, transfer.data, offset, rxLength - start);
+        transfer.done += rxLength - start;
+        xc.fireTransferProgress(transfer, false);
+
+        if (transfer.done < transfer.length)
+        {
+            return;
+        }
+
+        incoming.remove(transferID);
+
+        try
+        {
+            message = transfer.codec.createDecoder(xc).decode(transfer.data, 0,
+                    transfer.length, true);
+        }
+        catch (Throwable e)
+        {
+            reportUndecodable(transfer.type, transfer.jobID, e);
+            return;
+        }
+
+        dispatch(message);
+    }
+
+    /**
+     * Drops any partly-received large messages that a corrupted chunk may have belonged to.
+     */
+    private void dropIncoming(final MessageType type, final long jobID)
+    {
+        final Iterator<Transfer> it = incoming.values().iterator();
+
+        while (it.hasNext())
+        {
+            final Transfer transfer = it.next();
+            if (transfer.type == type && transfer.jobID == jobID)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Hands a message to the Dispatcher, or delivers it right away if we're running on it.
+     */
+    private void dispatch(final ClusterMessage message)
+    {
+        if (xc.connection != null)
+        {
+            xc.dispatcher.deliver(message);
+            return;
+        }
+
+        try
+        {
+            rxDispatched = true;
+            xc.dispatcher.put(new Received(message, Frame.HEADER_SIZE + rxLength));
+        }
+        catch (InterruptedException ie)
+        {
+            xc.active.set(false);
+        }
+    }
+
+    /**
+     * Handles a frame written by MessageXC itself for flow control, codec negotiation or a
+     * reset. Apart from returning the remote side's choice of codec, this only touches the
+     * sending side, so a channel may call it on its selector loop.
+     * @param type the type of the frame
+     * @param data the payload
+     * @param length the length of the payload
+     * @return the codec that the remote side has switched to, or null
+     * @throws StreamCorruptedException if the remote side chose a codec that we don't have
+     * @throws IOException if the payload is malformed
+     */
+    public MessageCodec handleControlFrame(final MessageType type, final byte[] data,
+                                           final int length) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, 0, length));
+
+        if (type == MessageType.RESET)
+        {
+            xc.sender.requestReset();
+        }
+        else if (type == MessageType.CREDIT)
+        {
+            final long window = in.readLong();
+            xc.creditReceived(window, in.readLong());
+        }
+        else if (type == MessageType.CODEC && in.readBoolean())
+        {
+            // An offer, which we answer with our choice
+            final int n = in.readUnsignedShort();
+            for (int i = 0; i < n; ++i)
+            {
+                final String name = in.readUTF();
+                if (MessageXC.getCodec(name) != null)
+                {
+                    if (!name.equals(chosenCodec))
+                    {
+                        chosenCodec = name;
+                        xc.queueMessage(MessageType.CODEC, name);
+                    }
+                    break;
+                }
+            }
+        }
+        else if (type == MessageType.CODEC)
+        {
+            final String name = in.readUTF();
+            final MessageCodec codec = MessageXC.getCodec(name);
+
+            if (codec == null)
+            {
+                throw new StreamCorruptedException("Remote side " + xc.getHostname() +
+                        " chose unknown codec " + name);
+            }
+
+            return codec;
+        }
+        else
+        {
+            throw new IOException("Unknown control frame " + type);
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes everything from here on with the given codec.
+     * @param codec the codec that the remote side has switched to
+     */
+    public void switchDecoder(final MessageCodec codec)
+    {
+        decoder = codec.createDecoder(xc);
+        decoderName = codec.getName();
+        awaitingReset = false;
+        FijiArchipelago.debug("RX: " + xc.getId() + " switched to codec " + decoderName);
+    }
+
+    private void reportUndecodable(final Throwable cause)
+    {
+        reportUndecodable(rxType, rxJobID, cause);
+    }
+
+    public void reportUndecodable(final MessageType type, final long jobID,
+                                  final Throwable cause)
+    {
+        xc.xcExceptionListener.handleRXThrowable(
+                new UndecodableMessageException(type, jobID, cause), xc, null);
+    }
+
+    /**
+     * Asks the remote side to reset its encoder. Frames are skipped until the reset arrives.
+     */
+    private void requestReset()
+    {
+        if (!awaitingReset)
+        {
+            awaitingReset = true;
+            xc.queueMessage(MessageType.RESET);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One of a small pool of threads that service non-blocking SocketChannels for MessageXC, so
+ * that a connection doesn't need threads of its own. Channels are spread over the loops as
+ * they are registered. Each loop has one direct buffer for reading and one for writing, which
+ * its channels share, since they are only ever used on the loop's thread.
+ */
+class SelectorLoop extends Thread
+{
+    /**
+     * Handles the events on one channel. Every call is made on the loop's thread.
+     */
+    interface ChannelHandler
+    {
+        void registered(SelectionKey key);
+
+        /**
+         * Called when the channel has data to read.
+         * @param buffer an empty buffer to read into
+         * @throws IOException if the channel has failed, in which case it is cancelled and
+         * failed is called
+         */
+        void readable(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Called when the channel has room to write.
+         * @param buffer a buffer to write from. Anything left in it afterwards is lost.
+         * @throws IOException if the channel has failed, in which case it is cancelled and
+         * failed is called
+         */
+        void writable(ByteBuffer buffer) throws IOException;
+
+        void failed(Throwable t);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static SelectorLoop[] loops = null;
+    private static int nextLoop = 0;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ByteBuffer readBuffer, writeBuffer;
+
+    private SelectorLoop(final int n) throws IOException
+    {
+        super("MessageXC selector " + n);
+        setDaemon(true);
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * @return the loop that should take the next channel. The loops are started the first
+     * time that this is called.
+     * @throws IOException if the loops could not be started
+     */
+    public static synchronized SelectorLoop next() throws IOException
+    {
+        if (loops == null)
+        {
+            final SelectorLoop[] newLoops = new SelectorLoop[
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2)];
+
+            for (int i = 0; i < newLoops.length; ++i)
+            {
+                newLoops[i] = new SelectorLoop(i + 1);
+                newLoops[i].start();
+            }
+
+            loops = newLoops;
+        }
+
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loops[nextLoop];
+    }
+
+    /**
+     * Runs a task on this loop's thread.
+     * @param task the task to run
+     */
+    public void execute(final Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a channel with this loop for reading. The channel must be non-blocking.
+     * @param channel the channel to register
+     * @param handler the ChannelHandler for the channel's events
+     */
+    public void register(final SocketChannel channel, final ChannelHandler handler)
+    {
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    handler.registered(channel.register(selector, SelectionKey.OP_READ,
+                            handler));
+                }
+                catch (IOException ioe)
+                {
+                    handler.failed(ioe);
+                }
+            }
+        });
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            final Iterator<SelectionKey> it;
+            Runnable task;
+
+            try
+            {
+                selector.select();
+            }
+            catch (IOException ioe)
+            {
+                FijiArchipelago.err("Selector failed: " + ioe);
+                for (final SelectionKey key : selector.keys())
+                {
+                    ((ChannelHandler)key.attachment()).failed(ioe);
+                }
+                return;
+            }
+
+            while ((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException re)
+                {
+                    FijiArchipelago.err("Selector task threw " + re);
+                }
+            }
+
+            it = selector.selectedKeys().iterator();
+
+            while (it.hasNext())
+            {
+                final SelectionKey key = it.next();
+                final ChannelHandler handler = (ChannelHandler)key.attachment();
+
+                it.remove();
+
+                try
+                {
+                    if (key.isReadable())
+                    {
+                        readBuffer.clear();
+                        handler.readable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable())
+                    {
+                        handler.writable(writeBuffer);
+                    }
+                }
+                catch (CancelledKeyException cke)
+                {
+                    // The channel was closed while we were looking at it.
+                }
+                catch (Throwable t)
+                {
+                    key.cancel();
+                    handler.failed(t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.exception.UndecodableMessageException;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.network.codec.FrameBuffer;
+import edu.utexas.clm.archipelago.network.codec.JavaCodec;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
+import edu.utexas.clm.archipelago.network.codec.MessageEncoder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes a MessageXC's queued messages into batches and sends them. For a stream this runs on
+ * the TX thread, and for a channel in turns on the shared send pool.
+ */
+class Sender implements Runnable
+{
+    // Batches written per turn, before letting other MessageXCs have the thread
+    private static final int TURN = 16;
+    // Messages that MessageXC writes itself, without the codec
+    private static final EnumSet<MessageType> CONTROL_FRAME_TYPES = EnumSet.of(
+            MessageType.CODEC, MessageType.RESET, MessageType.CREDIT);
+
+    private static final ExecutorService sendPool = MessageXC.newPool("MessageXC send ");
+
+    private final MessageXC xc;
+    private final OutputStream outStream;
+    private final AtomicBoolean scheduled;
+    private MessageEncoder encoder;
+    private volatile String encoderName;
+    private final FrameBuffer txBuffer;
+    private final CRC32 txChecksum;
+    private boolean resetNext;
+    private final AtomicBoolean resetRequested;
+    private int messagesSinceReset;
+    private long bytesSinceReset;
+    private final ArrayList<Transfer> transfers;
+    private int nextTransferID;
+    private final AtomicInteger resetMessages, batchMessages, chunkSize;
+    private final AtomicLong resetBytes, batchBytes, linger, batchesSent;
+
+    /**
+     * @param xc the MessageXC whose messages to send
+     * @param outStream the stream to write, or null to send on xc's ChannelConnection
+     */
+    public Sender(final MessageXC xc, final OutputStream outStream)
+    {
+        this.xc = xc;
+        this.outStream = outStream;
+        scheduled = new AtomicBoolean(false);
+        // Every connection starts with Java serialization, until something else is negotiated
+        encoder = MessageXC.getCodec(JavaCodec.NAME).createEncoder(xc);
+        encoderName = JavaCodec.NAME;
+        txBuffer = new FrameBuffer(1024);
+        txChecksum = new CRC32();
+        resetNext = true;
+        resetRequested = new AtomicBoolean(false);
+        messagesSinceReset = 0;
+        bytesSinceReset = 0;
+        transfers = new ArrayList<Transfer>();
+        nextTransferID = 0;
+        resetMessages = new AtomicInteger(MessageXC.DEFAULT_RESET_MESSAGES);
+        resetBytes = new AtomicLong(MessageXC.DEFAULT_RESET_BYTES);
+        batchMessages = new AtomicInteger(MessageXC.DEFAULT_BATCH_MESSAGES);
+        batchBytes = new AtomicLong(MessageXC.DEFAULT_BATCH_BYTES);
+        linger = new AtomicLong(0);
+        chunkSize = new AtomicInteger(MessageXC.DEFAULT_CHUNK_SIZE);
+        batchesSent = new AtomicLong(0);
+    }
+
+    public String getEncoderName()
+    {
+        return encoderName;
+    }
+
+    public void setResetInterval(final int messages, final long bytes)
+    {
+        resetMessages.set(messages);
+        resetBytes.set(bytes);
+    }
+
+    public void setBatchLimits(final int messages, final long bytes, final long lingerNanos)
+    {
+        batchMessages.set(messages);
+        batchBytes.set(bytes);
+        linger.set(lingerNanos);
+    }
+
+    public void setChunkSize(final int bytes)
+    {
+        chunkSize.set(bytes);
+    }
+
+    public long getBatchesSent()
+    {
+        return batchesSent.get();
+    }
+
+    /**
+     * Makes the next data frame a reset frame, at the remote side's request.
+     */
+    public void requestReset()
+    {
+        resetRequested.set(true);
+    }
+
+    /**
+     * @return true if there are chunks of large messages left to send
+     */
+    public boolean hasTransfers()
+    {
+        return !transfers.isEmpty();
+    }
+
+    /**
+     * Makes sure that a turn is coming, if one isn't already. Only used for channels.
+     */
+    public void schedule()
+    {
+        if (scheduled.compareAndSet(false, true))
+        {
+            sendPool.execute(this);
+        }
+    }
+
+    public void run()
+    {
+        try
+        {
+            int n = 0;
+
+            while (xc.active.get() && n++ < TURN && xc.connection.canSend())
+            {
+                final ClusterMessage nextMessage = xc.pollMessage();
+
+                if (nextMessage == null && (transfers.isEmpty() || !xc.hasCredit()))
+                {
+                    break;
+                }
+
+                writeBatch(nextMessage);
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            xc.active.set(false);
+        }
+        finally
+        {
+            scheduled.set(false);
+            if (xc.hasSendable())
+            {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Writes the given message and whatever else is waiting into txBuffer, along with one
+     * chunk of each large message in progress, then sends the whole batch at once.
+     * @param first the first message in the batch, or null if there are only chunks to write
+     */
+    public void writeBatch(final ClusterMessage first)
+    {
+        final int maxMessages = batchMessages.get();
+        final long maxBytes = batchBytes.get();
+        // A send turn can't wait around on a shared thread
+        final long lingerNanos = xc.connection == null ? linger.get() : 0;
+        final long deadline = System.nanoTime() + lingerNanos;
+        ClusterMessage nextMessage = first;
+        int nMessages = 0;
+
+        txBuffer.reset();
+
+        while (nextMessage != null)
+        {
+            writeMessage(nextMessage);
+            ++nMessages;
+
+            if ((maxMessages > 0 && nMessages >= maxMessages) ||
+                    (maxBytes > 0 && txBuffer.size() >= maxBytes))
+            {
+                break;
+            }
+
+            try
+            {
+                nextMessage = xc.pollMessage();
+
+                if (nextMessage == null && lingerNanos > 0)
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining > 0)
+                    {
+                        nextMessage = xc.pollMessage(remaining, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                xc.active.set(false);
+                nextMessage = null;
+            }
+        }
+
+        writeChunks();
+
+        if (txBuffer.size() > 0 && xc.active.get())
+        {
+            try
+            {
+                if (xc.connection == null)
+                {
+                    outStream.write(txBuffer.array(), 0, txBuffer.size());
+                    outStream.flush();
+                }
+                else
+                {
+                    // Hand the batch over as it is, and carry on in another array
+                    final int size = txBuffer.size();
+                    xc.connection.send(ByteBuffer.wrap(
+                            txBuffer.swap(xc.connection.spareArray()), 0, size));
+                }
+                batchesSent.incrementAndGet();
+            }
+            catch (Throwable e)
+            {
+                // The stream itself has failed, along with everything in this batch.
+                resetNext = true;
+                transfers.clear();
+                xc.xcExceptionListener.handleTXThrowable(e, xc, null);
+            }
+        }
+
+        txBuffer.trim();
+    }
+
+    /**
+     * Appends a message to the current batch. A message that can't be encoded is dropped and
+     * reported, and the rest of the batch goes out as usual.
+     * @param message the message to write
+     */
+    private void writeMessage(final ClusterMessage message)
+    {
+        final int frameStart = txBuffer.size();
+
+        try
+        {
+            if (message.type != MessageType.BEAT)
+            {
+                FijiArchipelago.debug("TX: " + xc.getId() + " writing message " +
+                        ClusterMessage.messageToString(message));
+            }
+
+            writeFrame(message);
+
+            if (message.type == MessageType.CODEC && message.o instanceof String)
+            {
+                // Everything after our choice of codec is written with it
+                startEncoder(MessageXC.getCodec((String)message.o));
+            }
+            else if (!CONTROL_FRAME_TYPES.contains(message.type))
+            {
+                xc.dataSent(txBuffer.size() - frameStart);
+                maybeReset(txBuffer.size() - frameStart);
+            }
+        }
+        catch (Throwable e)
+        {
+            // The encoder may remember things that the remote side never saw.
+            txBuffer.truncate(frameStart);
+            resetNext = true;
+            xc.xcExceptionListener.handleTXThrowable(new UndecodableMessageException(
+                    message.type, MessageXC.jobIDOf(message), e, true), xc, message);
+        }
+    }
+
+    /**
+     * Appends a message to txBuffer as a single frame, or starts a transfer if it is too large.
+     * @param message the message to write
+     * @throws IOException if the message could not be encoded
+     */
+    private void writeFrame(final ClusterMessage message) throws IOException
+    {
+        final boolean control = CONTROL_FRAME_TYPES.contains(message.type);
+        final boolean reset = !control && (resetNext || resetRequested.getAndSet(false));
+        final int frameStart = txBuffer.size();
+        final int payloadStart = frameStart + Frame.HEADER_SIZE;
+        final int limit = chunkSize.get();
+        final long jobID = MessageXC.jobIDOf(message);
+
+        txBuffer.ensure(Frame.HEADER_SIZE);
+        txBuffer.advance(Frame.HEADER_SIZE);
+
+        if (control)
+        {
+            writeControlPayload(message);
+        }
+        else
+        {
+            encoder.encode(message, reset, txBuffer);
+
+            if ((limit > 0 && txBuffer.size() - payloadStart > limit) ||
+                    txBuffer.size() - payloadStart > Frame.MAX_SIZE)
+            {
+                startTransfer(message, jobID, reset, frameStart);
+                return;
+            }
+        }
+
+        finishFrame(frameStart,
+                (control ? Frame.FLAG_CONTROL : 0) | (reset ? Frame.FLAG_RESET : 0),
+                message.type, jobID);
+
+        if (!control)
+        {
+            resetNext = false;
+        }
+    }
+
+    /**
+     * Fills in the header of the frame that starts at frameStart.
+     */
+    private void finishFrame(final int frameStart, final int flags, final MessageType type,
+                             final long jobID)
+    {
+        final int payloadStart = frameStart + Frame.HEADER_SIZE;
+        final int length = txBuffer.size() - payloadStart;
+
+        txChecksum.reset();
+        txChecksum.update(txBuffer.array(), payloadStart, length);
+
+        ByteBuffer.wrap(txBuffer.array(), frameStart, Frame.HEADER_SIZE)
+                .putInt(Frame.MAGIC)
+                .put((byte)flags)
+                .put((byte)type.ordinal())
+                .putLong(jobID)
+                .putInt(length)
+                .putInt((int)txChecksum.getValue());
+
+        txChecksum.reset();
+        txChecksum.update(txBuffer.array(), frameStart, Frame.HEADER_SIZE - 4);
+        ByteBuffer.wrap(txBuffer.array(), frameStart + Frame.HEADER_SIZE - 4, 4)
+                .putInt((int)txChecksum.getValue());
+    }
+
+    /**
+     * Takes a message that is too large for one frame out of txBuffer, to be sent in chunks.
+     * It must be encoded on its own, so that it can be decoded whenever its last chunk arrives.
+     */
+    private void startTransfer(final ClusterMessage message, final long jobID,
+                               final boolean reset, final int frameStart)
+            throws IOException
+    {
+        final int payloadStart = frameStart + Frame.HEADER_SIZE;
+        final int length;
+
+        if (!reset)
+        {
+            txBuffer.truncate(payloadStart);
+            encoder.encode(message, true, txBuffer);
+        }
+
+        length = txBuffer.size() - payloadStart;
+        transfers.add(new Transfer(nextTransferID++, message.type, jobID,
+                txBuffer.split(frameStart), payloadStart, length,
+                MessageXC.getCodec(encoderName)));
+        resetNext = true;
+    }
+
+    /**
+     * Appends one chunk of each large message in progress to txBuffer.
+     */
+    private void writeChunks()
+    {
+        final int size = chunkSize.get() > 0 ? chunkSize.get() : MessageXC.DEFAULT_CHUNK_SIZE;
+        final int limit = Math.min(Frame.MAX_SIZE, Frame.CHUNK_HEADER_SIZE + size);
+        final Iterator<Transfer> it = transfers.iterator();
+
+        while (it.hasNext() && xc.hasCredit())
+        {
+            final Transfer transfer = it.next();
+            final int frameStart = txBuffer.size();
+            final int header, n;
+
+            txBuffer.ensure(Frame.HEADER_SIZE + Frame.CHUNK_HEADER_SIZE);
+            txBuffer.advance(Frame.HEADER_SIZE);
+            ByteBuffer.wrap(txBuffer.array(), txBuffer.size(), Frame.CHUNK_HEADER_SIZE)
+                    .putInt(transfer.id)
+                    .putInt(transfer.length)
+                    .putInt(transfer.done);
+            txBuffer.advance(Frame.CHUNK_HEADER_SIZE);
+            if (transfer.done == 0)
+            {
+                final byte[] name = transfer.codec.getName().getBytes(StandardCharsets.UTF_8);
+                txBuffer.ensure(2 + name.length);
+                ByteBuffer.wrap(txBuffer.array(), txBuffer.size(), 2)
+                        .putShort((short)name.length);
+                txBuffer.advance(2);
+                txBuffer.write(name, 0, name.length);
+            }
+            header = txBuffer.size() - frameStart - Frame.HEADER_SIZE;
+            n = Math.min(Math.max(1, limit - header), transfer.length - transfer.done);
+            txBuffer.ensure(n);
+            txBuffer.write(transfer.data, transfer.offset + transfer.done, n);
+            finishFrame(frameStart, Frame.FLAG_CHUNK, transfer.type, transfer.jobID);
+            xc.dataSent(txBuffer.size() - frameStart);
+
+            transfer.done += n;
+            xc.fireTransferProgress(transfer, true);
+
+            if (transfer.done >= transfer.length)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private void writeControlPayload(final ClusterMessage message) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(txBuffer);
+
+        if (message.type == MessageType.CREDIT)
+        {
+            final long[] credit = (long[])message.o;
+            out.writeLong(credit[0]);
+            out.writeLong(credit[1]);
+        }
+        else if (message.type == MessageType.CODEC)
+        {
+            if (message.o instanceof String[])
+            {
+                final String[] offer = (String[])message.o;
+                out.writeBoolean(true);
+                out.writeShort(offer.length);
+                for (final String name : offer)
+                {
+                    out.writeUTF(name);
+                }
+            }
+            else
+            {
+                out.writeBoolean(false);
+                out.writeUTF((String)message.o);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Makes the next frame a reset frame once enough has been written since the last one.
+     * @param frameBytes the size of the frame that was just written
+     */
+    private void maybeReset(final int frameBytes)
+    {
+        final int nMessages = resetMessages.get();
+        final long nBytes = resetBytes.get();
+
+        bytesSinceReset += frameBytes;
+
+        if ((nMessages > 0 && ++messagesSinceReset >= nMessages) ||
+                (nBytes > 0 && bytesSinceReset >= nBytes))
+        {
+            resetNext = true;
+            messagesSinceReset = 0;
+            bytesSinceReset = 0;
+        }
+    }
+
+    private void startEncoder(final MessageCodec codec)
+    {
+        encoder = codec.createEncoder(xc);
+        encoderName = codec.getName();
+        resetNext = true;
+        messagesSinceReset = 0;
+        bytesSinceReset = 0;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.network.codec.MessageCodec;
+
+/**
+ * A large message on its way through in chunks.
+ */
+class Transfer
+{
+    // The largest message that we'll put back together from chunks
+    static final int MAX_SIZE =
+            (int)Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 2);
+
+    final int id;
+    final MessageType type;
+    final long jobID;
+    final byte[] data;
+    final int offset, length;
+    // The codec the message was encoded with
+    final MessageCodec codec;
+    int done;
+
+    public Transfer(final int id, final MessageType type, final long jobID,
+                    final byte[] data, final int offset, final int length,
+                    final MessageCodec codec)
+    {
+        this.id = id;
+        this.type = type;
+        this.jobID = jobID;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.codec = codec;
+        done = 0;
+    }
+}
@@ -19,10 +19,13 @@
 package edu.utexas.clm.archipelago.network.client;
 
 import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.compute.JobContext;
 import edu.utexas.clm.archipelago.compute.ProcessManager;
 import edu.utexas.clm.archipelago.data.ClusterMessage;
 import edu.utexas.clm.archipelago.data.Duplex;
 import edu.utexas.clm.archipelago.data.HeartBeat;
+import edu.utexas.clm.archipelago.data.Hello;
+import edu.utexas.clm.archipelago.data.Welcome;
 import edu.utexas.clm.archipelago.listen.MessageType;
 import edu.utexas.clm.archipelago.listen.TransceiverExceptionListener;
 import edu.utexas.clm.archipelago.listen.TransceiverListener;
@@ -36,17 +39,39 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
  *
  * @author Larry Lindsey
  */
 public class ArchipelagoClient implements TransceiverListener
 {
+    // How long an idle worker thread is kept for another process, in seconds
+    private static final long WORKER_KEEP_ALIVE_S = 60;
+    // Looked up once, since building the list is slower than reading it
+    private static final List<MemoryPoolMXBean> MEMORY_POOLS =
+            ManagementFactory.getMemoryPoolMXBeans();
+
     private static ArrayList<ArchipelagoClient> clients = new ArrayList<ArchipelagoClient>();
 
 
@@ -55,6 +80,15 @@ public class ArchipelagoClient implements TransceiverListener
         return new ArrayList<ArchipelagoClient>(clients);
     }
 
+    /**
+     * @return the context of the job running on the calling thread: the cores and memory it was
+     * given on this node, and an ExecutorService sized to its cores. See JobContext.
+     */
+    public static JobContext getJobContext()
+    {
+        return JobContext.current();
+    }
+
     public static ArchipelagoClient getFirstClient()
     {
         if (clients.isEmpty())
@@ -84,11 +118,21 @@ public class ArchipelagoClient implements TransceiverListener
             {
                 try
                 {
+                    final int queued, busy;
+
                     Thread.sleep(interval);
+
+                    synchronized (stagedProcesses)
+                    {
+                        queued = stagedProcesses.size();
+                        busy = threadLimit - freeCores;
+                    }
+
                     HeartBeat beat = new HeartBeat(runtime.freeMemory(),
-                            runtime.totalMemory(), runtime.maxMemory());
+                            runtime.totalMemory(), runtime.maxMemory(), queued, busy);
 
                     xc.queueMessage(MessageType.BEAT, beat);
+                    sampleRam();
                 }
                 catch (InterruptedException ie)
                 {
@@ -98,21 +142,61 @@ public class ArchipelagoClient implements TransceiverListener
         }
     }
     
-    private class ProcessThread extends Thread
+    /**
+     * Runs one process on a worker thread, and sends back the result.
+     */
+    private class ProcessTask implements Runnable
     {
-        private final ProcessManager process;
+        private final ProcessManager<?> process;
         private final AtomicBoolean running;
-        
-        public ProcessThread(ProcessManager pm)
+        // The worker thread running this process, while it runs. Guarded by this.
+        private Thread worker;
+        private final int cores;
+        private final JobContext context;
+        // Live heap when the process started, and the most it has grown since, in MB
+        private final int baseRamMB;
+        private final AtomicInteger peakRamMB;
+
+        /**
+         * @param pm the process to run
+         * @param cores the number of cores counted against our thread limit for this process
+         * @param context what the process has been given to run with
+         */
+        public ProcessTask(ProcessManager<?> pm, int cores, JobContext context)
         {
             process = pm;
             running = new AtomicBoolean(true);
+            this.cores = cores;
+            this.context = context;
+            baseRamMB = usedRamMB();
+            peakRamMB = new AtomicInteger(0);
+            worker = null;
+        }
+
+        /**
+         * Notes how much the heap has grown since this process started. The growth is shared
+         * evenly between the processes that are running, since we can't tell whose it is.
+         * @param usedMB the heap in use now, in MB
+         * @param nRunning the number of processes running now
+         */
+        public void sampleRam(final int usedMB, final int nRunning)
+        {
+            final int share = (usedMB - baseRamMB) / (nRunning > 0 ? nRunning : 1);
+            int peak = peakRamMB.get();
+
+            while (share > peak && !peakRamMB.compareAndSet(peak, share))
+            {
+                peak = peakRamMB.get();
+            }
         }
         
-        public void cancel()
+        public synchronized void cancel()
         {
             running.set(false);
-            this.interrupt();
+            if (worker != null)
+            {
+                worker.interrupt();
+            }
         }
         
         public long getID()
@@ -123,11 +207,40 @@ public class ArchipelagoClient implements TransceiverListener
         public void run()
         {
             final long s = System.currentTimeMillis();
-            FijiArchipelago.debug("Client: Running process " + process.getID());
-            process.run();
+            final boolean start;
+
+            synchronized (this)
+            {
+                // We may have been cancelled while waiting for a worker
+                start = running.get();
+                worker = start ? Thread.currentThread() : null;
+            }
+
+            if (start)
+            {
+                FijiArchipelago.debug("Client: Running process " + process.getID());
+
+                try
+                {
+                    process.run(context);
+                }
+                finally
+                {
+                    synchronized (this)
+                    {
+                        worker = null;
+                        // Don't leave a cancel's interrupt behind for the worker's next process
+                        Thread.interrupted();
+                    }
+                }
+            }
+
+            sampleRam(usedRamMB(), runningTasks.size());
+            process.setPeakRamMB(peakRamMB.get());
             FijiArchipelago.debug("Client: Process " + process.getID() + " has finished. Took " +
                     (System.currentTimeMillis() - s) + "ms");
-            runningThreads.remove(this);
+            runningTasks.remove(this);
+            processDone(cores);
             if (running.get() && active.get())
             {
                 xc.queueMessage(MessageType.PROCESS, process);
@@ -137,11 +250,23 @@ public class ArchipelagoClient implements TransceiverListener
 
 
     private final MessageXC xc;
+    // Opened once the constructor is done. Our MessageXC starts handing us messages as soon as
+    // it is made, before xc and the fields after it are set.
+    private final CountDownLatch constructed;
     private long clientId = 0;
     private final AtomicBoolean active;
-    private final Vector<ProcessThread> runningThreads;
+    private final Vector<ProcessTask> runningTasks;
     private final HeartBeatThread beatThread;
     private final TransceiverExceptionListener xcEListener;
+    // Jobs that we've been sent but haven't started, because we don't have the cores free yet.
+    // We start them in order. Guarded by itself, as are threadLimit and freeCores.
+    private final LinkedList<ProcessManager<?>> stagedProcesses;
+    // The number of cores we may use at once. This is the number of processors we reported,
+    // until the root tells us its thread limit for us.
+    private int threadLimit;
+    private int freeCores;
+    // Runs the processes that we start
+    private final ExecutorService workers;
 
     public ArchipelagoClient(final long id, final InputStream inStream,
                              final OutputStream outStream) throws IOException
@@ -199,6 +324,7 @@ public class ArchipelagoClient implements TransceiverListener
                              TransceiverExceptionListener tel) throws IOException
     {
         FijiArchipelago.log("Starting Archipelago Client...");
+        constructed = new CountDownLatch(1);
         try
         {
             xcEListener = tel;
@@ -208,7 +334,11 @@ public class ArchipelagoClient implements TransceiverListener
             xc.setId(id);
             beatThread = new HeartBeatThread(1000, Runtime.getRuntime());
 
-            runningThreads = new Vector<ProcessThread>();
+            runningTasks = new Vector<ProcessTask>();
+            stagedProcesses = new LinkedList<ProcessManager<?>>();
+            threadLimit = Runtime.getRuntime().availableProcessors();
+            freeCores = threadLimit;
+            workers = createWorkers();
             
             active = new AtomicBoolean(true);
         }
@@ -232,15 +362,38 @@ public class ArchipelagoClient implements TransceiverListener
         }
 
         clients.add(this);
+        constructed.countDown();
 
         FijiArchipelago.log("Archipelago Client is Active");
     }
     
+    /**
+     * @return true once our constructor has finished, or false if we were interrupted first
+     */
+    private boolean awaitConstructed()
+    {
+        try
+        {
+            constructed.await();
+            return true;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     public void handleMessage(final ClusterMessage cm) {
 
         final MessageType type = cm.type;
         final Object object = cm.o;
 
+        if (!awaitConstructed())
+        {
+            return;
+        }
+
         FijiArchipelago.log("Got message " + ClusterMessage.messageToString(cm));
         
         try
@@ -249,9 +402,26 @@ public class ArchipelagoClient implements TransceiverListener
             {
                 case PROCESS:
                     final ProcessManager<?> pm = (ProcessManager<?>)object;
-                    final ProcessThread pt = new ProcessThread(pm);
-                    runningThreads.add(pt);
-                    pt.start();
+
+                    synchronized (stagedProcesses)
+                    {
+                        stagedProcesses.add(pm);
+                        startStaged();
+                    }
+                    break;
+
+                case PREFETCH:
+                    final int[] prefetch = (int[])object;
+
+                    setThreadLimit(prefetch[0], prefetch[1]);
+                    xc.queueMessage(MessageType.PREFETCH, prefetch);
+                    break;
+
+                case RECLAIM:
+                    final long reclaimID = (Long)object;
+
+                    xc.queueMessage(MessageType.RECLAIM,
+                            new Duplex<Long, Boolean>(reclaimID, removeStaged(reclaimID)));
                     break;
 
                 case HALT:
@@ -262,19 +432,35 @@ public class ArchipelagoClient implements TransceiverListener
                     xc.queueMessage(MessageType.PING);
                     break;
 
-                case USER:
-                    cm.o = System.getProperty("user.name");
-                    xc.queueMessage(cm);
+                case GETID:
+                    xc.queueMessage(MessageType.HELLO, createHello());
                     break;
 
-                case SETID:
-                    clientId = (Long)object;
+                case WELCOME:
+                    final Welcome welcome = (Welcome)object;
+
+                    clientId = welcome.id;
                     xc.setId(clientId);
-                    xc.queueMessage(MessageType.SETID);
-                    break;
 
-                case GETID:
-                    xc.queueMessage(MessageType.GETID, clientId);
+                    if (!welcome.execRoot.equals(""))
+                    {
+                        FijiArchipelago.setExecRoot(welcome.execRoot);
+                    }
+
+                    xc.setFileSystemTranslator(new PathSubstitutingFileTranslator(
+                            welcome.fsTranslation.a, welcome.fsTranslation.b));
+
+                    for (final Bottler<?> bottler : welcome.bottlers)
+                    {
+                        xc.addBottler(bottler);
+                    }
+
+                    setThreadLimit(welcome.threadLimit, welcome.prefetchDepth);
+
+                    if (!beatThread.isAlive())
+                    {
+                        beatThread.start();
+                    }
                     break;
 
 /*
@@ -286,58 +472,31 @@ public class ArchipelagoClient implements TransceiverListener
                     xc.addBottler((Bottler)object);
                     break;
 
-                case SETEXECROOT:
-                    FijiArchipelago.setExecRoot((String) object);
-                    xc.queueMessage(MessageType.SETEXECROOT);
-                    break;
-
-
-                case GETFSTRANSLATION:
-                    xc.queueMessage(MessageType.GETFSTRANSLATION, FijiArchipelago.getFileRoot());
-                    break;
-
-
-                case GETEXECROOT:
-                    xc.queueMessage(MessageType.GETEXECROOT, FijiArchipelago.getExecRoot());
-                    break;
-
                 case CANCELJOB:
                     long id = (Long)object;
 
-                    for (ProcessThread processThread : runningThreads)
+                    if (removeStaged(id))
                     {
-                        if (processThread.getID() == id)
+                        return;
+                    }
+
+                    for (ProcessTask processTask : runningTasks)
+                    {
+                        if (processTask.getID() == id)
                         {
-                            processThread.cancel();
-                            runningThreads.remove(processThread);
+                            processTask.cancel();
+                            runningTasks.remove(processTask);
                             return;
                         }
                     }
                     break;
                 
-                case HOSTNAME:
-                    xc.queueMessage(MessageType.HOSTNAME,
-                            clientHost);
-                    break;
-                
-                case NUMTHREADS:
-                    xc.queueMessage(MessageType.NUMTHREADS,
-                            Runtime.getRuntime().availableProcessors());
-                    break;
-
                 case BEAT:
                     if (!beatThread.isAlive())
                     {
                         beatThread.start();
                     }
                     break;
-
-                case SETFSTRANSLATION:
-                    final Duplex<String, String> translation = (Duplex<String, String>)object;
-                    xc.setFileSystemTranslator(
-                            new PathSubstitutingFileTranslator(translation.a, translation.b));
-                    xc.queueMessage(MessageType.SETFSTRANSLATION);
-                    break;
             }
         }
         catch (ClassCastException cce)
@@ -346,6 +505,213 @@ public class ArchipelagoClient implements TransceiverListener
         }
     }
 
+    /**
+     * @return everything the root needs to know about us, to answer a GETID with
+     */
+    private Hello createHello()
+    {
+        final MessageType[] types = MessageType.values();
+        final String[] capabilities = new String[types.length];
+
+        for (int i = 0; i < types.length; ++i)
+        {
+            capabilities[i] = types[i].name();
+        }
+
+        return new Hello(clientId, System.getProperty("user.name"), clientHost,
+                FijiArchipelago.getExecRoot(), FijiArchipelago.getFileRoot(),
+                Runtime.getRuntime().availableProcessors(),
+                (int)(Runtime.getRuntime().maxMemory() / HeartBeat.MB), capabilities);
+    }
+
+    /**
+     * Sets the number of cores we may use at once, as given by the root, and starts any staged
+     * processes that now fit.
+     * @param limit the thread limit, or 0 to keep ours
+     * @param depth the number of jobs the root may queue here ahead of our thread limit
+     */
+    private void setThreadLimit(final int limit, final int depth)
+    {
+        synchronized (stagedProcesses)
+        {
+            if (limit > 0)
+            {
+                freeCores += limit - threadLimit;
+                threadLimit = limit;
+            }
+            startStaged();
+        }
+
+        FijiArchipelago.log("Queueing up to " + depth + " jobs ahead on " + limit + " threads");
+    }
+
+    /**
+     * Runs the given process on a worker thread. Call while synchronized on stagedProcesses.
+     * @param pm the process to run
+     * @param cores the number of cores to count against our thread limit for it
+     */
+    private void startProcess(final ProcessManager<?> pm, final int cores)
+    {
+        final ProcessTask pt = new ProcessTask(pm, cores, pm.createContext(threadLimit));
+        runningTasks.add(pt);
+
+        try
+        {
+            workers.execute(pt);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            // We're closing
+            runningTasks.remove(pt);
+            freeCores += cores;
+        }
+    }
+
+    /**
+     * @return an ExecutorService that runs each process on a virtual thread, if this JVM has
+     * them, or otherwise on a pool of daemon threads that are kept for a while between
+     * processes. Either way, it doesn't limit how many processes run at once. We do that.
+     */
+    private static ExecutorService createWorkers()
+    {
+        final AtomicInteger count = new AtomicInteger(0);
+
+        try
+        {
+            // Java 21 and later
+            return (ExecutorService)Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e)
+        {
+            FijiArchipelago.debug("Client: No virtual threads, using a thread pool");
+        }
+
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_S,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable,
+                        "Archipelago worker " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts staged processes in order, for as long as the next one fits in our free cores. A
+     * process that needs more than our whole thread limit is started when nothing else is
+     * running. The root keeps track of the same rule to know which of our jobs have started.
+     * Call while synchronized on stagedProcesses.
+     */
+    private void startStaged()
+    {
+        ProcessManager<?> next;
+
+        while ((next = stagedProcesses.peek()) != null &&
+                (freeCores >= threadLimit || next.requestedCores(threadLimit) <= freeCores))
+        {
+            final int cores = next.requestedCores(threadLimit);
+
+            stagedProcesses.poll();
+            freeCores -= cores;
+            startProcess(next, cores);
+        }
+    }
+
+    /**
+     * @return the heap that was still in use after the last garbage collection, in MB, so that
+     * garbage isn't counted. A heap pool that hasn't been collected yet counts as it is now. If
+     * the JVM doesn't report its pools at all, this is the heap in use right now.
+     */
+    private static int usedRamMB()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = 0;
+        boolean reported = false;
+
+        for (final MemoryPoolMXBean pool : MEMORY_POOLS)
+        {
+            final MemoryUsage afterGC;
+
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid())
+            {
+                continue;
+            }
+
+            afterGC = pool.getCollectionUsage();
+
+            if (afterGC != null && afterGC.getCommitted() > 0)
+            {
+                used += afterGC.getUsed();
+            }
+            else
+            {
+                used += pool.getUsage().getUsed();
+            }
+            reported = true;
+        }
+
+        if (!reported)
+        {
+            used = runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        return (int)(used / HeartBeat.MB);
+    }
+
+    /**
+     * Gives each running process its share of the heap growth since it started, so that the
+     * root node can learn how much memory jobs like it need.
+     */
+    private void sampleRam()
+    {
+        final int used = usedRamMB();
+
+        synchronized (runningTasks)
+        {
+            for (final ProcessTask task : runningTasks)
+            {
+                task.sampleRam(used, runningTasks.size());
+            }
+        }
+    }
+
+    private void processDone(final int cores)
+    {
+        synchronized (stagedProcesses)
+        {
+            freeCores += cores;
+            startStaged();
+        }
+    }
+
+    /**
+     * Removes a process that hasn't started yet from the staged queue.
+     * @param id the id of the process
+     * @return true if the process was staged, false if it has started or we never had it
+     */
+    private boolean removeStaged(final long id)
+    {
+        synchronized (stagedProcesses)
+        {
+            final Iterator<ProcessManager<?>> it = stagedProcesses.iterator();
+
+            while (it.hasNext())
+            {
+                if (it.next().getID() == id)
+                {
+                    it.remove();
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     public void log(String string)
     {
         xc.queueMessage(MessageType.LOG, string);
@@ -361,30 +727,45 @@ public class ArchipelagoClient implements TransceiverListener
         return active.get();
     }
     
-    public synchronized void close()
+    public void close()
     {
-        if (active.get())
+        synchronized (this)
         {
+            if (!active.get())
+            {
+                return;
+            }
+
             Thread.dumpStack();
             FijiArchipelago.log("Closing Client");
             active.set(false);
-            
-            for (ProcessThread t : runningThreads)
+
+            synchronized (stagedProcesses)
+            {
+                stagedProcesses.clear();
+            }
+
+            for (ProcessTask t : runningTasks)
             {
                 t.cancel();
             }
 
+            workers.shutdown();
             beatThread.interrupt();
-
-            xc.close();
         }
-        
+
+        // A HALT is handled on a dispatch thread, which holds the MessageXC's listener lock
+        // while it waits for this Client, so close the MessageXC without holding this one.
+        xc.close();
     }
 
     public synchronized void streamClosed()
     {
         FijiArchipelago.log("Lost socket connection");
-        close();
+        if (awaitConstructed())
+        {
+            close();
+        }
     }
     
     public static String clientHost = "";
@@ -0,0 +1,82 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.translation.Bottle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+
+/**
+ * An ObjectInputStream that opens any Bottles that it reads.
+ */
+public class BottlingInputStream extends ObjectInputStream
+{
+    private final MessageXC xc;
+    private final ArrayList<ObjectStreamClass> descriptors;
+
+    public BottlingInputStream(final InputStream is, final MessageXC xc) throws IOException
+    {
+        super(is);
+        this.xc = xc;
+        descriptors = new ArrayList<ObjectStreamClass>();
+        enableResolveObject(true);
+    }
+
+    /**
+     * Reads a class descriptor as written by BottlingOutputStream.
+     */
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+    {
+        final int id = readInt();
+
+        if (id == descriptors.size())
+        {
+            final ObjectStreamClass desc = super.readClassDescriptor();
+            descriptors.add(desc);
+            return desc;
+        }
+        else if (id >= 0 && id < descriptors.size())
+        {
+            return descriptors.get(id);
+        }
+        else
+        {
+            throw new StreamCorruptedException("Unknown class descriptor id " + id);
+        }
+    }
+
+    protected final Object resolveObject(final Object object) throws IOException
+    {
+        if (object instanceof Bottle)
+        {
+            return ((Bottle)object).unBottle(xc);
+        }
+        else
+        {
+            return object;
+        }
+    }
+}
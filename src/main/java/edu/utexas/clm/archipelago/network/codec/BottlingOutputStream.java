@@ -0,0 +1,73 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.network.MessageXC;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * An ObjectOutputStream that replaces Objects with Bottles, using the Bottlers registered with
+ * a MessageXC.
+ */
+public class BottlingOutputStream extends ObjectOutputStream
+{
+    private final MessageXC xc;
+    private final HashMap<Class<?>, Integer> classIDs;
+
+    public BottlingOutputStream(final OutputStream os, final MessageXC xc) throws IOException
+    {
+        super(os);
+        this.xc = xc;
+        classIDs = new HashMap<Class<?>, Integer>();
+        enableReplaceObject(true);
+    }
+
+    /**
+     * Writes a class descriptor in full only the first time its class is written, and by id
+     * after that, so that the stream may be reset between messages without resending them.
+     */
+    protected void writeClassDescriptor(final ObjectStreamClass desc) throws IOException
+    {
+        final Class<?> c = desc.forClass();
+        final Integer id = classIDs.get(c);
+
+        if (id == null)
+        {
+            final int newID = classIDs.size();
+            classIDs.put(c, newID);
+            writeInt(newID);
+            super.writeClassDescriptor(desc);
+        }
+        else
+        {
+            writeInt(id);
+        }
+    }
+
+    protected final Object replaceObject(final Object object) throws IOException
+    {
+        return xc.bottle(object);
+    }
+}
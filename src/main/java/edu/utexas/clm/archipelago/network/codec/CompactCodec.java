@@ -0,0 +1,953 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.data.Duplex;
+import edu.utexas.clm.archipelago.data.HeartBeat;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.translation.Bottle;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary codec. Nulls,
+ * Strings, boxed primitives, primitive arrays, Object[], ArrayList, HashMap and HashSet are
+ * written directly, as are instances of classes with a registered ObjectEncoder. Classes with
+ * an ObjectEncoder are written as an integer id, with the class name sent only the first time
+ * the class is used on a connection. Anything else falls back to a Java object stream that
+ * runs from one reset frame to the next, so its class descriptors are also only sent once. Its
+ * object handles are reset with every message, as they are by JavaCodec.
+ *
+ * Class names and Java-serialized objects are written at the start of each frame, so that they
+ * can be taken in even when the rest of the frame fails to decode, keeping this codec in step
+ * with the remote side.
+ *
+ * Only the exact classes above are written directly; a subclass of ArrayList, for instance,
+ * goes through Java serialization, since it may carry state of its own. Shared references are
+ * preserved within a message, but not between a directly written value and one written by
+ * Java serialization.
+ *
+ * Bottlers are applied to every value before it is written, and Bottles are opened after they
+ * are read, exactly as with Java serialization.
+ */
+public class CompactCodec implements MessageCodec
+{
+    public static final String NAME = "compact";
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 5;
+    private static final int BOOLEAN = 6;
+    private static final int SHORT = 7;
+    private static final int BYTE = 8;
+    private static final int CHARACTER = 9;
+    private static final int BYTE_ARRAY = 10;
+    private static final int SHORT_ARRAY = 11;
+    private static final int INT_ARRAY = 12;
+    private static final int LONG_ARRAY = 13;
+    private static final int FLOAT_ARRAY = 14;
+    private static final int DOUBLE_ARRAY = 15;
+    private static final int CHAR_ARRAY = 16;
+    private static final int BOOLEAN_ARRAY = 17;
+    private static final int OBJECT_ARRAY = 18;
+    private static final int ARRAY_LIST = 19;
+    private static final int HASH_MAP = 20;
+    private static final int HASH_SET = 21;
+    private static final int ENCODED = 22;
+    private static final int JAVA = 23;
+    private static final int REFERENCE = 24;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private static final Map<Class<?>, ObjectEncoder<?>> encoderMap =
+            new ConcurrentHashMap<Class<?>, ObjectEncoder<?>>();
+
+    private static class Encoder implements MessageEncoder
+    {
+        private class Output extends DataOutputStream implements ObjectOutput
+        {
+            public Output(final OutputStream os)
+            {
+                super(os);
+            }
+
+            public void writeObject(final Object object) throws IOException
+            {
+                writeValue(object);
+            }
+        }
+
+        private final MessageXC xc;
+        private final FrameBuffer header, javaBytes, body;
+        private final DataOutputStream headerOut;
+        private final Output out;
+        private final HashMap<Class<?>, Integer> classIDs;
+        private final ArrayList<String> newClasses;
+        private final IdentityHashMap<Object, Integer> handles;
+        private BottlingOutputStream javaOut;
+        private int javaCount;
+
+        public Encoder(final MessageXC xc)
+        {
+            this.xc = xc;
+            header = new FrameBuffer(256);
+            javaBytes = new FrameBuffer(1024);
+            body = new FrameBuffer(1024);
+            headerOut = new DataOutputStream(header);
+            out = new Output(body);
+            classIDs = new HashMap<Class<?>, Integer>();
+            newClasses = new ArrayList<String>();
+            handles = new IdentityHashMap<Object, Integer>();
+            javaOut = null;
+            javaCount = 0;
+        }
+
+        public void encode(final ClusterMessage message, final boolean reset,
+                           final OutputStream os) throws IOException
+        {
+            header.reset();
+            javaBytes.trim();
+            body.trim();
+            newClasses.clear();
+            handles.clear();
+            javaCount = 0;
+
+            if (reset)
+            {
+                classIDs.clear();
+                javaOut = null;
+            }
+
+            writeVarInt(out, message.type.ordinal());
+            out.writeLong(message.source);
+            writeValue(message.o);
+
+            if (javaOut != null)
+            {
+                javaOut.flush();
+            }
+
+            writeVarInt(headerOut, newClasses.size());
+            for (final String name : newClasses)
+            {
+                writeString(headerOut, name);
+            }
+            writeVarInt(headerOut, javaCount);
+            if (javaCount > 0)
+            {
+                writeVarInt(headerOut, javaBytes.size());
+            }
+
+            header.writeTo(os);
+            javaBytes.writeTo(os);
+            body.writeTo(os);
+        }
+
+        /**
+         * Writes a value to the body of the current frame, after giving the Bottlers a look.
+         */
+        private void writeValue(final Object value) throws IOException
+        {
+            final Object object = value == null ? null : xc.bottle(value);
+            final Class<?> c = object == null ? null : object.getClass();
+            final ObjectEncoder<?> encoder;
+
+            if (object == null)
+            {
+                out.writeByte(NULL);
+            }
+            else if (c == String.class)
+            {
+                out.writeByte(STRING);
+                writeString(out, (String)object);
+            }
+            else if (c == Integer.class)
+            {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer)object);
+            }
+            else if (c == Long.class)
+            {
+                out.writeByte(LONG);
+                out.writeLong((Long)object);
+            }
+            else if (c == Float.class)
+            {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float)object);
+            }
+            else if (c == Double.class)
+            {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double)object);
+            }
+            else if (c == Boolean.class)
+            {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean)object);
+            }
+            else if (c == Short.class)
+            {
+                out.writeByte(SHORT);
+                out.writeShort((Short)object);
+            }
+            else if (c == Byte.class)
+            {
+                out.writeByte(BYTE);
+                out.writeByte((Byte)object);
+            }
+            else if (c == Character.class)
+            {
+                out.writeByte(CHARACTER);
+                out.writeChar((Character)object);
+            }
+            else if (c.isArray() && c.getComponentType().isPrimitive())
+            {
+                if (!writeReference(object))
+                {
+                    writePrimitiveArray(object, c.getComponentType());
+                }
+            }
+            else if (c == Object[].class)
+            {
+                if (!writeReference(object))
+                {
+                    final Object[] array = (Object[])object;
+                    out.writeByte(OBJECT_ARRAY);
+                    writeVarInt(out, array.length);
+                    for (final Object o : array)
+                    {
+                        writeValue(o);
+                    }
+                }
+            }
+            else if (c == ArrayList.class)
+            {
+                if (!writeReference(object))
+                {
+                    final ArrayList<?> list = (ArrayList<?>)object;
+                    out.writeByte(ARRAY_LIST);
+                    writeVarInt(out, list.size());
+                    for (final Object o : list)
+                    {
+                        writeValue(o);
+                    }
+                }
+            }
+            else if (c == HashMap.class)
+            {
+                if (!writeReference(object))
+                {
+                    final HashMap<?, ?> map = (HashMap<?, ?>)object;
+                    out.writeByte(HASH_MAP);
+                    writeVarInt(out, map.size());
+                    for (final Map.Entry<?, ?> entry : map.entrySet())
+                    {
+                        writeValue(entry.getKey());
+                        writeValue(entry.getValue());
+                    }
+                }
+            }
+            else if (c == HashSet.class)
+            {
+                if (!writeReference(object))
+                {
+                    final HashSet<?> set = (HashSet<?>)object;
+                    out.writeByte(HASH_SET);
+                    writeVarInt(out, set.size());
+                    for (final Object o : set)
+                    {
+                        writeValue(o);
+                    }
+                }
+            }
+            else if ((encoder = getEncoder(c)) != null)
+            {
+                if (!writeReference(object))
+                {
+                    out.writeByte(ENCODED);
+                    writeVarInt(out, classID(c));
+                    encode(encoder, object);
+                }
+            }
+            else
+            {
+                if (javaOut == null)
+                {
+                    javaOut = new BottlingOutputStream(javaBytes, xc);
+                }
+                else if (javaCount == 0)
+                {
+                    javaOut.reset();
+                }
+                javaOut.writeObject(object);
+                out.writeByte(JAVA);
+                writeVarInt(out, javaCount++);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void encode(final ObjectEncoder<?> encoder, final Object object)
+                throws IOException
+        {
+            ((ObjectEncoder<Object>)encoder).encode(object, out);
+        }
+
+        /**
+         * Writes a back-reference if the given object has already been written to this frame,
+         * otherwise remembers it.
+         * @return true if a reference was written
+         */
+        private boolean writeReference(final Object object) throws IOException
+        {
+            final Integer handle = handles.get(object);
+            if (handle == null)
+            {
+                handles.put(object, handles.size());
+                return false;
+            }
+            else
+            {
+                out.writeByte(REFERENCE);
+                writeVarInt(out, handle);
+                return true;
+            }
+        }
+
+        private int classID(final Class<?> c)
+        {
+            Integer id = classIDs.get(c);
+            if (id == null)
+            {
+                id = classIDs.size();
+                classIDs.put(c, id);
+                newClasses.add(c.getName());
+            }
+            return id;
+        }
+
+        private void writePrimitiveArray(final Object array, final Class<?> c)
+                throws IOException
+        {
+            if (c == byte.class)
+            {
+                final byte[] a = (byte[])array;
+                out.writeByte(BYTE_ARRAY);
+                writeVarInt(out, a.length);
+                out.write(a);
+            }
+            else if (c == boolean.class)
+            {
+                final boolean[] a = (boolean[])array;
+                out.writeByte(BOOLEAN_ARRAY);
+                writeVarInt(out, a.length);
+                for (final boolean b : a)
+                {
+                    out.writeBoolean(b);
+                }
+            }
+            else
+            {
+                final int length = Array.getLength(array);
+                final int tag, width;
+                final ByteBuffer bb;
+
+                if (c == float.class)
+                {
+                    tag = FLOAT_ARRAY;
+                    width = 4;
+                }
+                else if (c == int.class)
+                {
+                    tag = INT_ARRAY;
+                    width = 4;
+                }
+                else if (c == double.class)
+                {
+                    tag = DOUBLE_ARRAY;
+                    width = 8;
+                }
+                else if (c == long.class)
+                {
+                    tag = LONG_ARRAY;
+                    width = 8;
+                }
+                else if (c == short.class)
+                {
+                    tag = SHORT_ARRAY;
+                    width = 2;
+                }
+                else
+                {
+                    tag = CHAR_ARRAY;
+                    width = 2;
+                }
+
+                if ((long)length * width > Integer.MAX_VALUE - body.size())
+                {
+                    throw new IOException("Array of " + length + " " + c + " is too large");
+                }
+
+                out.writeByte(tag);
+                writeVarInt(out, length);
+                body.ensure(length * width);
+                bb = ByteBuffer.wrap(body.array(), body.size(), length * width);
+
+                switch (tag)
+                {
+                    case FLOAT_ARRAY:
+                        bb.asFloatBuffer().put((float[])array);
+                        break;
+                    case INT_ARRAY:
+                        bb.asIntBuffer().put((int[])array);
+                        break;
+                    case DOUBLE_ARRAY:
+                        bb.asDoubleBuffer().put((double[])array);
+                        break;
+                    case LONG_ARRAY:
+                        bb.asLongBuffer().put((long[])array);
+                        break;
+                    case SHORT_ARRAY:
+                        bb.asShortBuffer().put((short[])array);
+                        break;
+                    default:
+                        bb.asCharBuffer().put((char[])array);
+                }
+
+                body.advance(length * width);
+            }
+        }
+    }
+
+    private static class Decoder implements MessageDecoder
+    {
+        private class Input extends DataInputStream implements ObjectInput
+        {
+            public Input(final InputStream is)
+            {
+                super(is);
+            }
+
+            public Object readObject() throws IOException, ClassNotFoundException
+            {
+                return readValue();
+            }
+        }
+
+        private final MessageXC xc;
+        private final FrameInputStream frame, javaBytes;
+        private final Input in;
+        private final ArrayList<String> classNames;
+        private final ArrayList<Class<?>> classes;
+        private final ArrayList<Object> handles;
+        private BottlingInputStream javaIn;
+        private Object[] javaObjects;
+        private ClassNotFoundException[] javaErrors;
+        private boolean synced;
+
+        public Decoder(final MessageXC xc)
+        {
+            this.xc = xc;
+            frame = new FrameInputStream();
+            javaBytes = new FrameInputStream();
+            in = new Input(frame);
+            classNames = new ArrayList<String>();
+            classes = new ArrayList<Class<?>>();
+            handles = new ArrayList<Object>();
+            javaIn = null;
+            synced = false;
+        }
+
+        public ClusterMessage decode(final byte[] b, final int offset, final int length,
+                                     final boolean reset)
+                throws IOException, ClassNotFoundException
+        {
+            final int nClasses, nJava, type;
+            final ClusterMessage message;
+
+            frame.set(b, offset, length);
+            handles.clear();
+            javaObjects = null;
+            javaErrors = null;
+
+            if (reset)
+            {
+                classNames.clear();
+                classes.clear();
+                javaIn = null;
+                synced = true;
+            }
+            else if (!synced)
+            {
+                throw new StreamCorruptedException("Lost track of the remote encoder, " +
+                        "waiting for a reset");
+            }
+
+            // Class names and Java objects must be taken in even if the rest of this frame can't
+            // be decoded, to stay in step. Until they are, we're not.
+            synced = false;
+            nClasses = readVarInt(in);
+            for (int i = 0; i < nClasses; ++i)
+            {
+                classNames.add(readString(in));
+                classes.add(null);
+            }
+
+            nJava = readVarInt(in);
+            if (nJava > 0)
+            {
+                final int javaLength = readVarInt(in);
+                javaBytes.set(b, frame.advance(javaLength), javaLength);
+                readJava(nJava);
+            }
+            synced = true;
+
+            type = readVarInt(in);
+            if (type >= TYPES.length)
+            {
+                throw new StreamCorruptedException("Unknown message type " + type);
+            }
+            message = new ClusterMessage(TYPES[type]);
+            message.source = in.readLong();
+            message.o = (Serializable)readValue();
+            return message;
+        }
+
+        /**
+         * Reads every Java-serialized object in the frame, so that the object stream stays in
+         * step even if the rest of the frame can't be decoded.
+         */
+        private void readJava(final int n) throws IOException
+        {
+            javaObjects = new Object[n];
+            javaErrors = new ClassNotFoundException[n];
+
+            try
+            {
+                if (javaIn == null)
+                {
+                    javaIn = new BottlingInputStream(javaBytes, xc);
+                }
+
+                for (int i = 0; i < n; ++i)
+                {
+                    try
+                    {
+                        javaObjects[i] = javaIn.readObject();
+                    }
+                    catch (ClassNotFoundException cnfe)
+                    {
+                        javaErrors[i] = cnfe;
+                    }
+                }
+            }
+            catch (IOException ioe)
+            {
+                javaIn = null;
+                throw ioe;
+            }
+        }
+
+        public boolean isSynchronized()
+        {
+            return synced;
+        }
+
+        private Object readValue() throws IOException, ClassNotFoundException
+        {
+            final Object object = readRawValue();
+            return object instanceof Bottle ? ((Bottle)object).unBottle(xc) : object;
+        }
+
+        private Object readRawValue() throws IOException, ClassNotFoundException
+        {
+            final int tag = in.readUnsignedByte();
+
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString(in);
+                case INTEGER:
+                    return in.readInt();
+                case LONG:
+                    return in.readLong();
+                case FLOAT:
+                    return in.readFloat();
+                case DOUBLE:
+                    return in.readDouble();
+                case BOOLEAN:
+                    return in.readBoolean();
+                case SHORT:
+                    return in.readShort();
+                case BYTE:
+                    return in.readByte();
+                case CHARACTER:
+                    return in.readChar();
+                case BYTE_ARRAY:
+                {
+                    final byte[] a = new byte[readLength(1)];
+                    handles.add(a);
+                    in.readFully(a);
+                    return a;
+                }
+                case BOOLEAN_ARRAY:
+                {
+                    final boolean[] a = new boolean[readLength(1)];
+                    handles.add(a);
+                    for (int i = 0; i < a.length; ++i)
+                    {
+                        a[i] = in.readBoolean();
+                    }
+                    return a;
+                }
+                case SHORT_ARRAY:
+                {
+                    final short[] a = new short[readLength(2)];
+                    handles.add(a);
+                    buffer(a.length, 2).asShortBuffer().get(a);
+                    return a;
+                }
+                case CHAR_ARRAY:
+                {
+                    final char[] a = new char[readLength(2)];
+                    handles.add(a);
+                    buffer(a.length, 2).asCharBuffer().get(a);
+                    return a;
+                }
+                case INT_ARRAY:
+                {
+                    final int[] a = new int[readLength(4)];
+                    handles.add(a);
+                    buffer(a.length, 4).asIntBuffer().get(a);
+                    return a;
+                }
+                case FLOAT_ARRAY:
+                {
+                    final float[] a = new float[readLength(4)];
+                    handles.add(a);
+                    buffer(a.length, 4).asFloatBuffer().get(a);
+                    return a;
+                }
+                case LONG_ARRAY:
+                {
+                    final long[] a = new long[readLength(8)];
+                    handles.add(a);
+                    buffer(a.length, 8).asLongBuffer().get(a);
+                    return a;
+                }
+                case DOUBLE_ARRAY:
+                {
+                    final double[] a = new double[readLength(8)];
+                    handles.add(a);
+                    buffer(a.length, 8).asDoubleBuffer().get(a);
+                    return a;
+                }
+                case OBJECT_ARRAY:
+                {
+                    final Object[] a = new Object[readLength(1)];
+                    handles.add(a);
+                    for (int i = 0; i < a.length; ++i)
+                    {
+                        a[i] = readValue();
+                    }
+                    return a;
+                }
+                case ARRAY_LIST:
+                {
+                    final int n = readLength(1);
+                    final ArrayList<Object> list = new ArrayList<Object>(n);
+                    handles.add(list);
+                    for (int i = 0; i < n; ++i)
+                    {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case HASH_MAP:
+                {
+                    final int n = readLength(2);
+                    final HashMap<Object, Object> map = new HashMap<Object, Object>();
+                    handles.add(map);
+                    for (int i = 0; i < n; ++i)
+                    {
+                        final Object key = readValue();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case HASH_SET:
+                {
+                    final int n = readLength(1);
+                    final HashSet<Object> set = new HashSet<Object>();
+                    handles.add(set);
+                    for (int i = 0; i < n; ++i)
+                    {
+                        set.add(readValue());
+                    }
+                    return set;
+                }
+                case ENCODED:
+                {
+                    final Class<?> c = resolveClass(readVarInt(in));
+                    final ObjectEncoder<?> encoder = getEncoder(c);
+                    final int handle = handles.size();
+                    final Object object;
+
+                    if (encoder == null)
+                    {
+                        throw new InvalidClassException(c.getName(), "No encoder registered");
+                    }
+
+                    // An encoded object can't refer to itself, but its handle must be taken
+                    // before anything that it contains.
+                    handles.add(null);
+                    object = encoder.decode(in);
+                    handles.set(handle, object);
+                    return object;
+                }
+                case JAVA:
+                {
+                    final int i = readVarInt(in);
+                    if (javaObjects == null || i >= javaObjects.length)
+                    {
+                        throw new StreamCorruptedException("Bad object index " + i);
+                    }
+                    if (javaErrors[i] != null)
+                    {
+                        throw javaErrors[i];
+                    }
+                    return javaObjects[i];
+                }
+                case REFERENCE:
+                {
+                    final int handle = readVarInt(in);
+                    if (handle >= handles.size())
+                    {
+                        throw new StreamCorruptedException("Bad reference " + handle);
+                    }
+                    return handles.get(handle);
+                }
+                default:
+                    throw new StreamCorruptedException("Unknown tag " + tag);
+            }
+        }
+
+        /**
+         * Reads a length, checking it against the bytes left in the frame.
+         * @param width the smallest number of bytes each element could take
+         */
+        private int readLength(final int width) throws IOException
+        {
+            final int length = readVarInt(in);
+            if ((long)length * width > frame.available())
+            {
+                throw new EOFException("Length " + length + " runs past the end of the frame");
+            }
+            return length;
+        }
+
+        private ByteBuffer buffer(final int length, final int width) throws EOFException
+        {
+            final int n = length * width;
+            return ByteBuffer.wrap(frame.array(), frame.advance(n), n);
+        }
+
+        private Class<?> resolveClass(final int id) throws IOException, ClassNotFoundException
+        {
+            Class<?> c;
+
+            if (id >= classes.size())
+            {
+                throw new StreamCorruptedException("Unknown class id " + id);
+            }
+
+            c = classes.get(id);
+            if (c == null)
+            {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                if (loader == null)
+                {
+                    loader = CompactCodec.class.getClassLoader();
+                }
+                // Initialize the class, so that it can register its encoder.
+                c = Class.forName(classNames.get(id), true, loader);
+                classes.set(id, c);
+            }
+
+            return c;
+        }
+    }
+
+    public String getName()
+    {
+        return NAME;
+    }
+
+    public MessageEncoder createEncoder(final MessageXC xc)
+    {
+        return new Encoder(xc);
+    }
+
+    public MessageDecoder createDecoder(final MessageXC xc)
+    {
+        return new Decoder(xc);
+    }
+
+    /**
+     * Registers a hand-written encoder for the given class. Only instances of exactly that
+     * class are written with it. The same encoder must be registered on every node, which is
+     * easiest to guarantee by registering it in a static initializer of the class itself.
+     * @param c the class to encode
+     * @param encoder the encoder to use for it
+     * @param <T> the class to encode
+     */
+    public static <T> void registerEncoder(final Class<T> c, final ObjectEncoder<T> encoder)
+    {
+        encoderMap.put(c, encoder);
+    }
+
+    public static ObjectEncoder<?> getEncoder(final Class<?> c)
+    {
+        return encoderMap.get(c);
+    }
+
+    private static void writeVarInt(final DataOutput out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(final DataInput in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable-length integer");
+    }
+
+    private static void writeString(final DataOutput out, final String s) throws IOException
+    {
+        final byte[] b = s.getBytes(UTF8);
+        writeVarInt(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(final DataInput in) throws IOException
+    {
+        final int length = readVarInt(in);
+        final byte[] b;
+        if (length < 0)
+        {
+            throw new StreamCorruptedException("Bad string length " + length);
+        }
+        b = new byte[length];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    static
+    {
+        registerEncoder(HeartBeat.class, new ObjectEncoder<HeartBeat>()
+        {
+            public void encode(final HeartBeat beat, final ObjectOutput out) throws IOException
+            {
+                out.writeInt(beat.ramMBAvailable);
+                out.writeInt(beat.ramMBTotal);
+                out.writeInt(beat.ramMBMax);
+                out.writeInt(beat.queuedJobs);
+                out.writeInt(beat.busyCores);
+            }
+
+            public HeartBeat decode(final ObjectInput in) throws IOException
+            {
+                final long available = in.readInt(), total = in.readInt(), max = in.readInt();
+                final int queued = in.readInt(), busy = in.readInt();
+                return new HeartBeat(available * HeartBeat.MB, total * HeartBeat.MB,
+                        max * HeartBeat.MB, queued, busy);
+            }
+        });
+
+        registerEncoder(duplexClass(), new ObjectEncoder<Duplex<?, ?>>()
+        {
+            public void encode(final Duplex<?, ?> duplex, final ObjectOutput out)
+                    throws IOException
+            {
+                out.writeObject(duplex.a);
+                out.writeObject(duplex.b);
+            }
+
+            public Duplex<?, ?> decode(final ObjectInput in)
+                    throws IOException, ClassNotFoundException
+            {
+                final Object a = in.readObject();
+                return new Duplex<Object, Object>(a, in.readObject());
+            }
+        });
+    }
+
+    /**
+     * @return Duplex.class, typed so that an encoder for any Duplex can be registered for it
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<Duplex<?, ?>> duplexClass()
+    {
+        return (Class<Duplex<?, ?>>)(Class<?>)Duplex.class;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A ByteArrayOutputStream that allows direct access to its buffer, so that frames can be
+ * assembled, patched and written without copying.
+ */
+public class FrameBuffer extends ByteArrayOutputStream
+{
+    // Buffers that grow larger than this are let go by trim
+    public static final int RETAIN_LIMIT = 1024 * 1024;
+
+    private final int initialSize;
+
+    public FrameBuffer(final int size)
+    {
+        super(size);
+        initialSize = size;
+    }
+
+    public byte[] array()
+    {
+        return buf;
+    }
+
+    /**
+     * Makes room for n more bytes, to be written directly into the array at size().
+     * @param n the number of bytes to make room for
+     */
+    public void ensure(final int n)
+    {
+        if (n > buf.length - count)
+        {
+            buf = Arrays.copyOf(buf, Math.max(count + n, buf.length * 2));
+        }
+    }
+
+    /**
+     * Counts n bytes that were written directly into the array at size().
+     * @param n the number of bytes written
+     */
+    public void advance(final int n)
+    {
+        count += n;
+    }
+
+    /**
+     * Discards everything written after the first size bytes.
+     * @param size the number of bytes to keep
+     */
+    public void truncate(final int size)
+    {
+        if (size < 0 || size > count)
+        {
+            throw new IndexOutOfBoundsException("Cannot truncate " + count + " bytes to " + size);
+        }
+        count = size;
+    }
+
+    /**
+     * Takes this buffer's array away, without copying it. The buffer carries on with a new
+     * array, holding a copy of the first size bytes of the old one.
+     * @param size the number of bytes to keep
+     * @return the array that held everything written so far
+     */
+    public byte[] split(final int size)
+    {
+        final byte[] old = buf;
+        truncate(size);
+        buf = Arrays.copyOf(old, Math.max(size, initialSize));
+        return old;
+    }
+
+    /**
+     * Takes this buffer's array away, without copying it. The buffer carries on, empty, with
+     * the given array.
+     * @param replacement the array to carry on with
+     * @return the array that held everything written so far
+     */
+    public byte[] swap(final byte[] replacement)
+    {
+        final byte[] old = buf;
+        buf = replacement;
+        count = 0;
+        return old;
+    }
+
+    /**
+     * Resets this buffer, letting go of the array if it has grown past RETAIN_LIMIT.
+     */
+    public void trim()
+    {
+        if (buf.length > RETAIN_LIMIT)
+        {
+            buf = new byte[initialSize];
+        }
+        count = 0;
+    }
+}
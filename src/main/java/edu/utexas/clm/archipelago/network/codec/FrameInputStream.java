@@ -0,0 +1,71 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+
+/**
+ * A ByteArrayInputStream that may be pointed at a new region of bytes, so that a long-lived
+ * stream, like an ObjectInputStream, can read one frame after another.
+ */
+public class FrameInputStream extends ByteArrayInputStream
+{
+    public FrameInputStream()
+    {
+        super(new byte[0]);
+    }
+
+    public void set(final byte[] b, final int offset, final int length)
+    {
+        buf = b;
+        pos = offset;
+        mark = offset;
+        count = offset + length;
+    }
+
+    public byte[] array()
+    {
+        return buf;
+    }
+
+    public int position()
+    {
+        return pos;
+    }
+
+    /**
+     * Checks that n more bytes remain, to be read directly from the array at position(), and
+     * advances past them.
+     * @param n the number of bytes to skip
+     * @return the position at which the n bytes start
+     * @throws EOFException if fewer than n bytes remain
+     */
+    public int advance(final long n) throws EOFException
+    {
+        final int p = pos;
+        if (n > count - pos)
+        {
+            throw new EOFException("Frame ends " + (n - (count - pos)) + " bytes early");
+        }
+        pos += (int)n;
+        return p;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.network.MessageXC;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Plain Java serialization. A single object stream runs from one reset frame to the next, so
+ * class descriptors are only sent once in between. The stream's object handles are reset with
+ * every message, so an object that is sent again is sent as it is now. This is the format every
+ * MessageXC starts with, so it is always available.
+ */
+public class JavaCodec implements MessageCodec
+{
+    public static final String NAME = "java";
+
+    /**
+     * Passes writes through to the stream for the current frame.
+     */
+    private static class Redirect extends OutputStream
+    {
+        private OutputStream target;
+
+        public void write(final int b) throws IOException
+        {
+            target.write(b);
+        }
+
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            target.write(b, off, len);
+        }
+    }
+
+    private static class Encoder implements MessageEncoder
+    {
+        private final MessageXC xc;
+        private final Redirect redirect;
+        private BottlingOutputStream objectOutputStream;
+
+        public Encoder(final MessageXC xc)
+        {
+            this.xc = xc;
+            redirect = new Redirect();
+            objectOutputStream = null;
+        }
+
+        public void encode(final ClusterMessage message, final boolean reset,
+                           final OutputStream out) throws IOException
+        {
+            redirect.target = out;
+
+            if (reset)
+            {
+                objectOutputStream = new BottlingOutputStream(redirect, xc);
+            }
+            else if (objectOutputStream == null)
+            {
+                throw new IllegalStateException("The first frame must be a reset frame");
+            }
+
+            objectOutputStream.reset();
+            objectOutputStream.writeUnshared(message);
+            objectOutputStream.flush();
+        }
+    }
+
+    private static class Decoder implements MessageDecoder
+    {
+        private final MessageXC xc;
+        private final FrameInputStream frame;
+        private BottlingInputStream objectInputStream;
+
+        public Decoder(final MessageXC xc)
+        {
+            this.xc = xc;
+            frame = new FrameInputStream();
+            objectInputStream = null;
+        }
+
+        public ClusterMessage decode(final byte[] b, final int offset, final int length,
+                                     final boolean reset)
+                throws IOException, ClassNotFoundException
+        {
+            frame.set(b, offset, length);
+
+            if (reset)
+            {
+                objectInputStream = new BottlingInputStream(frame, xc);
+            }
+            else if (objectInputStream == null)
+            {
+                throw new StreamCorruptedException("Object stream lost, waiting for a reset");
+            }
+
+            /*
+            A ClassNotFoundException or a ClassCastException leaves the stream in step with
+            the remote side. Anything else may leave it with a partial object in its handle
+            table, so we give it up and wait for a reset.
+             */
+            try
+            {
+                return (ClusterMessage)objectInputStream.readObject();
+            }
+            catch (ClassNotFoundException cnfe)
+            {
+                throw cnfe;
+            }
+            catch (ClassCastException cce)
+            {
+                throw cce;
+            }
+            catch (IOException ioe)
+            {
+                objectInputStream = null;
+                throw ioe;
+            }
+            catch (RuntimeException re)
+            {
+                objectInputStream = null;
+                throw re;
+            }
+        }
+
+        public boolean isSynchronized()
+        {
+            return objectInputStream != null;
+        }
+    }
+
+    public String getName()
+    {
+        return NAME;
+    }
+
+    public MessageEncoder createEncoder(final MessageXC xc)
+    {
+        return new Encoder(xc);
+    }
+
+    public MessageDecoder createDecoder(final MessageXC xc)
+    {
+        return new Decoder(xc);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.network.MessageXC;
+
+/**
+ * A wire format for ClusterMessages. MessageXC writes each message as a checksummed frame, and
+ * a codec encodes and decodes the payloads of those frames. Each direction of a connection uses
+ * one codec at a time. The receiving side offers the codecs it can decode, and the sending side
+ * picks one, so the two directions of a connection may use different codecs.
+ *
+ * Codecs are registered by name with MessageXC.registerCodec, and the same name must refer to
+ * the same format on both ends of a connection.
+ */
+public interface MessageCodec
+{
+    /**
+     * @return the name under which this codec is negotiated
+     */
+    public String getName();
+
+    /**
+     * @param xc the MessageXC that will use the encoder, used for bottling
+     * @return a new MessageEncoder
+     */
+    public MessageEncoder createEncoder(MessageXC xc);
+
+    /**
+     * @param xc the MessageXC that will use the decoder, used for unbottling
+     * @return a new MessageDecoder
+     */
+    public MessageDecoder createDecoder(MessageXC xc);
+}
@@ -0,0 +1,51 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+
+import java.io.IOException;
+
+/**
+ * Decodes ClusterMessages from frame payloads written by the matching MessageEncoder. A decoder
+ * is used only by the RX thread of its MessageXC.
+ */
+public interface MessageDecoder
+{
+    /**
+     * Decodes a message from a frame payload. The payload has already been checksummed.
+     * @param b an array holding the payload
+     * @param offset the offset of the payload in the array
+     * @param length the length of the payload
+     * @param reset true if the remote encoder dropped its state before encoding this frame
+     * @return the decoded message
+     * @throws IOException if the message could not be decoded
+     * @throws ClassNotFoundException if the message refers to a class that is not available here
+     */
+    public ClusterMessage decode(byte[] b, int offset, int length, boolean reset)
+            throws IOException, ClassNotFoundException;
+
+    /**
+     * After decode throws, tells whether this decoder can still follow the frames that come
+     * after the failed one. If not, frames are skipped until the remote encoder resets.
+     * @return true if this decoder is still in step with the remote encoder
+     */
+    public boolean isSynchronized();
+}
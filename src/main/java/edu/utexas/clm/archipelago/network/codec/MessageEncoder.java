@@ -0,0 +1,43 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes ClusterMessages as frame payloads. An encoder may keep state from one frame to the
+ * next, such as the classes it has already described, but must drop it when asked to reset.
+ * An encoder is used only by the TX thread of its MessageXC.
+ */
+public interface MessageEncoder
+{
+    /**
+     * Encodes a message. If this throws, the next frame will be a reset frame.
+     * @param message the message to encode
+     * @param reset true if this is a reset frame. The first frame is always a reset frame.
+     * @param out the stream to write the payload to
+     * @throws IOException if the message could not be encoded
+     */
+    public void encode(ClusterMessage message, boolean reset, OutputStream out)
+            throws IOException;
+}
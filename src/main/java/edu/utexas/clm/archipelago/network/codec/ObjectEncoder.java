@@ -0,0 +1,41 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A hand-written encoder for a single class, used by the CompactCodec in place of Java
+ * serialization. Register it with CompactCodec.registerEncoder, typically from a static
+ * initializer in the encoded class, so that it is registered on a remote node as soon as the
+ * class is loaded there.
+ *
+ * Values written with ObjectOutput.writeObject are themselves encoded by the CompactCodec.
+ *
+ * @param <T> the encoded class
+ */
+public interface ObjectEncoder<T>
+{
+    public void encode(T t, ObjectOutput out) throws IOException;
+
+    public T decode(ObjectInput in) throws IOException, ClassNotFoundException;
+}
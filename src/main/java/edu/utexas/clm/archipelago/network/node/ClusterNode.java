@@ -23,6 +23,8 @@ import edu.utexas.clm.archipelago.compute.ProcessManager;
 import edu.utexas.clm.archipelago.data.ClusterMessage;
 import edu.utexas.clm.archipelago.data.Duplex;
 import edu.utexas.clm.archipelago.data.HeartBeat;
+import edu.utexas.clm.archipelago.data.Hello;
+import edu.utexas.clm.archipelago.data.Welcome;
 import edu.utexas.clm.archipelago.exception.ShellExecutionException;
 import edu.utexas.clm.archipelago.listen.MessageType;
 import edu.utexas.clm.archipelago.listen.NodeShellListener;
@@ -30,19 +32,21 @@ import edu.utexas.clm.archipelago.listen.NodeStateListener;
 import edu.utexas.clm.archipelago.listen.ProcessListener;
 import edu.utexas.clm.archipelago.listen.TransceiverExceptionListener;
 import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.listen.TransferListener;
 import edu.utexas.clm.archipelago.network.MessageXC;
 import edu.utexas.clm.archipelago.network.translation.Bottler;
 import edu.utexas.clm.archipelago.network.translation.PathSubstitutingFileTranslator;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -51,18 +55,42 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class ClusterNode implements TransceiverListener
 {
+    // The fraction of a node's maximum heap that jobs' memory estimates may add up to
+    public static final float RAM_SAFETY_FRACTION = 0.8f;
+
     private MessageXC xc;
 
     private final Hashtable<Long, ProcessListener> processHandlers;
-    private final Hashtable<Long, ProcessManager> runningProcesses;
+    private final Hashtable<Long, ProcessManager<?>> runningProcesses;
     private final AtomicInteger ramMBAvail, ramMBTot, ramMBMax, runningCores;
+    // As of the last heartbeat, the jobs waiting on the node for cores, and its busy cores
+    private final AtomicInteger reportedQueuedJobs, reportedBusyCores;
+    // The sum of the memory estimates of the jobs that have been sent here and not finished,
+    // whether started or staged. Changed while synchronized on stagedProcesses.
+    private final AtomicInteger committedRamMB;
     private long nodeID;
     private long lastBeatTime;
     private final NodeParameters nodeParam;
     private ClusterNodeState state;
     private final Vector<NodeStateListener> stateListeners;
     private final TransceiverExceptionListener xcEListener;
-    private final AtomicBoolean environmentIsSynced, execRootSet, fileSystemSet;
+    private final Hashtable<Long, Float> transferProgress;
+    private final TransferListener transferTracker;
+    // Jobs that have been sent to the node but that it hasn't started, in the order it will
+    // start them. This mirrors the queue on the client, which starts the first job as soon as
+    // it has cores enough. Changes to this, to reclaiming, and to runningCores are made while
+    // synchronized on stagedProcesses, and runningCores only counts jobs that have started.
+    private final LinkedList<ProcessManager<?>> stagedProcesses;
+    // Staged jobs that we've asked the node to give back
+    private final HashSet<Long> reclaiming;
+    // The prefetch depth that the node has agreed to, or 0 if it hasn't
+    private final AtomicInteger prefetchDepth;
+    // The thread limit we last sent with a prefetch request
+    private volatile int prefetchThreadLimit;
+    // The MessageTypes that the node said it understands, or null if it didn't say
+    private volatile HashSet<String> capabilities;
+    // Bottlers that were sent with the node's Welcome, and so needn't be sent again
+    private final Set<Bottler<?>> welcomedBottlers;
 
 
    
@@ -76,15 +104,41 @@ public class ClusterNode implements TransceiverListener
         ramMBTot = new AtomicInteger(0);
         ramMBMax = new AtomicInteger(0);
         runningCores = new AtomicInteger(0);
+        reportedQueuedJobs = new AtomicInteger(0);
+        reportedBusyCores = new AtomicInteger(0);
+        committedRamMB = new AtomicInteger(0);
         processHandlers = new Hashtable<Long, ProcessListener>();
-        runningProcesses = new Hashtable<Long, ProcessManager>();
+        runningProcesses = new Hashtable<Long, ProcessManager<?>>();
         nodeID = params.getID();
         nodeParam = params;
         stateListeners = new Vector<NodeStateListener>();
         xcEListener = tel;
-        environmentIsSynced = new AtomicBoolean(false);
-        execRootSet = new AtomicBoolean(false);
-        fileSystemSet = new AtomicBoolean(false);
+        transferProgress = new Hashtable<Long, Float>();
+        stagedProcesses = new LinkedList<ProcessManager<?>>();
+        reclaiming = new HashSet<Long>();
+        prefetchDepth = new AtomicInteger(0);
+        prefetchThreadLimit = 0;
+        capabilities = null;
+        welcomedBottlers = Collections.synchronizedSet(new HashSet<Bottler<?>>());
+        transferTracker = new TransferListener()
+        {
+            public void transferProgress(final MessageXC xc, final MessageType type,
+                                         final long jobID, final boolean outgoing,
+                                         final long bytesDone, final long bytesTotal)
+            {
+                if (type == MessageType.PROCESS)
+                {
+                    if (bytesDone < bytesTotal)
+                    {
+                        transferProgress.put(jobID, (float)bytesDone / bytesTotal);
+                    }
+                    else
+                    {
+                        transferProgress.remove(jobID);
+                    }
+                }
+            }
+        };
     }
 
     private void checkState()
@@ -95,73 +149,59 @@ public class ClusterNode implements TransceiverListener
         }
     }
 
-    private synchronized void doSyncEnvironment()
+    /**
+     * Tells the node its thread limit, which it runs jobs within, and asks it to queue jobs
+     * beyond that if we're configured to, unless we've already told it the current limit. The
+     * node won't be sent extra jobs until it answers. If the limit has changed since the node
+     * was last told, our NodeStateListeners hear about it, too.
+     * @param wait true to wait for room in the send queue, false to give up if it is full
+     * @return true if the node has been told its current limit, false if the message could
+     * not be queued
+     */
+    private boolean requestPrefetch(final boolean wait)
     {
-        if (!environmentIsSynced.get())
-        {
-            if (getUser() == null || getUser().equals(""))
-            {
-                xc.queueMessage(MessageType.USER);
-                return;
-            }
+        final int limit = getThreadLimit();
+        final int depth = nodeParam.getPrefetchDepth();
 
-            if (getID() < 0)
-            {
-                xc.queueMessage(MessageType.GETID);
-                return;
-            }
+        if (limit > 0 && limit != prefetchThreadLimit && xc != null)
+        {
+            final ClusterMessage message = new ClusterMessage(MessageType.PREFETCH);
+            final boolean changed = prefetchThreadLimit > 0;
+            message.o = new int[]{limit, depth};
 
-            if (!execRootSet.getAndSet(true))
+            if (wait ? xc.queueMessage(message) : xc.offerMessage(message))
             {
-                if (getExecPath() == null || getExecPath().equals(""))
-                {
-                    xc.queueMessage(MessageType.GETEXECROOT);
-                    return;
-                }
-                else
-                {
-                    xc.queueMessage(MessageType.SETEXECROOT, getExecPath());
-                    return;
-                }
+                prefetchThreadLimit = limit;
             }
-
-            if (!fileSystemSet.getAndSet(true))
+            else
             {
-                // Two modes: either we've been told specifically what the file path is
-                // or else we are supposed to query the client.
-                if (getFilePath() == null || getFilePath().equals(""))
-                {
-                    // query the client.
-                    xc.queueMessage(MessageType.GETFSTRANSLATION);
-                    return;
-                }
-                else
-                {
-                    // Tell the client how to translate files.
-                    xc.queueMessage(MessageType.SETFSTRANSLATION,
-                            new Duplex<String, String>(getFilePath(),
-                                    FijiArchipelago.getFileRoot()));
-                }
+                return false;
             }
 
-            if (getThreadLimit() <= 0)
+            if (changed)
             {
-                xc.queueMessage(MessageType.NUMTHREADS);
-                return;
+                fireThreadLimitChanged();
             }
+        }
 
-            xc.queueMessage(MessageType.BEAT);
-
-            checkState();
+        return true;
+    }
 
-            FijiArchipelago.debug("Environment is synced");
+    /**
+     * Tells our NodeStateListeners that our thread limit has changed, by way of a state change
+     * from our current state to itself.
+     */
+    private void fireThreadLimitChanged()
+    {
+        final ClusterNodeState current = getState();
 
-            environmentIsSynced.set(true);
+        FijiArchipelago.debug(getHost() + " thread limit changed to " + getThreadLimit());
+        for (NodeStateListener listener : new ArrayList<NodeStateListener>(stateListeners))
+        {
+            listener.stateChanged(this, current, current);
         }
-
-
     }
-    
+
     public void setExecPath(String path)
     {
             nodeParam.setExecRoot(path);
@@ -184,37 +224,98 @@ public class ClusterNode implements TransceiverListener
     }
 
     /**
-     * Sets the InputStream and OutputStream used to communicate with the remote compute node.
-     * is and os are used to create a MessageXC.
-     * @param is InputStream to receive data from the remote machine
-     * @param os OutputStream to send data to the remote machine
-     * @throws IOException if a problem arises opening one of the streams
-     * @throws TimeoutException if we time out while waiting for the remote node
-     * @throws InterruptedException if we are interrupted while waiting for the remote node
+     * Sets the MessageXC used to talk to a node that has sent a Hello. Everything we need to
+     * know about the node is taken from the Hello, unless our NodeParameters already say
+     * otherwise, and the node is sent everything it needs in a single Welcome. The node is then
+     * ready for jobs, without waiting for a reply.
+     * @param xc the MessageXC to talk to the node with
+     * @param hello the Hello that the node sent
+     * @param bottlers the Bottlers that every node should have
      */
-    public synchronized void setIOStreams(final InputStream is, final OutputStream os)
-            throws IOException, TimeoutException, InterruptedException
+    public synchronized void setMessageXC(final MessageXC xc, final Hello hello,
+                                          final List<Bottler<?>> bottlers)
     {
-        FijiArchipelago.debug("Setting IO Streams for a new Cluster Node");
-        
-        xc = new MessageXC(is, os, this, xcEListener);
-        xc.queueMessage(MessageType.GETID);
+        final ArrayList<Bottler<?>> transferBottlers = new ArrayList<Bottler<?>>();
+        final Duplex<String, String> translation;
+        final int limit, depth;
 
-        doSyncEnvironment();
+        this.xc = xc;
+        xc.setListener(this);
+        xc.addTransferListener(transferTracker);
+        xc.setId(nodeID);
 
-        xc.setHostname(getHost());
+        capabilities = new HashSet<String>(Arrays.asList(hello.capabilities));
 
-    }
+        if (getUser() == null || getUser().equals(""))
+        {
+            nodeParam.setUser(hello.user);
+        }
 
-    public synchronized void setMessageXC(final MessageXC xc)
-    {
-        this.xc = xc;
-        xc.setListener(this);
+        if (getExecPath() == null || getExecPath().equals(""))
+        {
+            setExecPath(hello.execRoot);
+        }
 
-        doSyncEnvironment();
+        if (getFilePath() != null && !getFilePath().equals(""))
+        {
+            translation = new Duplex<String, String>(getFilePath(),
+                    FijiArchipelago.getFileRoot());
+        }
+        else if (hello.fileRoot.equals(""))
+        {
+            // Neither of us knows, so assume that the client sees the same files we do
+            translation = new Duplex<String, String>(FijiArchipelago.getFileRoot(),
+                    FijiArchipelago.getFileRoot());
+        }
+        else
+        {
+            setFilePath(hello.fileRoot);
+            translation = new Duplex<String, String>(hello.fileRoot,
+                    FijiArchipelago.getFileRoot());
+        }
+
+        if (getThreadLimit() <= 0)
+        {
+            nodeParam.setThreadLimit(hello.cores);
+        }
+
+        ramMBMax.set(hello.ramMBMax);
+
+        for (final Bottler<?> bottler : bottlers)
+        {
+            xc.addBottler(bottler);
+            welcomedBottlers.add(bottler);
+            if (bottler.transfer())
+            {
+                transferBottlers.add(bottler);
+            }
+        }
+
+        limit = getThreadLimit();
+        depth = supports(MessageType.PREFETCH) ? nodeParam.getPrefetchDepth() : 0;
+        prefetchThreadLimit = limit;
+        prefetchDepth.set(depth);
+
+        xc.queueMessage(MessageType.WELCOME, new Welcome(nodeID,
+                getExecPath() == null ? "" : getExecPath(), translation, limit, depth,
+                transferBottlers));
+
+        FijiArchipelago.debug("Welcomed " + hello);
 
         xc.setHostname(getHost());
 
+        checkState();
+    }
+
+    /**
+     * @param type a MessageType
+     * @return true if the node said that it understands the given type of message, or if it
+     * didn't say which it understands
+     */
+    public boolean supports(final MessageType type)
+    {
+        final HashSet<String> types = capabilities;
+        return types == null || types.contains(type.name());
     }
 
     public String getHost()
@@ -264,10 +365,178 @@ public class ClusterNode implements TransceiverListener
 
     public int numAvailableThreads()
     {
-        int n = nodeParam.getThreadLimit() - runningCores.get();
+        final int n;
+
+        synchronized (stagedProcesses)
+        {
+            // A job sent now would have to wait behind the ones already queued on the node
+            n = stagedProcesses.isEmpty() ?
+                    nodeParam.getThreadLimit() - runningCores.get() : 0;
+        }
+
         return n > 0 ? n : 0;
     }
+
+    /**
+     * @return the number of jobs that have been sent to this node, but that it hasn't started
+     * because it doesn't have the cores free yet
+     */
+    public int numStagedJobs()
+    {
+        synchronized (stagedProcesses)
+        {
+            return stagedProcesses.size();
+        }
+    }
+
+    /**
+     * @param id a job ID
+     * @return true if the given job has been sent to this node but hasn't started there yet
+     */
+    public boolean isStaged(final long id)
+    {
+        synchronized (stagedProcesses)
+        {
+            for (final ProcessManager<?> pm : stagedProcesses)
+            {
+                if (pm.getID() == id)
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of jobs that may be queued on this node beyond what its cores can run
+     * right now
+     */
+    public int numStagingSlots()
+    {
+        final int n;
+
+        synchronized (stagedProcesses)
+        {
+            n = prefetchDepth.get() - stagedProcesses.size();
+        }
+
+        return n > 0 ? n : 0;
+    }
+
+    /**
+     * @param pm a job
+     * @return true if the given job may be queued on this node to start once the jobs ahead of
+     * it there have made room for it
+     */
+    public boolean canStage(final ProcessManager<?> pm)
+    {
+        return numStagingSlots() > 0 && pm.requestedCores(this) <= getThreadLimit() &&
+                hasRamFor(pm);
+    }
+
+    /**
+     * @param pm a job
+     * @return true if the given job's memory estimate fits within RAM_SAFETY_FRACTION of this
+     * node's maximum heap, on top of the jobs already sent here. A job is always allowed on a
+     * node that has no memory committed, or else a job bigger than every node would never run,
+     * and so is a job with no estimate, or any job on a node that hasn't reported its heap yet.
+     */
+    public boolean hasRamFor(final ProcessManager<?> pm)
+    {
+        final int estimate = pm.getRamEstimateMB();
+        final int max = ramMBMax.get();
+        final int committed = committedRamMB.get();
+
+        return estimate <= 0 || max <= 0 || committed <= 0 ||
+                committed + estimate <= (int)(max * RAM_SAFETY_FRACTION);
+    }
+
+    /**
+     * @return the sum of the memory estimates of the jobs sent to this node that haven't
+     * finished, in MB
+     */
+    public int getCommittedRamMB()
+    {
+        return committedRamMB.get();
+    }
+
+    /**
+     * Asks the node to give back the last job queued there that it hasn't started, so that it
+     * can be run somewhere else. If the node still has the job, the ProcessListener that it
+     * was submitted with is told via processReclaimed(). Otherwise, the job runs here as usual.
+     * @param maxCores the most cores that the job may need, as counted on this node
+     * @return true if we asked for a job back, false if there are no staged jobs small enough
+     * that we haven't already asked for
+     */
+    public boolean reclaimStaged(final int maxCores)
+    {
+        ProcessManager<?> pm = null;
+
+        synchronized (stagedProcesses)
+        {
+            final Iterator<ProcessManager<?>> it = stagedProcesses.descendingIterator();
+
+            while (pm == null && it.hasNext())
+            {
+                final ProcessManager<?> staged = it.next();
+
+                if (staged.requestedCores(this) <= maxCores && reclaiming.add(staged.getID()))
+                {
+                    pm = staged;
+                }
+            }
+        }
+
+        if (pm == null)
+        {
+            return false;
+        }
+        else if (xc.queueMessage(MessageType.RECLAIM, pm.getID()))
+        {
+            FijiArchipelago.debug("ClusterNode: " + getHost() + " reclaiming job " + pm.getID());
+            return true;
+        }
+        else
+        {
+            synchronized (stagedProcesses)
+            {
+                reclaiming.remove(pm.getID());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of staged jobs that could still be asked for back
+     */
+    public int numReclaimable()
+    {
+        synchronized (stagedProcesses)
+        {
+            return stagedProcesses.size() - reclaiming.size();
+        }
+    }
     
+    /**
+     * @return how close the connection to this node is to making senders wait, as given by
+     * MessageXC.getSendOccupancy, or 0 if the node isn't connected yet
+     */
+    public float getSendOccupancy()
+    {
+        final MessageXC currentXC = xc;
+        return currentXC == null ? 0 : currentXC.getSendOccupancy();
+    }
+
+    /**
+     * @return true if a job sent to this node now would have to wait behind earlier traffic
+     */
+    public boolean isSendSaturated()
+    {
+        return getSendOccupancy() >= 1;
+    }
+
     public int getThreadLimit()
     {
         return nodeParam.getThreadLimit();
@@ -286,14 +555,43 @@ public class ClusterNode implements TransceiverListener
         {
             if (processHandlers.get(process.getID()) == null)
             {
-                if (xc.queueMessage(MessageType.PROCESS, process))
+                // The Scheduler calls us holding its lock, which the threads that deliver
+                // results from our node may be waiting for. So nothing here may wait for room
+                // in the send queue: if it's full, the job goes elsewhere.
+
+                // Tell the node first if its thread limit has changed
+                if (!requestPrefetch(false))
                 {
-                    int nCore = process.requestedCores(this);
+                    FijiArchipelago.debug("ClusterNode: " + getHost() + " send queue is full");
+                    return false;
+                }
+
+                // Register the process before queueing it, since its result may come back
+                // before offerMessage returns.
+
+                processHandlers.put(process.getID(), listener);
+                runningProcesses.put(process.getID(), process);
+                process.setRunningOn(this);
+
+                synchronized (stagedProcesses)
+                {
+                    final int cores = process.requestedCores(this);
+
+                    committedRamMB.addAndGet(process.getRamEstimateMB());
+
+                    if (prefetchDepth.get() <= 0 || (stagedProcesses.isEmpty() &&
+                            runningCores.get() + cores <= getThreadLimit()))
+                    {
+                        runningCores.addAndGet(cores);
+                    }
+                    else
+                    {
+                        stagedProcesses.add(process);
+                    }
+                }
 
-                    processHandlers.put(process.getID(), listener);
-                    runningProcesses.put(process.getID(), process);
-                    process.setRunningOn(this);
-                    runningCores.addAndGet(nCore);
+                if (xc.offerMessage(MessageType.PROCESS, process))
+                {
                     FijiArchipelago.debug("ClusterNode: Placing process " + process.getID() +
                             " on xc queue");
                     return true;
@@ -302,6 +600,7 @@ public class ClusterNode implements TransceiverListener
                 {
                     FijiArchipelago.debug("ClusterNode: Process " + process.getID() +
                             " rejected from queue");
+                    removeProcess(process);
                     return false;
                 }
             }
@@ -340,28 +639,14 @@ public class ClusterNode implements TransceiverListener
         {
             switch (type)
             {
-                case GETID:
-                    Long id = (Long)object;
-
-                    FijiArchipelago.debug("Got id message. Setting ID to " + id + ". Param: " + nodeParam);
-                    if (id >=0)
-                    {
-                        nodeID = id;
-                        xc.setId(nodeID);
-                    }
-
-                    doSyncEnvironment();
-
-                    checkState();
-
-                    break;
-
                 case BEAT:
                     HeartBeat beat = (HeartBeat)object;
                     lastBeatTime = System.currentTimeMillis();
                     ramMBAvail.set(beat.ramMBAvailable);
                     ramMBTot.set(beat.ramMBTotal);
                     ramMBMax.set(beat.ramMBMax);
+                    reportedQueuedJobs.set(beat.queuedJobs);
+                    reportedBusyCores.set(beat.busyCores);
                     break;
 
                 case LOG:
@@ -374,6 +659,14 @@ public class ClusterNode implements TransceiverListener
                     FijiArchipelago.debug("ClusterNode: " + getHost() + " got result for " +
                             pm.getID());
 
+                    if (listener == null)
+                    {
+                        // A cancelled job that had already started running remotely
+                        FijiArchipelago.debug("ClusterNode: " + getHost() +
+                                " ignoring result for cancelled job " + pm.getID());
+                        break;
+                    }
+
                     removeProcess(pm);
                     //runningProcesses.remove(pm.getID());
 
@@ -383,75 +676,41 @@ public class ClusterNode implements TransceiverListener
                             pm.getID());
                     break;
 
-                case NUMTHREADS:
-                    int n = (Integer)object;
-                    nodeParam.setThreadLimit(n);
-                    doSyncEnvironment();
-                    checkState();
+                case PREFETCH:
+                    final int[] prefetch = (int[])object;
+                    prefetchDepth.set(Math.min(prefetch[1], nodeParam.getPrefetchDepth()));
+                    FijiArchipelago.debug("ClusterNode: " + getHost() + " will queue up to " +
+                            prefetchDepth.get() + " jobs ahead");
                     break;
-                
-//                case HOSTNAME:
-//                    String name = (String)object;
-//                    nodeParam.setHost(name);
-//
-//                    break;
 
-                case PING:                
-                    FijiArchipelago.log("Received ping from " + getHost());
-                    break;
-
-                case USER:
+                case RECLAIM:
+                    final Duplex<?, ?> reclaimed = (Duplex<?, ?>)object;
+                    final long reclaimedID = (Long)reclaimed.a;
+                    final ProcessManager<?> reclaimedPM = runningProcesses.get(reclaimedID);
+                    final ProcessListener reclaimedListener = processHandlers.get(reclaimedID);
 
-                    if (object != null)
+                    if ((Boolean)reclaimed.b && reclaimedPM != null)
                     {
-                        String username = (String)object;
-                        nodeParam.setUser(username);
+                        FijiArchipelago.debug("ClusterNode: " + getHost() + " gave back job " +
+                                reclaimedID);
+                        removeProcess(reclaimedPM);
+                        if (reclaimedListener != null)
+                        {
+                            reclaimedListener.processReclaimed(reclaimedPM);
+                        }
                     }
                     else
                     {
-                        FijiArchipelago.err("Got username message with null user");
-                        nodeParam.setUser("unknown");
+                        // Too late, it already started
+                        synchronized (stagedProcesses)
+                        {
+                            reclaiming.remove(reclaimedID);
+                        }
                     }
-
-                    doSyncEnvironment();
                     break;
 
-                case GETFSTRANSLATION:
-                    // Results of a GETFSTRANSLATION request sent to the client.
-                    String path = (String)object;
-                    if (path.equals(""))
-                    {
-                        // We sent a GETFSTRANSLATION because we didn't know the remote file root
-                        // If path is empty, then the client doesn't, either. The default behavior
-                        // in this case is to assume both client and root have hte same fs setup.
-                        xc.queueMessage(MessageType.SETFSTRANSLATION,
-                                new Duplex<String, String>(FijiArchipelago.getFileRoot(),
-                                        FijiArchipelago.getFileRoot()));
-                    }
-                    else
-                    {
-                        setFilePath(path);
-                        xc.queueMessage(MessageType.SETFSTRANSLATION,
-                                new Duplex<String, String>(path, FijiArchipelago.getFileRoot()));
-                    }
-
-
-                    break;
-
-                case SETFSTRANSLATION:
-                    // Client ack for setfstranslation.
-                    doSyncEnvironment();
-                    break;
-
-                case GETEXECROOT:
-                    // Results of a GETEXECROOT request sent to the client.
-                    setExecPath((String)object);
-                    doSyncEnvironment();
-                    break;
-
-                case SETEXECROOT:
-                    // Ack received for set exec root message
-                    doSyncEnvironment();
+                case PING:                
+                    FijiArchipelago.log("Received ping from " + getHost());
                     break;
 
                 case ERROR:
@@ -493,6 +752,24 @@ public class ClusterNode implements TransceiverListener
         return ramMBTot.get();
     }
 
+    /**
+     * @return the number of jobs that the node said, in its last heartbeat, were waiting there
+     * for cores to free up
+     */
+    public int getReportedQueuedJobs()
+    {
+        return reportedQueuedJobs.get();
+    }
+
+    /**
+     * @return the number of cores that the node said, in its last heartbeat, were taken by
+     * running jobs
+     */
+    public int getReportedBusyCores()
+    {
+        return reportedBusyCores.get();
+    }
+
     /**
      * Like close, but indicates that the Cluster encountered a problem.
      */
@@ -508,7 +785,7 @@ public class ClusterNode implements TransceiverListener
 
             sendShutdown();
 
-            for (ProcessManager pm : new ArrayList<ProcessManager>(runningProcesses.values()))
+            for (ProcessManager<?> pm : new ArrayList<ProcessManager<?>>(runningProcesses.values()))
             {
                 removeProcess(pm);
             }
@@ -537,7 +814,7 @@ public class ClusterNode implements TransceiverListener
 
             sendShutdown();
             
-            for (ProcessManager pm : new ArrayList<ProcessManager>(runningProcesses.values()))
+            for (ProcessManager<?> pm : new ArrayList<ProcessManager<?>>(runningProcesses.values()))
             {
                 removeProcess(pm);
             }
@@ -615,16 +892,90 @@ public class ClusterNode implements TransceiverListener
         return false;
     }
     
-    private void removeProcess(ProcessManager pm)
+    /**
+     * Fails a job that is running on this node, without otherwise disturbing the node. This
+     * is used when a message about the job could not be decoded, here or on the remote side.
+     * @param id the id of the job
+     * @param t the reason for the failure
+     * @return true if the job was running on this node, false otherwise
+     */
+    public boolean jobFailed(final long id, final Throwable t)
     {
-        runningProcesses.remove(pm.getID());
+        final ProcessManager<?> pm = runningProcesses.get(id);
+        final ProcessListener listener = processHandlers.get(id);
+
+        if (pm == null)
+        {
+            return false;
+        }
+
+        pm.setException(t);
+        removeProcess(pm);
+        if (listener != null)
+        {
+            listener.processFinished(pm);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the progress of a job that is being sent to or from the remote node in chunks,
+     * either as a job or as a result.
+     * @param id the id of the job
+     * @return the fraction of the job or result that has been transferred so far, or -1 if
+     * it isn't being transferred in chunks right now
+     */
+    public float getTransferProgress(final long id)
+    {
+        final Float progress = transferProgress.get(id);
+        return progress == null ? -1 : progress;
+    }
+
+    private void removeProcess(ProcessManager<?> pm)
+    {
+        // The result that comes back is a copy, so the memory estimate is taken from ours
+        final ProcessManager<?> sent = runningProcesses.remove(pm.getID());
+
+        transferProgress.remove(pm.getID());
         processHandlers.remove(pm.getID());
-        runningCores.addAndGet(-(pm.requestedCores(this)));
+
+        if (sent != null)
+        {
+            synchronized (stagedProcesses)
+            {
+                reclaiming.remove(pm.getID());
+                committedRamMB.addAndGet(-sent.getRamEstimateMB());
+
+                if (!stagedProcesses.remove(pm))
+                {
+                    runningCores.addAndGet(-(pm.requestedCores(this)));
+                }
+
+                startStaged();
+            }
+        }
+    }
+
+    /**
+     * Does what the node does when cores are freed: starts staged jobs in order, for as long as
+     * the next one fits. A job too big for the thread limit is started when nothing else is
+     * running, rather than never. Call while synchronized on stagedProcesses.
+     */
+    private void startStaged()
+    {
+        ProcessManager<?> next;
+
+        while ((next = stagedProcesses.peek()) != null && (runningCores.get() <= 0 ||
+                runningCores.get() + next.requestedCores(this) <= getThreadLimit()))
+        {
+            stagedProcesses.poll();
+            runningCores.addAndGet(next.requestedCores(this));
+        }
     }
 
-    public List<ProcessManager> getRunningProcesses()
+    public List<ProcessManager<?>> getRunningProcesses()
     {
-        return new ArrayList<ProcessManager> (runningProcesses.values());
+        return new ArrayList<ProcessManager<?>> (runningProcesses.values());
     }
     
     /**
@@ -640,8 +991,13 @@ public class ClusterNode implements TransceiverListener
         listener.stateChanged(this, state, ClusterNodeState.INACTIVE);
     }
 
-    public void addBottler(final Bottler bottler)
+    public void addBottler(final Bottler<?> bottler)
     {
+        if (welcomedBottlers.contains(bottler))
+        {
+            return;
+        }
+
         xc.addBottler(bottler);
         if (bottler.transfer())
         {
@@ -3,6 +3,7 @@ package edu.utexas.clm.archipelago.network.node;
 import edu.utexas.clm.archipelago.Cluster;
 import edu.utexas.clm.archipelago.FijiArchipelago;
 import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.data.Hello;
 import edu.utexas.clm.archipelago.exception.ShellExecutionException;
 import edu.utexas.clm.archipelago.listen.ClusterStateListener;
 import edu.utexas.clm.archipelago.listen.MessageType;
@@ -17,11 +18,15 @@ import edu.utexas.clm.archipelago.network.translation.Bottler;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -29,29 +34,94 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class NodeCoordinator implements NodeStateListener, NodeShellListener, ClusterStateListener
 {
+    /**
+     * An immutable view of the nodes, as they were when it was published. A new Snapshot is
+     * published whenever a node is added, removed, or changes state, with a higher version, so
+     * a reader can tell whether anything changed since the last one it saw without comparing
+     * the sets.
+     */
+    public static final class Snapshot
+    {
+        private final long version;
+        private final Set<ClusterNode> nodes, runningNodes;
+        private final int numWaitingNodes;
+        private final int maxThreadLimit;
+
+        private Snapshot(final long version,
+                         final Set<ClusterNode> nodes,
+                         final Set<ClusterNode> runningNodes,
+                         final int numWaitingNodes,
+                         final int maxThreadLimit)
+        {
+            this.version = version;
+            this.nodes = Collections.unmodifiableSet(new HashSet<ClusterNode>(nodes));
+            this.runningNodes = Collections.unmodifiableSet(
+                    new HashSet<ClusterNode>(runningNodes));
+            this.numWaitingNodes = numWaitingNodes;
+            this.maxThreadLimit = maxThreadLimit;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public Set<ClusterNode> getNodes()
+        {
+            return nodes;
+        }
+
+        public Set<ClusterNode> getRunningNodes()
+        {
+            return runningNodes;
+        }
+
+        public int getNumWaitingNodes()
+        {
+            return numWaitingNodes;
+        }
+
+        /**
+         * @return the highest thread limit of any node, or -1 if there are no nodes
+         */
+        public int getMaxThreadLimit()
+        {
+            return maxThreadLimit;
+        }
+    }
+
     private class NodeInitializer implements TransceiverListener
     {
         MessageXC xc;
         InputStream is;
         OutputStream os;
-        final AtomicBoolean isVolunteer, setHost, setUser, setExec;
-        String hostName, userName, execRoot;
         long nodeId;
 
         public NodeInitializer(final InputStream is, final OutputStream os) throws IOException
         {
+            this();
             this.is = is;
             this.os = os;
-            isVolunteer = new AtomicBoolean(false);
-            setHost = new AtomicBoolean(false);
-            setUser = new AtomicBoolean(false);
-            setExec = new AtomicBoolean(false);
+            start(new MessageXC(is, os, this, tel));
+        }
+
+        public NodeInitializer(final SocketChannel channel) throws IOException
+        {
+            this();
+            start(new MessageXC(channel, this, tel));
+        }
+
+        private NodeInitializer()
+        {
+            is = null;
+            os = null;
             nodeId = -1;
-            userName = null;
-            execRoot = null;
-            hostName = null;
+        }
 
-            xc = new MessageXC(is, os, this, tel);
+        private void start(final MessageXC xc)
+        {
+            this.xc = xc;
+            // The client answers with a HELLO
             xc.queueMessage(MessageType.GETID);
 
             FijiArchipelago.debug("NodeInitializer: leaving constructor");
@@ -65,34 +135,6 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
             nodeInitializerDone(this);
         }
 
-        private void initVolunteer()
-        {
-            if (!isVolunteer.getAndSet(true))
-            {
-                nodeId = FijiArchipelago.getUniqueID();
-                xc.setId(nodeId);
-                xc.queueMessage(MessageType.SETID, nodeId);
-            }
-        }
-
-        private void setupVolunteer()
-        {
-            if (setHost.get())
-            {
-                final ClusterNode node;
-                final NodeParameters params;
-
-                params = new NodeParameters(userName, hostName, new DummyNodeShell(), execRoot, "",
-                        cluster.getParametersFactory(), nodeId);
-
-                node = new ClusterNode(params, tel);
-                node.setMessageXC(xc);
-                node.addListener(self);
-
-                cleanup();
-            }
-        }
-
         public void streamClosed()
         {
             //TODO
@@ -107,65 +149,30 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
             {
                 switch (type)
                 {
-                    case GETID:
-                        long id = (Long)object;
-
-                        FijiArchipelago.debug("Node initializer: got id " + id);
-
-                        if (id > 0)
-                        {
-                            ClusterNode node = getNode(id);
-                            if (node != null)
-                            {
-                                FijiArchipelago.debug("Found an existing node, setting streams");
-                                xc.setId(id);
-                                node.setMessageXC(xc);
-                                cleanup();
-                            }
-                            else
-                            {
-                                initVolunteer();
-                            }
-                        }
-                        else
-                        {
-                            initVolunteer();
-                        }
-                        break;
-                    case SETID:
-                        // Set id ack from client. Only happens after a call to initVolunteer.
-                        // Now, request the hostname. When we get a return, we'll setup the
-                        // ClusterNode object. See case HOSTNAME.
-                        xc.queueMessage(MessageType.HOSTNAME);
-                        break;
-                    case HOSTNAME:
-                        String name = (String)object;
+                    case HELLO:
+                        final Hello hello = (Hello)object;
+                        ClusterNode node = hello.id > 0 ? getNode(hello.id) : null;
 
-                        FijiArchipelago.debug("Intializer for " + nodeId + " got name " + name);
+                        FijiArchipelago.debug("Node initializer: got " + hello);
 
-                        if (name.equals(""))
+                        if (node == null)
                         {
-                            hostName = "Host " + nodeId;
+                            nodeId = FijiArchipelago.getUniqueID();
+                            node = new ClusterNode(new NodeParameters(hello.user,
+                                    hello.host.equals("") ? "Host " + nodeId : hello.host,
+                                    new DummyNodeShell(), hello.execRoot, "",
+                                    cluster.getParametersFactory(), nodeId), tel);
+                            // Listen first, since the node may become active right away
+                            node.addListener(self);
+                            node.setMessageXC(xc, hello, getBottlers());
                         }
                         else
                         {
-                            hostName = name;
+                            FijiArchipelago.debug("Found an existing node, setting streams");
+                            node.setMessageXC(xc, hello, getBottlers());
                         }
 
-                        setHost.set(true);
-                        setupVolunteer();
-
-                        break;
-                    case USER:
-                        userName = (String)object;
-                        setUser.set(true);
-                        setupVolunteer();
-
-                        break;
-                    case GETEXECROOT:
-                        execRoot = (String)object;
-                        setExec.set(true);
-                        setupVolunteer();
+                        cleanup();
                         break;
                 }
             }
@@ -179,9 +186,23 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
 
     private final ReentrantLock nodeLock;
 
+    // Guarded by nodeLock
     private final Set<ClusterNode> allNodes, runningNodes, waitingNodes;
 
-    private final Vector<Bottler> bottlers;
+    // Every node in allNodes, by ID, so that it can be found without taking nodeLock
+    private final ConcurrentHashMap<Long, ClusterNode> nodeIndex;
+
+    // How many nodes have each thread limit, and the limit each node was counted under, so
+    // that the highest limit can be kept up to date as nodes come and go. Guarded by nodeLock.
+    private final TreeMap<Integer, Integer> threadLimitCounts;
+    private final HashMap<ClusterNode, Integer> countedThreadLimits;
+
+    // Guarded by nodeLock
+    private long snapshotVersion;
+
+    private volatile Snapshot snapshot;
+
+    private final Vector<Bottler<?>> bottlers;
 
     private final Vector<NodeInitializer> nodeInitializers;
 
@@ -203,8 +224,13 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
         allNodes = new HashSet<ClusterNode>();
         runningNodes = new HashSet<ClusterNode>();
         waitingNodes = new HashSet<ClusterNode>();
+        nodeIndex = new ConcurrentHashMap<Long, ClusterNode>();
+        threadLimitCounts = new TreeMap<Integer, Integer>();
+        countedThreadLimits = new HashMap<ClusterNode, Integer>();
+        snapshotVersion = 0;
+        snapshot = new Snapshot(0, allNodes, runningNodes, 0, -1);
 
-        bottlers = new Vector<Bottler>();
+        bottlers = new Vector<Bottler<?>>();
         nodeInitializers = new Vector<NodeInitializer>();
         nodeStartThreads = new Vector<Thread>();
 
@@ -235,16 +261,29 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
             final ClusterNodeState stateNow,
             final ClusterNodeState lastState)
     {
+        if (stateNow == lastState)
+        {
+            // The node's thread limit may have changed. Count it again, in case it was the
+            // highest.
+            nodeLock.lock();
+            if (allNodes.contains(node))
+            {
+                addNode(node);
+                publishSnapshot();
+            }
+            nodeLock.unlock();
 
-        nodeLock.lock();
-        allNodes.add(node);
-        nodeLock.unlock();
+            cluster.triggerListeners();
+            return;
+        }
 
         switch(stateNow)
         {
             case WAITING:
                 nodeLock.lock();
+                addNode(node);
                 waitingNodes.add(node);
+                publishSnapshot();
                 nodeLock.unlock();
                 break;
 
@@ -252,14 +291,16 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
                 nodeLock.lock();
                 FijiArchipelago.debug("Got state change to active for " + node.getHost());
 
+                addNode(node);
                 waitingNodes.remove(node);
                 runningNodes.add(node);
+                publishSnapshot();
 
                 nodeLock.unlock();
 
-                cluster.nodeStarted();
+                cluster.nodeStarted(node);
 
-                for (final Bottler bottler : bottlers)
+                for (final Bottler<?> bottler : bottlers)
                 {
                     node.addBottler(bottler);
                 }
@@ -268,17 +309,27 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
 
             case STOPPED:
             case FAILED:
+                final int numRunning;
+
                 nodeLock.lock();
                 FijiArchipelago.debug("Got state change to " + ClusterNode.stateString(stateNow) +
                         " for " + node.getHost());
 
                 runningNodes.remove(node);
                 waitingNodes.remove(node);
-                allNodes.remove(node);
+                removeNode(node);
+                numRunning = publishSnapshot().getRunningNodes().size();
 
                 nodeLock.unlock();
 
-                cluster.nodeStopped(node, runningNodes.size());
+                cluster.nodeStopped(node, numRunning);
+                break;
+
+            default:
+                nodeLock.lock();
+                addNode(node);
+                publishSnapshot();
+                nodeLock.unlock();
                 break;
         }
 
@@ -287,6 +338,72 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
 
     }
 
+    /**
+     * Adds a node to allNodes and the index, or, if it's already there, re-counts its thread
+     * limit, which may have changed since it was added. Call with nodeLock held.
+     * @param node the node to add
+     */
+    private void addNode(final ClusterNode node)
+    {
+        final int limit = node.getThreadLimit();
+        final Integer counted = countedThreadLimits.put(node, limit);
+
+        allNodes.add(node);
+        nodeIndex.put(node.getID(), node);
+
+        if (counted == null || counted != limit)
+        {
+            if (counted != null)
+            {
+                uncountThreadLimit(counted);
+            }
+            threadLimitCounts.put(limit, threadLimitCounts.containsKey(limit) ?
+                    threadLimitCounts.get(limit) + 1 : 1);
+        }
+    }
+
+    /**
+     * Removes a node from allNodes and the index. Call with nodeLock held.
+     * @param node the node to remove
+     */
+    private void removeNode(final ClusterNode node)
+    {
+        final Integer counted = countedThreadLimits.remove(node);
+
+        allNodes.remove(node);
+        nodeIndex.remove(node.getID(), node);
+
+        if (counted != null)
+        {
+            uncountThreadLimit(counted);
+        }
+    }
+
+    private void uncountThreadLimit(final int limit)
+    {
+        final int count = threadLimitCounts.get(limit);
+
+        if (count > 1)
+        {
+            threadLimitCounts.put(limit, count - 1);
+        }
+        else
+        {
+            threadLimitCounts.remove(limit);
+        }
+    }
+
+    /**
+     * Publishes a new Snapshot of the node sets. Call with nodeLock held, after changing them.
+     * @return the new Snapshot
+     */
+    private Snapshot publishSnapshot()
+    {
+        snapshot = new Snapshot(++snapshotVersion, allNodes, runningNodes, waitingNodes.size(),
+                threadLimitCounts.isEmpty() ? -1 : threadLimitCounts.lastKey());
+        return snapshot;
+    }
+
 
     public void stateChanged(Cluster cluster)
     {
@@ -336,7 +453,8 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
         };
 
         nodeLock.lock();
-        allNodes.add(node);
+        addNode(node);
+        publishSnapshot();
 
         if (cluster.getState() == Cluster.ClusterState.RUNNING ||
             cluster.getState() == Cluster.ClusterState.STARTED)
@@ -355,65 +473,78 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
         node.addListener(this);
     }
 
+    /**
+     * @return the latest Snapshot of the nodes. This takes no lock.
+     */
+    public Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @return an unmodifiable set of all of the nodes
+     */
     public Set<ClusterNode> getNodes()
     {
-        HashSet<ClusterNode> nodesOut;
-        nodeLock.lock();
-        nodesOut = new HashSet<ClusterNode>(allNodes);
-        nodeLock.unlock();
-        return nodesOut;
+        return snapshot.getNodes();
     }
 
+    /**
+     * @return an unmodifiable set of the nodes that are active
+     */
     public Set<ClusterNode> getRunningNodes()
     {
-        HashSet<ClusterNode> nodesOut;
-        nodeLock.lock();
-        nodesOut = new HashSet<ClusterNode>(runningNodes);
-        nodeLock.unlock();
-        return nodesOut;
+        return snapshot.getRunningNodes();
     }
 
+    /**
+     * @return the active nodes that have a free thread. Free threads come and go with every
+     * job, so this is worked out from the running nodes each time, rather than published.
+     */
     public Set<ClusterNode> getAvailableNodes()
     {
-        HashSet<ClusterNode> nodesOut = new HashSet<ClusterNode>();
-        nodeLock.lock();
-        for (final ClusterNode node : runningNodes)
+        final HashSet<ClusterNode> nodesOut = new HashSet<ClusterNode>();
+        for (final ClusterNode node : snapshot.getRunningNodes())
         {
             if (node.numAvailableThreads() > 0)
             {
                 nodesOut.add(node);
             }
         }
-        nodeLock.unlock();
         return nodesOut;
     }
 
     public int numRunningNodes()
     {
-        int n;
-        nodeLock.lock();
-        n =  runningNodes.size();
-        nodeLock.unlock();
-        return n;
+        return snapshot.getRunningNodes().size();
     }
 
     public int numWaitingNodes()
     {
-        int n;
-        nodeLock.lock();
-        n = waitingNodes.size();
-        nodeLock.unlock();
-        return n;
+        return snapshot.getNumWaitingNodes();
+    }
+
+    /**
+     * @return the highest thread limit of any node, or -1 if there are no nodes
+     */
+    public int getMaxThreadLimit()
+    {
+        return snapshot.getMaxThreadLimit();
     }
 
     public void reset()
     {
-        ArrayList<ClusterNode> nodes = new ArrayList<ClusterNode>(allNodes);
+        final ArrayList<ClusterNode> nodes;
         nodeLock.lock();
 
+        nodes = new ArrayList<ClusterNode>(allNodes);
         allNodes.clear();
         waitingNodes.clear();
         runningNodes.clear();
+        nodeIndex.clear();
+        threadLimitCounts.clear();
+        countedThreadLimits.clear();
+        publishSnapshot();
 
         nodeLock.unlock();
 
@@ -426,30 +557,13 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
 
     }
 
-    private ClusterNode findNode(final long id)
-    {
-        for (final ClusterNode node : allNodes)
-        {
-            if (node.getID() == id)
-            {
-                return node;
-            }
-        }
-
-        return null;
-    }
-
+    /**
+     * @param id a node ID
+     * @return the node with that ID, or null if there isn't one. This takes no lock.
+     */
     public ClusterNode getNode(final long id)
     {
-        ClusterNode node;
-
-        nodeLock.lock();
-
-        node = findNode(id);
-
-        nodeLock.unlock();
-
-        return node;
+        return nodeIndex.get(id);
     }
 
     public void execFinished(final long nodeID, final Exception e, final int status)
@@ -474,7 +588,20 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
         }
     }
 
-    public synchronized void addBottler(final Bottler bottler)
+    public void channelReady(final SocketChannel channel)
+    {
+        try
+        {
+            nodeInitializers.add(new NodeInitializer(channel));
+        }
+        catch (IOException ioe)
+        {
+            FijiArchipelago.err("Could not set up a connection from " +
+                    channel.socket().getInetAddress() + ": " + ioe);
+        }
+    }
+
+    public synchronized void addBottler(final Bottler<?> bottler)
     {
         bottlers.add(bottler);
         nodeLock.lock();
@@ -487,9 +614,9 @@ public class NodeCoordinator implements NodeStateListener, NodeShellListener, Cl
         nodeLock.unlock();
     }
 
-    public synchronized ArrayList<Bottler> getBottlers()
+    public synchronized ArrayList<Bottler<?>> getBottlers()
     {
-        return new ArrayList<Bottler>(bottlers);
+        return new ArrayList<Bottler<?>>(bottlers);
     }
 
     public ArrayList<NodeParameters> getParameters()
@@ -11,6 +11,12 @@ import edu.utexas.clm.archipelago.network.shell.NodeShellParameters;
  */
 public class NodeParameters
 {
+    /**
+     * How many jobs the Scheduler may queue on a node beyond what its cores can run at once,
+     * unless told otherwise.
+     */
+    public static final int DEFAULT_PREFETCH_DEPTH = 1;
+
     private String host;
     private String user;
 
@@ -18,6 +24,7 @@ public class NodeParameters
     private String execRoot;
     private final long id;
     private int numThreads;
+    private int prefetchDepth;
     private NodeShell shell;
     private NodeShellParameters shellParams;
     private final NodeParametersFactory factory;
@@ -31,6 +38,7 @@ public class NodeParameters
         execRoot = np.getExecRoot();
         fileRoot = np.getFileRoot();
         numThreads = np.getThreadLimit();
+        prefetchDepth = np.getPrefetchDepth();
         shellParams = new NodeShellParameters(np.shellParams);
         factory = np.getFactory();
     }
@@ -62,6 +70,7 @@ public class NodeParameters
         this.factory = factory;
         shellParams = shellIn.defaultParameters();
         numThreads = 0;
+        prefetchDepth = DEFAULT_PREFETCH_DEPTH;
     }
 
     public synchronized void setUser(final String user)
@@ -105,6 +114,17 @@ public class NodeParameters
         this.numThreads = numThreads;
     }
 
+    /**
+     * Sets how many jobs may be queued on the node beyond what its cores can run at once, so
+     * that it can start the next one without waiting for the root to send it. Set 0 to send a
+     * job only when there is a core free for it.
+     * @param prefetchDepth the number of jobs to queue ahead on the node
+     */
+    public synchronized void setPrefetchDepth(final int prefetchDepth)
+    {
+        this.prefetchDepth = prefetchDepth;
+    }
+
     /**
      * Sets default-empty values for parameters that are different between this NodeParameters and
      * params.
@@ -193,6 +213,11 @@ public class NodeParameters
         return numThreads;
     }
 
+    public int getPrefetchDepth()
+    {
+        return prefetchDepth;
+    }
+
     public NodeParametersFactory getFactory()
     {
         return factory;
@@ -24,8 +24,11 @@ import edu.utexas.clm.archipelago.listen.ClusterStateListener;
 import edu.utexas.clm.archipelago.listen.NodeShellListener;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -67,6 +70,49 @@ public class ArchipelagoServer implements ClusterStateListener
         }
     }
 
+    /**
+     * Accepts connections that use the selector transport, on a port of their own.
+     */
+    private class ChannelListenThread extends Thread
+    {
+        private final ServerSocketChannel channel;
+
+        public ChannelListenThread(final ServerSocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public void run()
+        {
+            while (isRunning.get())
+            {
+                try
+                {
+                    final SocketChannel clientChannel = channel.accept();
+                    FijiArchipelago.log("ArchipelagoServer: Received selector connection from " +
+                            clientChannel.socket().getInetAddress());
+                    lock.lock();
+                    try
+                    {
+                        nodeListener.channelReady(clientChannel);
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    if (!channel.isOpen())
+                    {
+                        return;
+                    }
+                    FijiArchipelago.log("ArchipelagoServer: IOException: " + ioe);
+                }
+            }
+        }
+    }
+
     private static ArchipelagoServer server = null;
 
     private NodeShellListener nodeListener;    
@@ -74,6 +120,9 @@ public class ArchipelagoServer implements ClusterStateListener
     private int port;
     private AtomicBoolean isRunning;
     private Thread listenThread;
+    private ServerSocketChannel channelSocket;
+    private int channelPort;
+    private Thread channelListenThread;
     private final ReentrantLock lock = new ReentrantLock();
     
     private ArchipelagoServer(NodeShellListener listener, int p)
@@ -82,6 +131,9 @@ public class ArchipelagoServer implements ClusterStateListener
         socket = null;
         isRunning = new AtomicBoolean(false);
         port = p;
+        channelSocket = null;
+        channelPort = -1;
+        channelListenThread = null;
     }
     
     public boolean active()
@@ -148,6 +200,20 @@ public class ArchipelagoServer implements ClusterStateListener
             {
                 //Nothing to do
             }
+
+            if (channelSocket != null)
+            {
+                try
+                {
+                    channelSocket.close();
+                }
+                catch (IOException ioe)
+                {
+                    //Nothing to do
+                }
+                channelSocket = null;
+                channelPort = -1;
+            }
         }
     }
     
@@ -168,6 +234,64 @@ public class ArchipelagoServer implements ClusterStateListener
     {
         return port;
     }
+
+    /**
+     * Returns the port on which this server accepts connections that use the selector
+     * transport, starting to listen on it if we aren't already. These connections are handed
+     * to the NodeShellListener as SocketChannels, to be serviced by a few shared selector
+     * loops rather than by threads of their own. The port is the first free one after
+     * getPort().
+     * @return the selector transport port, or -1 if this server isn't running or no port
+     * could be opened
+     */
+    public synchronized int getSelectorPort()
+    {
+        if (!isRunning.get())
+        {
+            return -1;
+        }
+        else if (channelSocket != null)
+        {
+            return channelPort;
+        }
+
+        for (int p = port + 1; channelSocket == null && p <= port + 10; ++p)
+        {
+            ServerSocketChannel ssc = null;
+            try
+            {
+                ssc = ServerSocketChannel.open();
+                ssc.socket().bind(new InetSocketAddress(p));
+                channelSocket = ssc;
+                channelPort = p;
+                FijiArchipelago.debug("Started selector transport server on port " + p);
+            }
+            catch (IOException ioe)
+            {
+                if (ssc != null)
+                {
+                    try
+                    {
+                        ssc.close();
+                    }
+                    catch (IOException ioe2)
+                    {
+                        //Nothing to do
+                    }
+                }
+            }
+        }
+
+        if (channelSocket == null)
+        {
+            return -1;
+        }
+
+        channelListenThread = new ChannelListenThread(channelSocket);
+        channelListenThread.start();
+
+        return channelPort;
+    }
     
     public void stateChanged(Cluster cluster)
     {
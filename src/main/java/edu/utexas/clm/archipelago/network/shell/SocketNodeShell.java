@@ -30,15 +30,24 @@ import edu.utexas.clm.archipelago.network.shell.ssh.JSchUtility;
 
 public class SocketNodeShell extends SSHNodeShell
 {
+    /**
+     * Value of the "transport" parameter for a node whose connection should be serviced by the
+     * shared selector loops, rather than by threads of its own.
+     */
+    public static final String SELECTOR_TRANSPORT = "selector";
+    public static final String STREAM_TRANSPORT = "stream";
+
     private static final SocketNodeShell shell = new SocketNodeShell();
 
     protected String getArguments(final NodeParameters param,
                                   final NodeShellListener listener)
     {
         final ArchipelagoServer server = ArchipelagoServer.getServer(listener);
+        final int port = useSelector(param) && server.getSelectorPort() > 0 ?
+                server.getSelectorPort() : server.getPort();
         return "--allow-multiple --full-classpath " +
                 " --main-class edu.utexas.clm.archipelago.Fiji_Archipelago " +
-                Cluster.getCluster().getLocalHostName() + " " + server.getPort() + " " + param.getID() +
+                Cluster.getCluster().getLocalHostName() + " " + port + " " + param.getID() +
                 " 2>&1 > ~/" + param.getHost() + "_" + param.getID() + ".log";    
     }
 
@@ -72,6 +81,26 @@ public class SocketNodeShell extends SSHNodeShell
         }
     }
     
+    private static boolean useSelector(final NodeParameters param)
+    {
+        try
+        {
+            return SELECTOR_TRANSPORT.equals(param.getShellParams().getString("transport"));
+        }
+        catch (Exception e)
+        {
+            // Parameters from before there was a choice
+            return false;
+        }
+    }
+
+    public NodeShellParameters defaultParameters()
+    {
+        final NodeShellParameters nsp = super.defaultParameters();
+        nsp.addKey("transport", STREAM_TRANSPORT);
+        return nsp;
+    }
+
     public String name()
     {
         return "Insecure Socket Shell";
@@ -15,6 +15,7 @@ import edu.utexas.clm.archipelago.network.node.NodeParameters;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -137,6 +138,8 @@ public class JSchUtility extends Thread
             }
 
             public void ioStreamsReady(InputStream is, OutputStream os) {}
+
+            public void channelReady(SocketChannel channel) {}
         };
 
         try
@@ -0,0 +1,35 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * 
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network.translation;
+
+/**
+ * A Bottler that only handles Objects of an exact, known set of classes. MessageXC uses the
+ * declared classes to decide which Bottlers to consult for a given Object without asking every
+ * Bottler, so Objects of any other class are passed through without calling accepts().
+ */
+public interface ClassBottler<A> extends Bottler<A>
+{
+    /**
+     * Return the classes handled by this Bottler. Matching is on the exact runtime class of an
+     * Object, not on its superclasses or interfaces. accepts() is still called, but only for
+     * Objects whose class appears here.
+     * @return the classes handled by this Bottler.
+     */
+    public Class<?>[] bottledClasses();
+}
@@ -7,8 +7,9 @@ import java.io.File;
 /**
  *
  */
-public class FileBottler implements Bottler<File>
+public class FileBottler implements ClassBottler<File>
 {
+    private static final Class<?>[] classes = {File.class};
 
     public boolean accepts(final Object o)
     {
@@ -20,6 +21,11 @@ public class FileBottler implements Bottler<File>
         return new FileBottle((File)o, xc);
     }
 
+    public Class<?>[] bottledClasses()
+    {
+        return classes;
+    }
+
     public boolean transfer() {
         return true;
     }
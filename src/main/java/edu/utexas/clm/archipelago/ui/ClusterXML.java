@@ -70,6 +70,7 @@ public class ClusterXML
                 addXMLField(doc, clusterNode, "exec", np.getExecRoot());
                 addXMLField(doc, clusterNode, "file", np.getFileRoot());
                 addXMLField(doc, clusterNode, "limit", "" + np.getThreadLimit());
+                addXMLField(doc, clusterNode, "prefetch", "" + np.getPrefetchDepth());
                 addXMLField(doc, clusterNode, "shell", np.getShell().name());
 
                 try
@@ -210,6 +211,7 @@ public class ClusterXML
     {
         final NodeParameters nodeParam =
                 cluster.getParametersFactory().getNewParameters(getXMLField(node, "host"));
+        final String prefetch = getXMLField(node, "prefetch");
         NodeShellParameters shellParams;
 
         nodeParam.setUser(getXMLField(node, "user"));
@@ -218,6 +220,12 @@ public class ClusterXML
         nodeParam.setThreadLimit(Integer.parseInt(getXMLField(node, "limit")));
         nodeParam.setShell(getXMLField(node, "shell"));
 
+        // Files saved before prefetching existed don't have this field
+        if (prefetch != null)
+        {
+            nodeParam.setPrefetchDepth(Integer.parseInt(prefetch));
+        }
+
         if (nodeParam.getShell() == null)
         {
             throw new Exception("Could not load shell " + getXMLField(node, "shell"));
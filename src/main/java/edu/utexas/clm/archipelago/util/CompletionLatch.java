@@ -0,0 +1,210 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-shot latch that threads can wait on until it is opened. Waiting threads are parked
+ * and unparked, rather than put to sleep and interrupted, so a thread's interrupt status is
+ * only ever used to mean that it was interrupted.
+ *
+ * The state is a single word: the head of a stack of waiting threads while the latch is
+ * closed, or a marker once it is open. Opening the latch swaps in the marker and unparks every
+ * thread on the stack. Checking an open latch allocates nothing and takes no lock.
+ */
+public class CompletionLatch
+{
+    private static final class Waiter
+    {
+        private volatile Thread thread;
+        private volatile Waiter next;
+
+        public Waiter(final Thread thread)
+        {
+            this.thread = thread;
+        }
+    }
+
+    // Stands in for the stack of waiters once the latch is open
+    private static final Waiter OPEN = new Waiter(null);
+
+    private static final AtomicReferenceFieldUpdater<CompletionLatch, Waiter> headUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(CompletionLatch.class, Waiter.class, "head");
+
+    // null while closed with nobody waiting
+    private volatile Waiter head = null;
+
+    /**
+     * @return true if open() has been called
+     */
+    public boolean isOpen()
+    {
+        return head == OPEN;
+    }
+
+    /**
+     * Opens the latch, waking every thread that is waiting on it.
+     * @return true if this call opened the latch, false if it was already open
+     */
+    public boolean open()
+    {
+        Waiter waiter = headUpdater.getAndSet(this, OPEN);
+
+        if (waiter == OPEN)
+        {
+            return false;
+        }
+
+        while (waiter != null)
+        {
+            final Thread thread = waiter.thread;
+
+            if (thread != null)
+            {
+                waiter.thread = null;
+                LockSupport.unpark(thread);
+            }
+
+            waiter = waiter.next;
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until the latch is open.
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void await() throws InterruptedException
+    {
+        await(false, 0);
+    }
+
+    /**
+     * Waits until the latch is open, or the timeout runs out.
+     * @param timeout the longest time to wait
+     * @param unit the unit of timeout
+     * @return true if the latch is open, false if we timed out
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return await(true, unit.toNanos(timeout));
+    }
+
+    private boolean await(final boolean timed, final long nanos) throws InterruptedException
+    {
+        final long start = timed ? System.nanoTime() : 0;
+        Waiter waiter = null;
+        boolean queued = false;
+
+        while (true)
+        {
+            final Waiter h = head;
+
+            if (h == OPEN)
+            {
+                return true;
+            }
+            else if (Thread.interrupted())
+            {
+                if (queued)
+                {
+                    removeWaiter(waiter);
+                }
+                throw new InterruptedException();
+            }
+            else if (waiter == null)
+            {
+                if (timed && nanos <= 0)
+                {
+                    return false;
+                }
+                waiter = new Waiter(Thread.currentThread());
+            }
+            else if (!queued)
+            {
+                waiter.next = h;
+                queued = headUpdater.compareAndSet(this, h, waiter);
+            }
+            else if (timed)
+            {
+                // Measured from the start, so that spurious wakeups don't stretch the wait
+                final long remaining = nanos - (System.nanoTime() - start);
+
+                if (remaining <= 0)
+                {
+                    removeWaiter(waiter);
+                    return head == OPEN;
+                }
+
+                LockSupport.parkNanos(this, remaining);
+            }
+            else
+            {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Unlinks a waiter that gave up, along with any others that have, so that a latch that
+     * is never opened doesn't collect waiters.
+     * @param waiter the waiter that gave up
+     */
+    private void removeWaiter(final Waiter waiter)
+    {
+        boolean restart = true;
+
+        waiter.thread = null;
+
+        while (restart)
+        {
+            Waiter pred = null;
+            Waiter q = head;
+
+            restart = false;
+
+            while (q != null && q != OPEN && !restart)
+            {
+                final Waiter s = q.next;
+
+                if (q.thread != null)
+                {
+                    pred = q;
+                }
+                else if (pred != null)
+                {
+                    pred.next = s;
+                    // If pred gave up too, it may already have been unlinked
+                    restart = pred.thread == null;
+                }
+                else
+                {
+                    restart = !headUpdater.compareAndSet(this, q, s);
+                }
+
+                q = s;
+            }
+        }
+    }
+}
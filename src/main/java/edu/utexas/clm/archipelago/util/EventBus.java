@@ -0,0 +1,365 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.util;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells listeners that something changed, without making the thread that changed it wait
+ * for them.
+ *
+ * An event carries nothing, so a listener is expected to look at the current state of
+ * whatever it listens to when it is called. That lets a burst of events be coalesced: each
+ * listener is called at most once per interval, and an event posted while a listener is
+ * waiting for its turn is folded into the call it is already due. A listener is never called
+ * from two threads at once, and every event is followed by a call that starts after it was
+ * posted, so a listener always gets to see the latest state. Listeners are called on a pool
+ * of daemon threads, one at a time per listener, so that a slow one doesn't hold up the rest.
+ * Once the bus is shut down, its threads exit and each event is delivered on the posting
+ * thread before post returns, after any call that is already under way.
+ *
+ * @param <L> the type of listener
+ */
+public class EventBus<L>
+{
+    /**
+     * Calls a listener.
+     * @param <L> the type of listener
+     */
+    public interface Delivery<L>
+    {
+        public void deliver(L listener);
+    }
+
+    private static final int IDLE = 0;
+    // A call is due, either waiting on the timer or queued on the executor
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    // Running, and another event was posted since the call started
+    private static final int RUNNING_DIRTY = 3;
+
+    private static final long WORKER_KEEP_ALIVE_S = 60;
+
+    private class Subscriber implements Runnable
+    {
+        private final L listener;
+        private final AtomicInteger state;
+        // When the last call started, by System.nanoTime()
+        private final AtomicLong lastDelivery;
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean removed;
+        // Set when an event that shouldn't wait out the interval comes in while we're running
+        private volatile boolean urgent;
+
+        public Subscriber(final L listener)
+        {
+            this.listener = listener;
+            state = new AtomicInteger(IDLE);
+            lastDelivery = new AtomicLong(System.nanoTime() - intervalNanos);
+            timeout = null;
+            removed = false;
+            urgent = false;
+        }
+
+        public void post(final boolean now)
+        {
+            if (executor.isShutdown())
+            {
+                call();
+                return;
+            }
+
+            if (now)
+            {
+                urgent = true;
+            }
+
+            while (true)
+            {
+                final int s = state.get();
+
+                if (s == IDLE)
+                {
+                    if (state.compareAndSet(IDLE, SCHEDULED))
+                    {
+                        schedule(now);
+                        return;
+                    }
+                }
+                else if (s == RUNNING)
+                {
+                    if (state.compareAndSet(RUNNING, RUNNING_DIRTY))
+                    {
+                        return;
+                    }
+                }
+                else
+                {
+                    // Already due for a call that starts after this event. Hurry it along
+                    // if it's waiting on the timer and we've been asked not to wait.
+                    final TimerWheel.Timeout t = timeout;
+
+                    if (now && s == SCHEDULED && t != null && t.cancel())
+                    {
+                        submit();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Arranges for the listener to be called, once the interval since its last call has
+         * passed, or right away if now is true. Call in the SCHEDULED state.
+         */
+        private void schedule(final boolean now)
+        {
+            final long wait = now || executor.isShutdown() ? 0 :
+                    lastDelivery.get() + intervalNanos - System.nanoTime();
+
+            if (wait > 0)
+            {
+                timeout = timer.schedule(this, wait, TimeUnit.NANOSECONDS);
+            }
+            else
+            {
+                submit();
+            }
+        }
+
+        /**
+         * Called by the timer. Moves the call off of the timer thread.
+         */
+        public void run()
+        {
+            submit();
+        }
+
+        private void submit()
+        {
+            timeout = null;
+
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        deliver();
+                    }
+                });
+            }
+            catch (RejectedExecutionException ree)
+            {
+                // The bus has been shut down
+                deliver();
+            }
+        }
+
+        private void deliver()
+        {
+            state.set(RUNNING);
+            urgent = false;
+
+            call();
+
+            if (!state.compareAndSet(RUNNING, IDLE))
+            {
+                // Something happened while the listener ran
+                state.set(SCHEDULED);
+                schedule(urgent);
+            }
+        }
+
+        /**
+         * Calls the listener, once any call on another thread is done.
+         */
+        private synchronized void call()
+        {
+            if (!removed)
+            {
+                lastDelivery.set(System.nanoTime());
+
+                try
+                {
+                    delivery.deliver(listener);
+                }
+                catch (RuntimeException re)
+                {
+                    FijiArchipelago.err("EventBus " + name + ": listener " + listener +
+                            " failed: " + re);
+                    FijiArchipelago.debug("EventBus: listener failed", re);
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final TimerWheel timer;
+    private final Delivery<L> delivery;
+    private final CopyOnWriteArrayList<Subscriber> subscribers;
+    private final ExecutorService executor;
+    private volatile long intervalNanos;
+
+    /**
+     * @param name a name for the bus, used for its threads
+     * @param timer the timer used to wait out the interval between calls
+     * @param interval the shortest time between two calls to the same listener
+     * @param unit the unit of interval
+     * @param delivery calls a listener
+     */
+    public EventBus(final String name, final TimerWheel timer, final long interval,
+                    final TimeUnit unit, final Delivery<L> delivery)
+    {
+        this.name = name;
+        this.timer = timer;
+        this.delivery = delivery;
+        intervalNanos = Math.max(0, unit.toNanos(interval));
+        subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+        // At most one thread per listener is ever busy, so this never grows large.
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                WORKER_KEEP_ALIVE_S, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable,
+                                name + " " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Adds a listener, unless it has already been added.
+     * @param listener the listener to add
+     * @return true if it was added
+     */
+    public synchronized boolean add(final L listener)
+    {
+        if (find(listener) != null)
+        {
+            return false;
+        }
+
+        subscribers.add(new Subscriber(listener));
+        return true;
+    }
+
+    /**
+     * Removes a listener. It will not be called once this returns, unless a call has already
+     * started.
+     * @param listener the listener to remove
+     * @return true if it was removed
+     */
+    public synchronized boolean remove(final L listener)
+    {
+        final Subscriber subscriber = find(listener);
+
+        if (subscriber == null)
+        {
+            return false;
+        }
+
+        subscriber.removed = true;
+        subscribers.remove(subscriber);
+        return true;
+    }
+
+    private Subscriber find(final L listener)
+    {
+        for (final Subscriber subscriber : subscribers)
+        {
+            if (subscriber.listener.equals(listener))
+            {
+                return subscriber;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Posts an event, to be delivered to each listener once the interval since its last call
+     * has passed. Returns right away.
+     */
+    public void post()
+    {
+        for (final Subscriber subscriber : subscribers)
+        {
+            subscriber.post(false);
+        }
+    }
+
+    /**
+     * Posts an event, to be delivered to each listener as soon as it is free, without waiting
+     * out the interval. This is for events that are rare, but that listeners should hear about
+     * promptly.
+     */
+    public void postNow()
+    {
+        for (final Subscriber subscriber : subscribers)
+        {
+            subscriber.post(true);
+        }
+    }
+
+    /**
+     * Sets the shortest time between two calls to the same listener.
+     * @param interval the interval
+     * @param unit the unit of interval
+     */
+    public void setInterval(final long interval, final TimeUnit unit)
+    {
+        intervalNanos = Math.max(0, unit.toNanos(interval));
+    }
+
+    public long getInterval(final TimeUnit unit)
+    {
+        return unit.convert(intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Lets the bus's threads exit once the calls already under way are done. Events posted
+     * afterwards are still delivered, but on the thread that posts them, before post returns.
+     * A call to a listener that is under way is finished first.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown()
+    {
+        return executor.isShutdown();
+    }
+}
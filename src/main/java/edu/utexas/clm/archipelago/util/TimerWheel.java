@@ -0,0 +1,407 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.util;
+
+import edu.utexas.clm.archipelago.FijiArchipelago;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs short tasks after a delay, all on one thread, so that waiting out a timeout doesn't
+ * cost a thread of its own.
+ *
+ * Timeouts are hashed into a ring of buckets by the tick they're due on. Every tick, the timer
+ * thread runs the due timeouts in one bucket, so scheduling and cancelling a timeout are
+ * constant time no matter how many are pending. A timeout never runs early, and runs at most
+ * about one tick late, unless the tasks ahead of it are slow. Tasks run on the timer thread,
+ * and so should only do something quick, like waking another thread.
+ *
+ * The timer thread is a daemon, started when the first timeout is scheduled, and parks without
+ * ticking while no timeouts are pending. It exits once stop() is called.
+ */
+public class TimerWheel
+{
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // Longer delays than this are cut short to it, so that deadlines can't overflow
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE / 4;
+
+    /**
+     * A handle on a scheduled task, which may be used to cancel it.
+     */
+    public static final class Timeout
+    {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final Runnable task;
+        private final long deadlineTick;
+        private volatile int state = PENDING;
+
+        // This Timeout's neighbors in its bucket. Only the timer thread touches these.
+        private Timeout prev = null, next = null;
+
+        private Timeout(final Runnable task, final long deadlineTick)
+        {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels this timeout, so that its task won't run.
+         * @return true if the task was cancelled, false if it already ran or was cancelled
+         */
+        public boolean cancel()
+        {
+            return stateUpdater.compareAndSet(this, PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled()
+        {
+            return state == CANCELLED;
+        }
+
+        /**
+         * @return true if the task has run, or is running
+         */
+        public boolean isExpired()
+        {
+            return state == EXPIRED;
+        }
+
+        private void expire()
+        {
+            if (stateUpdater.compareAndSet(this, PENDING, EXPIRED))
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException re)
+                {
+                    FijiArchipelago.err("TimerWheel: timeout task failed: " + re);
+                }
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of Timeouts, so that any one can be removed in constant time.
+     */
+    private static final class Bucket
+    {
+        private Timeout head = null, tail = null;
+
+        public void add(final Timeout timeout)
+        {
+            timeout.prev = tail;
+            timeout.next = null;
+
+            if (tail == null)
+            {
+                head = timeout;
+            }
+            else
+            {
+                tail.next = timeout;
+            }
+
+            tail = timeout;
+        }
+
+        public void remove(final Timeout timeout)
+        {
+            if (timeout.prev == null)
+            {
+                head = timeout.next;
+            }
+            else
+            {
+                timeout.prev.next = timeout.next;
+            }
+
+            if (timeout.next == null)
+            {
+                tail = timeout.prev;
+            }
+            else
+            {
+                timeout.next.prev = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    // Timeouts that have been scheduled, but not yet put in a bucket by the timer thread
+    private final ConcurrentLinkedQueue<Timeout> incoming;
+    private final Thread thread;
+    private final AtomicBoolean started;
+    // True while the timer thread is parked with no timeouts pending
+    private volatile boolean idle;
+    private volatile boolean stopped;
+
+    // The following belong to the timer thread.
+    // The last tick that has been run
+    private long tick;
+    // The number of Timeouts in buckets, including cancelled ones not yet removed
+    private int nPending;
+
+    public TimerWheel(final String name)
+    {
+        this(name, DEFAULT_TICK_MS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name the name of the timer thread
+     * @param tickDuration how often the timer thread looks for due timeouts
+     * @param unit the unit of tickDuration
+     * @param wheelSize the number of buckets. This is rounded up to a power of two.
+     */
+    public TimerWheel(final String name, final long tickDuration, final TimeUnit unit,
+                      final int wheelSize)
+    {
+        int size = 1;
+
+        while (size < wheelSize)
+        {
+            size <<= 1;
+        }
+
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        wheel = new Bucket[size];
+        mask = size - 1;
+        startTime = System.nanoTime();
+        incoming = new ConcurrentLinkedQueue<Timeout>();
+        started = new AtomicBoolean(false);
+        idle = false;
+        stopped = false;
+        tick = 0;
+        nPending = 0;
+
+        for (int i = 0; i < size; ++i)
+        {
+            wheel[i] = new Bucket();
+        }
+
+        thread = new Thread(name)
+        {
+            public void run()
+            {
+                runTimer();
+            }
+        };
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Schedules a task to run on the timer thread once the given delay has passed. If the
+     * timer has been stopped, the task runs right away, on the calling thread.
+     * @param task the task to run. It should return quickly.
+     * @param delay the time to wait before running it
+     * @param unit the unit of delay
+     * @return a handle that may be used to cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit)
+    {
+        final long nanos = Math.min(MAX_DELAY_NANOS, Math.max(0, unit.toNanos(delay)));
+        final long sinceStart = System.nanoTime() - startTime + nanos;
+        final Timeout timeout = new Timeout(task, (sinceStart + tickNanos - 1) / tickNanos);
+
+        incoming.add(timeout);
+
+        if (stopped)
+        {
+            // The timer thread may already have gone
+            expireIncoming();
+        }
+        else if (!started.getAndSet(true))
+        {
+            thread.start();
+        }
+        else if (idle)
+        {
+            LockSupport.unpark(thread);
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Timeouts that are still pending run right away rather than
+     * never, since whatever is waiting on them would otherwise wait forever, and timeouts
+     * scheduled afterwards run as soon as they are scheduled. This does not wait for the
+     * timer thread to exit.
+     */
+    public void stop()
+    {
+        stopped = true;
+
+        if (!started.getAndSet(true))
+        {
+            expireIncoming();
+        }
+        else
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    private void runTimer()
+    {
+        while (!stopped)
+        {
+            final long nextTickTime;
+            final long now;
+
+            transferIncoming();
+
+            if (nPending == 0)
+            {
+                idle = true;
+
+                if (incoming.isEmpty())
+                {
+                    LockSupport.park(this);
+                }
+
+                idle = false;
+
+                // Nothing is in the wheel, so there are no ticks to catch up on
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                continue;
+            }
+
+            nextTickTime = startTime + (tick + 1) * tickNanos;
+            now = System.nanoTime();
+
+            if (now - nextTickTime < 0)
+            {
+                LockSupport.parkNanos(this, nextTickTime - now);
+            }
+            else
+            {
+                ++tick;
+                expireBucket(wheel[(int)(tick & mask)]);
+            }
+        }
+
+        for (final Bucket bucket : wheel)
+        {
+            Timeout timeout;
+
+            while ((timeout = bucket.head) != null)
+            {
+                bucket.remove(timeout);
+                timeout.expire();
+            }
+        }
+        nPending = 0;
+
+        expireIncoming();
+    }
+
+    /**
+     * Runs every timeout that has been scheduled but not yet put in a bucket, once the timer
+     * has stopped.
+     */
+    private void expireIncoming()
+    {
+        Timeout timeout;
+
+        while ((timeout = incoming.poll()) != null)
+        {
+            timeout.expire();
+        }
+    }
+
+    /**
+     * Puts newly scheduled timeouts into their buckets, running any that are already due.
+     */
+    private void transferIncoming()
+    {
+        Timeout timeout;
+
+        while ((timeout = incoming.poll()) != null)
+        {
+            if (timeout.isCancelled())
+            {
+                continue;
+            }
+
+            if (timeout.deadlineTick <= tick)
+            {
+                timeout.expire();
+            }
+            else
+            {
+                wheel[(int)(timeout.deadlineTick & mask)].add(timeout);
+                ++nPending;
+            }
+        }
+    }
+
+    /**
+     * Runs the timeouts in the given bucket that are due by the current tick, and drops the
+     * cancelled ones. Timeouts that are due on a later turn of the wheel are left alone.
+     * @param bucket the bucket for the current tick
+     */
+    private void expireBucket(final Bucket bucket)
+    {
+        Timeout timeout = bucket.head;
+
+        while (timeout != null)
+        {
+            final Timeout next = timeout.next;
+
+            if (timeout.isCancelled())
+            {
+                bucket.remove(timeout);
+                --nPending;
+            }
+            else if (timeout.deadlineTick <= tick)
+            {
+                bucket.remove(timeout);
+                --nPending;
+                timeout.expire();
+            }
+
+            timeout = next;
+        }
+    }
+}
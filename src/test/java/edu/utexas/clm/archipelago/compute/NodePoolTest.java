@@ -0,0 +1,220 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.compute;
+
+import edu.utexas.clm.archipelago.listen.ProcessListener;
+import edu.utexas.clm.archipelago.network.node.ClusterNode;
+import edu.utexas.clm.archipelago.network.node.ClusterNodeTest;
+import edu.utexas.clm.archipelago.network.node.LoopbackNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a NodePool offers the nodes with the most cores free first, and falls back on
+ * nodes that can queue a job when none can run it.
+ */
+public class NodePoolTest
+{
+    private static final ProcessListener IGNORE = new ProcessListener()
+    {
+        public boolean processFinished(final ProcessManager<?> process)
+        {
+            return true;
+        }
+
+        public void processReclaimed(final ProcessManager<?> process) {}
+    };
+
+    private final List<LoopbackNode> loopbacks = new ArrayList<LoopbackNode>();
+    private long nextID = 1;
+
+    private ClusterNode node(final int cores, final int ramMBMax, final int prefetchDepth)
+            throws Exception
+    {
+        final LoopbackNode loopback = new LoopbackNode(loopbacks.size() + 1, cores, ramMBMax,
+                prefetchDepth);
+        loopbacks.add(loopback);
+        return loopback.node;
+    }
+
+    private ProcessManager<Integer> job(final float cores, final boolean fractional,
+                                        final int ramMB)
+    {
+        return new ProcessManager<Integer>(new ClusterNodeTest.Nothing(), nextID++, cores,
+                fractional, ramMB);
+    }
+
+    private void closeAll()
+    {
+        for (final LoopbackNode loopback : loopbacks)
+        {
+            loopback.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testMostFreeFirst() throws Exception
+    {
+        final NodePool pool = new NodePool();
+
+        try
+        {
+            final ClusterNode one = node(1, 0, 0), four = node(4, 0, 0), two = node(2, 0, 0);
+
+            pool.update(one);
+            pool.update(four);
+            pool.update(two);
+            assertEquals(3, pool.size());
+            assertEquals(7, pool.freeCores());
+            assertEquals(4, pool.maxFreeCores());
+
+            assertEquals(four, pool.find(job(1, false, 0)));
+            for (int i = 0; i < 2; ++i)
+            {
+                assertTrue(four.submit(job(1, false, 0), IGNORE));
+                pool.update(four);
+            }
+
+            // four and two have two cores free each now, and four was filed last
+            assertEquals(5, pool.freeCores());
+            assertEquals(2, pool.maxFreeCores());
+            assertEquals(two, pool.find(job(1, false, 0)));
+            assertEquals(two, pool.find(job(2, false, 0)));
+            assertNull(pool.find(job(3, false, 0)));
+
+            // Nodes with as many cores free as each other are offered in turn
+            pool.update(two);
+            assertEquals(four, pool.find(job(1, false, 0)));
+
+            // A node is only offered once it has been told about
+            assertTrue(four.submit(job(2, false, 0), IGNORE));
+            assertEquals(four, pool.find(job(1, false, 0)));
+            pool.update(four);
+            assertEquals(2, pool.size());
+            assertEquals(two, pool.find(job(1, false, 0)));
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testFractionalAndRam() throws Exception
+    {
+        final NodePool pool = new NodePool();
+
+        try
+        {
+            final ClusterNode four = node(4, 1000, 0), two = node(2, 1000, 0);
+
+            assertTrue(four.submit(job(1, false, 700), IGNORE));
+            pool.update(four);
+            pool.update(two);
+
+            // four has the most cores free, but not the memory
+            assertEquals(four, pool.find(job(1, false, 0)));
+            assertEquals(four, pool.find(job(1, false, 100)));
+            assertEquals(two, pool.find(job(1, false, 101)));
+
+            // All of four's cores is more than it has free, while all of two's is not
+            assertEquals(two, pool.find(job(1, true, 0)));
+            assertEquals(four, pool.find(job(0.5f, true, 0)));
+            assertEquals(two, pool.findFreeExcept(job(1, false, 0), four.getID()));
+            assertEquals(two, pool.findAmong(job(1, false, 0), Arrays.asList(two.getID())));
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testStageWhenFull() throws Exception
+    {
+        final NodePool pool = new NodePool();
+
+        try
+        {
+            final ClusterNode busy = node(1, 0, 1), idle = node(1, 0, 1);
+            final ProcessManager<Integer> queued = job(1, false, 0);
+
+            assertTrue(busy.submit(job(1, false, 0), IGNORE));
+            pool.update(busy);
+            pool.update(idle);
+
+            // busy could queue the job, but idle can run it now
+            assertEquals(idle, pool.find(queued));
+            assertNull(pool.findAmong(queued, Arrays.asList(busy.getID())));
+
+            pool.remove(idle);
+            assertEquals(busy, pool.find(queued));
+            assertEquals(busy, pool.findAmong(queued, Arrays.asList(busy.getID())));
+            assertNull(pool.findReclaimable());
+
+            assertTrue(busy.submit(queued, IGNORE));
+            pool.update(busy);
+            assertTrue(pool.isEmpty());
+            assertNull(pool.find(job(1, false, 0)));
+            assertEquals(busy, pool.findReclaimable());
+
+            assertTrue(busy.reclaimStaged(1));
+            assertEquals(1, pool.numReclaiming());
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testInactiveDropped() throws Exception
+    {
+        final NodePool pool = new NodePool();
+
+        try
+        {
+            final ClusterNode node = node(2, 0, 0);
+            final List<Long> ids = Arrays.asList(node.getID());
+
+            pool.update(node);
+            assertTrue(pool.anyActive(ids));
+
+            node.close();
+            pool.update(node);
+            assertFalse(pool.anyActive(ids));
+            assertEquals(0, pool.size());
+            assertEquals(0, pool.freeCores());
+            assertNull(pool.find(job(1, false, 0)));
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.compute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the percentiles that the Scheduler judges stragglers by.
+ */
+public class RunTimesTest
+{
+    @Test
+    public void testPercentile()
+    {
+        final RunTimes times = new RunTimes(10);
+
+        assertEquals(-1, times.percentile(0.9f));
+
+        for (int i = 10; i >= 1; --i)
+        {
+            times.add(i * 100);
+        }
+
+        assertEquals(10, times.size());
+        assertEquals(100, times.percentile(0));
+        assertEquals(500, times.percentile(0.5f));
+        assertEquals(900, times.percentile(0.9f));
+        assertEquals(1000, times.percentile(1));
+    }
+
+    @Test
+    public void testOldestForgotten()
+    {
+        final RunTimes times = new RunTimes(4);
+
+        times.add(5000);
+        for (int i = 0; i < 4; ++i)
+        {
+            times.add(10);
+        }
+
+        // The slow run was the oldest, so it has been pushed out
+        assertEquals(4, times.size());
+        assertEquals(10, times.percentile(1));
+
+        times.add(20);
+        assertEquals(20, times.percentile(1));
+        assertEquals(10, times.percentile(0.75f));
+    }
+}
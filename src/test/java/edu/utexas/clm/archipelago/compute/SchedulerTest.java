@@ -0,0 +1,344 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.compute;
+
+import edu.utexas.clm.archipelago.Cluster;
+import edu.utexas.clm.archipelago.data.DataChunk;
+import edu.utexas.clm.archipelago.data.SimpleChunk;
+import edu.utexas.clm.archipelago.network.client.ArchipelagoClient;
+import edu.utexas.clm.archipelago.network.node.ClusterNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs jobs on a Cluster of clients in this JVM, each given one core, and checks that
+ * straggling jobs are run again elsewhere and that jobs wait for the node that has their data.
+ */
+public class SchedulerTest
+{
+    /**
+     * A Cluster whose nodes are ArchipelagoClients in this JVM, talking over loopback sockets.
+     */
+    private static class LocalCluster
+    {
+        final Cluster cluster;
+        final List<ArchipelagoClient> clients = new ArrayList<ArchipelagoClient>();
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        private final ServerSocket server;
+
+        LocalCluster(final int nodes) throws Exception
+        {
+            final long deadline = System.currentTimeMillis() + 10000;
+
+            cluster = Cluster.getCluster();
+            cluster.init();
+            cluster.start();
+            server = new ServerSocket(0, nodes, InetAddress.getLoopbackAddress());
+
+            for (int i = 0; i < nodes; ++i)
+            {
+                final Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(),
+                        server.getLocalPort());
+                final Socket rootSocket = server.accept();
+
+                sockets.add(clientSocket);
+                sockets.add(rootSocket);
+                cluster.getNodeCoordinator().ioStreamsReady(rootSocket.getInputStream(),
+                        rootSocket.getOutputStream());
+                clients.add(new ArchipelagoClient(-1, clientSocket.getInputStream(),
+                        clientSocket.getOutputStream()));
+            }
+
+            while (cluster.countReadyNodes() < nodes)
+            {
+                assertTrue("nodes did not start", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            for (final ClusterNode node : cluster.getNodes())
+            {
+                node.getParam().setThreadLimit(1);
+            }
+
+            // Let the Scheduler pick up the new limits when it next checks its nodes
+            Thread.sleep(1500);
+        }
+
+        ClusterNode busyNode()
+        {
+            for (final ClusterNode node : cluster.getNodes())
+            {
+                if (node.numRunningThreads() > 0)
+                {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        void close()
+        {
+            cluster.shutdownNow();
+            for (final ArchipelagoClient client : clients)
+            {
+                client.close();
+            }
+            try
+            {
+                for (final Socket socket : sockets)
+                {
+                    socket.close();
+                }
+                server.close();
+            }
+            catch (IOException ioe) {/**/}
+        }
+    }
+
+    /**
+     * The first time a watched Stall runs, it runs until it is interrupted. Later runs wait for
+     * the release latch, then return the number of watched runs so far.
+     */
+    public static class Stall implements SerializableCallable<Integer>
+    {
+        static final AtomicInteger runs = new AtomicInteger();
+        static volatile CountDownLatch started, copyStarted, interrupted, release;
+
+        private final boolean watched;
+
+        Stall(final boolean watched)
+        {
+            this.watched = watched;
+        }
+
+        static void reset(final boolean released)
+        {
+            runs.set(0);
+            started = new CountDownLatch(1);
+            copyStarted = new CountDownLatch(1);
+            interrupted = new CountDownLatch(1);
+            release = new CountDownLatch(released ? 0 : 1);
+        }
+
+        public Integer call() throws Exception
+        {
+            final int run;
+
+            if (!watched)
+            {
+                return 0;
+            }
+
+            run = runs.incrementAndGet();
+
+            if (run == 1)
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep(60000);
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted.countDown();
+                    throw ie;
+                }
+                return -1;
+            }
+
+            copyStarted.countDown();
+            release.await();
+            return run;
+        }
+    }
+
+    /**
+     * Reads a chunk, and optionally holds its core until released.
+     */
+    public static class Local implements SerializableCallable<Integer>, ChunkConsumer
+    {
+        static volatile CountDownLatch holding, release;
+
+        final SimpleChunk<Integer> chunk;
+        private final boolean hold;
+
+        Local(final DataChunk<?> data, final boolean hold)
+        {
+            chunk = new SimpleChunk<Integer>(0, data);
+            this.hold = hold;
+        }
+
+        public Collection<? extends DataChunk<?>> getChunks()
+        {
+            return Collections.singletonList(chunk);
+        }
+
+        public Integer call() throws Exception
+        {
+            if (hold)
+            {
+                holding.countDown();
+                release.await();
+            }
+            return 0;
+        }
+    }
+
+    private static void warmUp(final ExecutorService service) throws Exception
+    {
+        for (int i = 0; i < 10; ++i)
+        {
+            final Future<Integer> future = service.submit(new Stall(false));
+
+            assertEquals(0, (int)future.get(10000, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSpeculationWinnerKept() throws Exception
+    {
+        final LocalCluster local = new LocalCluster(2);
+
+        try
+        {
+            final ExecutorService service = local.cluster.getService(1);
+            final Future<Integer> future;
+
+            Stall.reset(true);
+            local.cluster.setSpeculativeExecution(true);
+            warmUp(service);
+
+            // The copy finishes at once, and the first run is cancelled
+            future = service.submit(new Stall(true));
+            assertEquals(2, (int)future.get(20000, TimeUnit.MILLISECONDS));
+            assertTrue(Stall.interrupted.await(10, TimeUnit.SECONDS));
+            assertEquals(2, Stall.runs.get());
+        }
+        finally
+        {
+            local.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testCopyReplacesLostJob() throws Exception
+    {
+        final LocalCluster local = new LocalCluster(2);
+
+        try
+        {
+            final ExecutorService service = local.cluster.getService(1);
+            final Future<Integer> future;
+            final ClusterNode origin;
+
+            Stall.reset(false);
+            warmUp(service);
+
+            // Only turn speculation on once we know where the first run is
+            future = service.submit(new Stall(true));
+            assertTrue(Stall.started.await(10, TimeUnit.SECONDS));
+            origin = local.busyNode();
+            local.cluster.setSpeculativeExecution(true);
+            assertTrue(Stall.copyStarted.await(10, TimeUnit.SECONDS));
+
+            // Losing the first run's node leaves the copy to finish the job, without a third
+            origin.close();
+            assertTrue(Stall.interrupted.await(10, TimeUnit.SECONDS));
+            Stall.release.countDown();
+            assertEquals(2, (int)future.get(10000, TimeUnit.MILLISECONDS));
+            assertEquals(2, Stall.runs.get());
+        }
+        finally
+        {
+            Stall.release.countDown();
+            local.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testLocalityDelay() throws Exception
+    {
+        final LocalCluster local = new LocalCluster(2);
+        final long delay = 2000;
+
+        try
+        {
+            final ExecutorService service = local.cluster.getService(1);
+            final DataChunk<Integer> data = new SimpleChunk<Integer>(0);
+            final Local first = new Local(data, false), waits = new Local(data, false),
+                    settles = new Local(data, false);
+            final Future<Integer> waitsFuture, settlesFuture;
+            final long home, start;
+
+            local.cluster.setLocalityDelay(delay);
+            service.submit(first).get(10000, TimeUnit.MILLISECONDS);
+            home = first.chunk.lastProcessedOn();
+
+            // The chunk's node is busy for a moment, so the job waits for it
+            Local.holding = new CountDownLatch(1);
+            Local.release = new CountDownLatch(1);
+            service.submit(new Local(data, true));
+            assertTrue(Local.holding.await(10, TimeUnit.SECONDS));
+            waitsFuture = service.submit(waits);
+            Thread.sleep(delay / 4);
+            assertFalse(waitsFuture.isDone());
+            Local.release.countDown();
+            waitsFuture.get(10000, TimeUnit.MILLISECONDS);
+            assertEquals(home, waits.chunk.lastProcessedOn());
+
+            // The chunk's node stays busy, so the job goes elsewhere once the delay is up
+            Local.holding = new CountDownLatch(1);
+            Local.release = new CountDownLatch(1);
+            service.submit(new Local(data, true));
+            assertTrue(Local.holding.await(10, TimeUnit.SECONDS));
+            start = System.currentTimeMillis();
+            settlesFuture = service.submit(settles);
+            settlesFuture.get(10000, TimeUnit.MILLISECONDS);
+            assertTrue(System.currentTimeMillis() - start >= delay - 100);
+            assertTrue(settles.chunk.lastProcessedOn() >= 0);
+            assertTrue(settles.chunk.lastProcessedOn() != home);
+        }
+        finally
+        {
+            if (Local.release != null)
+            {
+                Local.release.countDown();
+            }
+            local.close();
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.listen.TransferListener;
+import edu.utexas.clm.archipelago.util.XCErrorAdapter;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs pairs of MessageXCs over loopback sockets, and checks that damaged frames, large
+ * messages, control messages and flow control are handled on the way through.
+ */
+public class MessageXCTest
+{
+    /**
+     * Keeps the messages it is given, and holds up the first USER message until opened.
+     */
+    private static class Recorder implements TransceiverListener
+    {
+        final BlockingQueue<ClusterMessage> messages = new LinkedBlockingQueue<ClusterMessage>();
+        final CountDownLatch gate;
+        final AtomicInteger closed = new AtomicInteger(0);
+
+        Recorder(final boolean gated)
+        {
+            gate = new CountDownLatch(gated ? 1 : 0);
+        }
+
+        public void handleMessage(final ClusterMessage message)
+        {
+            if (message.type == MessageType.USER && messages.isEmpty())
+            {
+                try
+                {
+                    gate.await();
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            messages.add(message);
+        }
+
+        public void streamClosed()
+        {
+            closed.incrementAndGet();
+        }
+
+        ClusterMessage next() throws InterruptedException
+        {
+            final ClusterMessage message = messages.poll(10, TimeUnit.SECONDS);
+            assertTrue("timed out waiting for a message", message != null);
+            return message;
+        }
+
+        ClusterMessage nextUser() throws InterruptedException
+        {
+            ClusterMessage message;
+            while ((message = next()).type != MessageType.USER) {}
+            return message;
+        }
+    }
+
+    /**
+     * Counts the errors it is given, quietly.
+     */
+    private static class ErrorCounter extends XCErrorAdapter
+    {
+        final AtomicInteger errors = new AtomicInteger(0);
+
+        protected boolean handleCustom(final Throwable t, final MessageXC mxc,
+                                       final ClusterMessage message)
+        {
+            errors.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Flips the last payload byte of the given USER frame. Each batch is written whole, so
+     * every write starts on a frame, though a control frame may come before the USER frame.
+     */
+    private static class Corrupter extends FilterOutputStream
+    {
+        private final int target;
+        private int userFrames;
+
+        Corrupter(final OutputStream out, final int target)
+        {
+            super(out);
+            this.target = target;
+            userFrames = 0;
+        }
+
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            final ByteBuffer frames = ByteBuffer.wrap(b, off, len);
+            byte[] copy = b;
+            int p = off;
+
+            while (p + Frame.HEADER_SIZE <= off + len)
+            {
+                // The type is after the marker and flags, and the length after the job ID
+                final int end = p + Frame.HEADER_SIZE + frames.getInt(p + 14);
+
+                if (b[p + 5] == (byte)MessageType.USER.ordinal() && ++userFrames == target)
+                {
+                    copy = b.clone();
+                    copy[end - 1] ^= 0x55;
+                }
+                p = end;
+            }
+            out.write(copy, off, len);
+        }
+    }
+
+    /**
+     * A sending and a receiving MessageXC, connected to each other.
+     */
+    private static class Pair
+    {
+        final MessageXC tx, rx;
+        final Recorder txRecorder, rxRecorder;
+        final ErrorCounter txErrors, rxErrors;
+        private final List<Closeable> closeables = new ArrayList<Closeable>();
+
+        Pair(final boolean channel, final boolean gated, final int corruptFrame)
+                throws IOException
+        {
+            txRecorder = new Recorder(false);
+            rxRecorder = new Recorder(gated);
+            txErrors = new ErrorCounter();
+            rxErrors = new ErrorCounter();
+
+            if (channel)
+            {
+                final ServerSocketChannel server = ServerSocketChannel.open();
+                final SocketChannel c1, c2;
+
+                server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                c1 = SocketChannel.open(server.socket().getLocalSocketAddress());
+                c2 = server.accept();
+                closeables.add(server);
+                tx = new MessageXC(c1, txRecorder, txErrors);
+                rx = new MessageXC(c2, rxRecorder, rxErrors);
+            }
+            else
+            {
+                final ServerSocket server = new ServerSocket(0, 1,
+                        InetAddress.getLoopbackAddress());
+                final Socket s1 = new Socket(InetAddress.getLoopbackAddress(),
+                        server.getLocalPort());
+                final Socket s2 = server.accept();
+                final OutputStream out = corruptFrame > 0 ?
+                        new Corrupter(s1.getOutputStream(), corruptFrame) :
+                        s1.getOutputStream();
+
+                closeables.add(server);
+                closeables.add(s1);
+                closeables.add(s2);
+                tx = new MessageXC(s1.getInputStream(), out, txRecorder, txErrors);
+                rx = new MessageXC(s2.getInputStream(), s2.getOutputStream(), rxRecorder,
+                        rxErrors);
+            }
+        }
+
+        void close()
+        {
+            rxRecorder.gate.countDown();
+            tx.close();
+            rx.close();
+            for (final Closeable c : closeables)
+            {
+                try
+                {
+                    c.close();
+                }
+                catch (IOException ioe) {/**/}
+            }
+        }
+    }
+
+    private static int[] block(final int index, final int length)
+    {
+        final int[] block = new int[length];
+        for (int i = 0; i < length; ++i)
+        {
+            block[i] = index + i;
+        }
+        return block;
+    }
+
+    private static void waitFor(final AtomicInteger value, final int atLeast)
+            throws InterruptedException
+    {
+        while (value.get() < atLeast)
+        {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testCorruptFrameSkipped() throws Exception
+    {
+        final Pair pair = new Pair(false, false, 3);
+
+        try
+        {
+            int next = 4;
+
+            pair.tx.setBatchLimits(1, 0, 0, TimeUnit.MILLISECONDS);
+            for (int i = 1; i <= 3; ++i)
+            {
+                pair.tx.queueMessage(MessageType.USER, i);
+            }
+
+            assertEquals(1, pair.rxRecorder.nextUser().o);
+            assertEquals(2, pair.rxRecorder.nextUser().o);
+            waitFor(pair.rxErrors.errors, 1);
+
+            // Anything sent before the remote side has reset is skipped too, but no more
+            while (pair.rxRecorder.messages.poll(100, TimeUnit.MILLISECONDS) == null)
+            {
+                pair.tx.queueMessage(MessageType.USER, next++);
+            }
+            pair.tx.queueMessage(MessageType.USER, -1);
+            while (!Integer.valueOf(-1).equals(pair.rxRecorder.nextUser().o)) {}
+
+            assertEquals(0, pair.rxRecorder.closed.get());
+            assertEquals(0, pair.txErrors.errors.get());
+        }
+        finally
+        {
+            pair.close();
+        }
+    }
+
+    private static void checkChunked(final boolean channel) throws Exception
+    {
+        final Pair pair = new Pair(channel, false, 0);
+        final AtomicLong sent = new AtomicLong(0), received = new AtomicLong(0);
+        final int[] big = block(7, 100 * 1024);
+
+        try
+        {
+            pair.tx.addTransferListener(new TransferListener()
+            {
+                public void transferProgress(final MessageXC xc, final MessageType type,
+                                             final long jobID, final boolean outgoing,
+                                             final long bytesDone, final long bytesTotal)
+                {
+                    (outgoing ? sent : received).set(bytesDone == bytesTotal ? bytesTotal : 0);
+                }
+            });
+            pair.rx.addTransferListener(new TransferListener()
+            {
+                public void transferProgress(final MessageXC xc, final MessageType type,
+                                             final long jobID, final boolean outgoing,
+                                             final long bytesDone, final long bytesTotal)
+                {
+                    (outgoing ? sent : received).set(bytesDone == bytesTotal ? bytesTotal : 0);
+                }
+            });
+
+            // Well over the default chunk size, so sent in pieces with a small message after
+            pair.tx.queueMessage(MessageType.USER, big);
+            pair.tx.queueMessage(MessageType.PING);
+
+            assertArrayEquals(big, (int[])pair.rxRecorder.nextUser().o);
+            assertTrue(sent.get() > MessageXC.DEFAULT_CHUNK_SIZE);
+            assertEquals(sent.get(), received.get());
+            assertEquals(0, pair.rxErrors.errors.get());
+        }
+        finally
+        {
+            pair.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testChunked() throws Exception
+    {
+        checkChunked(false);
+    }
+
+    @Test(timeout = 20000)
+    public void testChunkedChannel() throws Exception
+    {
+        checkChunked(true);
+    }
+
+    /**
+     * Fills the remote side's receive window and our bulk queue while the remote listener is
+     * held up, then checks that a control message still gets through ahead of the queue, and
+     * that everything follows once the listener lets go.
+     */
+    private static void checkCredit(final boolean channel) throws Exception
+    {
+        final Pair pair = new Pair(channel, true, 0);
+        final int n = 40;
+        final Thread producer = new Thread()
+        {
+            public void run()
+            {
+                for (int i = 0; i < n; ++i)
+                {
+                    pair.tx.queueMessage(MessageType.USER, block(i, 2000));
+                }
+            }
+        };
+
+        try
+        {
+            final List<ClusterMessage> order = new ArrayList<ClusterMessage>();
+            int pingAt = -1;
+
+            pair.rx.setReceiveWindow(64 * 1024);
+            pair.tx.setQueueLimit(8);
+            while (pair.tx.getSendWindow() != 64 * 1024)
+            {
+                Thread.sleep(1);
+            }
+
+            producer.start();
+            while (pair.tx.getBulkQueueDepth() < 8)
+            {
+                Thread.sleep(1);
+            }
+
+            // Out of credit, with the queue full and the producer waiting on it
+            Thread.sleep(200);
+            assertTrue(pair.tx.getSendOccupancy() >= 1);
+            assertTrue(pair.tx.getBytesInFlight() >= 64 * 1024);
+            assertEquals(8, pair.tx.getBulkQueueDepth());
+            assertTrue(producer.isAlive());
+
+            assertTrue(pair.tx.queueMessage(MessageType.PING));
+            pair.rxRecorder.gate.countDown();
+
+            while (order.size() < n + 1)
+            {
+                final ClusterMessage message = pair.rxRecorder.next();
+                if (message.type == MessageType.PING)
+                {
+                    pingAt = order.size();
+                }
+                if (message.type == MessageType.PING || message.type == MessageType.USER)
+                {
+                    order.add(message);
+                }
+            }
+
+            // The PING overtook the queue, and the bulk messages arrived in order
+            assertTrue("ping at " + pingAt, pingAt > 0 && pingAt <= n - 8);
+            order.remove(pingAt);
+            for (int i = 0; i < n; ++i)
+            {
+                assertEquals(i, ((int[])order.get(i).o)[0]);
+            }
+
+            producer.join();
+            assertNull(pair.rxRecorder.messages.poll(100, TimeUnit.MILLISECONDS));
+            assertFalse(pair.tx.getSendOccupancy() >= 1);
+        }
+        finally
+        {
+            pair.close();
+            producer.join();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testCredit() throws Exception
+    {
+        checkCredit(false);
+    }
+
+    @Test(timeout = 20000)
+    public void testCreditChannel() throws Exception
+    {
+        checkCredit(true);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+package edu.utexas.clm.archipelago.network.codec;
+
+import edu.utexas.clm.archipelago.compute.ProcessManager;
+import edu.utexas.clm.archipelago.compute.SerializableCallable;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.data.Duplex;
+import edu.utexas.clm.archipelago.data.HeartBeat;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.translation.Bottle;
+import edu.utexas.clm.archipelago.network.translation.ClassBottler;
+import edu.utexas.clm.archipelago.util.XCErrorAdapter;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes messages with each registered codec and checks that they decode to equal messages,
+ * with Bottled Objects replaced on the way out and restored on the way in.
+ */
+public class CodecTest
+{
+    /**
+     * An Object that is always sent in a Bottle. Equal Boxes have equal names, whether or not
+     * they came out of a Bottle.
+     */
+    public static class Box implements Serializable
+    {
+        private static final long serialVersionUID = -2093564877103527826L;
+
+        public final String name;
+        public final boolean unbottled;
+
+        public Box(final String name, final boolean unbottled)
+        {
+            this.name = name;
+            this.unbottled = unbottled;
+        }
+
+        public boolean equals(final Object o)
+        {
+            return o instanceof Box && ((Box)o).name.equals(name);
+        }
+
+        public int hashCode()
+        {
+            return name.hashCode();
+        }
+    }
+
+    public static class BoxBottle implements Bottle<Box>
+    {
+        private static final long serialVersionUID = 6518402291574103846L;
+
+        private final String name;
+
+        public BoxBottle(final Box box)
+        {
+            name = box.name;
+        }
+
+        public Box unBottle(final MessageXC xc)
+        {
+            return new Box(name, true);
+        }
+    }
+
+    public static class BoxBottler implements ClassBottler<Box>
+    {
+        private static final long serialVersionUID = 3371904786551924075L;
+
+        public boolean accepts(final Object o)
+        {
+            return o instanceof Box;
+        }
+
+        public Bottle<Box> bottle(final Object o, final MessageXC xc)
+        {
+            return new BoxBottle((Box)o);
+        }
+
+        public Class<?>[] bottledClasses()
+        {
+            return new Class<?>[]{Box.class};
+        }
+
+        public boolean transfer()
+        {
+            return false;
+        }
+    }
+
+    public static class BoxCallable implements SerializableCallable<Box>
+    {
+        private static final long serialVersionUID = -6121938722315036114L;
+
+        public final Box box;
+
+        public BoxCallable(final Box box)
+        {
+            this.box = box;
+        }
+
+        public Box call()
+        {
+            return box;
+        }
+    }
+
+    /**
+     * A Serializable that no codec writes directly.
+     */
+    public static class Tally implements Serializable
+    {
+        private static final long serialVersionUID = 4410697375217180253L;
+
+        public int count;
+    }
+
+    private static ClusterMessage message(final MessageType type, final Serializable o)
+    {
+        final ClusterMessage message = new ClusterMessage(type);
+        message.o = o;
+        return message;
+    }
+
+    /**
+     * Encodes the given messages in order with one encoder, then decodes them in order with
+     * one decoder, so that each codec's state is carried from message to message.
+     */
+    private static List<ClusterMessage> roundTrip(final MessageCodec codec, final MessageXC xc,
+                                                  final ClusterMessage... messages)
+            throws Exception
+    {
+        final MessageEncoder encoder = codec.createEncoder(xc);
+        final MessageDecoder decoder = codec.createDecoder(xc);
+        final ArrayList<ClusterMessage> decoded = new ArrayList<ClusterMessage>();
+
+        for (int i = 0; i < messages.length; ++i)
+        {
+            final FrameBuffer buffer = new FrameBuffer(4096);
+            encoder.encode(messages[i], i == 0, buffer);
+            decoded.add(decoder.decode(buffer.array(), 0, buffer.size(), i == 0));
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Sends the same message twice with one encoder, changing the object it carries in between,
+     * and checks that the second copy arrives as it was when it was sent.
+     */
+    private static void checkResend(final MessageCodec codec, final MessageXC xc)
+            throws Exception
+    {
+        final String name = codec.getName();
+        final MessageEncoder encoder = codec.createEncoder(xc);
+        final MessageDecoder decoder = codec.createDecoder(xc);
+        final Tally tally = new Tally();
+        final ClusterMessage message = message(MessageType.USER, tally);
+        final FrameBuffer first = new FrameBuffer(4096);
+        final FrameBuffer second = new FrameBuffer(4096);
+
+        tally.count = 1;
+        encoder.encode(message, true, first);
+        tally.count = 2;
+        encoder.encode(message, false, second);
+
+        assertEquals(name, 1,
+                ((Tally)decoder.decode(first.array(), 0, first.size(), true).o).count);
+        assertEquals(name, 2,
+                ((Tally)decoder.decode(second.array(), 0, second.size(), false).o).count);
+        // The class descriptors went out with the first copy only
+        assertTrue(name, second.size() < first.size());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final ServerSocket server = new ServerSocket(0);
+        final Socket a = new Socket("localhost", server.getLocalPort());
+        final Socket b = server.accept();
+        final TransceiverListener listener = new TransceiverListener()
+        {
+            public void streamClosed() {}
+
+            public void handleMessage(final ClusterMessage message) {}
+        };
+        final MessageXC xc = new MessageXC(a.getInputStream(), a.getOutputStream(), listener,
+                new XCErrorAdapter());
+        final MessageXC remote = new MessageXC(b.getInputStream(), b.getOutputStream(),
+                listener, new XCErrorAdapter());
+
+        try
+        {
+            final HashMap<String, int[]> map = new HashMap<String, int[]>();
+            final Box box = new Box("box", false);
+
+            map.put("ints", new int[]{1, 2, 3});
+            xc.addBottler(new BoxBottler());
+
+            assertTrue(MessageXC.registeredCodecs().size() >= 2);
+
+            for (final MessageCodec codec : MessageXC.registeredCodecs())
+            {
+                final String name = codec.getName();
+                final List<ClusterMessage> decoded = roundTrip(codec, xc,
+                        message(MessageType.PING, null),
+                        message(MessageType.BEAT,
+                                new HeartBeat(5L * HeartBeat.MB, 7L * HeartBeat.MB,
+                                        11L * HeartBeat.MB, 2, 3)),
+                        message(MessageType.SETFSTRANSLATION,
+                                new Duplex<String, String>("/remote", "/local")),
+                        message(MessageType.USER, map),
+                        message(MessageType.USER, new float[]{0.5f, -1f, 1e9f}),
+                        message(MessageType.USER, new ArrayList<String>(
+                                Arrays.asList("a", "b", "a"))),
+                        message(MessageType.USER, box),
+                        message(MessageType.PROCESS, new ProcessManager<Box>(
+                                new BoxCallable(box), 42, 2, false, 100)));
+                final HeartBeat beat = (HeartBeat)decoded.get(1).o;
+                final Box decodedBox = (Box)decoded.get(6).o;
+                final ProcessManager<?> pm = (ProcessManager<?>)decoded.get(7).o;
+                final Box callableBox = ((BoxCallable)pm.getCallable()).box;
+
+                assertEquals(name, MessageType.PING, decoded.get(0).type);
+                assertNull(decoded.get(0).o);
+
+                assertEquals(name, MessageType.BEAT, decoded.get(1).type);
+                assertEquals(name, 5, beat.ramMBAvailable);
+                assertEquals(name, 7, beat.ramMBTotal);
+                assertEquals(name, 11, beat.ramMBMax);
+                assertEquals(name, 2, beat.queuedJobs);
+                assertEquals(name, 3, beat.busyCores);
+
+                assertEquals(name, new Duplex<String, String>("/remote", "/local"),
+                        decoded.get(2).o);
+
+                assertArrayEquals(new int[]{1, 2, 3},
+                        (int[])((HashMap<?, ?>)decoded.get(3).o).get("ints"));
+                assertArrayEquals(new float[]{0.5f, -1f, 1e9f}, (float[])decoded.get(4).o, 0f);
+                assertEquals(name, Arrays.asList("a", "b", "a"), decoded.get(5).o);
+
+                // The Box went out in a Bottle, and came back out of it
+                assertEquals(name, box, decodedBox);
+                assertTrue(name, decodedBox.unbottled);
+                assertFalse(name, box.unbottled);
+
+                assertEquals(name, MessageType.PROCESS, decoded.get(7).type);
+                assertEquals(name, 42, pm.getID());
+                assertEquals(name, 100, pm.getRamMB());
+                assertEquals(name, box, callableBox);
+                assertTrue(name, callableBox.unbottled);
+
+                checkResend(codec, xc);
+            }
+        }
+        finally
+        {
+            xc.close();
+            remote.close();
+            a.close();
+            b.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.node;
+
+import edu.utexas.clm.archipelago.compute.ProcessManager;
+import edu.utexas.clm.archipelago.compute.SerializableCallable;
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.data.Duplex;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.ProcessListener;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a ClusterNode keeps count of the cores its jobs use and the memory they are
+ * expected to need, as jobs are queued on the node, started, finished and taken back.
+ */
+public class ClusterNodeTest
+{
+    public static class Nothing implements SerializableCallable<Integer>
+    {
+        public Integer call()
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Keeps the jobs that come back to it.
+     */
+    private static class Returns implements ProcessListener
+    {
+        final List<ProcessManager<?>> finished = new Vector<ProcessManager<?>>();
+        final List<ProcessManager<?>> reclaimed = new Vector<ProcessManager<?>>();
+
+        public boolean processFinished(final ProcessManager<?> process)
+        {
+            finished.add(process);
+            return true;
+        }
+
+        public void processReclaimed(final ProcessManager<?> process)
+        {
+            reclaimed.add(process);
+        }
+    }
+
+    private static ProcessManager<Integer> job(final long id, final int cores, final int ramMB)
+    {
+        return new ProcessManager<Integer>(new Nothing(), id, cores, false, ramMB);
+    }
+
+    private static void finish(final ClusterNode node, final ProcessManager<?> pm)
+    {
+        final ClusterMessage message = new ClusterMessage(MessageType.PROCESS);
+        message.o = pm;
+        node.handleMessage(message);
+    }
+
+    private static void reclaimed(final ClusterNode node, final long id, final boolean given)
+    {
+        final ClusterMessage message = new ClusterMessage(MessageType.RECLAIM);
+        message.o = new Duplex<Long, Boolean>(id, given);
+        node.handleMessage(message);
+    }
+
+    @Test(timeout = 20000)
+    public void testStagedCores() throws Exception
+    {
+        final LoopbackNode loopback = new LoopbackNode(1, 2, 0, 2);
+        final ClusterNode node = loopback.node;
+        final Returns returns = new Returns();
+        final ProcessManager<Integer> a = job(1, 1, 0), b = job(2, 1, 0), c = job(3, 1, 0),
+                d = job(4, 2, 0);
+
+        try
+        {
+            assertTrue(node.isReady());
+            assertEquals(2, node.numAvailableThreads());
+            assertEquals(2, node.numStagingSlots());
+
+            assertTrue(node.submit(a, returns));
+            assertTrue(node.submit(b, returns));
+            assertEquals(2, node.numRunningThreads());
+            assertEquals(0, node.numAvailableThreads());
+            assertEquals(0, node.numStagedJobs());
+
+            // No cores left, so these wait on the node, in order
+            assertTrue(node.submit(c, returns));
+            assertEquals(1, node.numStagedJobs());
+            assertEquals(1, node.numStagingSlots());
+            assertTrue(node.submit(d, returns));
+            assertEquals(0, node.numStagingSlots());
+            assertTrue(node.isStaged(3));
+            assertTrue(node.isStaged(4));
+            assertEquals(2, node.numRunningThreads());
+
+            // c takes a's core. d needs both, so it waits for b and c
+            finish(node, a);
+            assertFalse(node.isStaged(3));
+            assertTrue(node.isStaged(4));
+            assertEquals(2, node.numRunningThreads());
+            finish(node, b);
+            assertTrue(node.isStaged(4));
+            assertEquals(1, node.numRunningThreads());
+            assertEquals(0, node.numAvailableThreads());
+            finish(node, c);
+            assertEquals(0, node.numStagedJobs());
+            assertEquals(2, node.numRunningThreads());
+            finish(node, d);
+
+            assertEquals(0, node.numRunningThreads());
+            assertEquals(2, node.numAvailableThreads());
+            assertEquals(2, node.numStagingSlots());
+            assertEquals(4, returns.finished.size());
+            assertEquals(0, returns.reclaimed.size());
+        }
+        finally
+        {
+            loopback.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testReclaimStaged() throws Exception
+    {
+        final LoopbackNode loopback = new LoopbackNode(1, 1, 0, 3);
+        final ClusterNode node = loopback.node;
+        final Returns returns = new Returns();
+        final ProcessManager<Integer> a = job(1, 1, 0), b = job(2, 1, 0), c = job(3, 1, 0),
+                wide = job(4, 2, 0);
+
+        try
+        {
+            assertTrue(node.submit(a, returns));
+            assertTrue(node.submit(b, returns));
+            assertTrue(node.submit(c, returns));
+            assertTrue(node.submit(wide, returns));
+            assertEquals(3, node.numStagedJobs());
+            assertEquals(3, node.numReclaimable());
+
+            // The last job small enough is asked for first, and no job is asked for twice
+            assertTrue(node.reclaimStaged(1));
+            assertEquals(3L, loopback.nextSent(MessageType.RECLAIM).o);
+            assertTrue(node.reclaimStaged(1));
+            assertEquals(2L, loopback.nextSent(MessageType.RECLAIM).o);
+            assertFalse(node.reclaimStaged(1));
+            assertEquals(1, node.numReclaimable());
+
+            // c is given back. b had already started, so the node keeps it
+            reclaimed(node, 3, true);
+            assertEquals(1, returns.reclaimed.size());
+            assertEquals(3L, returns.reclaimed.get(0).getID());
+            assertFalse(node.isStaged(3));
+            reclaimed(node, 2, false);
+            assertTrue(node.isStaged(2));
+            assertEquals(2, node.numReclaimable());
+
+            // b starts when a finishes, and only wide is left to ask for
+            finish(node, a);
+            assertFalse(node.isStaged(2));
+            assertEquals(1, node.numRunningThreads());
+            assertEquals(1, node.numReclaimable());
+            assertFalse(node.reclaimStaged(1));
+            assertTrue(node.reclaimStaged(2));
+            assertEquals(4L, loopback.nextSent(MessageType.RECLAIM).o);
+        }
+        finally
+        {
+            loopback.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testRamSafetyFraction() throws Exception
+    {
+        final LoopbackNode loopback = new LoopbackNode(1, 4, 1000, 0);
+        final ClusterNode node = loopback.node;
+        final Returns returns = new Returns();
+        final int limit = (int)(1000 * ClusterNode.RAM_SAFETY_FRACTION);
+        final ProcessManager<Integer> first = job(1, 1, 500);
+
+        try
+        {
+            // The first job always fits, so that a job bigger than any node still runs
+            assertTrue(node.hasRamFor(job(9, 1, 5000)));
+            assertTrue(node.submit(first, returns));
+            assertEquals(500, node.getCommittedRamMB());
+
+            assertTrue(node.hasRamFor(job(2, 1, limit - 500)));
+            assertFalse(node.hasRamFor(job(3, 1, limit - 499)));
+            assertTrue(node.hasRamFor(job(4, 1, 0)));
+
+            finish(node, first);
+            assertEquals(0, node.getCommittedRamMB());
+            assertTrue(node.hasRamFor(job(3, 1, limit - 499)));
+        }
+        finally
+        {
+            loopback.close();
+        }
+    }
+}
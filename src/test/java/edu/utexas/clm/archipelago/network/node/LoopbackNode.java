@@ -0,0 +1,130 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.network.node;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.data.Hello;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.shell.DummyNodeShell;
+import edu.utexas.clm.archipelago.network.translation.Bottler;
+import edu.utexas.clm.archipelago.util.XCErrorAdapter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An active ClusterNode, talking over a loopback socket to a MessageXC that stands in for the
+ * client and keeps what the node sends it. Nothing answers the node, so a test plays the
+ * client's part by handing replies to the node's handleMessage().
+ */
+public class LoopbackNode
+{
+    public final ClusterNode node;
+    public final BlockingQueue<ClusterMessage> sent;
+    private final MessageXC nodeXC, clientXC;
+    private final ServerSocket server;
+    private final Socket nodeSocket, clientSocket;
+
+    /**
+     * @param id the node ID
+     * @param cores the number of cores that the node says it has
+     * @param ramMBMax the maximum heap that the node says it has, in MB
+     * @param prefetchDepth the number of jobs that the node may queue beyond its cores
+     */
+    public LoopbackNode(final long id, final int cores, final int ramMBMax,
+                        final int prefetchDepth) throws IOException
+    {
+        final NodeParameters params = new NodeParameters("test", "node" + id,
+                new DummyNodeShell(), "", "", null, id);
+        final XCErrorAdapter quiet = new XCErrorAdapter()
+        {
+            protected boolean handleCustom(final Throwable t, final MessageXC mxc,
+                                           final ClusterMessage message)
+            {
+                return false;
+            }
+        };
+
+        sent = new LinkedBlockingQueue<ClusterMessage>();
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        nodeSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        clientSocket = server.accept();
+
+        params.setPrefetchDepth(prefetchDepth);
+        node = new ClusterNode(params, quiet);
+        nodeXC = new MessageXC(nodeSocket.getInputStream(), nodeSocket.getOutputStream(),
+                node, quiet);
+        clientXC = new MessageXC(clientSocket.getInputStream(), clientSocket.getOutputStream(),
+                new TransceiverListener()
+                {
+                    public void handleMessage(final ClusterMessage message)
+                    {
+                        sent.add(message);
+                    }
+
+                    public void streamClosed() {}
+                }, quiet);
+
+        node.setMessageXC(nodeXC, new Hello(id, "test", "node" + id, "", "", cores, ramMBMax,
+                new String[]{MessageType.PROCESS.name(), MessageType.PREFETCH.name(),
+                        MessageType.RECLAIM.name(), MessageType.CANCELJOB.name()}),
+                Collections.<Bottler<?>>emptyList());
+    }
+
+    /**
+     * @param type the type of message to wait for
+     * @return the next message of the given type that the node sent, or null if none came
+     * within ten seconds
+     */
+    public ClusterMessage nextSent(final MessageType type) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        ClusterMessage message;
+
+        do
+        {
+            message = sent.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        while (message != null && message.type != type);
+
+        return message;
+    }
+
+    public void close()
+    {
+        node.close();
+        clientXC.close();
+        try
+        {
+            nodeSocket.close();
+            clientSocket.close();
+            server.close();
+        }
+        catch (IOException ioe) {/**/}
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a CompletionLatch wakes every waiter when it opens, and that timed and
+ * interrupted waits give up when they should.
+ */
+public class CompletionLatchTest
+{
+    private static final int N_WAITERS = 8;
+
+    /**
+     * Starts a thread for each waiter that waits on the given latch, counting those that see
+     * it open.
+     */
+    private static ArrayList<Thread> startWaiters(final CompletionLatch latch, final int n,
+                                                  final long timeoutMs,
+                                                  final CountDownLatch started,
+                                                  final AtomicInteger opened)
+    {
+        final ArrayList<Thread> threads = new ArrayList<Thread>(n);
+
+        for (int i = 0; i < n; ++i)
+        {
+            final Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        final boolean open;
+
+                        if (timeoutMs < 0)
+                        {
+                            latch.await();
+                            open = true;
+                        }
+                        else
+                        {
+                            open = latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+                        }
+
+                        if (open)
+                        {
+                            opened.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        // Counted as not opened
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        return threads;
+    }
+
+    private static void joinAll(final ArrayList<Thread> threads) throws InterruptedException
+    {
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testOpenWakesEveryWaiter() throws Exception
+    {
+        final CompletionLatch latch = new CompletionLatch();
+        final CountDownLatch started = new CountDownLatch(2 * N_WAITERS);
+        final AtomicInteger opened = new AtomicInteger(0);
+        final ArrayList<Thread> threads = startWaiters(latch, N_WAITERS, -1, started, opened);
+
+        threads.addAll(startWaiters(latch, N_WAITERS, 60000, started, opened));
+        started.await();
+        // Let the waiters park
+        Thread.sleep(50);
+
+        assertFalse(latch.isOpen());
+        assertEquals(0, opened.get());
+        assertTrue(latch.open());
+        assertFalse(latch.open());
+
+        joinAll(threads);
+        assertTrue(latch.isOpen());
+        assertEquals(2 * N_WAITERS, opened.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testTimeout() throws Exception
+    {
+        final CompletionLatch latch = new CompletionLatch();
+        final long start = System.nanoTime();
+
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(latch.await(0, TimeUnit.MILLISECONDS));
+
+        latch.open();
+        assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+        latch.await();
+    }
+
+    @Test(timeout = 10000)
+    public void testWaitersThatGiveUp() throws Exception
+    {
+        final CompletionLatch latch = new CompletionLatch();
+        final CountDownLatch started = new CountDownLatch(2 * N_WAITERS);
+        final AtomicInteger timedOut = new AtomicInteger(0);
+        final AtomicInteger opened = new AtomicInteger(0);
+        final ArrayList<Thread> quitters = startWaiters(latch, N_WAITERS, 20, started,
+                timedOut);
+        final ArrayList<Thread> waiters = startWaiters(latch, N_WAITERS, -1, started, opened);
+
+        // The quitters give up, and unlink themselves from among the waiters
+        joinAll(quitters);
+        assertEquals(0, timedOut.get());
+
+        latch.open();
+        joinAll(waiters);
+        assertEquals(N_WAITERS, opened.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testInterrupt() throws Exception
+    {
+        final CompletionLatch latch = new CompletionLatch();
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger opened = new AtomicInteger(0);
+        final ArrayList<Thread> interrupted = startWaiters(latch, 1, -1, started, opened);
+        final ArrayList<Thread> waiter = startWaiters(latch, 1, -1, started, opened);
+
+        started.await();
+        Thread.sleep(50);
+        interrupted.get(0).interrupt();
+        joinAll(interrupted);
+
+        assertEquals(0, opened.get());
+        assertFalse(latch.isOpen());
+
+        latch.open();
+        joinAll(waiter);
+        assertEquals(1, opened.get());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an EventBus coalesces bursts of events, always follows the last event with a
+ * call, hurries urgent events past the interval, and keeps delivering once it is shut down.
+ */
+public class EventBusTest
+{
+    /**
+     * Counts its calls, and notes the last event it has seen.
+     */
+    private static class Counter
+    {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final AtomicLong lastSeen = new AtomicLong(-1);
+        final AtomicInteger concurrent = new AtomicInteger(0);
+        volatile boolean overlapped = false;
+        volatile long sleepMs = 0;
+    }
+
+    private static final AtomicLong lastPosted = new AtomicLong(0);
+
+    private static EventBus<Counter> newBus(final TimerWheel timer, final long intervalMs)
+    {
+        return new EventBus<Counter>("test bus", timer, intervalMs, TimeUnit.MILLISECONDS,
+                new EventBus.Delivery<Counter>()
+                {
+                    public void deliver(final Counter counter)
+                    {
+                        if (counter.concurrent.incrementAndGet() > 1)
+                        {
+                            counter.overlapped = true;
+                        }
+
+                        counter.lastSeen.set(lastPosted.get());
+                        counter.calls.incrementAndGet();
+
+                        try
+                        {
+                            Thread.sleep(counter.sleepMs);
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        counter.concurrent.decrementAndGet();
+                    }
+                });
+    }
+
+    private static void waitFor(final AtomicInteger value, final int atLeast)
+            throws InterruptedException
+    {
+        while (value.get() < atLeast)
+        {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void post(final EventBus<Counter> bus, final int n)
+    {
+        for (int i = 0; i < n; ++i)
+        {
+            lastPosted.incrementAndGet();
+            bus.post();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testCoalesce() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer");
+        final EventBus<Counter> bus = newBus(timer, 200);
+        final Counter counter = new Counter();
+        final Thread[] posters = new Thread[4];
+
+        try
+        {
+            assertTrue(bus.add(counter));
+            assertFalse(bus.add(counter));
+            counter.sleepMs = 20;
+
+            for (int i = 0; i < posters.length; ++i)
+            {
+                posters[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        post(bus, 100000);
+                    }
+                };
+                posters[i].start();
+            }
+
+            for (final Thread poster : posters)
+            {
+                poster.join();
+            }
+
+            // Enough time for the interval to pass and the last call to be made
+            Thread.sleep(1000);
+
+            // Far fewer calls than events, never two at once, and the last one saw every event
+            assertTrue(counter.calls.get() >= 1);
+            assertTrue("calls: " + counter.calls.get(), counter.calls.get() < 20);
+            assertFalse(counter.overlapped);
+            assertEquals(lastPosted.get(), counter.lastSeen.get());
+        }
+        finally
+        {
+            bus.shutdown();
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testPostNowSkipsInterval() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer");
+        final EventBus<Counter> bus = newBus(timer, 60000);
+        final Counter counter = new Counter();
+
+        try
+        {
+            bus.add(counter);
+            post(bus, 1);
+            waitFor(counter.calls, 1);
+
+            // Well within the interval, so a plain post waits, and postNow doesn't
+            post(bus, 1);
+            Thread.sleep(100);
+            assertEquals(1, counter.calls.get());
+
+            bus.postNow();
+            waitFor(counter.calls, 2);
+            assertEquals(lastPosted.get(), counter.lastSeen.get());
+        }
+        finally
+        {
+            bus.shutdown();
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testRemove() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer");
+        final EventBus<Counter> bus = newBus(timer, 0);
+        final Counter kept = new Counter();
+        final Counter removed = new Counter();
+
+        try
+        {
+            bus.add(kept);
+            bus.add(removed);
+            assertTrue(bus.remove(removed));
+            assertFalse(bus.remove(removed));
+
+            bus.postNow();
+            waitFor(kept.calls, 1);
+            Thread.sleep(100);
+
+            assertEquals(0, removed.calls.get());
+        }
+        finally
+        {
+            bus.shutdown();
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testShutdown() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer");
+        final EventBus<Counter> bus = newBus(timer, 60000);
+        final Counter counter = new Counter();
+
+        bus.add(counter);
+        counter.sleepMs = 200;
+        bus.postNow();
+        waitFor(counter.calls, 1);
+
+        // The first call is still under way
+        bus.shutdown();
+        timer.stop();
+        assertTrue(bus.isShutdown());
+
+        // Delivered on this thread once that call is done, without waiting out the interval
+        post(bus, 1);
+        assertEquals(2, counter.calls.get());
+        assertFalse(counter.overlapped);
+        counter.sleepMs = 0;
+        bus.postNow();
+        assertEquals(3, counter.calls.get());
+        assertEquals(lastPosted.get(), counter.lastSeen.get());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ * @author Larry Lindsey llindsey@clm.utexas.edu
+ */
+
+
+package edu.utexas.clm.archipelago.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a TimerWheel runs timeouts no earlier than they are due and not much later,
+ * skips cancelled ones, and lets everything pending run when it is stopped.
+ */
+public class TimerWheelTest
+{
+    private static final long TICK_MS = 5;
+
+    private static Runnable counter(final AtomicInteger count, final CountDownLatch done)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                count.incrementAndGet();
+                done.countDown();
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void testRunsWhenDue() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer", TICK_MS, TimeUnit.MILLISECONDS, 8);
+        final AtomicLong ranAt = new AtomicLong(0);
+        final CountDownLatch done = new CountDownLatch(1);
+        final long start = System.nanoTime();
+
+        try
+        {
+            // Longer than one turn of the wheel, so the timeout has to wait out a lap
+            timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    ranAt.set(System.nanoTime());
+                    done.countDown();
+                }
+            }, 100, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(ranAt.get() - start < TimeUnit.MILLISECONDS.toNanos(2000));
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCancel() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer", TICK_MS, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger count = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        try
+        {
+            final TimerWheel.Timeout cancelled =
+                    timer.schedule(counter(count, done), 20, TimeUnit.MILLISECONDS);
+            final TimerWheel.Timeout kept;
+
+            assertTrue(cancelled.cancel());
+            assertFalse(cancelled.cancel());
+            assertTrue(cancelled.isCancelled());
+
+            kept = timer.schedule(counter(count, done), 50, TimeUnit.MILLISECONDS);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals(1, count.get());
+            assertTrue(kept.isExpired());
+            assertFalse(kept.cancel());
+            assertFalse(cancelled.isExpired());
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWakesFromIdle() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer", TICK_MS, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger count = new AtomicInteger(0);
+
+        try
+        {
+            for (int i = 0; i < 3; ++i)
+            {
+                final CountDownLatch done = new CountDownLatch(1);
+                timer.schedule(counter(count, done), 10, TimeUnit.MILLISECONDS);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                // Let the timer thread go idle before the next one
+                Thread.sleep(50);
+            }
+
+            assertEquals(3, count.get());
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStop() throws Exception
+    {
+        final TimerWheel timer = new TimerWheel("test timer", TICK_MS, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger count = new AtomicInteger(0);
+        final CountDownLatch pending = new CountDownLatch(3);
+        final CountDownLatch late = new CountDownLatch(1);
+        final TimerWheel.Timeout cancelled =
+                timer.schedule(counter(count, pending), 1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 3; ++i)
+        {
+            timer.schedule(counter(count, pending), 1, TimeUnit.HOURS);
+        }
+        cancelled.cancel();
+
+        timer.stop();
+        assertTrue(timer.isStopped());
+
+        // Whatever was pending runs, rather than leaving its waiter stuck
+        assertTrue(pending.await(5, TimeUnit.SECONDS));
+
+        // Anything scheduled afterwards runs right away, on this thread
+        timer.schedule(counter(count, late), 1, TimeUnit.HOURS);
+        assertEquals(0, late.getCount());
+
+        assertEquals(4, count.get());
+        assertFalse(cancelled.isExpired());
+    }
+}